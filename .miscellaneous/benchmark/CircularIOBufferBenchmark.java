@@ -0,0 +1,379 @@
+//
+// FPlayAndroid is distributed under the FreeBSD License
+//
+// Copyright (c) 2013-2014, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// The views and conclusions contained in the software and documentation are those
+// of the authors and should not be interpreted as representing official policies,
+// either expressed or implied, of the FreeBSD Project.
+//
+// https://github.com/carlosrafaelgn/FPlayAndroid
+//
+package br.com.carlosrafaelgn.fplay.playback;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+//standalone benchmark/test for CircularIOBuffer, which runs on a plain host JVM (see
+//build-benchmark-buffer.sh), comparing the current single-producer/single-consumer buffer
+//with the previous implementation, which took the lock on every call and polled with wait(10)
+//
+//the same byte stream is pushed through both buffers, in the same way HttpStreamReceiver does
+//(packets of up to MAX_PACKET_LENGTH bytes written by one thread, frames read by another one),
+//and every byte received is verified
+//
+//two scenarios are measured:
+//- bulk: the writer never sleeps, which reports the throughput (MiB/s)
+//- paced: the writer sleeps between packets (as a network would make it do), which reports how
+//  long it takes for a packet to become readable after it has been committed (latency)
+public final class CircularIOBufferBenchmark {
+	private static final int MAX_PACKET_LENGTH = 2048;
+	private static final int FRAME_LENGTH = 417; //a 128 kbps 44100 Hz MP3 frame
+	private static final int CAPACITY = 16 * 1024;
+	private static final long BULK_LENGTH = 256L * 1024L * 1024L;
+	private static final int PACED_PACKET_COUNT = 4000;
+	private static final long PACED_INTERVAL_NS = 250000L;
+
+	//the old implementation, only with the methods used here (it is exactly what
+	//CircularIOBuffer used to be before it became lock-free on the fast path)
+	private static final class OldCircularIOBuffer {
+		private volatile boolean alive, finished;
+		private volatile int filledSize;
+		private final Object sync;
+		public final int capacity;
+		public final byte[] array;
+		public final ByteBuffer writeBuffer, readBuffer;
+
+		public OldCircularIOBuffer(int capacity) {
+			alive = true;
+			sync = new Object();
+			this.capacity = capacity;
+			array = new byte[capacity];
+			writeBuffer = ByteBuffer.wrap(array);
+			readBuffer = writeBuffer.asReadOnlyBuffer();
+			readBuffer.limit(readBuffer.capacity());
+		}
+
+		private int canReadInternal(int length) {
+			if (!alive)
+				return -1;
+			if (filledSize < length) {
+				if (!finished)
+					return -1;
+				length = filledSize;
+			}
+			if (readBuffer.position() >= capacity)
+				readBuffer.position(0);
+			return length;
+		}
+
+		public int waitUntilCanRead(int length) {
+			synchronized (sync) {
+				while (alive && !finished && filledSize < length) {
+					try {
+						sync.wait(10);
+					} catch (Throwable ex) {
+						//ignore the interruptions
+					}
+				}
+				return canReadInternal(length);
+			}
+		}
+
+		private void commitRead(int length) {
+			synchronized (sync) {
+				if (filledSize < length)
+					throw new IllegalArgumentException("filledSize < length");
+				filledSize -= length;
+				sync.notifyAll();
+			}
+		}
+
+		public void read(byte[] dst, int dstOffset, int length) {
+			final int originalLength = length;
+			final int readPosition = readBuffer.position();
+			final int bytesAvailableBeforeEndOfBuffer = capacity - readPosition;
+			if (bytesAvailableBeforeEndOfBuffer >= length) {
+				System.arraycopy(array, readPosition, dst, dstOffset, length);
+				readBuffer.position(readPosition + length);
+			} else {
+				if (bytesAvailableBeforeEndOfBuffer > 0) {
+					System.arraycopy(array, readPosition, dst, dstOffset, bytesAvailableBeforeEndOfBuffer);
+					length -= bytesAvailableBeforeEndOfBuffer;
+				}
+				System.arraycopy(array, 0, dst, dstOffset + bytesAvailableBeforeEndOfBuffer, length);
+				readBuffer.position(length);
+			}
+			commitRead(originalLength);
+		}
+
+		public int waitUntilCanWrite(int length) {
+			synchronized (sync) {
+				while (alive && (capacity - filledSize) < length) {
+					try {
+						sync.wait(10);
+					} catch (Throwable ex) {
+						//ignore the interruptions
+					}
+				}
+			}
+			if (writeBuffer.position() >= capacity)
+				writeBuffer.position(0);
+			if (!alive)
+				return -1;
+			final int bytesAvailableBeforeEndOfBuffer = capacity - writeBuffer.position();
+			if (length > bytesAvailableBeforeEndOfBuffer)
+				length = bytesAvailableBeforeEndOfBuffer;
+			writeBuffer.limit(writeBuffer.position() + length);
+			return length;
+		}
+
+		public void commitWritten(int length) {
+			synchronized (sync) {
+				if (capacity < (filledSize + length))
+					throw new IllegalArgumentException("capacity < (filledSize + length)");
+				filledSize += length;
+				sync.notifyAll();
+			}
+		}
+
+		public void commitWrittenFinished(int length) {
+			synchronized (sync) {
+				if (capacity < (filledSize + length))
+					throw new IllegalArgumentException("capacity < (filledSize + length)");
+				finished = true;
+				filledSize += length;
+				sync.notifyAll();
+			}
+		}
+	}
+
+	//both buffers are driven through this, so the very same code runs on top of each one
+	private interface Buffer {
+		int waitUntilCanRead(int length);
+		void read(byte[] dst, int dstOffset, int length);
+		int waitUntilCanWrite(int length);
+		ByteBuffer writeBuffer();
+		void commitWritten(int length);
+		void commitWrittenFinished(int length);
+	}
+
+	private static Buffer wrap(final OldCircularIOBuffer buffer) {
+		return new Buffer() {
+			@Override
+			public int waitUntilCanRead(int length) {
+				return buffer.waitUntilCanRead(length);
+			}
+
+			@Override
+			public void read(byte[] dst, int dstOffset, int length) {
+				buffer.read(dst, dstOffset, length);
+			}
+
+			@Override
+			public int waitUntilCanWrite(int length) {
+				return buffer.waitUntilCanWrite(length);
+			}
+
+			@Override
+			public ByteBuffer writeBuffer() {
+				return buffer.writeBuffer;
+			}
+
+			@Override
+			public void commitWritten(int length) {
+				buffer.commitWritten(length);
+			}
+
+			@Override
+			public void commitWrittenFinished(int length) {
+				buffer.commitWrittenFinished(length);
+			}
+		};
+	}
+
+	private static Buffer wrap(final CircularIOBuffer buffer) {
+		return new Buffer() {
+			@Override
+			public int waitUntilCanRead(int length) {
+				return buffer.waitUntilCanRead(length);
+			}
+
+			@Override
+			public void read(byte[] dst, int dstOffset, int length) {
+				buffer.read(dst, dstOffset, length);
+			}
+
+			@Override
+			public int waitUntilCanWrite(int length) {
+				return buffer.waitUntilCanWrite(length);
+			}
+
+			@Override
+			public ByteBuffer writeBuffer() {
+				return buffer.writeBuffer;
+			}
+
+			@Override
+			public void commitWritten(int length) {
+				buffer.commitWritten(length);
+			}
+
+			@Override
+			public void commitWrittenFinished(int length) {
+				buffer.commitWrittenFinished(length);
+			}
+		};
+	}
+
+	//the byte at a given offset of the stream (cheap to generate, and not periodic
+	//with any of the lengths used here)
+	private static byte streamByte(long offset) {
+		return (byte)((offset * 31L) ^ (offset >>> 9) ^ (offset >>> 17));
+	}
+
+	private static final class Writer extends Thread {
+		private final Buffer buffer;
+		private final long length;
+		private final long intervalNS;
+		//commitTime[i] is when the packet that ends at (i + 1) * MAX_PACKET_LENGTH was committed
+		//(it is written before commitWritten(), so the reader always sees it after the data)
+		public final long[] commitTime;
+
+		public Writer(Buffer buffer, long length, long intervalNS) {
+			super("Benchmark Writer Thread");
+			setDaemon(true);
+			this.buffer = buffer;
+			this.length = length;
+			this.intervalNS = intervalNS;
+			commitTime = (intervalNS > 0 ? new long[(int)(length / MAX_PACKET_LENGTH)] : null);
+		}
+
+		@Override
+		public void run() {
+			long offset = 0;
+			int packetFill = 0, packet = 0;
+			while (offset < length) {
+				final long left = length - offset;
+				int len = buffer.waitUntilCanWrite((left < (MAX_PACKET_LENGTH - packetFill)) ? (int)left : (MAX_PACKET_LENGTH - packetFill));
+				final ByteBuffer writeBuffer = buffer.writeBuffer();
+				for (int i = len; i > 0; i--)
+					writeBuffer.put(streamByte(offset++));
+				if (offset >= length) {
+					buffer.commitWrittenFinished(len);
+					break;
+				}
+				//waitUntilCanWrite() may return less than a full packet when the end of the array is reached
+				packetFill += len;
+				if (packetFill >= MAX_PACKET_LENGTH) {
+					packetFill = 0;
+					if (commitTime != null)
+						commitTime[packet++] = System.nanoTime();
+				}
+				buffer.commitWritten(len);
+				if (packetFill == 0 && intervalNS > 0) {
+					final long end = System.nanoTime() + intervalNS;
+					while (System.nanoTime() < end)
+						Thread.yield();
+				}
+			}
+		}
+	}
+
+	private static final class Result {
+		public double mibPerSecond;
+		public long[] latencyNS;
+	}
+
+	private static Result run(Buffer buffer, long length, long intervalNS, int frameLength) throws InterruptedException {
+		final Writer writer = new Writer(buffer, length, intervalNS);
+		final byte[] frame = new byte[frameLength];
+		final long[] latencyNS = ((writer.commitTime != null) ? new long[writer.commitTime.length - 1] : null);
+		int latencyCount = 0;
+		long offset = 0;
+		final long start = System.nanoTime();
+		writer.start();
+		for (;;) {
+			final int len = buffer.waitUntilCanRead(frameLength);
+			if (len <= 0)
+				break;
+			buffer.read(frame, 0, len);
+			for (int i = 0; i < len; i++) {
+				if (frame[i] != streamByte(offset + i))
+					throw new IllegalStateException("corrupted stream at offset " + (offset + i));
+			}
+			offset += len;
+			//the last packet is committed with commitWrittenFinished() and has no commit time
+			if (latencyNS != null && latencyCount < latencyNS.length && offset >= (long)(latencyCount + 1) * MAX_PACKET_LENGTH)
+				latencyNS[latencyCount] = System.nanoTime() - writer.commitTime[latencyCount++];
+		}
+		final long elapsed = System.nanoTime() - start;
+		writer.join();
+		if (offset != length)
+			throw new IllegalStateException("expected " + length + " bytes, but received " + offset);
+		final Result result = new Result();
+		result.mibPerSecond = ((double)length / (1024.0 * 1024.0)) / ((double)elapsed / 1000000000.0);
+		if (latencyNS != null) {
+			Arrays.sort(latencyNS, 0, latencyCount);
+			result.latencyNS = Arrays.copyOf(latencyNS, latencyCount);
+		}
+		return result;
+	}
+
+	private static String us(long ns) {
+		return String.format("%8.1f", (double)ns / 1000.0);
+	}
+
+	private static void report(String name, Result bulk, Result paced) {
+		final long[] l = paced.latencyNS;
+		long sum = 0;
+		for (long ns : l)
+			sum += ns;
+		System.out.println(String.format("%-22s %9.1f MiB/s  latency (us) avg %s  p50 %s  p99 %s  max %s",
+			name,
+			bulk.mibPerSecond,
+			us(sum / l.length),
+			us(l[l.length / 2]),
+			us(l[(int)((l.length * 99L) / 100L)]),
+			us(l[l.length - 1])));
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		System.out.println("capacity " + CAPACITY + " bytes, packets of " + MAX_PACKET_LENGTH + " bytes, frames of " + FRAME_LENGTH + " bytes");
+		System.out.println("bulk: " + (BULK_LENGTH >> 20) + " MiB, paced: " + PACED_PACKET_COUNT + " packets every " + (PACED_INTERVAL_NS / 1000) + " us");
+		System.out.println();
+		//warm up both implementations before measuring anything
+		for (int i = 0; i < 2; i++) {
+			run(wrap(new OldCircularIOBuffer(CAPACITY)), BULK_LENGTH >> 3, 0, FRAME_LENGTH);
+			run(wrap(new CircularIOBuffer(CAPACITY)), BULK_LENGTH >> 3, 0, FRAME_LENGTH);
+		}
+		final long pacedLength = (long)PACED_PACKET_COUNT * MAX_PACKET_LENGTH;
+		for (int i = 0; i < 3; i++) {
+			report("old (sync + wait(10))", run(wrap(new OldCircularIOBuffer(CAPACITY)), BULK_LENGTH, 0, FRAME_LENGTH), run(wrap(new OldCircularIOBuffer(CAPACITY)), pacedLength, PACED_INTERVAL_NS, MAX_PACKET_LENGTH));
+			report("new (SPSC)", run(wrap(new CircularIOBuffer(CAPACITY)), BULK_LENGTH, 0, FRAME_LENGTH), run(wrap(new CircularIOBuffer(CAPACITY)), pacedLength, PACED_INTERVAL_NS, MAX_PACKET_LENGTH));
+		}
+		System.out.println();
+		System.out.println("all streams verified");
+	}
+}
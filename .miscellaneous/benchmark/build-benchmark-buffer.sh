@@ -0,0 +1,3 @@
+#builds and runs the CircularIOBuffer benchmark (CircularIOBufferBenchmark.java) on a host JVM
+#(must be run from this folder)
+rm -rf /tmp/fplay-buffer-benchmark && mkdir -p /tmp/fplay-buffer-benchmark && javac -nowarn -d /tmp/fplay-buffer-benchmark ../../app/src/main/java/br/com/carlosrafaelgn/fplay/playback/CircularIOBuffer.java CircularIOBufferBenchmark.java && java -cp /tmp/fplay-buffer-benchmark br.com.carlosrafaelgn.fplay.playback.CircularIOBufferBenchmark
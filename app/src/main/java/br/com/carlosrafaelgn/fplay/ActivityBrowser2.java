@@ -53,6 +53,7 @@ import java.util.Locale;
 import br.com.carlosrafaelgn.fplay.activity.ActivityHost;
 import br.com.carlosrafaelgn.fplay.activity.ClientActivity;
 import br.com.carlosrafaelgn.fplay.activity.MainHandler;
+import br.com.carlosrafaelgn.fplay.list.DirectoryListingCache;
 import br.com.carlosrafaelgn.fplay.list.FileFetcher;
 import br.com.carlosrafaelgn.fplay.list.FileList;
 import br.com.carlosrafaelgn.fplay.list.FileSt;
@@ -69,7 +70,7 @@ import br.com.carlosrafaelgn.fplay.ui.drawable.ColorDrawable;
 import br.com.carlosrafaelgn.fplay.ui.drawable.TextIconDrawable;
 import br.com.carlosrafaelgn.fplay.util.TypedRawArrayList;
 
-public final class ActivityBrowser2 extends ClientActivity implements View.OnClickListener, DialogInterface.OnClickListener, DialogInterface.OnCancelListener, FileList.ItemClickListener, FileList.ActionListener, BgListView.OnBgListViewKeyDownObserver, FastAnimator.Observer {
+public final class ActivityBrowser2 extends ClientActivity implements View.OnClickListener, DialogInterface.OnClickListener, DialogInterface.OnCancelListener, FileList.ItemClickListener, FileList.ActionListener, FileFetcher.ProgressListener, BgListView.OnBgListViewKeyDownObserver, FastAnimator.Observer {
 	private static final int MNU_REMOVEFAVORITE = 100;
 	private static String lastAccessCode;
 	private FileSt lastClickedFavorite;
@@ -242,6 +243,35 @@ public final class ActivityBrowser2 extends ClientActivity implements View.OnCli
 					final TypedRawArrayList<FileSt> filesToAdd = new TypedRawArrayList<>(FileSt.class, 256);
 					try {
 						Throwable firstException = null;
+						//the contents of the folders are added as they are found, instead of waiting
+						//for the entire tree to be fetched (only the first batch can start playing)
+						final boolean[] added = new boolean[1];
+						final FileFetcher.PartialListener partialListener = new FileFetcher.PartialListener() {
+							@Override
+							public void onFilesPartiallyFetched(FileFetcher fetcher, FileSt[] files, int offset, int count) {
+								if (filesToAdd.size() > 0) {
+									//keep the files checked before this folder ahead of its contents
+									Player.songs.addFiles(null, filesToAdd.iterator(), filesToAdd.size(), play && !added[0], true, false, false);
+									filesToAdd.clear();
+									added[0] = true;
+								}
+								int n = 0;
+								for (int i = offset + count - 1; i >= offset; i--) {
+									if (!files[i].isDirectory)
+										n++;
+								}
+								if (n <= 0)
+									return;
+								final FileSt[] batch = new FileSt[n];
+								n = 0;
+								for (int i = offset; i < offset + count; i++) {
+									if (!files[i].isDirectory)
+										batch[n++] = files[i];
+								}
+								Player.songs.addFiles(batch, null, n, play && !added[0], true, false, false);
+								added[0] = true;
+							}
+						};
 						for (FileSt file : fs) {
 							if (Player.state >= Player.STATE_TERMINATING)
 								return;
@@ -253,23 +283,17 @@ public final class ActivityBrowser2 extends ClientActivity implements View.OnCli
 									addingFolder = true;
 							} else {
 								addingFolder = true;
-								final FileFetcher ff = FileFetcher.fetchFilesInThisThread(file.path, null, false, true, true, false, false);
+								final FileFetcher ff = FileFetcher.fetchFilesInThisThread(file.path, null, partialListener, false, true, true, false, false);
 								final Throwable thrownException = ff.getThrownException();
-								if (thrownException == null) {
-									if (ff.count <= 0)
-										continue;
-									filesToAdd.addAll(ff.files, ff.count);
-								} else {
-									if (firstException == null)
-										firstException = thrownException;
-								}
+								if (thrownException != null && firstException == null)
+									firstException = thrownException;
 							}
 						}
 						if (filesToAdd.size() <= 0) {
-							if (firstException != null && Player.state == Player.STATE_ALIVE)
+							if (!added[0] && firstException != null && Player.state == Player.STATE_ALIVE)
 								MainHandler.toast(firstException);
 						} else {
-							Player.songs.addFiles(null, filesToAdd.iterator(), filesToAdd.size(), play, addingFolder, false, false);
+							Player.songs.addFiles(null, filesToAdd.iterator(), filesToAdd.size(), play && !added[0], addingFolder, false, false);
 						}
 					} catch (Throwable ex) {
 						ex.printStackTrace();
@@ -497,6 +521,7 @@ public final class ActivityBrowser2 extends ClientActivity implements View.OnCli
 				//that's why we set the visibility after calling end()
 				lblLoading.setVisibility(View.VISIBLE);
 				if (started) {
+					lblLoading.setText(msgLoading);
 					list.setVisibility(View.INVISIBLE);
 				} else {
 					list.setVisibility(View.VISIBLE);
@@ -518,6 +543,19 @@ public final class ActivityBrowser2 extends ClientActivity implements View.OnCli
 		//	updateButtons(true);
 	}
 
+	@Override
+	public void onFilesFetchProgress(FileFetcher fetcher, int count) {
+		if (!isLayoutCreated() || !loading || list == null)
+			return;
+		final String text = UI.format(R.string.loading_count, Integer.toString(count));
+		if (animator != null) {
+			lblLoading.setText(text);
+		} else {
+			list.setCustomEmptyText(text);
+			list.invalidate();
+		}
+	}
+
 	@Override
 	public View getNullContextMenuView() {
 		if (isAtHome && !loading && list != null && fileList != null) {
@@ -861,6 +899,7 @@ public final class ActivityBrowser2 extends ClientActivity implements View.OnCli
 		fileList.syncAlbumArtFetcher();
 		fileList.setItemClickListener(this);
 		fileList.setActionListener(this);
+		fileList.progressListener = this;
 		//We cannot use getDrawable() here, as sometimes the bitmap used by the drawable
 		//is internally cached, therefore, causing an exception when we try to use it
 		//after being recycled...
@@ -1067,10 +1106,12 @@ public final class ActivityBrowser2 extends ClientActivity implements View.OnCli
 		if (fileList != null) {
 			fileList.setItemClickListener(null);
 			fileList.setActionListener(null);
+			fileList.progressListener = null;
 			fileList.cancel();
 			fileList.destroyAlbumArtFetcher();
 			fileList = null;
 		}
+		DirectoryListingCache.getInstance().flushInBackground();
 	}
 
 	@Override
@@ -111,7 +111,7 @@ public final class ActivitySettings extends ClientActivity implements Player.Pla
 		optTransition, optPopupTransition, optAnimations, optNotFullscreen, optFadeInFocus, optFadeInPause,
 		optFadeInOther, optBtMessage, optBtConnect, optBtStart, optBtFramesToSkip, optBtSize, optBtVUMeter,
 		optBtSpeed, optAnnounceCurrentSong, optFollowCurrentSong, optBytesBeforeDecoding, optMSBeforePlayback,
-		optBufferSize, optFillThreshold, optPlaybackEngine, optResampling, optPreviousResetsAfterTheBeginning,
+		optBufferSize, optFillThreshold, optPlaybackEngine, optResampling, optHighQualityResampling, optPipelineStatsLogging, optPreviousResetsAfterTheBeginning,
 		optLargeTextIs22sp, optDisplaySongNumberAndCount, optAllowLockScreen, optPlaceControlsAtTheBottom,
 		optAlbumArtSongList, optAutoNightMode, lastMenuView;
 	private String btErrorMessage, httpAccessCode;
@@ -487,7 +487,7 @@ public final class ActivitySettings extends ClientActivity implements Player.Pla
 				.setOnMenuItemClickListener(this)
 				.setIcon(new TextIconDrawable((Player.filePrefetchSize == 0) ? UI.ICON_RADIOCHK24 : UI.ICON_RADIOUNCHK24));
 			UI.separator(menu, 0, 1);
-			for (int i = 1; i <= 3; i++) {
+			for (int i = 1; i < Player.FILE_PREFETCH_SIZE_OPTION_COUNT; i++) {
 				final int filePrefetchSize = Player.getFilePrefetchSizeFromOptions(i);
 				menu.add(1, i, i, getFileBufferSizeString(filePrefetchSize))
 					.setOnMenuItemClickListener(this)
@@ -766,7 +766,8 @@ public final class ActivitySettings extends ClientActivity implements Player.Pla
 	}
 
 	private String getFileBufferSizeString(int fileBufferSize) {
-		return ((fileBufferSize == 0) ? getText(R.string.noneM).toString() : (fileBufferSize >>> 10) + " KiB");
+		return ((fileBufferSize == 0) ? getText(R.string.noneM).toString() :
+			((fileBufferSize == Player.FILE_PREFETCH_SIZE_MAPPED) ? getText(R.string.memory_mapped_file).toString() : (fileBufferSize >>> 10) + " KiB"));
 	}
 
 	private void prepareHeader(TextView hdr) {
@@ -1323,6 +1324,8 @@ public final class ActivitySettings extends ClientActivity implements Player.Pla
 				optFillThreshold = createOptFillThreshold();
 				optPlaybackEngine = new SettingView(ctx, UI.ICON_FPLAY, getText(R.string.playback_engine).toString(), getPlaybackEngineString(MediaContext.useOpenSLEngine), false, false, false);
 				optResampling = new SettingView(ctx, UI.ICON_SETTINGS, getText(R.string.resample_track_to_native).toString(), null, true, Player.isResamplingEnabled(), false);
+				optHighQualityResampling = new SettingView(ctx, UI.ICON_SETTINGS, getText(R.string.high_quality_resampling).toString(), null, true, Player.isHighQualityResamplingEnabled(), false);
+				optPipelineStatsLogging = new SettingView(ctx, UI.ICON_SETTINGS, getText(R.string.log_pipeline_stats).toString(), null, true, Player.isPipelineStatsLoggingEnabled(), false);
 			}
 
 			int hIdx = 0;
@@ -1340,7 +1343,9 @@ public final class ActivitySettings extends ClientActivity implements Player.Pla
 				if (MediaContext.useOpenSLEngine)
 					addOption(optFillThreshold);
 				addOption(optResampling);
-				addHeader(ctx, R.string.hdr_display, optResampling, hIdx++);
+				addOption(optHighQualityResampling);
+				addOption(optPipelineStatsLogging);
+				addHeader(ctx, R.string.hdr_display, optPipelineStatsLogging, hIdx++);
 			} else {
 				addHeader(ctx, R.string.hdr_display, optAutoTurnOffPlaylist, hIdx++);
 			}
@@ -1548,6 +1553,8 @@ public final class ActivitySettings extends ClientActivity implements Player.Pla
 		optFillThreshold = null;
 		optPlaybackEngine = null;
 		optResampling = null;
+		optHighQualityResampling = null;
+		optPipelineStatsLogging = null;
 		optPreviousResetsAfterTheBeginning = null;
 		lastMenuView = null;
 		if (colorViews != null) {
@@ -1841,6 +1848,10 @@ public final class ActivitySettings extends ClientActivity implements Player.Pla
 			Player.followCurrentSong = optFollowCurrentSong.isChecked();
 		} else if (view == optResampling) {
 			Player.enableResampling(optResampling.isChecked());
+		} else if (view == optHighQualityResampling) {
+			Player.enableHighQualityResampling(optHighQualityResampling.isChecked());
+		} else if (view == optPipelineStatsLogging) {
+			Player.enablePipelineStatsLogging(optPipelineStatsLogging.isChecked());
 		} else if (view == optPreviousResetsAfterTheBeginning) {
 			Player.previousResetsAfterTheBeginning = optPreviousResetsAfterTheBeginning.isChecked();
 		} else if (view == optDisplaySongNumberAndCount) {
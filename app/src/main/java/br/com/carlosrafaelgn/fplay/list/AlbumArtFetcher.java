@@ -41,15 +41,14 @@ import android.graphics.Paint;
 import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Build;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
-import android.os.SystemClock;
 
+import java.io.File;
 import java.io.InputStream;
+import java.util.ArrayList;
 
 import br.com.carlosrafaelgn.fplay.playback.Player;
 import br.com.carlosrafaelgn.fplay.ui.UI;
+import br.com.carlosrafaelgn.fplay.util.BitmapDiskCache;
 import br.com.carlosrafaelgn.fplay.util.BitmapLruCache;
 import br.com.carlosrafaelgn.fplay.util.ReleasableBitmapWrapper;
 
@@ -57,7 +56,7 @@ import br.com.carlosrafaelgn.fplay.util.ReleasableBitmapWrapper;
 //http://developer.android.com/training/displaying-bitmaps/manage-memory.html
 //http://developer.android.com/training/displaying-bitmaps/cache-bitmap.html
 //http://developer.android.com/reference/android/util/LruCache.html
-public final class AlbumArtFetcher implements Runnable, Handler.Callback {
+public final class AlbumArtFetcher implements Runnable {
 	public interface AlbumArtFetcherListener {
 		//Runs on a SECONDARY thread
 		void albumArtFetched(ReleasableBitmapWrapper bitmap, int requestId);
@@ -72,7 +71,60 @@ public final class AlbumArtFetcher implements Runnable, Handler.Callback {
 		long artistIdForRequestId(int requestId);
 	}
 
+	private static final class Request implements AlbumArtFetcherListener {
+		public final int requestId, desiredSize, position;
+		public final Song song;
+		public final AlbumArtFetcherListener listener;
+		public volatile boolean cancelled;
+
+		public Request(int requestId, int desiredSize, int position, AlbumArtFetcherListener listener) {
+			this.requestId = requestId;
+			this.desiredSize = desiredSize;
+			this.position = position;
+			this.song = null;
+			this.listener = listener;
+		}
+
+		//prefetch requests have nobody waiting for them, they only fill up the cache
+		//(just like SongView does, the album id is resolved here, from the song's path,
+		//when the song's row has never been shown before)
+		public Request(Song song, int desiredSize, int position) {
+			this.requestId = 0;
+			this.desiredSize = desiredSize;
+			this.position = position;
+			this.song = song;
+			this.listener = this;
+		}
+
+		@Override
+		public void albumArtFetched(ReleasableBitmapWrapper bitmap, int requestId) {
+			//the cache already holds its own reference to the bitmap, but the album id
+			//is kept, so the row does not have to resolve it again when it is shown
+			if (bitmap != null && song.albumId == null)
+				song.albumId = bitmap.albumId;
+		}
+
+		@Override
+		public Long albumIdForRequestId(int requestId) {
+			return song.albumId;
+		}
+
+		@Override
+		public String fileUriForRequestId(int requestId) {
+			return song.path;
+		}
+
+		@Override
+		public long artistIdForRequestId(int requestId) {
+			return 0;
+		}
+	}
+
 	public static final Long zeroAlbumId = 0L;
+	private static final long DISK_CACHE_SIZE = 16 * 1024 * 1024;
+	//penalty applied to rows left behind while scrolling, so they are served last
+	private static final int BEHIND_PENALTY = 0x10000;
+	private static BitmapDiskCache diskCache;
 
 	private final Object sync;
 	private final BitmapFactory.Options opts;
@@ -85,9 +137,10 @@ public final class AlbumArtFetcher implements Runnable, Handler.Callback {
 	private Canvas canvas;
 	private Paint paint;
 	private final Rect srcR, dstR;
-	private Handler handler;
-	private Looper looper;
-	private int nextRequestId;
+	private final ArrayList<Request> pendingRequests;
+	private Request currentRequest;
+	private boolean alive;
+	private int nextRequestId, visibleFirst, visibleCount, scrollDirection, lastDesiredSize;
 
 	/**
 	 * Setup LRU cache, canvas for bitmap
@@ -123,19 +176,77 @@ public final class AlbumArtFetcher implements Runnable, Handler.Callback {
 		paint.setDither(false);
 		srcR = new Rect();
 		dstR = new Rect();
+		pendingRequests = new ArrayList<>(32);
+		alive = true;
 		final Thread thread = new Thread(this, "Album Art Fetcher Thread");
 		thread.setDaemon(true);
 		thread.start();
 	}
 	
+	//Runs on a SECONDARY thread
+	private static synchronized BitmapDiskCache getDiskCache() {
+		//shared by all fetchers, as they all use the same directory
+		if (diskCache == null)
+			diskCache = new BitmapDiskCache(new File(Player.theApplication.getCacheDir(), "AlbumArt"), DISK_CACHE_SIZE);
+		return diskCache;
+	}
+
 	//Runs on a SECONDARY thread
 	@Override
 	public void run() {
-		Looper.prepare();
-		looper = Looper.myLooper();
-		//noinspection ConstantConditions
-		handler = new Handler(looper, this);
-		Looper.loop();
+		for (; ; ) {
+			final Request request;
+			synchronized (sync) {
+				while (alive && pendingRequests.isEmpty()) {
+					try {
+						sync.wait();
+					} catch (InterruptedException ex) {
+						//just ignore...
+					}
+				}
+				if (!alive)
+					break;
+				//instead of serving requests in the order they arrived, serve the rows
+				//the user is actually looking at first
+				request = pendingRequests.remove(indexOfNextRequest());
+				currentRequest = request;
+			}
+			fetch(request);
+			synchronized (sync) {
+				currentRequest = null;
+			}
+		}
+	}
+
+	//Runs on a SECONDARY thread (must be called inside sync)
+	private int indexOfNextRequest() {
+		int best = 0, bestDistance = Integer.MAX_VALUE;
+		for (int i = pendingRequests.size() - 1; i >= 0; i--) {
+			final int distance = distanceOf(pendingRequests.get(i).position);
+			//<= keeps the oldest request among those with the same distance
+			if (distance <= bestDistance) {
+				best = i;
+				bestDistance = distance;
+			}
+		}
+		return best;
+	}
+
+	//Must be called inside sync
+	private int distanceOf(int position) {
+		if (position < 0 || visibleCount <= 0)
+			return 0;
+		final int last = visibleFirst + visibleCount - 1;
+		if (position < visibleFirst)
+			return (visibleFirst - position) + ((scrollDirection > 0) ? BEHIND_PENALTY : 0);
+		if (position > last)
+			return (position - last) + ((scrollDirection < 0) ? BEHIND_PENALTY : 0);
+		return 0;
+	}
+
+	//Runs on a SECONDARY thread
+	private boolean isCancelled(Request request) {
+		return (opts.mCancel || request.cancelled);
 	}
 	
 	//Runs on a SECONDARY thread
@@ -143,14 +254,13 @@ public final class AlbumArtFetcher implements Runnable, Handler.Callback {
 	/**
 	 * Get the URI for a file's album art and fetch it into
 	 * a bitmap, add item to cache.
-	 * @param msg AlbumArtFetcherListener as a Message object
+	 * @param request The request taken from the queue
 	 */
-	@Override
-	public boolean handleMessage(Message msg) {
-		final AlbumArtFetcherListener listener = (AlbumArtFetcherListener)msg.obj;
+	private void fetch(Request request) {
+		final AlbumArtFetcherListener listener = request.listener;
+		final int desiredSize = request.desiredSize;
 		final Canvas canvas = this.canvas;
 		final Paint paint = this.paint;
-		msg.obj = null;
 		String fileUri = null;
 		Long albumId;
 		long artistId = 0;
@@ -159,18 +269,18 @@ public final class AlbumArtFetcher implements Runnable, Handler.Callback {
 		InputStream inputStream = null;
 
 		if (listener == null)
-			return true;
+			return;
 
 		if (canvas == null || paint == null) {
-			listener.albumArtFetched(null, msg.what);
-			return true;
+			listener.albumArtFetched(null, request.requestId);
+			return;
 		}
 
-		if ((albumId = listener.albumIdForRequestId(msg.what)) == null &&
-			(fileUri = listener.fileUriForRequestId(msg.what)) == null &&
-			(artistId = listener.artistIdForRequestId(msg.what)) == 0) {
-			listener.albumArtFetched(null, msg.what);
-			return true;
+		if ((albumId = listener.albumIdForRequestId(request.requestId)) == null &&
+			(fileUri = listener.fileUriForRequestId(request.requestId)) == null &&
+			(artistId = listener.artistIdForRequestId(request.requestId)) == 0) {
+			listener.albumArtFetched(null, request.requestId);
+			return;
 		}
 
 		try {
@@ -184,13 +294,13 @@ public final class AlbumArtFetcher implements Runnable, Handler.Callback {
 				}
 			}
 			if (albumId != null) {
-				if (opts.mCancel)
-					return true;
+				if (isCancelled(request))
+					return;
 
 				synchronized (sync) {
 					if (cache != null && (w = cache.get(albumId)) != null) {
-						listener.albumArtFetched(w, msg.what);
-						return true;
+						listener.albumArtFetched(w, request.requestId);
+						return;
 					}
 				}
 			}
@@ -199,7 +309,7 @@ public final class AlbumArtFetcher implements Runnable, Handler.Callback {
 				//final Cursor cursor = contentResolver.query(MediaStore.Audio.Artists.Albums.getContentUri("external", artistId), artistAlbumArtProjection, null, null, null);
 				final Cursor cursor = contentResolver.query(Uri.parse("content://media/external/audio/artists/" + artistId + "/albums"), artistAlbumArtProjection, null, null, null);
 				if (cursor != null) {
-					while (!opts.mCancel && cursor.moveToNext()) {
+					while (!isCancelled(request) && cursor.moveToNext()) {
 						try {
 							albumId = cursor.getLong(0);
 							break;
@@ -211,25 +321,39 @@ public final class AlbumArtFetcher implements Runnable, Handler.Callback {
 				}
 
 				if (albumId == null) {
-					listener.albumArtFetched(null, msg.what);
-					return true;
+					listener.albumArtFetched(null, request.requestId);
+					return;
 				}
 
 				synchronized (sync) {
 					if (cache != null && (w = cache.get(albumId)) != null) {
-						listener.albumArtFetched(w, msg.what);
-						return true;
+						listener.albumArtFetched(w, request.requestId);
+						return;
 					}
 				}
 			}
 
 			if (albumId == null || contentResolver == null) {
-				listener.albumArtFetched(null, msg.what);
-				return true;
+				listener.albumArtFetched(null, request.requestId);
+				return;
 			}
 
-			if (opts.mCancel)
-				return true;
+			if (isCancelled(request))
+				return;
+
+			//loading the already scaled bitmap from the disk is a lot faster than decoding the original image
+			final BitmapDiskCache diskCache = ((desiredSize > 0) ? getDiskCache() : null);
+			if (diskCache != null && (bitmap = diskCache.get(albumId, desiredSize)) != null) {
+				w = new ReleasableBitmapWrapper(bitmap, albumId);
+				bitmap = null;
+				synchronized (sync) {
+					if (cache != null) {
+						cache.put(albumId, w);
+						listener.albumArtFetched(w, request.requestId);
+					}
+				}
+				return;
+			}
 
 			opts.inJustDecodeBounds = true;
 			opts.inTempStorage = tempStorage;
@@ -238,8 +362,8 @@ public final class AlbumArtFetcher implements Runnable, Handler.Callback {
 
 			inputStream = contentResolver.openInputStream(albumArtUri);
 			if (inputStream == null) {
-				listener.albumArtFetched(null, msg.what);
-				return true;
+				listener.albumArtFetched(null, request.requestId);
+				return;
 			}
 			BitmapFactory.decodeStream(inputStream, null, opts);
 			try {
@@ -250,12 +374,12 @@ public final class AlbumArtFetcher implements Runnable, Handler.Callback {
 			inputStream = null;
 
 			int ss = 0;
-			if (msg.arg1 > 0) {
+			if (desiredSize > 0) {
 				int s = Math.max(opts.outWidth, opts.outHeight);
 				do {
 					ss++;
 					s >>= 1;
-				} while (s > msg.arg1);
+				} while (s > desiredSize);
 			} else {
 				ss = 1;
 			}
@@ -267,18 +391,18 @@ public final class AlbumArtFetcher implements Runnable, Handler.Callback {
 			opts.inTargetDensity = 0;
 			opts.inPreferredConfig = Bitmap.Config.RGB_565;
 			opts.inSampleSize = 1 << (ss - 1);
-			if (opts.mCancel)
-				return true;
+			if (isCancelled(request))
+				return;
 
 			inputStream = contentResolver.openInputStream(albumArtUri);
 			if (inputStream == null) {
-				listener.albumArtFetched(null, msg.what);
-				return true;
+				listener.albumArtFetched(null, request.requestId);
+				return;
 			}
 			bitmap = BitmapFactory.decodeStream(inputStream, null, opts);
 			if (bitmap == null) {
-				listener.albumArtFetched(null, msg.what);
-				return true;
+				listener.albumArtFetched(null, request.requestId);
+				return;
 			}
 			try {
 				inputStream.close();
@@ -290,25 +414,25 @@ public final class AlbumArtFetcher implements Runnable, Handler.Callback {
 			//I decided to do all this work here, because Bitmap.createScaledBitmap()
 			//creates a lot of temporary objects every time it is called, including
 			//a Canvas and a Paint
-			if (msg.arg1 <= 0 || (opts.outWidth == msg.arg1 && opts.outHeight == msg.arg1)) {
+			if (desiredSize <= 0 || (opts.outWidth == desiredSize && opts.outHeight == desiredSize)) {
 				w = new ReleasableBitmapWrapper(bitmap, albumId);
 			} else {
 				srcR.right = opts.outWidth;
 				srcR.bottom = opts.outHeight;
 				if (srcR.right >= srcR.bottom) {
-					dstR.right = msg.arg1;
-					dstR.bottom = (srcR.bottom * msg.arg1) / srcR.right;
+					dstR.right = desiredSize;
+					dstR.bottom = (srcR.bottom * desiredSize) / srcR.right;
 					//if we are missing the size by a handful of pixels, let's just
 					//stretch the image a little bit... ;)
-					if ((msg.arg1 - dstR.bottom) <= UI._4dp)
-						dstR.bottom = msg.arg1;
+					if ((desiredSize - dstR.bottom) <= UI._4dp)
+						dstR.bottom = desiredSize;
 				} else {
-					dstR.bottom = msg.arg1;
-					dstR.right = (srcR.right * msg.arg1) / srcR.bottom;
+					dstR.bottom = desiredSize;
+					dstR.right = (srcR.right * desiredSize) / srcR.bottom;
 					//if we are missing the size by a handful of pixels, let's just
 					//stretch the image a little bit... ;)
-					if ((msg.arg1 - dstR.right) <= UI._4dp)
-						dstR.right = msg.arg1;
+					if ((desiredSize - dstR.right) <= UI._4dp)
+						dstR.right = desiredSize;
 				}
 				bitmap2 = Bitmap.createBitmap(dstR.right, dstR.bottom, Bitmap.Config.RGB_565);
 				canvas.setBitmap(bitmap2);
@@ -317,10 +441,13 @@ public final class AlbumArtFetcher implements Runnable, Handler.Callback {
 				w = new ReleasableBitmapWrapper(bitmap2, albumId);
 			}
 
+			if (diskCache != null)
+				diskCache.put(albumId, desiredSize, w.bitmap);
+
 			synchronized (sync) {
 				if (cache != null) {
 					cache.put(albumId, w);
-					listener.albumArtFetched(w, msg.what);
+					listener.albumArtFetched(w, request.requestId);
 				}
 			}
 		} catch (Throwable ex) {
@@ -342,13 +469,11 @@ public final class AlbumArtFetcher implements Runnable, Handler.Callback {
 			} catch (Throwable ex2) {
 				ex2.printStackTrace();
 			}
-			listener.albumArtFetched(null, msg.what);
+			listener.albumArtFetched(null, request.requestId);
 			ex.printStackTrace();
-			return true;
+			return;
 		}
 
-		return true;
-
 		/* I know Git is here... But, I'll keep these lines here for historical purposes... :)
 		final AlbumArtFetcherListener listener = (AlbumArtFetcherListener)msg.obj;
 		final Canvas canvas = this.canvas;
@@ -524,6 +649,16 @@ public final class AlbumArtFetcher implements Runnable, Handler.Callback {
 
 	//Runs on the MAIN thread
 	public ReleasableBitmapWrapper getAlbumArt(Long albumId, int desiredSize, int requestId, AlbumArtFetcherListener listener) {
+		return getAlbumArt(albumId, desiredSize, requestId, -1, listener);
+	}
+
+	//Runs on the MAIN thread
+
+	/**
+	 * Same as getAlbumArt(), but position, the index of the requesting row
+	 * in its list, is used to serve visible rows before the others
+	 */
+	public ReleasableBitmapWrapper getAlbumArt(Long albumId, int desiredSize, int requestId, int position, AlbumArtFetcherListener listener) {
 		synchronized (sync) {
 			if (cache == null)
 				return null;
@@ -534,25 +669,95 @@ public final class AlbumArtFetcher implements Runnable, Handler.Callback {
 					return bitmap;
 				}
 			}
+			lastDesiredSize = desiredSize;
+			addRequest(new Request(requestId, desiredSize, position, listener));
 		}
-		if (handler != null)
-			handler.sendMessageAtTime(Message.obtain(handler, requestId, desiredSize, 0, listener), SystemClock.uptimeMillis());
 		return null;
 	}
 
 	//Runs on the MAIN thread
 	public void getAlbumArtForFile(int desiredSize, int requestId, AlbumArtFetcherListener listener) {
-		if (handler != null) {
-			//wait before actually trying to fetch the albumart, as this request could
-			//soon be cancelled, for example, in a ListView being scrolled fast
-			handler.sendMessageAtTime(Message.obtain(handler, requestId, desiredSize, 0, listener), SystemClock.uptimeMillis());
+		synchronized (sync) {
+			addRequest(new Request(requestId, desiredSize, -1, listener));
 		}
 	}
 
+	//Must be called inside sync
+	private void addRequest(Request request) {
+		if (!alive)
+			return;
+		pendingRequests.add(request);
+		sync.notify();
+	}
+
 	//Runs on the MAIN thread
 	public void cancelRequest(int requestId, AlbumArtFetcherListener listener) {
-		if (handler != null)
-			handler.removeMessages(requestId, listener);
+		synchronized (sync) {
+			//drop the request before it gets decoded, which is the expensive part,
+			//as the row that asked for it has already been recycled
+			for (int i = pendingRequests.size() - 1; i >= 0; i--) {
+				final Request request = pendingRequests.get(i);
+				if (request.requestId == requestId && request.listener == listener)
+					pendingRequests.remove(i);
+			}
+			if (currentRequest != null && currentRequest.requestId == requestId && currentRequest.listener == listener)
+				currentRequest.cancelled = true;
+		}
+	}
+
+	//Runs on the MAIN thread
+
+	/**
+	 * Tells the fetcher which rows are currently visible, and in which direction
+	 * the list is being scrolled (&lt; 0 up, &gt; 0 down, 0 unknown), so the
+	 * requests can be served in the order the user is going to see them
+	 */
+	public void setVisibleRange(int first, int count, int direction) {
+		synchronized (sync) {
+			visibleFirst = first;
+			visibleCount = count;
+			scrollDirection = direction;
+			//prefetched rows that have not been decoded yet and are no longer
+			//ahead of the visible area are not worth the trouble
+			for (int i = pendingRequests.size() - 1; i >= 0; i--) {
+				final Request request = pendingRequests.get(i);
+				if (request.listener == request && !isPrefetchPosition(request.position))
+					pendingRequests.remove(i);
+			}
+		}
+	}
+
+	//Must be called inside sync
+	private boolean isPrefetchPosition(int position) {
+		if (visibleCount <= 0)
+			return false;
+		if (scrollDirection < 0)
+			return (position < visibleFirst && position >= (visibleFirst - visibleCount));
+		return (position >= (visibleFirst + visibleCount) && position < (visibleFirst + (visibleCount << 1)));
+	}
+
+	//Runs on the MAIN thread
+
+	/**
+	 * Schedules the album art of a row that is not visible yet, but is about to
+	 * be (see setVisibleRange()), so it is likely to be in the cache by the time
+	 * the row is shown
+	 */
+	public void prefetch(Song song, int position) {
+		final Long albumId = song.albumId;
+		//zeroAlbumId means the song is already known not to have an album art
+		if (albumId != null && albumId == 0L)
+			return;
+		synchronized (sync) {
+			if (cache == null || lastDesiredSize <= 0 || !isPrefetchPosition(position) || (albumId != null && cache.get(albumId) != null))
+				return;
+			for (int i = pendingRequests.size() - 1; i >= 0; i--) {
+				final Request request = pendingRequests.get(i);
+				if (request.position == position || request.song == song)
+					return;
+			}
+			addRequest(new Request(song, lastDesiredSize, position));
+		}
 	}
 	
 	//Runs on the MAIN thread
@@ -563,20 +768,20 @@ public final class AlbumArtFetcher implements Runnable, Handler.Callback {
 	 */
 	public void stopAndCleanup() {
 		synchronized (sync) {
-			handler = null;
+			alive = false;
+			pendingRequests.clear();
+			if (currentRequest != null)
+				currentRequest.cancelled = true;
 			if (cache != null) {
 				cache.evictAll();
 				cache = null;
 			}
+			sync.notify();
 		}
 		opts.mCancel = true;
 		tempStorage = null;
 		canvas = null;
 		paint = null;
-		if (looper != null) {
-			looper.quit();
-			looper = null;
-		}
 	}
 
 	//Runs on the MAIN thread
@@ -99,6 +99,16 @@ public abstract class BaseList<E extends BaseItem> extends BaseAdapter {
 
 	protected void clearingItems() { }
 
+	protected void movingItems(int from, int count, int to) { }
+
+	//direction is < 0 when scrolling up, > 0 when scrolling down and 0 when unknown
+	public void visibleRangeChanged(int first, int count, int direction) { }
+
+	//lists whose items are lazily loaded must make sure item is ready before it leaves the list
+	protected E materializeItem(E item) {
+		return item;
+	}
+
 	@SuppressWarnings("unchecked")
 	protected void setCapacity(int capacity) {
 		final E[] array;
@@ -284,6 +294,7 @@ public abstract class BaseList<E extends BaseItem> extends BaseAdapter {
 			}
 			return;
 		}
+		movingItems(from, count, to);
 		Object[] tmp = new Object[count];
 		System.arraycopy(items, from, tmp, 0, count);
 		//synchronized (currentAndCountMutex) {
@@ -389,7 +400,7 @@ public abstract class BaseList<E extends BaseItem> extends BaseAdapter {
 
 	@Override
 	public final E getItem(int position) {
-		return items[position];
+		return materializeItem(items[position]);
 	}
 
 	@Override
@@ -0,0 +1,353 @@
+//
+// FPlayAndroid is distributed under the FreeBSD License
+//
+// Copyright (c) 2013-2014, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// The views and conclusions contained in the software and documentation are those
+// of the authors and should not be interpreted as representing official policies,
+// either expressed or implied, of the FreeBSD Project.
+//
+// https://github.com/carlosrafaelgn/FPlayAndroid
+//
+package br.com.carlosrafaelgn.fplay.list;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import br.com.carlosrafaelgn.fplay.playback.Player;
+import br.com.carlosrafaelgn.fplay.util.Serializer;
+
+//Persistent cache of the sorted listings produced by FileFetcher, keyed by the directory's
+//path. An entry is only trusted while the directory's last modification time remains the
+//same (adding, removing or renaming an entry changes it), so revisiting a folder costs a
+//single stat(), instead of listing and stat'ing all of its entries again. The sections
+//created for the folder are kept along with its listing.
+//
+//All methods of this class can be called from any thread (flush() should not be called
+//from the main thread, though, as it performs I/O, which is why flushInBackground() exists)
+public final class DirectoryListingCache {
+	private static final String FILE_NAME = "_DirectoryListings";
+	private static final int VERSION = 0x0100;
+	private static final int MAX_COUNT = 4096;
+	private static final int MAX_TOTAL_ENTRY_COUNT = 131072;
+	//some file systems only store the modification time in seconds: a directory modified
+	//during the same second it was listed would look unchanged later on
+	private static final long MIN_AGE_MS = 2000;
+
+	private static final class Entry {
+		public final long lastModified;
+		//directories always come first in a sorted listing (see FileFetcher.compare())
+		public final int directoryCount;
+		public final String[] names;
+		public final String sectionChars;
+		public final int[] sectionPositions;
+
+		public Entry(long lastModified, int directoryCount, String[] names, String sectionChars, int[] sectionPositions) {
+			this.lastModified = lastModified;
+			this.directoryCount = directoryCount;
+			this.names = names;
+			this.sectionChars = sectionChars;
+			this.sectionPositions = sectionPositions;
+		}
+	}
+
+	private static final DirectoryListingCache theCache = new DirectoryListingCache();
+
+	private final LinkedHashMap<String, Entry> entries;
+	private final Object flushSync;
+	private int totalEntryCount;
+	private boolean loaded, modified;
+
+	private DirectoryListingCache() {
+		//access order, so that the folders visited least recently are the first ones to go
+		entries = new LinkedHashMap<>(256, 0.75f, true);
+		flushSync = new Object();
+	}
+
+	public static DirectoryListingCache getInstance() {
+		return theCache;
+	}
+
+	private static String keyFor(String path) {
+		final int last = path.length() - 1;
+		return ((last > 0 && path.charAt(last) == File.separatorChar) ? path.substring(0, last) : path);
+	}
+
+	//Must be called inside synchronized (entries)
+	private void trim() {
+		if (entries.size() <= MAX_COUNT && totalEntryCount <= MAX_TOTAL_ENTRY_COUNT)
+			return;
+		final Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext() && (entries.size() > MAX_COUNT || totalEntryCount > MAX_TOTAL_ENTRY_COUNT)) {
+			totalEntryCount -= it.next().names.length;
+			it.remove();
+		}
+	}
+
+	//Must be called inside synchronized (entries)
+	private void loadIfNecessary() {
+		if (loaded)
+			return;
+		loaded = true;
+		FileInputStream fs = null;
+		BufferedInputStream bs = null;
+		try {
+			fs = Player.theApplication.openFileInput(FILE_NAME);
+			bs = new BufferedInputStream(fs, 32768);
+			if (Serializer.deserializeInt(bs) != VERSION)
+				return;
+			int count = Serializer.deserializeInt(bs);
+			if (count > MAX_COUNT)
+				count = MAX_COUNT;
+			while (count > 0) {
+				//NEVER change this order! (changing will require a new VERSION)
+				final String path = Serializer.deserializeString(bs);
+				final long lastModified = Serializer.deserializeLong(bs);
+				final int directoryCount = Serializer.deserializeInt(bs);
+				final int nameCount = Serializer.deserializeInt(bs);
+				if (path == null || nameCount < 0 || nameCount > MAX_TOTAL_ENTRY_COUNT || directoryCount < 0 || directoryCount > nameCount)
+					break;
+				final String[] names = new String[nameCount];
+				for (int i = 0; i < nameCount; i++) {
+					if ((names[i] = Serializer.deserializeString(bs)) == null)
+						throw new IllegalStateException("corrupted listing");
+				}
+				final String sectionChars = Serializer.deserializeString(bs);
+				int[] sectionPositions = null;
+				if (sectionChars != null) {
+					sectionPositions = new int[sectionChars.length()];
+					for (int i = 0; i < sectionPositions.length; i++)
+						sectionPositions[i] = Serializer.deserializeInt(bs);
+				}
+				entries.put(path, new Entry(lastModified, directoryCount, names, sectionChars, sectionPositions));
+				totalEntryCount += nameCount;
+				count--;
+			}
+			trim();
+		} catch (Throwable ex) {
+			//a partially read cache is worse than no cache at all
+			entries.clear();
+			totalEntryCount = 0;
+			if (!(ex instanceof FileNotFoundException))
+				ex.printStackTrace();
+		} finally {
+			try {
+				if (bs != null)
+					bs.close();
+			} catch (Throwable ex) {
+				ex.printStackTrace();
+			}
+			try {
+				if (fs != null)
+					fs.close();
+			} catch (Throwable ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	//returns null when there is no valid listing for path, or an array with a brand new
+	//FileSt for each entry (which could be empty, if the directory had nothing to show)
+	public FileSt[] get(String path, long lastModified) {
+		if (lastModified == 0)
+			return null;
+		path = keyFor(path);
+		final Entry entry;
+		synchronized (entries) {
+			loadIfNecessary();
+			entry = entries.get(path);
+			if (entry == null)
+				return null;
+			if (entry.lastModified != lastModified) {
+				//the directory has changed since the last time it was listed
+				entries.remove(path);
+				totalEntryCount -= entry.names.length;
+				modified = true;
+				return null;
+			}
+		}
+		//entries are never changed after being created, so there is no need to hold the lock
+		final String[] names = entry.names;
+		final FileSt[] files = new FileSt[names.length];
+		final File dir = new File(path);
+		for (int i = 0; i < names.length; i++)
+			files[i] = new FileSt(new File(dir, names[i]), i < entry.directoryCount);
+		return files;
+	}
+
+	//files must be sorted the way FileFetcher sorts them
+	public void put(String path, long lastModified, FileSt[] files, int count) {
+		//lastModified is 0 when the directory could not be stat'ed, and there is no way to validate the entry later
+		if (lastModified == 0 || (System.currentTimeMillis() - lastModified) < MIN_AGE_MS)
+			return;
+		int directoryCount = 0;
+		final String[] names = new String[count];
+		for (int i = 0; i < count; i++) {
+			if (files[i].isDirectory)
+				directoryCount++;
+			names[i] = files[i].name;
+		}
+		path = keyFor(path);
+		synchronized (entries) {
+			loadIfNecessary();
+			final Entry old = entries.get(path);
+			String sectionChars = null;
+			int[] sectionPositions = null;
+			if (old != null) {
+				totalEntryCount -= old.names.length;
+				//keep the sections if the listing is still the same
+				if (old.lastModified == lastModified) {
+					sectionChars = old.sectionChars;
+					sectionPositions = old.sectionPositions;
+				}
+			}
+			entries.put(path, new Entry(lastModified, directoryCount, names, sectionChars, sectionPositions));
+			totalEntryCount += count;
+			modified = true;
+			trim();
+		}
+	}
+
+	public boolean getSections(String path, long lastModified, FileFetcher fetcher) {
+		if (lastModified == 0)
+			return false;
+		final String sectionChars;
+		final int[] sectionPositions;
+		synchronized (entries) {
+			loadIfNecessary();
+			final Entry entry = entries.get(keyFor(path));
+			if (entry == null || entry.lastModified != lastModified || entry.sectionChars == null)
+				return false;
+			sectionChars = entry.sectionChars;
+			sectionPositions = entry.sectionPositions;
+		}
+		final String[] sections = new String[sectionChars.length()];
+		for (int i = 0; i < sections.length; i++)
+			sections[i] = Character.toString(sectionChars.charAt(i));
+		fetcher.sections = sections;
+		fetcher.sectionPositions = sectionPositions.clone();
+		return true;
+	}
+
+	//sections is expected to contain one character per section, as created by FileFetcher
+	public void putSections(String path, long lastModified, String[] sections, int[] sectionPositions) {
+		if (lastModified == 0 || sections == null || sectionPositions == null || sections.length != sectionPositions.length)
+			return;
+		final char[] chars = new char[sections.length];
+		for (int i = 0; i < chars.length; i++)
+			chars[i] = sections[i].charAt(0);
+		synchronized (entries) {
+			loadIfNecessary();
+			path = keyFor(path);
+			final Entry entry = entries.get(path);
+			if (entry == null || entry.lastModified != lastModified)
+				return;
+			//entries are replaced instead of changed, so flush() can write them outside the lock
+			entries.put(path, new Entry(lastModified, entry.directoryCount, entry.names, new String(chars), sectionPositions.clone()));
+			modified = true;
+		}
+	}
+
+	public void flush() {
+		//flushSync makes sure only one thread writes the file at a time, while entries is only
+		//held long enough to take a snapshot, so fetchers are not blocked by the I/O
+		synchronized (flushSync) {
+			final String[] paths;
+			final Entry[] snapshot;
+			synchronized (entries) {
+				if (!modified)
+					return;
+				modified = false;
+				paths = new String[entries.size()];
+				snapshot = new Entry[paths.length];
+				int i = 0;
+				for (Map.Entry<String, Entry> e : entries.entrySet()) {
+					paths[i] = e.getKey();
+					snapshot[i++] = e.getValue();
+				}
+			}
+			FileOutputStream fs = null;
+			BufferedOutputStream bs = null;
+			try {
+				fs = Player.theApplication.openFileOutput(FILE_NAME, 0);
+				bs = new BufferedOutputStream(fs, 32768);
+				Serializer.serializeInt(bs, VERSION);
+				Serializer.serializeInt(bs, snapshot.length);
+				for (int i = 0; i < snapshot.length; i++) {
+					final Entry entry = snapshot[i];
+					//NEVER change this order! (changing will require a new VERSION)
+					Serializer.serializeString(bs, paths[i]);
+					Serializer.serializeLong(bs, entry.lastModified);
+					Serializer.serializeInt(bs, entry.directoryCount);
+					Serializer.serializeInt(bs, entry.names.length);
+					for (String name : entry.names)
+						Serializer.serializeString(bs, name);
+					Serializer.serializeString(bs, entry.sectionChars);
+					if (entry.sectionChars != null) {
+						for (int position : entry.sectionPositions)
+							Serializer.serializeInt(bs, position);
+					}
+				}
+				bs.flush();
+			} catch (Throwable ex) {
+				//better luck next time
+				Player.theApplication.deleteFile(FILE_NAME);
+				ex.printStackTrace();
+			} finally {
+				try {
+					if (bs != null)
+						bs.close();
+				} catch (Throwable ex) {
+					ex.printStackTrace();
+				}
+				try {
+					if (fs != null)
+						fs.close();
+				} catch (Throwable ex) {
+					ex.printStackTrace();
+				}
+			}
+		}
+	}
+
+	public void flushInBackground() {
+		(new Thread("Directory Listing Cache Flusher Thread") {
+			{
+				setDaemon(true);
+			}
+
+			@Override
+			public void run() {
+				flush();
+			}
+		}).start();
+	}
+}
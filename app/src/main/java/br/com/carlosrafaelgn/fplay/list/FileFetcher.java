@@ -37,12 +37,18 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Message;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileFilter;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Locale;
@@ -59,10 +65,25 @@ import br.com.carlosrafaelgn.fplay.util.TypedRawArrayList;
 //Supported Media Formats
 //http://developer.android.com/guide/appendix/media-formats.html
 //
-public final class FileFetcher implements Runnable, ArraySorter.Comparer<FileSt>, FileFilter {
+public final class FileFetcher implements Runnable, ArraySorter.Comparer<FileSt>, MainHandler.Callback {
 	public interface Listener {
 		void onFilesFetched(FileFetcher fetcher, Throwable e);
 	}
+
+	//used during recursive fetches, to receive the files as soon as they are available, in
+	//their final order (every file is reported exactly once, before fetchFilesInThisThread()
+	//returns, and files must be consumed/copied before this method returns)
+	public interface PartialListener {
+		//Runs on the thread that called fetchFilesInThisThread()
+		void onFilesPartiallyFetched(FileFetcher fetcher, FileSt[] files, int offset, int count);
+	}
+
+	//used by fetches that may take a while to complete (such as remote lists), to report
+	//how many files have been fetched so far (never called after onFilesFetched())
+	public interface ProgressListener {
+		//Runs on the MAIN thread
+		void onFilesFetchProgress(FileFetcher fetcher, int count);
+	}
 	
 	private static final class RootItem {
 		public final String fs_specLC, pathLC, path;
@@ -89,6 +110,9 @@ public final class FileFetcher implements Runnable, ArraySorter.Comparer<FileSt>
 	}
 
 	private static final int LIST_DELTA = 32;
+	private static final int PARTIAL_BATCH_SIZE = 1024; //must be a power of 2
+	private static final int MSG_PROGRESS = 0x0800;
+	private static final int MAX_WALKER_THREAD_COUNT = 4;
 	private static final HashMap<String, String> supportedTypes;
 	public final String path, unknownArtist;
 	public FileSt[] files;
@@ -98,6 +122,11 @@ public final class FileFetcher implements Runnable, ArraySorter.Comparer<FileSt>
 	public final boolean playAfterFetching, isInTouchMode, createSections;
 	private Throwable notifyE;
 	private Listener listener;
+	private PartialListener partialListener;
+	private ProgressListener progressListener;
+	private int partialCount;
+	private long rootLastModified;
+	private boolean walked;
 	private boolean recursive;
 	private final boolean notifyFromMain, recursiveIfFirstEmpty;
 	private Request.CloseToken closeToken;
@@ -141,21 +170,20 @@ public final class FileFetcher implements Runnable, ArraySorter.Comparer<FileSt>
 		return (path == null ? "audio/*" : path);
 	}
 
-	@Override
-	public boolean accept(File file) {
-		if (file.isDirectory()) return true;
-		final String name = file.getName();
-		final int i = name.lastIndexOf('.');
-		return ((i >= 0) && supportedTypes.containsKey(name.substring(i).toLowerCase(Locale.US)));
-	}
-
 	public static boolean isFileAcceptable(String name) {
 		int i;
 		return (name != null && (i = name.lastIndexOf('.')) >= 0 && supportedTypes.containsKey(name.substring(i).toLowerCase(Locale.US)));
 	}
 
 	public static FileFetcher fetchFiles(String path, Listener listener, boolean notifyFromMain, boolean recursive, boolean isInTouchMode, boolean createSections) {
+		return fetchFiles(path, listener, null, notifyFromMain, recursive, isInTouchMode, createSections);
+	}
+
+	public static FileFetcher fetchFiles(String path, Listener listener, ProgressListener progressListener, boolean notifyFromMain, boolean recursive, boolean isInTouchMode, boolean createSections) {
 		FileFetcher f = new FileFetcher(path, listener, notifyFromMain, recursive, false, false, isInTouchMode, createSections);
+		//progress is always reported on the main thread, along with onFilesFetched()
+		if (notifyFromMain)
+			f.progressListener = progressListener;
 		if (path != null && path.length() > 0 && path.charAt(0) == FileSt.FPLAY_REMOTE_LIST_ROOT_CHAR)
 			f.closeToken = new Request.CloseToken();
 		f.fetch();
@@ -163,7 +191,12 @@ public final class FileFetcher implements Runnable, ArraySorter.Comparer<FileSt>
 	}
 
 	public static FileFetcher fetchFilesInThisThread(String path, Listener listener, boolean notifyFromMain, boolean recursive, boolean recursiveIfFirstEmpty, boolean playAfterFetching, boolean createSections) {
+		return fetchFilesInThisThread(path, listener, null, notifyFromMain, recursive, recursiveIfFirstEmpty, playAfterFetching, createSections);
+	}
+
+	public static FileFetcher fetchFilesInThisThread(String path, Listener listener, PartialListener partialListener, boolean notifyFromMain, boolean recursive, boolean recursiveIfFirstEmpty, boolean playAfterFetching, boolean createSections) {
 		FileFetcher f = new FileFetcher(path, listener, notifyFromMain, recursive, recursiveIfFirstEmpty, playAfterFetching, false, createSections);
+		f.partialListener = partialListener;
 		if (path != null && path.length() > 0 && path.charAt(0) == FileSt.FPLAY_REMOTE_LIST_ROOT_CHAR)
 			f.closeToken = new Request.CloseToken();
 		f.run();
@@ -643,48 +676,255 @@ public final class FileFetcher implements Runnable, ArraySorter.Comparer<FileSt>
 		});
 	}
 
-	@SuppressWarnings("UnusedAssignment")
-	private void fetchFiles(String path, boolean first) {
+	//Runs on a SECONDARY thread (any thread)
+	private FileSt[] listDirectory(String path) {
+		return listDirectory(path, (new File(path)).lastModified());
+	}
+
+	//Runs on a SECONDARY thread (any thread)
+	private FileSt[] listDirectory(String path, long lastModified) {
+		//lastModified must be read before listing the directory, otherwise a change made
+		//while the directory was being listed would go unnoticed by the cache
+		final DirectoryListingCache cache = DirectoryListingCache.getInstance();
+		final FileSt[] cached = cache.get(path, lastModified);
+		if (cached != null)
+			return ((cached.length == 0) ? null : cached);
+		final File[] files = (new File((path.charAt(path.length() - 1) == File.separatorChar) ? path : (path + File.separator))).listFiles();
+		if (files == null)
+			return null;
+		int count = 0;
+		final FileSt[] entries = new FileSt[files.length];
+		for (int i = 0; i < files.length; i++) {
+			if (cancelled || Player.state >= Player.STATE_TERMINATING)
+				return null;
+			final File file = files[i];
+			files[i] = null; //help the garbage collector
+			//a single stat() per entry (listFiles(FileFilter) + new FileSt(File) used to take two)
+			if (file.isDirectory())
+				entries[count++] = new FileSt(file, true);
+			else if (isFileAcceptable(file.getName()))
+				entries[count++] = new FileSt(file, false);
+		}
+		if (count > 0)
+			ArraySorter.sort(entries, 0, count, this);
+		//empty listings are also cached, sparing the recursive walks from listing them again
+		cache.put(path, lastModified, entries, count);
+		if (count == 0)
+			return null;
+		return ((count == entries.length) ? entries : Arrays.copyOf(entries, count));
+	}
+
+	private boolean appendEntries(FileSt[] entries) {
+		boolean filesAdded = false;
+		ensureCapacity(count + entries.length);
+		for (int i = 0; i < entries.length; i++) {
+			this.files[count++] = entries[i];
+			if (!entries[i].isDirectory)
+				filesAdded = true;
+			entries[i] = null;
+		}
+		return filesAdded;
+	}
+
+	private void notifyPartialFiles() {
+		if (partialListener != null && partialCount < count && !cancelled && Player.state < Player.STATE_TERMINATING) {
+			final int offset = partialCount;
+			partialCount = count;
+			partialListener.onFilesPartiallyFetched(this, files, offset, count - offset);
+		}
+	}
+
+	private void notifyProgress() {
+		if (progressListener != null && !cancelled && Player.state < Player.STATE_TERMINATING)
+			MainHandler.sendMessage(this, MSG_PROGRESS, count, 0);
+	}
+
+	@Override
+	public boolean handleMessage(Message msg) {
+		//the final notification is posted after all progress messages, and clears listener
+		if (msg.what == MSG_PROGRESS && listener != null && progressListener != null && !cancelled && Player.state < Player.STATE_TERMINATING)
+			progressListener.onFilesFetchProgress(this, msg.arg1);
+		return true;
+	}
+
+	private static final class WalkerNode {
+		public final String path;
+		public FileSt[] entries;
+		public WalkerNode[] children;
+		public int nextChild;
+		public boolean listed, emitted;
+
+		public WalkerNode(String path) {
+			this.path = path;
+		}
+
+		public void setEntries(FileSt[] entries) {
+			this.entries = entries;
+			listed = true;
+			if (entries == null)
+				return;
+			int directoryCount = 0;
+			//directories always come first (see compare())
+			while (directoryCount < entries.length && entries[directoryCount].isDirectory)
+				directoryCount++;
+			if (directoryCount == 0)
+				return;
+			children = new WalkerNode[directoryCount];
+			for (int i = 0; i < directoryCount; i++)
+				children[i] = new WalkerNode(entries[i].path);
+		}
+	}
+
+	//lists sibling directories concurrently (using a few threads), while the calling thread
+	//gathers the listings in the same order a depth-first walk would have produced them,
+	//notifying partialListener as soon as the first files are available
+	private final class Walker implements Runnable {
+		private final ArrayDeque<WalkerNode> pending;
+		private int busyThreadCount;
+		private boolean finished;
+
+		public Walker() {
+			pending = new ArrayDeque<>(64);
+		}
+
+		private void enqueueChildren(WalkerNode node) {
+			//children go to the front, in order, so the listings the caller is waiting for
+			//(the ones closest to the beginning of the final list) are always listed first
+			if (node.children != null) {
+				for (int i = node.children.length - 1; i >= 0; i--)
+					pending.addFirst(node.children[i]);
+			}
+		}
+
+		//Runs on a SECONDARY thread
+		@Override
+		public void run() {
+			for (; ; ) {
+				final WalkerNode node;
+				synchronized (this) {
+					while (!finished && pending.isEmpty()) {
+						try {
+							wait();
+						} catch (InterruptedException ex) {
+							//just ignore...
+						}
+					}
+					if (finished)
+						return;
+					node = pending.pollFirst();
+					busyThreadCount++;
+				}
+				FileSt[] entries;
+				try {
+					entries = listDirectory(node.path);
+				} catch (Throwable ex) {
+					//just skip this directory
+					entries = null;
+				}
+				synchronized (this) {
+					node.setEntries(entries);
+					busyThreadCount--;
+					enqueueChildren(node);
+					notifyAll();
+				}
+			}
+		}
+
+		public void walk(WalkerNode root) {
+			synchronized (this) {
+				enqueueChildren(root);
+			}
+			final int threadCount = Math.min(MAX_WALKER_THREAD_COUNT, Math.max(2, Runtime.getRuntime().availableProcessors()));
+			for (int i = 0; i < threadCount; i++) {
+				final Thread thread = new Thread(this, "File Fetcher Walker Thread");
+				thread.setDaemon(true);
+				thread.start();
+			}
+
+			//pre-order traversal of the tree, stopping at the first node not yet listed
+			final ArrayDeque<WalkerNode> stack = new ArrayDeque<>(64);
+			stack.push(root);
+			int newFileCount = 0;
+			try {
+				while (!stack.isEmpty()) {
+					if (cancelled || Player.state >= Player.STATE_TERMINATING) {
+						count = 0;
+						return;
+					}
+					boolean mustWait = false;
+					synchronized (this) {
+						while (!stack.isEmpty()) {
+							final WalkerNode node = stack.peek();
+							if (!node.emitted) {
+								if (!node.listed) {
+									mustWait = true;
+									break;
+								}
+								node.emitted = true;
+								if (node.entries != null) {
+									final int previousCount = count;
+									if (appendEntries(node.entries))
+										newFileCount += count - previousCount;
+									node.entries = null;
+								}
+							}
+							if (node.children != null && node.nextChild < node.children.length) {
+								stack.push(node.children[node.nextChild]);
+								node.children[node.nextChild++] = null;
+							} else {
+								stack.pop();
+							}
+						}
+						//do not keep the caller waiting for the whole tree: the first batch is
+						//delivered as soon as there is at least one file in it
+						final boolean flush = (partialListener != null && ((partialCount == 0) ? (newFileCount > 0) : ((count - partialCount) >= PARTIAL_BATCH_SIZE)));
+						if (mustWait && !flush) {
+							if (!pending.isEmpty() || busyThreadCount > 0) {
+								try {
+									wait(100);
+								} catch (InterruptedException ex) {
+									//just ignore...
+								}
+							}
+							continue;
+						}
+					}
+					newFileCount = 0;
+					notifyPartialFiles();
+				}
+				notifyPartialFiles();
+			} finally {
+				synchronized (this) {
+					finished = true;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	private void fetchFiles(String path) {
 		if (cancelled || Player.state >= Player.STATE_TERMINATING) {
 			count = 0;
 			return;
 		}
-		int i;
-		File root = new File((path.charAt(path.length() - 1) == File.separatorChar) ? path : (path + File.separator));
-		File[] files = root.listFiles(this);
-		boolean filesAdded = false;
-		if (files == null || files.length == 0) {
+		final WalkerNode root = new WalkerNode(path);
+		rootLastModified = (new File(path)).lastModified();
+		root.setEntries(listDirectory(path, rootLastModified));
+		root.emitted = true;
+		if (root.entries == null) {
 			if (this.files == null)
 				this.files = new FileSt[0];
 			return;
 		}
-		final int l = count;
-		ensureCapacity(count + files.length);
-		for (i = 0; i < files.length; i++) {
-			if (cancelled || Player.state >= Player.STATE_TERMINATING) {
-				count = 0;
-				return;
-			}
-			this.files[count] = new FileSt(files[i]);
-			if (!this.files[count].isDirectory)
-				filesAdded = true;
-			count++;
-			files[i] = null;
-		}
-		files = null; //help the garbage collector
-		final int e = count;
-		ArraySorter.sort(this.files, l, e - l, this);
-		if (first && !filesAdded && recursiveIfFirstEmpty)
+		final boolean filesAdded = appendEntries(root.entries);
+		root.entries = null;
+		if (!filesAdded && recursiveIfFirstEmpty)
 			recursive = true;
-		if (!recursive)
-			return;
-		for (i = l; i < e; i++) {
-			if (cancelled || Player.state >= Player.STATE_TERMINATING) {
-				count = 0;
-				return;
-			}
-			if (this.files[i].isDirectory)
-				fetchFiles(this.files[i].path, false);
+		if (filesAdded || !recursive || root.children == null)
+			notifyPartialFiles();
+		if (recursive && root.children != null) {
+			walked = true;
+			(new Walker()).walk(root);
 		}
 	}
 
@@ -762,21 +1002,52 @@ public final class FileFetcher implements Runnable, ArraySorter.Comparer<FileSt>
 	private void fetchRemoteList(byte[] addressPort) throws Throwable {
 		final int port = (addressPort[4] & 0xFF) | ((addressPort[5] & 0xFF) << 8);
 		final String baseAddress = "http://" + (addressPort[0] & 0xFF) + "." + (addressPort[1] & 0xFF) + "." + (addressPort[2] & 0xFF) + "." + (addressPort[3] & 0xFF) + ":" + port + "/";
-		final Object obj = Request.getJson(baseAddress + "list.json", br.com.carlosrafaelgn.fplay.plugin.SongList.class, closeToken);
-		if (obj instanceof Throwable)
-			throw (Throwable)obj;
-		if (!(obj instanceof br.com.carlosrafaelgn.fplay.plugin.SongList))
-			return;
-		final br.com.carlosrafaelgn.fplay.plugin.SongList list = (br.com.carlosrafaelgn.fplay.plugin.SongList)obj;
-		if (list.list == null || list.list.length == 0)
-			return;
 		count = 0;
-		files = new FileSt[list.list.length];
-		for (SongInfo songInfo : list.list) {
-			if (songInfo == null)
-				continue;
-			files[count++] = new FileSt(songInfo);
+		//the songs are created as the list arrives, instead of buffering the entire list.json,
+		//parsing it into a SongList and only then creating the songs
+		final Object obj = Request.getJsonStream(baseAddress + "list.json", new Request.JsonStreamReader() {
+			@Override
+			public void readJson(JsonReader reader) throws Throwable {
+				final TypeAdapter<SongInfo> adapter = (new Gson()).getAdapter(SongInfo.class);
+				reader.beginObject();
+				while (reader.hasNext()) {
+					if (!reader.nextName().equals("list") || reader.peek() != JsonToken.BEGIN_ARRAY) {
+						reader.skipValue();
+						continue;
+					}
+					reader.beginArray();
+					while (reader.hasNext()) {
+						if (cancelled || Player.state >= Player.STATE_TERMINATING)
+							return;
+						if (reader.peek() == JsonToken.NULL) {
+							reader.nextNull();
+							continue;
+						}
+						final SongInfo songInfo = adapter.read(reader);
+						if (songInfo == null)
+							continue;
+						//grow geometrically, as there is no way to know how many songs are yet to come
+						if (count >= files.length)
+							files = Arrays.copyOf(files, count + (count >> 1) + LIST_DELTA);
+						files[count++] = new FileSt(songInfo);
+						if ((count & (PARTIAL_BATCH_SIZE - 1)) == 0) {
+							notifyPartialFiles();
+							notifyProgress();
+						}
+					}
+					reader.endArray();
+				}
+				reader.endObject();
+			}
+		}, closeToken);
+		if (obj instanceof Throwable) {
+			count = 0;
+			throw (Throwable)obj;
 		}
+		if (cancelled || Player.state >= Player.STATE_TERMINATING)
+			count = 0;
+		else
+			notifyPartialFiles();
 	}
 
 	@SuppressWarnings("StringEquality")
@@ -888,6 +1159,7 @@ public final class FileFetcher implements Runnable, ArraySorter.Comparer<FileSt>
 			if (listener != null && !cancelled && Player.state < Player.STATE_TERMINATING)
 				listener.onFilesFetched(this, notifyE);
 			listener = null;
+			progressListener = null;
 			notifyE = null;
 			return;
 		}
@@ -959,8 +1231,13 @@ public final class FileFetcher implements Runnable, ArraySorter.Comparer<FileSt>
 				if (i > 0 && (code = Player.decodeAddressPort(path.substring(i + 1))) != null)
 					fetchRemoteList(code);
 			} else {
-				fetchFiles(path, true);
-				computeSections();
+				fetchFiles(path);
+				//the sections of a single folder can be cached along with its listing
+				if (walked || !createSections || !DirectoryListingCache.getInstance().getSections(path, rootLastModified, this)) {
+					computeSections();
+					if (!walked)
+						DirectoryListingCache.getInstance().putSections(path, rootLastModified, sections, sectionPositions);
+				}
 			}
 		} catch (Throwable ex) {
 			e = ex;
@@ -55,6 +55,7 @@ public final class FileList extends BaseList<FileSt> implements FileFetcher.List
 	private int[] sectionPositions;
 	public int scrollBarType;
 	public AlbumArtFetcher albumArtFetcher;
+	public FileFetcher.ProgressListener progressListener;
 	
 	public FileList() {
 		super(FileSt.class, 16384);
@@ -87,7 +88,7 @@ public final class FileList extends BaseList<FileSt> implements FileFetcher.List
 		clear();
 		loadingProcessChanged(true);
 		this.comingFrom = comingFrom;
-		fetcher = FileFetcher.fetchFiles(path, this, true, false, isInTouchMode, createSections);
+		fetcher = FileFetcher.fetchFiles(path, this, progressListener, true, false, isInTouchMode, createSections);
 	}
 	
 	public void setPrivateFileType(String fileType, boolean isInTouchMode) {
@@ -194,6 +195,19 @@ public final class FileList extends BaseList<FileSt> implements FileFetcher.List
 		return sectionPositions;
 	}
 
+	@Override
+	public void visibleRangeChanged(int first, int count, int direction) {
+		final AlbumArtFetcher albumArtFetcher = this.albumArtFetcher;
+		if (albumArtFetcher == null || !UI.albumArt)
+			return;
+		albumArtFetcher.setVisibleRange(first, count, direction);
+		//prefetch the rows that are about to be shown
+		final int start = ((direction < 0) ? (first - count) : (first + count));
+		final int end = Math.min(this.count, start + count);
+		for (int i = Math.max(0, start); i < end; i++)
+			albumArtFetcher.prefetch(items[i].albumId, i);
+	}
+
 	public void syncAlbumArtFetcher() {
 		if (albumArtFetcher == null)
 			albumArtFetcher = new AlbumArtFetcher();
@@ -80,7 +80,12 @@ public final class FileSt extends BaseItem {
 	public SongInfo songInfo;
 
 	public FileSt(File file) {
-		this.isDirectory = file.isDirectory();
+		this(file, file.isDirectory());
+	}
+
+	//for when the caller already knows whether file is a directory (saves a stat() call)
+	public FileSt(File file, boolean isDirectory) {
+		this.isDirectory = isDirectory;
 		this.path = file.getAbsolutePath();
 		//int i = path.lastIndexOf('/'), e;
 		//String t = path;
@@ -40,6 +40,8 @@ import android.support.annotation.NonNull;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import br.com.carlosrafaelgn.fplay.playback.MetadataExtractor;
 import br.com.carlosrafaelgn.fplay.playback.Player;
@@ -65,6 +67,13 @@ public final class Song extends BaseItem {
 	public String length;
 	public boolean alreadyPlayed, selected, validAlbumArt;
 	public Long albumId;
+	//used only by SongList while in random mode: shuffledIndex is always kept up to date,
+	//whereas itemIndex is just a hint, validated before being used
+	int shuffledIndex, itemIndex;
+	//songs loaded from a memory-mapped playlist start as placeholders, and their fields
+	//are only decoded from the file when materialize() is called (see SongList.deserialize())
+	private volatile ByteBuffer pendingBuffer;
+	private int pendingOffset;
 
 	public static boolean isPathHttp(String path) {
 		return (path.startsWith("http:") || path.startsWith("https:") || path.startsWith("icy:"));
@@ -113,6 +122,11 @@ public final class Song extends BaseItem {
 		validateFields(null);
 	}
 	
+	Song(ByteBuffer pendingBuffer, int pendingOffset) {
+		this.pendingOffset = pendingOffset;
+		this.pendingBuffer = pendingBuffer;
+	}
+
 	public Song(FileSt fileSt, MetadataExtractor metadataExtractor) {
 		this.path = fileSt.path;
 		this.isHttp = false;
@@ -280,7 +294,7 @@ public final class Song extends BaseItem {
 				validAlbumArt = (!isHttp && (album.length() > 1 || album.charAt(0) != '-'));
 			}
 		}
-		updateExtraInfo();
+		updateExtraInfoInternal();
 		if (track <= 0)
 			track = -1;
 		if (lengthMS <= 0)
@@ -321,7 +335,54 @@ public final class Song extends BaseItem {
 		return RadioStation.extractUrl(path);
 	}
 
+	public boolean isMaterialized() {
+		return (pendingBuffer == null);
+	}
+
+	//can be called from any thread
+	public Song materialize() {
+		if (pendingBuffer != null) {
+			synchronized (this) {
+				final ByteBuffer buffer = pendingBuffer;
+				if (buffer != null) {
+					//duplicate() is used so that several threads can decode songs from the same buffer
+					final ByteBuffer b = buffer.duplicate();
+					b.order(ByteOrder.LITTLE_ENDIAN);
+					b.position(pendingOffset);
+					try {
+						//NEVER change this order! (changing will destroy existing lists)
+						path = Serializer.deserializeString(b);
+						title = Serializer.deserializeString(b);
+						artist = Serializer.deserializeString(b);
+						album = Serializer.deserializeString(b);
+						track = b.getInt();
+						lengthMS = b.getInt();
+						year = b.getInt();
+						final int flags = b.getInt();
+						sampleRate = flags & 0x000fffff;
+						channels = (flags >>> 20) & 0x0f;
+					} catch (Throwable ex) {
+						//corrupted file (there is no way to throw from here)
+						ex.printStackTrace();
+						if (path == null)
+							path = "";
+					}
+					isHttp = isPathHttp(path);
+					validateFields(null);
+					pendingBuffer = null;
+				}
+			}
+		}
+		return this;
+	}
+
 	public void updateExtraInfo() {
+		//placeholders will have their extra info updated when they are materialized
+		if (pendingBuffer == null)
+			updateExtraInfoInternal();
+	}
+
+	private void updateExtraInfoInternal() {
 		if (isHttp) {
 			extraInfo = artist;
 		} else {
@@ -350,6 +411,7 @@ public final class Song extends BaseItem {
 	}
 	
 	public void serialize(OutputStream os) throws IOException {
+		materialize();
 		//NEVER change this order! (changing will destroy existing lists)
 		Serializer.serializeString(os, path);
 		Serializer.serializeString(os, title);
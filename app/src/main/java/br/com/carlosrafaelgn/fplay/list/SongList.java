@@ -49,19 +49,22 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
 import java.util.Random;
 
 import br.com.carlosrafaelgn.fplay.R;
 import br.com.carlosrafaelgn.fplay.activity.MainHandler;
-import br.com.carlosrafaelgn.fplay.playback.MetadataExtractor;
 import br.com.carlosrafaelgn.fplay.playback.Player;
 import br.com.carlosrafaelgn.fplay.ui.SongView;
 import br.com.carlosrafaelgn.fplay.ui.UI;
 import br.com.carlosrafaelgn.fplay.util.ArraySorter;
 import br.com.carlosrafaelgn.fplay.util.ArraySorter.Comparer;
+import br.com.carlosrafaelgn.fplay.util.RawByteArrayOutputStream;
 import br.com.carlosrafaelgn.fplay.util.Serializer;
 import br.com.carlosrafaelgn.fplay.util.TypedRawArrayList;
 
@@ -83,10 +86,19 @@ public final class SongList extends BaseList<Song> implements Comparer<Song> {
 	private static final int MSG_ADD_SONGS = 0x0700;
 	private static final int MSG_FINISHED_ADDING = 0x0701;
 
+	//0x0100 (legacy): current, version, count, songs
+	//0x0200: current, version, count, songs, offset of each song (so the file can be mapped and the songs decoded lazily)
+	//0x0300: current, version, count, generation, songs, offset of each song (the generation binds the journal to the snapshot)
+	private static final int VERSION_LEGACY = 0x0100;
+	private static final int VERSION_NO_GENERATION = 0x0200;
+	private static final int VERSION = 0x0300;
+	private static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+
 	private volatile int adding;
 	private int currentShuffledItemIndex, shuffledItemsAlreadyPlayed, indexOfPreviouslyDeletedCurrentShuffledItem, sortMode, repeatMode;
 	public boolean selecting, moving, okToTurnOffAfterReachingTheEnd;
 	private Song[] shuffledList;
+	private final SongListJournal journal;
 	public Song possibleNextSong;
 	public AlbumArtFetcher albumArtFetcher;
 	private static final SongList theSongList = new SongList();
@@ -95,6 +107,7 @@ public final class SongList extends BaseList<Song> implements Comparer<Song> {
 		super(Song.class, MAX_COUNT);
 		this.adding = 0;
 		this.indexOfPreviouslyDeletedCurrentShuffledItem = -1;
+		this.journal = new SongListJournal();
 	}
 	
 	public static SongList getInstance() {
@@ -138,16 +151,34 @@ public final class SongList extends BaseList<Song> implements Comparer<Song> {
 	}
 
 	public static void serialize(int current, Song[] songs, int count, String path) throws IOException {
+		serialize(current, songs, count, path, 0);
+	}
+
+	public static void serialize(int current, Song[] songs, int count, String path, long generation) throws IOException {
+		//the file currently stored at path may be mapped into memory (see deserialize()), so
+		//it must never be overwritten in place: write a new file and replace the old one later
+		final String tmpPath = path + ".tmp";
 		FileOutputStream fs = null;
 		BufferedOutputStream bs = null;
 		try {
-			fs = Player.theApplication.openFileOutput(path, 0);
-			bs = new BufferedOutputStream(fs, 4096);
+			fs = Player.theApplication.openFileOutput(tmpPath, 0);
+			bs = new BufferedOutputStream(fs, 32768);
 			Serializer.serializeInt(bs, current);
-			Serializer.serializeInt(bs, 0x0100);
+			Serializer.serializeInt(bs, VERSION);
 			Serializer.serializeInt(bs, count);
+			Serializer.serializeLong(bs, generation);
+			final int[] offsets = new int[count];
+			final RawByteArrayOutputStream record = new RawByteArrayOutputStream(1024);
+			int offset = HEADER_SIZE;
+			for (int i = 0; i < count; i++) {
+				record.reset();
+				songs[i].serialize(record);
+				bs.write(record.rawBuffer(), 0, record.size());
+				offsets[i] = offset;
+				offset += record.size();
+			}
 			for (int i = 0; i < count; i++)
-				songs[i].serialize(bs);
+				Serializer.serializeInt(bs, offsets[i]);
 			bs.flush();
 		} finally {
 			try {
@@ -163,34 +194,94 @@ public final class SongList extends BaseList<Song> implements Comparer<Song> {
 				ex.printStackTrace();
 			}
 		}
+		if (!Player.theApplication.getFileStreamPath(tmpPath).renameTo(Player.theApplication.getFileStreamPath(path))) {
+			Player.theApplication.deleteFile(tmpPath);
+			throw new IOException();
+		}
+	}
+
+	private static Song[] deserializeLegacy(FileInputStream fs, int count) throws IOException {
+		final BufferedInputStream bs = new BufferedInputStream(fs, 4096);
+		try {
+			//skip current, version and count
+			Serializer.deserializeInt(bs);
+			Serializer.deserializeInt(bs);
+			Serializer.deserializeInt(bs);
+			final Song[] songs = new Song[count];
+			for (int i = 0; i < count; i++)
+				songs[i] = Song.deserialize(bs);
+			return songs;
+		} finally {
+			try {
+				bs.close();
+			} catch (Throwable ex) {
+				ex.printStackTrace();
+			}
+		}
 	}
 
 	public static Song[] deserialize(String path, int[] current) throws IOException {
+		return deserialize(path, current, null);
+	}
+
+	//generation[0] receives the generation passed to serialize() (0 if the file has none)
+	public static Song[] deserialize(String path, int[] current, long[] generation) throws IOException {
+		if (generation != null)
+			generation[0] = 0;
 		FileInputStream fs = null;
-		BufferedInputStream bs = null;
 		try {
 			fs = Player.theApplication.openFileInput(path);
-			bs = new BufferedInputStream(fs, 4096);
+			final FileChannel channel = fs.getChannel();
+			final long size = channel.size();
+			if (size < 12 || size > Integer.MAX_VALUE)
+				return null;
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			header.limit(12);
+			while (header.hasRemaining()) {
+				if (channel.read(header) < 0)
+					return null;
+			}
 			if (current != null)
-				current[0] = Serializer.deserializeInt(bs);
-			else
-				Serializer.deserializeInt(bs);
-			final int version = Serializer.deserializeInt(bs);
-			final int count = Serializer.deserializeInt(bs);
-			if (version == 0x0100 && count > 0) {
-				final Song[] songs = new Song[count];
-				for (int i = 0; i < count; i++)
-					songs[i] = Song.deserialize(bs);
-				return songs;
+				current[0] = header.getInt(0);
+			final int version = header.getInt(4);
+			final int count = header.getInt(8);
+			final int headerSize;
+			if (version == VERSION) {
+				//the generation must be read even if the list is empty (its journal may not be)
+				headerSize = HEADER_SIZE;
+				header.limit(HEADER_SIZE);
+				while (header.hasRemaining()) {
+					if (channel.read(header) < 0)
+						return null;
+				}
+				if (generation != null)
+					generation[0] = header.getLong(12);
+			} else {
+				headerSize = 12;
 			}
-			return null;
-		} finally {
-			try {
-				if (bs != null)
-					bs.close();
-			} catch (Throwable ex) {
-				ex.printStackTrace();
+			if (count <= 0)
+				return null;
+			if (version == VERSION_LEGACY) {
+				channel.position(0);
+				return deserializeLegacy(fs, count);
+			}
+			if ((version != VERSION && version != VERSION_NO_GENERATION) || ((long)count << 2) > (size - headerSize))
+				return null;
+			//the mapping remains valid even after the file has been closed (or replaced by serialize()),
+			//and only the offsets are read here: each song is decoded when it is actually needed
+			final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			final int maxOffset = (int)size - (count << 2);
+			final Song[] songs = new Song[count];
+			for (int i = 0, o = maxOffset; i < count; i++, o += 4) {
+				final int offset = buffer.getInt(o);
+				if (offset < headerSize || offset >= maxOffset)
+					throw new IOException("Invalid song offset");
+				songs[i] = new Song(buffer, offset);
 			}
+			return songs;
+		} finally {
 			try {
 				if (fs != null)
 					fs.close();
@@ -326,6 +417,7 @@ public final class SongList extends BaseList<Song> implements Comparer<Song> {
 
 				private boolean done;
 				private int[] current = new int[] { -1 };
+				private final long[] generation = new long[1];
 				private Song[] songs;
 				private Throwable ex;
 				@Override
@@ -333,13 +425,13 @@ public final class SongList extends BaseList<Song> implements Comparer<Song> {
 					if (done) {
 						if (songs == null)
 							songs = new Song[0];
-						deserializationEnded(songs, current[0], entireListBeingLoaded, append, play, ex);
+						deserializationEnded(songs, current[0], file == null, entireListBeingLoaded, append, play, ex);
 						current = null;
 						songs = null;
 						ex = null;
 					} else {
 						try {
-							songs = ((file == null) ? deserialize("_List", current) : (file.isPrivatePlaylist() ? deserialize(file.path, current) : importFrom(file.artistIdForAlbumArt)));
+							songs = ((file == null) ? journal.replay(deserialize(SongListJournal.SNAPSHOT_FILE_NAME, current, generation), current, generation[0]) : (file.isPrivatePlaylist() ? deserialize(file.path, current) : importFrom(file.artistIdForAlbumArt)));
 							done = true;
 							MainHandler.postToMainThread(this);
 						} catch (Throwable ex) {
@@ -506,35 +598,30 @@ public final class SongList extends BaseList<Song> implements Comparer<Song> {
 					}
 				}
 			} else {
-				final MetadataExtractor metadataExtractor = new MetadataExtractor();
+				//gather all the files first, so that their tags can be extracted in parallel
+				final FileSt[] pending = new FileSt[count];
 				if (files != null) {
 					for (int i = 0; i < count; i++) {
-						final FileSt file = files[i];
-						if (!file.isDirectory) {
-							c.songs[f] = ((file.songInfo == null) ? new Song(file, metadataExtractor) : new Song(file.songInfo));
-							f++;
-							if ((f & 3) == 1) {
-								if (Player.state >= Player.STATE_TERMINATING || SongList.this.count >= MAX_COUNT)
-									break;
-								MainHandler.sendMessage(c, MSG_ADD_SONGS, f, 0);
-							}
-						}
+						if (!files[i].isDirectory)
+							pending[f++] = files[i];
 					}
 				} else {
-					while (iterator.hasNext()) {
+					while (iterator.hasNext() && f < count) {
 						final FileSt file = iterator.next();
-						if (!file.isDirectory) {
-							c.songs[f] = ((file.songInfo == null) ? new Song(file, metadataExtractor) : new Song(file.songInfo));
-							f++;
-							if ((f & 3) == 1) {
-								if (Player.state >= Player.STATE_TERMINATING || SongList.this.count >= MAX_COUNT)
-									break;
-								MainHandler.sendMessage(c, MSG_ADD_SONGS, f, 0);
-							}
-						}
+						if (!file.isDirectory)
+							pending[f++] = file;
 					}
 				}
-				metadataExtractor.destroy();
+				f = SongMetadataFetcher.fetch(pending, c.songs, f, new SongMetadataFetcher.Observer() {
+					@Override
+					public boolean onSongsReady(int readyCount) {
+						if (Player.state >= Player.STATE_TERMINATING || SongList.this.count >= MAX_COUNT)
+							return false;
+						MainHandler.sendMessage(c, MSG_ADD_SONGS, readyCount, 0);
+						return true;
+					}
+				});
+				SongMetadataCache.getInstance().flush();
 			}
 			if (Player.state < Player.STATE_TERMINATING)
 				MainHandler.sendMessage(c, MSG_FINISHED_ADDING, f, 0);
@@ -574,43 +661,33 @@ public final class SongList extends BaseList<Song> implements Comparer<Song> {
 
 	//--------------------------------------------------------------------------------------------
 
-	public void markAsChanged() {
+	public void markAsChanged(Song song) {
 		modificationVersion++;
+		final int position = itemIndexOf(song);
+		if (position >= 0)
+			journal.recordUpdate(position, song);
 	}
 
 	public boolean serialize() {
-		try {
-			if (modificationVersion <= 1) {
-				RandomAccessFile rf = null;
-				try {
-					final File f = Player.theApplication.getFileStreamPath("_List");
-					rf = new RandomAccessFile(f, "rw");
-					rf.seek(0);
-					final byte[] buf = new byte[4];
-					Serializer.serializeInt(buf, 0, current);
-					rf.write(buf);
-					modificationVersion = 1;
-					return true;
-				} catch (Throwable ex) {
-					ex.printStackTrace();
-				} finally {
-					try {
-						if (rf != null)
-							rf.close();
-					} catch (Throwable ex) {
-						ex.printStackTrace();
-					}
-				}
+		//most of the times, only the changes made since the last save need to be written
+		if (journal.flush(current)) {
+			if (journal.needsCompaction(count)) {
+				//we need to create a copy here, so the list can change while the other thread is running
+				final Song[] songs = new Song[count];
+				System.arraycopy(items, 0, songs, 0, count);
+				journal.startCompaction(songs, count, current);
 			}
-			serialize(current, items, count, "_List");
-			modificationVersion = 1;
+			return true;
+		}
+		try {
+			journal.writeSnapshot(items, count, current);
 			return true;
 		} catch (Throwable ex) {
 			return false;
 		}
 	}
 
-	private void deserializationEnded(Song[] songs, int current, boolean entireListBeingLoaded, boolean append, boolean play, Throwable ex) {
+	private void deserializationEnded(Song[] songs, int current, boolean mainList, boolean entireListBeingLoaded, boolean append, boolean play, Throwable ex) {
 		final int originalCount = count;
 		int positionToSelect = -1;
 		if (ex == null) {
@@ -625,10 +702,15 @@ public final class SongList extends BaseList<Song> implements Comparer<Song> {
 					clear();
 				}
 			}
+			//the main list has just been loaded from its snapshot + journal, so there is nothing to record
+			if (mainList)
+				journal.setRecording(false);
 			if (songs.length == 0)
 				modificationVersion++; //increment here, since add() does not increment when count is 0
 			else
 				add(-1, songs, 0, songs.length);
+			if (mainList)
+				journal.setRecording(true);
 			if (positionToSelect >= this.count) {
 				positionToSelect = -1;
 			} else if (positionToSelect >= 0) {
@@ -641,8 +723,41 @@ public final class SongList extends BaseList<Song> implements Comparer<Song> {
 				if (listObserver != null)
 					listObserver.centerItem(positionToSelect);
 			}
+			if (mainList && originalCount == 0)
+				journal.attachAfterLoading(this.current);
 		}
-		Player.songListDeserialized((!append && (positionToSelect >= 0)) ? items[positionToSelect] : null, ((play && positionToSelect >= 0) ? positionToSelect : -1), positionToSelect, ex);
+		Player.songListDeserialized((!append && (positionToSelect >= 0)) ? items[positionToSelect].materialize() : null, ((play && positionToSelect >= 0) ? positionToSelect : -1), positionToSelect, ex);
+	}
+
+	private int shuffledIndexOf(Song s) {
+		final int i = s.shuffledIndex;
+		return ((i >= 0 && i < count && shuffledList[i] == s) ? i : -1);
+	}
+
+	private int itemIndexOf(Song s) {
+		int i = s.itemIndex;
+		if (i >= 0 && i < count && items[i] == s)
+			return i;
+		//the list has been modified since the last time the hints were computed, so
+		//compute all of them at once (this happens at most once per modification)
+		for (i = count - 1; i >= 0; i--)
+			items[i].itemIndex = i;
+		i = s.itemIndex;
+		return ((i >= 0 && i < count && items[i] == s) ? i : -1);
+	}
+
+	private void shuffle(int first, int count) {
+		//Fisher-Yates
+		final Random r = new Random();
+		for (int i = count - 1; i > 0; i--) {
+			final int a = first + i;
+			final int b = first + r.nextInt(i + 1);
+			final Song s = shuffledList[a];
+			shuffledList[a] = shuffledList[b];
+			shuffledList[b] = s;
+		}
+		for (int i = first + count - 1; i >= first; i--)
+			shuffledList[i].shuffledIndex = i;
 	}
 
 	private Song getRandomSongAndSetCurrentInternal(int how) {
@@ -658,12 +773,9 @@ public final class SongList extends BaseList<Song> implements Comparer<Song> {
 					how = 0;
 				} else {
 					s = items[how];
-					for (i = count - 1; i >= 0; i--) {
-						if (shuffledList[i] == s) {
-							current = how;
-							currentShuffledItemIndex = i;
-							break;
-						}
+					if ((i = shuffledIndexOf(s)) >= 0) {
+						current = how;
+						currentShuffledItemIndex = i;
 					}
 				}
 			} else if (how >= count) {
@@ -679,12 +791,9 @@ public final class SongList extends BaseList<Song> implements Comparer<Song> {
 				how = 0;
 		} else if (how >= 0 && how < count) {
 			s = items[how];
-			for (i = count - 1; i >= 0; i--) {
-				if (shuffledList[i] == s) {
-					current = how;
-					currentShuffledItemIndex = i;
-					break;
-				}
+			if ((i = shuffledIndexOf(s)) >= 0) {
+				current = how;
+				currentShuffledItemIndex = i;
 			}
 		}
 		indexOfPreviouslyDeletedCurrentItem = -1;
@@ -695,18 +804,16 @@ public final class SongList extends BaseList<Song> implements Comparer<Song> {
 		} else {
 			if (s == null) {
 				s = shuffledList[how];
-				for (i = count - 1; i >= 0; i--) {
-					if (items[i] == s) {
-						current = i;
-						currentShuffledItemIndex = how;
-						break;
-					}
+				if ((i = itemIndexOf(s)) >= 0) {
+					current = i;
+					currentShuffledItemIndex = how;
 				}
 			}
 			if (!s.alreadyPlayed) {
 				s.alreadyPlayed = true;
 				shuffledItemsAlreadyPlayed++;
 			}
+			s.materialize();
 		}
 		possibleNextSong = null;
 		return s;
@@ -754,8 +861,8 @@ public final class SongList extends BaseList<Song> implements Comparer<Song> {
 					possibleNextSong = null;
 				} else {
 					current = how;
-					s = items[how];
-					possibleNextSong = ((repeatMode == REPEAT_ONE || (repeatMode == REPEAT_NONE && how == (count - 1))) ? null : items[((how == (count - 1)) ? 0 : (how + 1))]);
+					s = items[how].materialize();
+					possibleNextSong = ((repeatMode == REPEAT_ONE || (repeatMode == REPEAT_NONE && how == (count - 1))) ? null : items[((how == (count - 1)) ? 0 : (how + 1))].materialize());
 				}
 			}
 			if (!selecting && !moving) {
@@ -812,16 +919,10 @@ public final class SongList extends BaseList<Song> implements Comparer<Song> {
 			for (i = count - 1; i >= 0; i--) {
 				final Song s = items[i];
 				s.alreadyPlayed = false;
+				s.itemIndex = i;
 				shuffledList[i] = s;
 			}
-			final Random r = new Random();
-			for (i = (count - 1) >> 1; i >= 0; i--) {
-				final int a = r.nextInt(count);
-				final int b = r.nextInt(count);
-				final Song s = shuffledList[a];
-				shuffledList[a] = shuffledList[b];
-				shuffledList[b] = s;
-			}
+			shuffle(0, count);
 		}
 		currentShuffledItemIndex = -1;
 		shuffledItemsAlreadyPlayed = 0;
@@ -848,7 +949,19 @@ public final class SongList extends BaseList<Song> implements Comparer<Song> {
 			sortMode = mode;
 			modificationVersion++;
 			final Song s = ((current >= 0 && current < count) ? items[current] : null);
+			//all songs must be decoded before being compared
+			for (int i = count - 1; i >= 0; i--) {
+				items[i].materialize();
+				items[i].itemIndex = i;
+			}
 			ArraySorter.sort(items, 0, count, this);
+			//record where each song came from, and leave the hints up to date
+			final int[] permutation = new int[count];
+			for (int i = count - 1; i >= 0; i--) {
+				permutation[i] = items[i].itemIndex;
+				items[i].itemIndex = i;
+			}
+			journal.recordSort(permutation, count);
 			current = -1;
 			firstSel = -1;
 			lastSel = -1;
@@ -898,59 +1011,62 @@ public final class SongList extends BaseList<Song> implements Comparer<Song> {
 
 	@Override
 	protected void addingItems(int position, int count) {
+		journal.recordAdd(items, position, count);
 		if (shuffledList == null)
 			return;
 		setShuffledCapacity();
 		final int initial = this.count - count;
 		System.arraycopy(items, position, shuffledList, initial, count);
-		final Random r = new Random();
-		for (int i = initial + ((count - 1) >> 1); i >= initial; i--) {
-			final int a = initial + r.nextInt(count);
-			final int b = initial + r.nextInt(count);
-			final Song s = shuffledList[a];
-			shuffledList[a] = shuffledList[b];
-			shuffledList[b] = s;
-		}
+		shuffle(initial, count);
 	}
 
 	@Override
 	protected void removingItems(int position, int count) {
+		journal.recordRemove(position, count);
 		if (shuffledList == null)
 			return;
-		int shuffledCount = this.count;
+		final int shuffledCount = this.count;
+		//first, just mark all the songs being removed...
 		count += position;
 		while (position < count) {
 			final Song s = items[position];
-			for (int i = shuffledCount - 1; i >= 0; i--) {
-				if (shuffledList[i] == s) {
-					shuffledCount--;
-					if (indexOfPreviouslyDeletedCurrentShuffledItem >= 0) {
-						if (indexOfPreviouslyDeletedCurrentShuffledItem > i)
-							indexOfPreviouslyDeletedCurrentShuffledItem--;
-						if (indexOfPreviouslyDeletedCurrentShuffledItem >= shuffledCount)
-							indexOfPreviouslyDeletedCurrentShuffledItem = -1;
-					}
-					if (currentShuffledItemIndex == i) {
-						indexOfPreviouslyDeletedCurrentShuffledItem = i;
-						currentShuffledItemIndex = -1;
-					} else if (currentShuffledItemIndex > i) {
-						currentShuffledItemIndex--;
-					}
-					if (currentShuffledItemIndex >= shuffledCount)
-						currentShuffledItemIndex = -1;
-					System.arraycopy(shuffledList, i + 1, shuffledList, i, shuffledCount - i);
-					shuffledList[shuffledCount] = null;
-					if (s.alreadyPlayed)
-						shuffledItemsAlreadyPlayed--;
-					break;
-				}
+			final int i = shuffledIndexOf(s);
+			if (i >= 0) {
+				shuffledList[i] = null;
+				if (s.alreadyPlayed)
+					shuffledItemsAlreadyPlayed--;
 			}
 			position++;
 		}
+		//...then compact shuffledList in a single pass, instead of shifting it once per removed song
+		int newCurrentShuffledItemIndex = -1, newIndexOfPreviouslyDeletedCurrentShuffledItem = -1, w = 0;
+		for (int i = 0; i < shuffledCount; i++) {
+			final Song s = shuffledList[i];
+			if (i == currentShuffledItemIndex) {
+				if (s == null)
+					newIndexOfPreviouslyDeletedCurrentShuffledItem = w;
+				else
+					newCurrentShuffledItemIndex = w;
+			} else if (i == indexOfPreviouslyDeletedCurrentShuffledItem && newIndexOfPreviouslyDeletedCurrentShuffledItem < 0) {
+				newIndexOfPreviouslyDeletedCurrentShuffledItem = w;
+			}
+			if (s != null) {
+				if (w != i) {
+					shuffledList[w] = s;
+					s.shuffledIndex = w;
+				}
+				w++;
+			}
+		}
+		for (int i = w; i < shuffledCount; i++)
+			shuffledList[i] = null;
+		currentShuffledItemIndex = ((newCurrentShuffledItemIndex >= w) ? -1 : newCurrentShuffledItemIndex);
+		indexOfPreviouslyDeletedCurrentShuffledItem = ((newIndexOfPreviouslyDeletedCurrentShuffledItem >= w) ? -1 : newIndexOfPreviouslyDeletedCurrentShuffledItem);
 	}
 
 	@Override
 	protected void clearingItems() {
+		journal.recordClear();
 		if (shuffledList == null)
 			return;
 		for (int i = count - 1; i >= 0; i--)
@@ -960,6 +1076,16 @@ public final class SongList extends BaseList<Song> implements Comparer<Song> {
 		indexOfPreviouslyDeletedCurrentShuffledItem = -1;
 	}
 
+	@Override
+	protected void movingItems(int from, int count, int to) {
+		journal.recordMove(from, count, to);
+	}
+
+	@Override
+	protected Song materializeItem(Song item) {
+		return item.materialize();
+	}
+
 	@Override
 	protected void notifyDataSetChanged(int gotoPosition, int whatHappened) {
 		super.notifyDataSetChanged(gotoPosition, whatHappened);
@@ -969,14 +1095,14 @@ public final class SongList extends BaseList<Song> implements Comparer<Song> {
 			int n = current + 1;
 			if (n >= count)
 				n = 0;
-			Player.nextMayHaveChanged(items[n]);
+			Player.nextMayHaveChanged(items[n].materialize());
 		}
 	}
 
 	@Override
 	public View getView(int position, View convertView, ViewGroup parent) {
 		final SongView view = ((convertView != null) ? (SongView)convertView : new SongView(Player.theApplication));
-		view.setItemState(items[position], position, getItemState(position), this);
+		view.setItemState(items[position].materialize(), position, getItemState(position), this);
 		return view;
 	}
 
@@ -985,6 +1111,22 @@ public final class SongList extends BaseList<Song> implements Comparer<Song> {
 		return SongView.getViewHeight();
 	}
 
+	@Override
+	public void visibleRangeChanged(int first, int count, int direction) {
+		final AlbumArtFetcher albumArtFetcher = this.albumArtFetcher;
+		if (albumArtFetcher == null || !UI.albumArtSongList)
+			return;
+		albumArtFetcher.setVisibleRange(first, count, direction);
+		//prefetch the rows that are about to be shown
+		final int start = ((direction < 0) ? (first - count) : (first + count));
+		final int end = Math.min(this.count, start + count);
+		for (int i = Math.max(0, start); i < end; i++) {
+			final Song song = materializeItem(items[i]);
+			if (song.validAlbumArt)
+				albumArtFetcher.prefetch(song, i);
+		}
+	}
+
 	public void syncAlbumArtFetcher() {
 		if (UI.albumArtSongList) {
 			if (albumArtFetcher == null)
@@ -0,0 +1,550 @@
+//
+// FPlayAndroid is distributed under the FreeBSD License
+//
+// Copyright (c) 2013-2014, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// The views and conclusions contained in the software and documentation are those
+// of the authors and should not be interpreted as representing official policies,
+// either expressed or implied, of the FreeBSD Project.
+//
+// https://github.com/carlosrafaelgn/FPlayAndroid
+//
+package br.com.carlosrafaelgn.fplay.list;
+
+import android.content.Context;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import br.com.carlosrafaelgn.fplay.activity.MainHandler;
+import br.com.carlosrafaelgn.fplay.playback.Player;
+import br.com.carlosrafaelgn.fplay.util.RawByteArrayOutputStream;
+import br.com.carlosrafaelgn.fplay.util.Serializer;
+
+//Append-only journal of the changes made to the main song list, so that saving the list costs
+//only the changes made since the last time it was saved, instead of rewriting all of its songs.
+//
+//The journal is bound to one snapshot of the list (identified by a random generation, stored in
+//both files, along with the snapshot's length and last modification time), and is replayed over
+//that snapshot when the list is loaded. Once the journal
+//grows too large, a new snapshot is written in the background and the journal starts over.
+//
+//All methods of this class MUST BE called from the main thread, except those otherwise noted!!!
+final class SongListJournal {
+	public static final String SNAPSHOT_FILE_NAME = "_List";
+	private static final String FILE_NAME = "_ListJournal";
+	//0x0100: version, snapshot length, snapshot last modification time, records
+	//0x0200: version, snapshot length, snapshot last modification time, snapshot generation, records
+	private static final int VERSION_NO_GENERATION = 0x0100;
+	private static final int VERSION = 0x0200;
+	private static final int HEADER_SIZE = 4 + 8 + 8 + 8;
+	private static final int MIN_COMPACTION_SIZE = 256 * 1024;
+
+	//NEVER change these values! (changing will destroy existing journals)
+	private static final int OP_ADD = 1;
+	private static final int OP_REMOVE = 2;
+	private static final int OP_MOVE = 3;
+	private static final int OP_SORT = 4;
+	private static final int OP_CLEAR = 5;
+	private static final int OP_UPDATE = 6;
+	private static final int OP_CURRENT = 7;
+
+	private final Object fileSync, snapshotSync;
+	private RawByteArrayOutputStream pending, record;
+	private boolean attached, recording, changedWhileDetached, compacting;
+	private int lastCurrent;
+	private long fileLength, generation; //guarded by fileSync
+	private final Random random;
+	private volatile boolean replayedSuccessfully;
+
+	SongListJournal() {
+		fileSync = new Object();
+		snapshotSync = new Object();
+		pending = new RawByteArrayOutputStream(1024);
+		record = new RawByteArrayOutputStream(1024);
+		recording = true;
+		lastCurrent = -1;
+		random = new Random();
+	}
+
+	private long nextGeneration() {
+		//0 is used by snapshots written before generations existed
+		long generation;
+		do {
+			generation = random.nextLong();
+		} while (generation == 0);
+		return generation;
+	}
+
+	//--------------------------------------------------------------------------------------------
+	//Recording
+
+	private void beginRecord(int op) throws IOException {
+		record.reset();
+		Serializer.serializeInt(record, 0); //the actual length is filled in by endRecord()
+		Serializer.serializeInt(record, op);
+	}
+
+	private void endRecord() {
+		final byte[] buffer = record.rawBuffer();
+		Serializer.serializeInt(buffer, 0, record.size() - 4);
+		pending.write(buffer, 0, record.size());
+		if (buffer.length > MIN_COMPACTION_SIZE)
+			record = new RawByteArrayOutputStream(1024);
+	}
+
+	private boolean canRecord() {
+		if (!recording)
+			return false;
+		if (!attached) {
+			//the state of the list no longer matches snapshot + journal
+			changedWhileDetached = true;
+			return false;
+		}
+		return true;
+	}
+
+	void setRecording(boolean recording) {
+		this.recording = recording;
+	}
+
+	void recordAdd(Song[] items, int position, int count) {
+		if (!canRecord())
+			return;
+		try {
+			beginRecord(OP_ADD);
+			Serializer.serializeInt(record, position);
+			Serializer.serializeInt(record, count);
+			count += position;
+			for (int i = position; i < count; i++)
+				items[i].serialize(record);
+			endRecord();
+		} catch (Throwable ex) {
+			detach();
+		}
+	}
+
+	void recordRemove(int position, int count) {
+		if (!canRecord())
+			return;
+		try {
+			beginRecord(OP_REMOVE);
+			Serializer.serializeInt(record, position);
+			Serializer.serializeInt(record, count);
+			endRecord();
+		} catch (Throwable ex) {
+			detach();
+		}
+	}
+
+	void recordMove(int from, int count, int to) {
+		if (!canRecord())
+			return;
+		try {
+			beginRecord(OP_MOVE);
+			Serializer.serializeInt(record, from);
+			Serializer.serializeInt(record, count);
+			Serializer.serializeInt(record, to);
+			endRecord();
+		} catch (Throwable ex) {
+			detach();
+		}
+	}
+
+	//permutation[i] is the index the item now at position i had before sorting
+	void recordSort(int[] permutation, int count) {
+		if (!canRecord())
+			return;
+		try {
+			beginRecord(OP_SORT);
+			Serializer.serializeInt(record, count);
+			for (int i = 0; i < count; i++)
+				Serializer.serializeInt(record, permutation[i]);
+			endRecord();
+		} catch (Throwable ex) {
+			detach();
+		}
+	}
+
+	void recordClear() {
+		if (!canRecord())
+			return;
+		try {
+			beginRecord(OP_CLEAR);
+			endRecord();
+		} catch (Throwable ex) {
+			detach();
+		}
+	}
+
+	void recordUpdate(int position, Song song) {
+		if (!canRecord())
+			return;
+		try {
+			beginRecord(OP_UPDATE);
+			Serializer.serializeInt(record, position);
+			song.serialize(record);
+			endRecord();
+		} catch (Throwable ex) {
+			detach();
+		}
+	}
+
+	private void detach() {
+		attached = false;
+		changedWhileDetached = true;
+		pending.reset();
+	}
+
+	//--------------------------------------------------------------------------------------------
+	//Loading
+
+	//must be called from the thread that loaded the snapshot, right after loading it
+	//(snapshotGeneration is the generation stored in the snapshot)
+	Song[] replay(Song[] songs, int[] current, long snapshotGeneration) {
+		replayedSuccessfully = false;
+		synchronized (fileSync) {
+			generation = snapshotGeneration;
+		}
+		final File snapshot = Player.theApplication.getFileStreamPath(SNAPSHOT_FILE_NAME);
+		Song[] items = ((songs == null) ? new Song[0] : songs);
+		int count = items.length;
+		FileInputStream fs = null;
+		BufferedInputStream bs = null;
+		try {
+			fs = Player.theApplication.openFileInput(FILE_NAME);
+			bs = new BufferedInputStream(fs, 32768);
+			final int version = Serializer.deserializeInt(bs);
+			if ((version != VERSION && (version != VERSION_NO_GENERATION || snapshotGeneration != 0)) ||
+				Serializer.deserializeLong(bs) != snapshot.length() ||
+				Serializer.deserializeLong(bs) != snapshot.lastModified() ||
+				(version == VERSION && Serializer.deserializeLong(bs) != snapshotGeneration))
+				return songs; //this journal belongs to another snapshot
+			final byte[] header = new byte[8];
+			for (; ; ) {
+				if (bs.read(header, 0, 8) != 8)
+					break;
+				final int length = Serializer.deserializeInt(header, 0) - 4;
+				if (length < 0 || length > bs.available())
+					break; //incomplete record
+				switch (Serializer.deserializeInt(header, 4)) {
+				case OP_ADD: {
+					final int position = Serializer.deserializeInt(bs);
+					final int n = Serializer.deserializeInt(bs);
+					if (position < 0 || position > count || n < 0)
+						throw new IOException();
+					if (items.length < (count + n)) {
+						final Song[] newItems = new Song[count + n + ((count + n) >> 1)];
+						System.arraycopy(items, 0, newItems, 0, count);
+						items = newItems;
+					}
+					System.arraycopy(items, position, items, position + n, count - position);
+					for (int i = 0; i < n; i++)
+						items[position + i] = Song.deserialize(bs);
+					count += n;
+					break;
+				}
+				case OP_REMOVE: {
+					final int position = Serializer.deserializeInt(bs);
+					final int n = Serializer.deserializeInt(bs);
+					if (position < 0 || n < 0 || (position + n) > count)
+						throw new IOException();
+					System.arraycopy(items, position + n, items, position, count - position - n);
+					for (int i = count - n; i < count; i++)
+						items[i] = null;
+					count -= n;
+					break;
+				}
+				case OP_MOVE: {
+					final int from = Serializer.deserializeInt(bs);
+					final int n = Serializer.deserializeInt(bs);
+					final int to = Serializer.deserializeInt(bs);
+					if (from < 0 || to < 0 || n <= 0 || (from + n) > count || to >= count)
+						throw new IOException();
+					//same steps as BaseList.moveSelection()
+					final Song[] tmp = new Song[n];
+					System.arraycopy(items, from, tmp, 0, n);
+					if (to < from) {
+						System.arraycopy(items, to, items, to + n, from - to);
+						System.arraycopy(tmp, 0, items, to, n);
+					} else {
+						final int delta = to - (from + n) + 1;
+						System.arraycopy(items, from + n, items, from, delta);
+						System.arraycopy(tmp, 0, items, from + delta, n);
+					}
+					break;
+				}
+				case OP_SORT: {
+					if (Serializer.deserializeInt(bs) != count)
+						throw new IOException();
+					final Song[] sorted = new Song[items.length];
+					for (int i = 0; i < count; i++) {
+						final int p = Serializer.deserializeInt(bs);
+						if (p < 0 || p >= count)
+							throw new IOException();
+						sorted[i] = items[p];
+					}
+					items = sorted;
+					break;
+				}
+				case OP_CLEAR:
+					for (int i = 0; i < count; i++)
+						items[i] = null;
+					count = 0;
+					break;
+				case OP_UPDATE: {
+					final int position = Serializer.deserializeInt(bs);
+					if (position < 0 || position >= count)
+						throw new IOException();
+					items[position] = Song.deserialize(bs);
+					break;
+				}
+				case OP_CURRENT:
+					if (current != null)
+						current[0] = Serializer.deserializeInt(bs);
+					else
+						Serializer.deserializeInt(bs);
+					break;
+				default:
+					//unknown operation (probably written by a newer version)
+					if (bs.skip(length) != length)
+						throw new IOException();
+					break;
+				}
+			}
+			replayedSuccessfully = true;
+		} catch (FileNotFoundException ex) {
+			//there is no journal, so the snapshot is all there is
+			replayedSuccessfully = true;
+			return songs;
+		} catch (Throwable ex) {
+			//keep everything that could be replayed, and write a new snapshot on the next save
+			ex.printStackTrace();
+		} finally {
+			try {
+				if (bs != null)
+					bs.close();
+			} catch (Throwable ex) {
+				ex.printStackTrace();
+			}
+			try {
+				if (fs != null)
+					fs.close();
+			} catch (Throwable ex) {
+				ex.printStackTrace();
+			}
+		}
+		if (count == items.length)
+			return items;
+		final Song[] result = new Song[count];
+		System.arraycopy(items, 0, result, 0, count);
+		return result;
+	}
+
+	//called once the list loaded from the snapshot has been added to an empty SongList
+	void attachAfterLoading(int current) {
+		if (attached || changedWhileDetached || !replayedSuccessfully)
+			return;
+		try {
+			synchronized (fileSync) {
+				final File file = Player.theApplication.getFileStreamPath(FILE_NAME);
+				fileLength = (file.exists() ? file.length() : 0);
+				if (fileLength <= 0) {
+					//there was no journal at all (a journal written by an older version, which has
+					//a smaller header, is kept as it is, as its snapshot does not have a generation)
+					writeHeader(null, 0);
+				}
+			}
+			lastCurrent = current;
+			attached = true;
+		} catch (Throwable ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	//--------------------------------------------------------------------------------------------
+	//Saving
+
+	//must be called with fileSync locked (tail contains the records that must follow the header)
+	private void writeHeader(byte[] tail, int tailLength) throws IOException {
+		final File snapshot = Player.theApplication.getFileStreamPath(SNAPSHOT_FILE_NAME);
+		FileOutputStream fs = null;
+		try {
+			fs = Player.theApplication.openFileOutput(FILE_NAME, 0);
+			final byte[] header = new byte[HEADER_SIZE];
+			Serializer.serializeInt(header, 0, VERSION);
+			Serializer.serializeLong(header, 4, snapshot.length());
+			Serializer.serializeLong(header, 12, snapshot.lastModified());
+			Serializer.serializeLong(header, 20, generation);
+			fs.write(header, 0, HEADER_SIZE);
+			if (tailLength > 0)
+				fs.write(tail, 0, tailLength);
+			fileLength = HEADER_SIZE + tailLength;
+		} finally {
+			if (fs != null)
+				fs.close();
+		}
+	}
+
+	//appends all pending changes to the journal, returning false if the whole list must be written instead
+	boolean flush(int current) {
+		if (!attached)
+			return false;
+		if (current != lastCurrent) {
+			try {
+				beginRecord(OP_CURRENT);
+				Serializer.serializeInt(record, current);
+				endRecord();
+			} catch (Throwable ex) {
+				detach();
+				return false;
+			}
+		}
+		if (pending.size() == 0)
+			return true;
+		synchronized (fileSync) {
+			FileOutputStream fs = null;
+			try {
+				fs = Player.theApplication.openFileOutput(FILE_NAME, Context.MODE_APPEND);
+				fs.write(pending.rawBuffer(), 0, pending.size());
+				fileLength += pending.size();
+			} catch (Throwable ex) {
+				ex.printStackTrace();
+				detach();
+				return false;
+			} finally {
+				try {
+					if (fs != null)
+						fs.close();
+				} catch (Throwable ex) {
+					ex.printStackTrace();
+				}
+			}
+		}
+		lastCurrent = current;
+		//do not let a large, unused, buffer hang around (after adding several songs at once, for example)
+		if (pending.rawBuffer().length > MIN_COMPACTION_SIZE)
+			pending = new RawByteArrayOutputStream(1024);
+		else
+			pending.reset();
+		return true;
+	}
+
+	boolean needsCompaction(int snapshotCount) {
+		if (!attached || compacting)
+			return false;
+		synchronized (fileSync) {
+			//songs take roughly 100 bytes each in the snapshot
+			return (fileLength > MIN_COMPACTION_SIZE && fileLength > ((long)snapshotCount * 100L));
+		}
+	}
+
+	//writes the whole list synchronously, and starts a new journal bound to it
+	void writeSnapshot(Song[] songs, int count, int current) throws IOException {
+		synchronized (snapshotSync) {
+			final long newGeneration = nextGeneration();
+			SongList.serialize(current, songs, count, SNAPSHOT_FILE_NAME, newGeneration);
+			synchronized (fileSync) {
+				generation = newGeneration;
+				writeHeader(null, 0);
+			}
+		}
+		pending.reset();
+		lastCurrent = current;
+		attached = true;
+		changedWhileDetached = false;
+	}
+
+	//songs must be a copy of the list, as it is written by another thread
+	void startCompaction(final Song[] songs, final int count, final int current) {
+		if (compacting)
+			return;
+		compacting = true;
+		final long journalLengthAtSnapshot;
+		synchronized (fileSync) {
+			journalLengthAtSnapshot = fileLength;
+		}
+		try {
+			(new Thread("List Compaction Thread") {
+				{
+					setDaemon(true);
+				}
+
+				private boolean done, failed;
+
+				@Override
+				public void run() {
+					if (done) {
+						compacting = false;
+						if (failed)
+							detach();
+						return;
+					}
+					try {
+						synchronized (snapshotSync) {
+							//if the app dies after the new snapshot replaces the old one, but before
+							//the journal is rewritten, the generations will not match on the next load
+							final long newGeneration = nextGeneration();
+							SongList.serialize(current, songs, count, SNAPSHOT_FILE_NAME, newGeneration);
+							synchronized (fileSync) {
+								generation = newGeneration;
+								//the changes appended while the snapshot was being written happened
+								//after the copy was made, so they must be kept in the new journal
+								final int tailLength = (int)(fileLength - journalLengthAtSnapshot);
+								final byte[] tail = new byte[tailLength];
+								if (tailLength > 0) {
+									RandomAccessFile rf = null;
+									try {
+										rf = new RandomAccessFile(Player.theApplication.getFileStreamPath(FILE_NAME), "r");
+										rf.seek(journalLengthAtSnapshot);
+										rf.readFully(tail);
+									} finally {
+										if (rf != null)
+											rf.close();
+									}
+								}
+								writeHeader(tail, tailLength);
+							}
+						}
+					} catch (Throwable ex) {
+						//if the new snapshot has already replaced the old one, the old journal
+						//will be ignored, so the whole list must be written on the next save
+						ex.printStackTrace();
+						failed = true;
+					}
+					done = true;
+					MainHandler.postToMainThread(this);
+				}
+			}).start();
+		} catch (Throwable ex) {
+			compacting = false;
+		}
+	}
+}
@@ -0,0 +1,229 @@
+//
+// FPlayAndroid is distributed under the FreeBSD License
+//
+// Copyright (c) 2013-2014, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// The views and conclusions contained in the software and documentation are those
+// of the authors and should not be interpreted as representing official policies,
+// either expressed or implied, of the FreeBSD Project.
+//
+// https://github.com/carlosrafaelgn/FPlayAndroid
+//
+package br.com.carlosrafaelgn.fplay.list;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import br.com.carlosrafaelgn.fplay.playback.MetadataExtractor;
+import br.com.carlosrafaelgn.fplay.playback.Player;
+import br.com.carlosrafaelgn.fplay.util.Serializer;
+
+//Persistent index of the metadata already extracted from local files. Entries are keyed
+//by path and are only trusted while the file's length and last modification time remain
+//the same, so adding a folder that has already been scanned costs a stat() per file,
+//instead of opening the file and parsing its tags all over again.
+//
+//All methods of this class can be called from any thread (createSong() and flush()
+//should not be called from the main thread, though, as they perform I/O)
+public final class SongMetadataCache {
+	private static final String FILE_NAME = "_SongMetadata";
+	private static final int VERSION = 0x0100;
+	private static final int MAX_COUNT = 65536;
+
+	private static final class Entry {
+		public final long length, lastModified;
+		public final String title, artist, album;
+		public final int track, lengthMS, year, flags;
+
+		public Entry(long length, long lastModified, String title, String artist, String album, int track, int lengthMS, int year, int flags) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.title = title;
+			this.artist = artist;
+			this.album = album;
+			this.track = track;
+			this.lengthMS = lengthMS;
+			this.year = year;
+			this.flags = flags;
+		}
+
+		public Entry(Song song, long length, long lastModified) {
+			this(length, lastModified, song.title, song.artist, song.album, song.track, song.lengthMS, song.year, song.sampleRate | ((song.channels & 0x0f) << 20));
+		}
+
+		public Song toSong(String path) {
+			return new Song(path, title, artist, album, track, lengthMS, year, flags & 0x000fffff, (flags >>> 20) & 0x0f);
+		}
+	}
+
+	private static final SongMetadataCache theCache = new SongMetadataCache();
+
+	private final LinkedHashMap<String, Entry> entries;
+	private boolean loaded, modified;
+
+	private SongMetadataCache() {
+		//access order, so that the entries used least recently are the first ones to go
+		entries = new LinkedHashMap<String, Entry>(1024, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return (size() > MAX_COUNT);
+			}
+		};
+	}
+
+	public static SongMetadataCache getInstance() {
+		return theCache;
+	}
+
+	private void loadIfNecessary() {
+		if (loaded)
+			return;
+		loaded = true;
+		FileInputStream fs = null;
+		BufferedInputStream bs = null;
+		try {
+			fs = Player.theApplication.openFileInput(FILE_NAME);
+			bs = new BufferedInputStream(fs, 32768);
+			if (Serializer.deserializeInt(bs) != VERSION)
+				return;
+			int count = Serializer.deserializeInt(bs);
+			if (count > MAX_COUNT)
+				count = MAX_COUNT;
+			while (count > 0) {
+				//NEVER change this order! (changing will require a new VERSION)
+				final String path = Serializer.deserializeString(bs);
+				final long length = Serializer.deserializeLong(bs);
+				final long lastModified = Serializer.deserializeLong(bs);
+				final String title = Serializer.deserializeString(bs);
+				final String artist = Serializer.deserializeString(bs);
+				final String album = Serializer.deserializeString(bs);
+				final int track = Serializer.deserializeInt(bs);
+				final int lengthMS = Serializer.deserializeInt(bs);
+				final int year = Serializer.deserializeInt(bs);
+				final int flags = Serializer.deserializeInt(bs);
+				if (path == null)
+					break;
+				entries.put(path, new Entry(length, lastModified, title, artist, album, track, lengthMS, year, flags));
+				count--;
+			}
+		} catch (Throwable ex) {
+			//a partially read index is worse than no index at all
+			entries.clear();
+			if (!(ex instanceof FileNotFoundException))
+				ex.printStackTrace();
+		} finally {
+			try {
+				if (bs != null)
+					bs.close();
+			} catch (Throwable ex) {
+				ex.printStackTrace();
+			}
+			try {
+				if (fs != null)
+					fs.close();
+			} catch (Throwable ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	public Song createSong(FileSt file, MetadataExtractor metadataExtractor) {
+		final File f = ((file.file != null) ? file.file : new File(file.path));
+		final long length = f.length(), lastModified = f.lastModified();
+		synchronized (entries) {
+			loadIfNecessary();
+			final Entry entry = entries.get(file.path);
+			if (entry != null) {
+				if (entry.length == length && entry.lastModified == lastModified)
+					return entry.toSong(file.path);
+				//the file has changed since the last time it was scanned
+				entries.remove(file.path);
+				modified = true;
+			}
+		}
+		final Song song = new Song(file, metadataExtractor);
+		//lastModified is 0 when the file could not be stat'ed, and there is no way to validate the entry later
+		if (lastModified != 0) {
+			synchronized (entries) {
+				entries.put(file.path, new Entry(song, length, lastModified));
+				modified = true;
+			}
+		}
+		return song;
+	}
+
+	public void flush() {
+		synchronized (entries) {
+			if (!modified)
+				return;
+			modified = false;
+			FileOutputStream fs = null;
+			BufferedOutputStream bs = null;
+			try {
+				fs = Player.theApplication.openFileOutput(FILE_NAME, 0);
+				bs = new BufferedOutputStream(fs, 32768);
+				Serializer.serializeInt(bs, VERSION);
+				Serializer.serializeInt(bs, entries.size());
+				for (Map.Entry<String, Entry> e : entries.entrySet()) {
+					final Entry entry = e.getValue();
+					//NEVER change this order! (changing will require a new VERSION)
+					Serializer.serializeString(bs, e.getKey());
+					Serializer.serializeLong(bs, entry.length);
+					Serializer.serializeLong(bs, entry.lastModified);
+					Serializer.serializeString(bs, entry.title);
+					Serializer.serializeString(bs, entry.artist);
+					Serializer.serializeString(bs, entry.album);
+					Serializer.serializeInt(bs, entry.track);
+					Serializer.serializeInt(bs, entry.lengthMS);
+					Serializer.serializeInt(bs, entry.year);
+					Serializer.serializeInt(bs, entry.flags);
+				}
+				bs.flush();
+			} catch (Throwable ex) {
+				//better luck next time
+				Player.theApplication.deleteFile(FILE_NAME);
+				ex.printStackTrace();
+			} finally {
+				try {
+					if (bs != null)
+						bs.close();
+				} catch (Throwable ex) {
+					ex.printStackTrace();
+				}
+				try {
+					if (fs != null)
+						fs.close();
+				} catch (Throwable ex) {
+					ex.printStackTrace();
+				}
+			}
+		}
+	}
+}
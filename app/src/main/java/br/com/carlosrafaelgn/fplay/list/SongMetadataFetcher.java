@@ -0,0 +1,207 @@
+//
+// FPlayAndroid is distributed under the FreeBSD License
+//
+// Copyright (c) 2013-2014, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// The views and conclusions contained in the software and documentation are those
+// of the authors and should not be interpreted as representing official policies,
+// either expressed or implied, of the FreeBSD Project.
+//
+// https://github.com/carlosrafaelgn/FPlayAndroid
+//
+package br.com.carlosrafaelgn.fplay.list;
+
+import android.os.SystemClock;
+
+import br.com.carlosrafaelgn.fplay.playback.MetadataExtractor;
+
+//Creates the songs for a list of files using several threads at once (each thread with its
+//own MetadataExtractor), while still delivering them in the same order as the files, in
+//batches separated by at least DELIVERY_INTERVAL_MS
+final class SongMetadataFetcher implements Runnable {
+	public interface Observer {
+		//return false to cancel the remaining work
+		boolean onSongsReady(int readyCount);
+	}
+
+	private static final int MAX_THREADS = 8;
+	private static final int DELIVERY_INTERVAL_MS = 100;
+
+	private final Object sync;
+	private final FileSt[] files;
+	private final Song[] songs;
+	private final boolean[] done;
+	private final int count;
+	private final SongMetadataCache metadataCache;
+	private int nextIndex, readyCount, runningThreads;
+	private boolean cancelled;
+
+	private SongMetadataFetcher(FileSt[] files, Song[] songs, int count) {
+		this.sync = new Object();
+		this.files = files;
+		this.songs = songs;
+		this.done = new boolean[count];
+		this.count = count;
+		this.metadataCache = SongMetadataCache.getInstance();
+	}
+
+	//must be called from a background thread, and returns the amount of songs actually created
+	//(songs[0] ... songs[return value - 1]), which is less than count if observer cancels the work
+	public static int fetch(FileSt[] files, Song[] songs, int count, Observer observer) {
+		if (count <= 0)
+			return 0;
+		return (new SongMetadataFetcher(files, songs, count)).fetch(observer);
+	}
+
+	private int fetch(Observer observer) {
+		//tag extraction is mostly I/O bound, but on multicore devices there is
+		//still a lot to be gained by having a few files being parsed at once
+		int threads = Math.min(Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS), count) - 1;
+		while (threads > 0) {
+			try {
+				final Thread thread = new Thread(this, "Song Metadata Fetcher Thread");
+				thread.setDaemon(true);
+				synchronized (sync) {
+					runningThreads++;
+				}
+				thread.start();
+			} catch (Throwable ex) {
+				synchronized (sync) {
+					runningThreads--;
+				}
+				//just use the threads we have already created
+				break;
+			}
+			threads--;
+		}
+
+		//the calling thread also takes part in the work, and is the only one allowed to call observer
+		final MetadataExtractor metadataExtractor = new MetadataExtractor();
+		long nextDeliveryTime = 0;
+		int delivered = 0;
+		for (; ; ) {
+			final int index = nextIndexOrFinished();
+			if (index >= 0)
+				createSong(index, metadataExtractor);
+			else if (!waitForOtherThreads(delivered, nextDeliveryTime))
+				break;
+			final int ready;
+			synchronized (sync) {
+				if (cancelled)
+					break;
+				ready = readyCount;
+			}
+			//the last batch is delivered by the caller, after we return
+			if (ready >= count)
+				break;
+			if (ready > delivered) {
+				final long now = SystemClock.uptimeMillis();
+				if (now >= nextDeliveryTime) {
+					if (!observer.onSongsReady(ready)) {
+						synchronized (sync) {
+							cancelled = true;
+						}
+						break;
+					}
+					delivered = ready;
+					nextDeliveryTime = now + DELIVERY_INTERVAL_MS;
+				}
+			}
+		}
+		metadataExtractor.destroy();
+
+		synchronized (sync) {
+			cancelled = true;
+			//wait for the songs being created right now, so that the cache receives all of them
+			while (runningThreads > 0) {
+				try {
+					sync.wait(DELIVERY_INTERVAL_MS);
+				} catch (InterruptedException ex) {
+					break;
+				}
+			}
+			return readyCount;
+		}
+	}
+
+	private boolean waitForOtherThreads(int delivered, long nextDeliveryTime) {
+		synchronized (sync) {
+			for (; ; ) {
+				if (readyCount >= count || (readyCount > delivered && SystemClock.uptimeMillis() >= nextDeliveryTime))
+					return true;
+				if (runningThreads <= 0 || cancelled)
+					return false;
+				try {
+					sync.wait((readyCount > delivered) ? Math.max(1, nextDeliveryTime - SystemClock.uptimeMillis()) : DELIVERY_INTERVAL_MS);
+				} catch (InterruptedException ex) {
+					return false;
+				}
+			}
+		}
+	}
+
+	private int nextIndexOrFinished() {
+		synchronized (sync) {
+			return ((cancelled || nextIndex >= count) ? -1 : nextIndex++);
+		}
+	}
+
+	private void createSong(int index, MetadataExtractor metadataExtractor) {
+		final FileSt file = files[index];
+		Song song;
+		try {
+			song = ((file.songInfo == null) ? metadataCache.createSong(file, metadataExtractor) : new Song(file.songInfo));
+		} catch (Throwable ex) {
+			//do not leave a hole in the list (the title will be created from the file name)
+			song = new Song(file.path, file.name, null, null, 0, 0, 0, 0, 0);
+		}
+		synchronized (sync) {
+			songs[index] = song;
+			done[index] = true;
+			if (index == readyCount) {
+				int i = index + 1;
+				while (i < count && done[i])
+					i++;
+				readyCount = i;
+				sync.notifyAll();
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		final MetadataExtractor metadataExtractor = new MetadataExtractor();
+		try {
+			int index;
+			while ((index = nextIndexOrFinished()) >= 0)
+				createSong(index, metadataExtractor);
+		} finally {
+			metadataExtractor.destroy();
+			synchronized (sync) {
+				runningThreads--;
+				sync.notifyAll();
+			}
+		}
+	}
+}
@@ -34,31 +34,44 @@ package br.com.carlosrafaelgn.fplay.playback;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.WritableByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
 
+//This buffer is meant to be used by exactly one writer thread and one reader thread.
+//The read position is only touched by the reader and the write position only by the
+//writer, so filledSize is the only state they share, and it does not require a lock.
+//sync is only taken when one of the threads actually has to block, waiting for the
+//other one (waitingToRead/waitingToWrite tell the other thread someone must be notified).
 public final class CircularIOBuffer {
 	private volatile boolean alive, finished;
-	private volatile int filledSize;
+	private volatile int waitingToRead, waitingToWrite;
+	private final AtomicInteger filledSize;
 	private final Object sync;
 	public final int capacity;
 	public final byte[] array;
 	public final ByteBuffer writeBuffer, readBuffer;
+	private final ByteBuffer wrappedReadBuffer;
+	private final ByteBuffer[] gatherBuffers;
 
 	public CircularIOBuffer(int capacity) {
 		alive = true;
+		filledSize = new AtomicInteger();
 		sync = new Object();
 		this.capacity = capacity;
 		array = new byte[capacity];
 		writeBuffer = ByteBuffer.wrap(array);
 		readBuffer = writeBuffer.asReadOnlyBuffer();
 		readBuffer.limit(readBuffer.capacity());
+		//used to send the bytes at the beginning of the array along with those at its end
+		wrappedReadBuffer = writeBuffer.asReadOnlyBuffer();
+		gatherBuffers = new ByteBuffer[] { readBuffer, wrappedReadBuffer };
 	}
 
 	public void reset() {
 		synchronized (sync) {
 			alive = true;
 			finished = false;
-			filledSize = 0;
+			filledSize.set(0);
 			writeBuffer.limit(0);
 			readBuffer.limit(readBuffer.capacity());
 		}
@@ -71,9 +84,16 @@ public final class CircularIOBuffer {
 		}
 	}
 
+	private void notifyWaitingThread() {
+		synchronized (sync) {
+			sync.notifyAll();
+		}
+	}
+
 	private int canReadInternal(int length) {
 		if (!alive)
 			return -1;
+		final int filledSize = this.filledSize.get();
 		if (filledSize < length) {
 			if (!finished)
 				return -1;
@@ -85,37 +105,39 @@ public final class CircularIOBuffer {
 	}
 
 	public int waitUntilCanRead(int length) {
-		synchronized (sync) {
-			while (alive && !finished && filledSize < length) {
-				try {
-					sync.wait(10);
-				} catch (Throwable ex) {
-					//ignore the interruptions
+		if (alive && !finished && filledSize.get() < length) {
+			synchronized (sync) {
+				//waitingToRead must be set before checking filledSize again, so either
+				//we see the writer's commit, or the writer sees we are waiting
+				waitingToRead = length;
+				while (alive && !finished && filledSize.get() < length) {
+					try {
+						sync.wait();
+					} catch (Throwable ex) {
+						//ignore the interruptions
+					}
 				}
+				waitingToRead = 0;
 			}
-			return canReadInternal(length);
 		}
+		return canReadInternal(length);
 	}
 
 	public boolean canFinish() {
-		synchronized (sync) {
-			return (!alive || (finished && filledSize <= 0));
-		}
+		return (!alive || (finished && filledSize.get() <= 0));
 	}
 
 	public int canRead(int length) {
-		synchronized (sync) {
-			return canReadInternal(length);
-		}
+		return canReadInternal(length);
 	}
 
 	private void commitRead(int length) {
-		synchronized (sync) {
-			if (filledSize < length)
-				throw new IllegalArgumentException("filledSize < length");
-			filledSize -= length;
-			sync.notifyAll();
-		}
+		if (filledSize.get() < length)
+			throw new IllegalArgumentException("filledSize < length");
+		final int freeSize = capacity - filledSize.addAndGet(-length);
+		final int waitingToWrite = this.waitingToWrite;
+		if (waitingToWrite != 0 && freeSize >= waitingToWrite)
+			notifyWaitingThread();
 	}
 
 	public int peek(int peekOffset) {
@@ -188,62 +210,49 @@ public final class CircularIOBuffer {
 		}
 	}
 
-	public void readIntoChannel(WritableByteChannel channel) throws IOException, InterruptedException {
+	public void readIntoChannel(GatheringByteChannel channel) throws IOException, InterruptedException {
 		//all calls to throttleChannel() in here are necessary, because old Androids consume data
 		//much, much faster than it is produced, even on a fast network!!!
 		if (channel == null)
 			return;
-		int length = filledSize;
+		final int length = filledSize.get();
 		final int readPosition = readBuffer.position();
 		final int bytesAvailableBeforeEndOfBuffer = capacity - readPosition;
-		int written;
+		final int written;
 		if (bytesAvailableBeforeEndOfBuffer >= length) {
-			//one copy will do it
+			//one write will do it
 			readBuffer.limit(readPosition + length);
-			if ((written = channel.write(readBuffer)) > 0) {
-				commitRead(written);
-				throttleChannel(written);
-			} else {
-				throttleChannel(0);
-			}
+			written = channel.write(readBuffer);
 		} else {
-			//two copies are required
-			if (bytesAvailableBeforeEndOfBuffer > 0) {
-				readBuffer.limit(capacity);
-				if ((written = channel.write(readBuffer)) > 0) {
-					if (written != bytesAvailableBeforeEndOfBuffer) {
-						//the channel did not consume all of our bytes, so it is needless to continue
-						commitRead(written);
-						throttleChannel(written);
-						return;
-					}
-					length -= written;
-				} else {
-					throttleChannel(0);
-					return;
-				}
-			}
-			readBuffer.position(0);
-			readBuffer.limit(length);
-			if ((written = channel.write(readBuffer)) > 0) {
-				written += bytesAvailableBeforeEndOfBuffer;
-				commitRead(written);
-				throttleChannel(written);
-			} else {
-				commitRead(bytesAvailableBeforeEndOfBuffer);
-				throttleChannel(bytesAvailableBeforeEndOfBuffer);
-			}
+			//the data wraps around the end of the array, so instead of writing it in two
+			//separate calls, gather both parts in a single call
+			readBuffer.limit(capacity);
+			wrappedReadBuffer.limit(length - bytesAvailableBeforeEndOfBuffer);
+			wrappedReadBuffer.position(0);
+			written = (int)channel.write(gatherBuffers);
+			if (written > bytesAvailableBeforeEndOfBuffer)
+				readBuffer.position(written - bytesAvailableBeforeEndOfBuffer);
+		}
+		if (written > 0) {
+			commitRead(written);
+			throttleChannel(written);
+		} else {
+			throttleChannel(0);
 		}
 	}
 
 	public int waitUntilCanWrite(int length) {
-		synchronized (sync) {
-			while (alive && (capacity - filledSize) < length) {
-				try {
-					sync.wait(10);
-				} catch (Throwable ex) {
-					//ignore the interruptions
+		if (alive && (capacity - filledSize.get()) < length) {
+			synchronized (sync) {
+				waitingToWrite = length;
+				while (alive && (capacity - filledSize.get()) < length) {
+					try {
+						sync.wait();
+					} catch (Throwable ex) {
+						//ignore the interruptions
+					}
 				}
+				waitingToWrite = 0;
 			}
 		}
 		if (writeBuffer.position() >= capacity)
@@ -260,27 +269,27 @@ public final class CircularIOBuffer {
 	public void commitWritten(int length) {
 		if (length < 0)
 			throw new IllegalArgumentException("length < 0");
-		synchronized (sync) {
-			if (capacity < (filledSize + length))
-				throw new IllegalArgumentException("capacity < (filledSize + length)");
-			filledSize += length;
-			sync.notifyAll();
-		}
+		if (capacity < (filledSize.get() + length))
+			throw new IllegalArgumentException("capacity < (filledSize + length)");
+		final int filledSize = this.filledSize.addAndGet(length);
+		final int waitingToRead = this.waitingToRead;
+		if (waitingToRead != 0 && filledSize >= waitingToRead)
+			notifyWaitingThread();
 	}
 
 	public void commitWrittenFinished(int length) {
 		if (length < 0)
 			throw new IllegalArgumentException("length < 0");
-		synchronized (sync) {
-			if (capacity < (filledSize + length))
-				throw new IllegalArgumentException("capacity < (filledSize + length)");
-			finished = true;
-			filledSize += length;
-			sync.notifyAll();
-		}
+		if (capacity < (filledSize.get() + length))
+			throw new IllegalArgumentException("capacity < (filledSize + length)");
+		finished = true;
+		filledSize.addAndGet(length);
+		//whoever is waiting must be woken up, no matter how many bytes are left
+		if (waitingToRead != 0)
+			notifyWaitingThread();
 	}
 
 	public int getFilledSize() {
-		return filledSize;
+		return filledSize.get();
 	}
 }
@@ -603,13 +603,12 @@ public final class HttpStreamReceiver implements Runnable {
 				while (alive) {
 					//if we limit the amount to be written to MAX_PACKET_LENGTH bytes we won't block
 					//playerSocket.write for long periods
+					//waitUntilCanRead() blocks until there is enough data, and only returns
+					//earlier when the buffer has been aborted or the stream has finished
 					if (buffer.waitUntilCanRead(MAX_PACKET_LENGTH) <= 0) {
-						if (buffer.canFinish()) {
+						if (buffer.canFinish())
 							break;
-						} else {
-							Thread.sleep(5);
-							continue;
-						}
+						continue;
 					}
 					try {
 						buffer.readIntoChannel(playerSocket);
@@ -55,6 +55,7 @@ public final class MetadataExtractor {
 	public String title, artist, album, track, year, length;
 	public int sampleRate, channels;
 	private byte[][] tmpPtr = new byte[][] { new byte[256] };
+	private byte[] buffer;
 
 	private String readInfoStr(PrimitiveBufferedInputStream f, int actualStrLen) throws IOException {
 		actualStrLen = f.read(tmpPtr[0], 0, actualStrLen);
@@ -848,7 +849,10 @@ public final class MetadataExtractor {
 		PrimitiveBufferedInputStream bufferedInputStream = null;
 		try {
 			fileInputStream = ((file.file != null) ? new FileInputStream(file.file) : new FileInputStream(file.path));
-			bufferedInputStream = (ogg ? new OggPrimitiveBufferedInputStream(fileInputStream, 32768, fileInputStream.available()) : new PrimitiveBufferedInputStream(fileInputStream, 32768, fileInputStream.available()));
+			//reuse the same 32 KB buffer for all the files handled by this extractor
+			if (buffer == null)
+				buffer = new byte[32768];
+			bufferedInputStream = (ogg ? new OggPrimitiveBufferedInputStream(fileInputStream, buffer, fileInputStream.available()) : new PrimitiveBufferedInputStream(fileInputStream, buffer, fileInputStream.available()));
 			if (flac)
 				FLACMetadataExtractor.extract(this, bufferedInputStream, tmpPtr);
 			else if (ogg)
@@ -904,5 +908,6 @@ public final class MetadataExtractor {
 
 	public void destroy() {
 		tmpPtr = null;
+		buffer = null;
 	}
 }
@@ -90,11 +90,13 @@ import br.com.carlosrafaelgn.fplay.WidgetMain;
 import br.com.carlosrafaelgn.fplay.activity.ActivityHost;
 import br.com.carlosrafaelgn.fplay.activity.ClientActivity;
 import br.com.carlosrafaelgn.fplay.activity.MainHandler;
+import br.com.carlosrafaelgn.fplay.list.DirectoryListingCache;
 import br.com.carlosrafaelgn.fplay.list.FileSt;
 import br.com.carlosrafaelgn.fplay.list.Song;
 import br.com.carlosrafaelgn.fplay.list.SongList;
 import br.com.carlosrafaelgn.fplay.playback.context.MediaContext;
 import br.com.carlosrafaelgn.fplay.playback.context.MediaPlayerBase;
+import br.com.carlosrafaelgn.fplay.playback.context.PipelineStats;
 import br.com.carlosrafaelgn.fplay.plugin.httptransmitter.HttpTransmitter;
 import br.com.carlosrafaelgn.fplay.plugin.wirelessvisualizer.WirelessVisualizer;
 import br.com.carlosrafaelgn.fplay.ui.BgListView;
@@ -208,6 +210,9 @@ public final class Player extends Service implements AudioManager.OnAudioFocusCh
 	private static final int MSG_AUDIO_SINK_DOUBLE_CHECK_BT = 0x0121;
 	private static final int MSG_AUDIO_SINK_DOUBLE_CHECK_BT_2 = 0x0122;
 	private static final int MSG_BROADCAST_STATE_CHANGE = 0x0123;
+	private static final int MSG_ENABLE_HIGH_QUALITY_RESAMPLING = 0x0124;
+
+	private static final int PIPELINE_STATS_LOG_INTERVAL_MS = 10000;
 
 	public static final int STATE_NEW = 0;
 	public static final int STATE_INITIALIZING = 1;
@@ -430,6 +435,9 @@ public final class Player extends Service implements AudioManager.OnAudioFocusCh
 			case MSG_ENABLE_RESAMPLING:
 				MediaContext._enableResampling(msg.arg1 != 0);
 				break;
+			case MSG_ENABLE_HIGH_QUALITY_RESAMPLING:
+				MediaContext._enableHighQualityResampling(msg.arg1 != 0);
+				break;
 			}
 		}
 	}
@@ -745,6 +753,8 @@ public final class Player extends Service implements AudioManager.OnAudioFocusCh
 			if (externalReceiver != null)
 				thePlayer.getApplicationContext().unregisterReceiver(externalReceiver);
 			saveConfig(true);
+			DirectoryListingCache.getInstance().flushInBackground();
+			PipelineStats.stopLogging();
 		}
 
 		notificationLastUpdateTime = 1;
@@ -1262,10 +1272,13 @@ public final class Player extends Service implements AudioManager.OnAudioFocusCh
 		//nextAlreadySetForPlaying = false;
 		prepareNextAfterSeeking = false;
 		nextPlayerState = PLAYER_STATE_NEW;
-		if (handler != null && song != null && nextSong != null && !song.isHttp && !nextSong.isHttp && nextPreparationEnabled && song.lengthMS > 10000 && nextSong.lengthMS > 10000) {
+		if (handler != null && song != null && nextSong != null && !song.isHttp && !nextSong.isHttp && nextPreparationEnabled && song.lengthMS > 0 && nextSong.lengthMS > 0) {
 			handler.removeMessages(MSG_PREPARE_NEXT_SONG);
 			nextSongScheduledForPreparation = nextSong;
-			handler.sendMessageAtTime(Message.obtain(handler, MSG_PREPARE_NEXT_SONG, nextSong), SystemClock.uptimeMillis() + 5000);
+			//waiting a few seconds avoids preparing songs the user is just skipping through,
+			//but short songs (like tracks split from a live album) cannot wait that long,
+			//otherwise they would be over before the next one was ready
+			handler.sendMessageAtTime(Message.obtain(handler, MSG_PREPARE_NEXT_SONG, nextSong), SystemClock.uptimeMillis() + ((song.lengthMS > 10000) ? 5000 : (song.lengthMS >> 2)));
 		}
 	}
 
@@ -1966,6 +1979,31 @@ public final class Player extends Service implements AudioManager.OnAudioFocusCh
 		handler.sendMessageAtTime(Message.obtain(handler, MSG_ENABLE_RESAMPLING, enabled ? 1 : 0, 0), SystemClock.uptimeMillis());
 	}
 
+	public static boolean isHighQualityResamplingEnabled() {
+		return MediaContext.isHighQualityResamplingEnabled();
+	}
+
+	public static void enableHighQualityResampling(boolean enabled) {
+		if (state != STATE_ALIVE)
+			return;
+		handler.sendMessageAtTime(Message.obtain(handler, MSG_ENABLE_HIGH_QUALITY_RESAMPLING, enabled ? 1 : 0, 0), SystemClock.uptimeMillis());
+	}
+
+	public static boolean isPipelineStatsLoggingEnabled() {
+		return PipelineStats.isLogging();
+	}
+
+	//meant for diagnosing stutters: the counters of every stage of the audio pipeline
+	//are appended to a log file periodically (see PipelineStats)
+	public static void enablePipelineStatsLogging(boolean enabled) {
+		if (enabled) {
+			PipelineStats.startLogging(PIPELINE_STATS_LOG_INTERVAL_MS);
+		} else {
+			PipelineStats.stopLogging();
+			MediaContext.enableStats(false);
+		}
+	}
+
 	private static int httpOptions;
 
 	public static int getBytesBeforeDecoding(int index) {
@@ -2055,7 +2093,7 @@ public final class Player extends Service implements AudioManager.OnAudioFocusCh
 				// No longer use "Loading..." for notification, media session and so on...
 				broadcastStateChange(getCurrentTitle(false), isPreparing(), true);
 				//this will force a serialization when closing the app (saving this update)
-				songs.markAsChanged();
+				songs.markAsChanged(localSong);
 				if (observer != null)
 					observer.onPlayerMetadataChanged(localSong);
 			}
@@ -2073,7 +2111,7 @@ public final class Player extends Service implements AudioManager.OnAudioFocusCh
 				// No longer use "Loading..." for notification, media session and so on...
 				broadcastStateChange(getCurrentTitle(false), isPreparing(), true);
 				//this will force a serialization when closing the app (saving this update)
-				songs.markAsChanged();
+				songs.markAsChanged(localSong);
 				if (observer != null)
 					observer.onPlayerMetadataChanged(localSong);
 			}
@@ -2348,6 +2386,9 @@ public final class Player extends Service implements AudioManager.OnAudioFocusCh
 	private static final int OPTBIT_ALBUMART_SONG_LIST = 68;
 	private static final int OPTBIT_AUTO_NIGHT_MODE = 69;
 	private static final int OPTBIT_RGB = 70;
+	private static final int OPTBIT_FILE_PREFETCH_SIZE2 = 71;
+	private static final int OPTBIT_HIGH_QUALITY_RESAMPLING = 72;
+	private static final int OPTBIT_PIPELINE_STATS_LOGGING = 73;
 
 	private static final int OPT_FAVORITEFOLDER0 = 0x10000;
 
@@ -2492,13 +2533,15 @@ public final class Player extends Service implements AudioManager.OnAudioFocusCh
 		MediaContext._enableAutomaticEffectsGain(opts.getBitI(OPTBIT_AUTOMATIC_EFFECTS_GAIN, 0));
 		MediaContext.useOpenSLEngine = opts.getBit(OPTBIT_USE_OPENSL_ENGINE);
 		MediaContext._enableResampling(opts.getBit(OPTBIT_RESAMPLING_ENABLED, false));
+		MediaContext._enableHighQualityResampling(opts.getBit(OPTBIT_HIGH_QUALITY_RESAMPLING, false));
+		enablePipelineStatsLogging(opts.getBit(OPTBIT_PIPELINE_STATS_LOGGING, false));
 		previousResetsAfterTheBeginning = opts.getBit(OPTBIT_PREVIOUS_RESETS_AFTER_THE_BEGINNING);
 		UI.largeTextIs22sp = opts.getBit(OPTBIT_LARGE_TEXT_IS_22SP, false); //UI.isLargeScreen && (UI.scaledDensity > UI.density));
 		UI.setUsingAlternateTypefaceAndForcedLocale(opts.getBit(OPTBIT_USEALTERNATETYPEFACE), opts.getInt(OPT_FORCEDLOCALE, UI.LOCALE_NONE));
 		UI.displaySongNumberAndCount = opts.getBit(OPTBIT_DISPLAY_SONG_NUMBER_AND_COUNT, UI.lastVersionCode < 92);
 		UI.allowPlayerAboveLockScreen = opts.getBit(OPTBIT_ALLOW_LOCK_SCREEN, true);
 		UI.albumArtSongList = opts.getBit(OPTBIT_ALBUMART_SONG_LIST, Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP);
-		filePrefetchSize = getFilePrefetchSizeFromOptions((opts.getBitI(OPTBIT_FILE_PREFETCH_SIZE1, 1) << 1) | opts.getBitI(OPTBIT_FILE_PREFETCH_SIZE0, 1));
+		filePrefetchSize = getFilePrefetchSizeFromOptions((opts.getBitI(OPTBIT_FILE_PREFETCH_SIZE2, 0) << 2) | (opts.getBitI(OPTBIT_FILE_PREFETCH_SIZE1, 1) << 1) | opts.getBitI(OPTBIT_FILE_PREFETCH_SIZE0, 1));
 
 		int count = opts.getInt(OPT_FAVORITEFOLDERCOUNT);
 		if (count > 0) {
@@ -2604,6 +2647,8 @@ public final class Player extends Service implements AudioManager.OnAudioFocusCh
 		opts.putBit(OPTBIT_AUTOMATIC_EFFECTS_GAIN, MediaContext.isAutomaticEffectsGainEnabled() != 0);
 		opts.putBit(OPTBIT_USE_OPENSL_ENGINE, MediaContext.useOpenSLEngine);
 		opts.putBit(OPTBIT_RESAMPLING_ENABLED, MediaContext.isResamplingEnabled());
+		opts.putBit(OPTBIT_HIGH_QUALITY_RESAMPLING, MediaContext.isHighQualityResamplingEnabled());
+		opts.putBit(OPTBIT_PIPELINE_STATS_LOGGING, PipelineStats.isLogging());
 		opts.putBit(OPTBIT_PREVIOUS_RESETS_AFTER_THE_BEGINNING, previousResetsAfterTheBeginning);
 		opts.putBit(OPTBIT_CHROMEBOOK, UI.isChromebook);
 		opts.putBit(OPTBIT_LARGE_TEXT_IS_22SP, UI.largeTextIs22sp);
@@ -2613,6 +2658,7 @@ public final class Player extends Service implements AudioManager.OnAudioFocusCh
 		final int filePrefetchSizeOption = getOptionsFromFilePrefetchSize(filePrefetchSize);
 		opts.putBit(OPTBIT_FILE_PREFETCH_SIZE0, (filePrefetchSizeOption & 1) != 0);
 		opts.putBit(OPTBIT_FILE_PREFETCH_SIZE1, (filePrefetchSizeOption & 2) != 0);
+		opts.putBit(OPTBIT_FILE_PREFETCH_SIZE2, (filePrefetchSizeOption & 4) != 0);
 
 		if (favoriteFolders != null && favoriteFolders.size() > 0) {
 			opts.put(OPT_FAVORITEFOLDERCOUNT, favoriteFolders.size());
@@ -2832,6 +2878,10 @@ public final class Player extends Service implements AudioManager.OnAudioFocusCh
 		return ffs;
 	}
 
+	//local files are mapped into memory instead of being read into a buffer
+	public static final int FILE_PREFETCH_SIZE_MAPPED = -1;
+	public static final int FILE_PREFETCH_SIZE_OPTION_COUNT = 5;
+
 	public static int getFilePrefetchSizeFromOptions(int options) {
 		switch (options) {
 		case 1:
@@ -2840,6 +2890,8 @@ public final class Player extends Service implements AudioManager.OnAudioFocusCh
 			return 128 << 10;
 		case 3:
 			return 256 << 10;
+		case 4:
+			return FILE_PREFETCH_SIZE_MAPPED;
 		default:
 			return 0;
 		}
@@ -2853,6 +2905,8 @@ public final class Player extends Service implements AudioManager.OnAudioFocusCh
 			return 2;
 		case 256 << 10:
 			return 3;
+		case FILE_PREFETCH_SIZE_MAPPED:
+			return 4;
 		default:
 			return 0;
 		}
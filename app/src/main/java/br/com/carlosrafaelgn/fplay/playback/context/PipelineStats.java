@@ -0,0 +1,197 @@
+//
+// FPlayAndroid is distributed under the FreeBSD License
+//
+// Copyright (c) 2013-2014, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// The views and conclusions contained in the software and documentation are those
+// of the authors and should not be interpreted as representing official policies,
+// either expressed or implied, of the FreeBSD Project.
+//
+// https://github.com/carlosrafaelgn/FPlayAndroid
+//
+package br.com.carlosrafaelgn.fplay.playback.context;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import java.io.FileOutputStream;
+
+import br.com.carlosrafaelgn.fplay.playback.Player;
+import br.com.carlosrafaelgn.fplay.util.Timer;
+
+//snapshot of the counters kept by each stage of the audio pipeline (filled by
+//MediaContext.getStats()), used to find out which stage missed its deadline
+//when the playback stutters
+public final class PipelineStats implements Timer.TimerHandler {
+	public static final int STAGE_DECODE = 0; //nextOutputBuffer()/fillInputBuffers() (Java side)
+	public static final int STAGE_RESAMPLE = 1;
+	public static final int STAGE_EFFECTS = 2;
+	public static final int STAGE_VISUALIZER = 3;
+	public static final int STAGE_WRITE = 4; //the whole resample + effects + visualizer + enqueue call
+	public static final int STAGE_COUNT = 5;
+
+	private static final String[] STAGE_NAMES = { "decode", "resample", "effects", "visualizer", "write" };
+	private static final String LOG_FILE_NAME = "_PipelineStats.log";
+	private static final int MAX_LOG_FILE_LENGTH = 256 * 1024;
+
+	private static final Object logSync = new Object();
+	private static Timer logTimer;
+	private static PipelineStats logStats;
+	private static int logFileLength;
+
+	public final long[] count, totalNanos, maxNanos, lateCount;
+	//time the output thread spent waiting for the decoder to produce something
+	public long decoderWaitNanos;
+	//duration of the audio in one engine buffer (the deadline for the entire pipeline)
+	public long bufferDurationNanos;
+	//times the engine itself reported it had run out of data (if the engine supports it)
+	public int engineUnderrunCount;
+	//times MediaContext had to pause the engine because the decoder fell behind
+	public int starvationCount;
+	//OpenSL only
+	public int queuedBuffers, minQueuedBuffers, bufferCount;
+	//time nextPlayer took to produce its first frames during the last song transition,
+	//and how long the output starved because of that (0 means gapless), or -1 if there
+	//was no transition yet
+	public int lastTransitionLatencyMS, lastTransitionGapMS;
+	public boolean enabled;
+
+	public PipelineStats() {
+		count = new long[STAGE_COUNT];
+		totalNanos = new long[STAGE_COUNT];
+		maxNanos = new long[STAGE_COUNT];
+		lateCount = new long[STAGE_COUNT];
+		lastTransitionLatencyMS = -1;
+		lastTransitionGapMS = -1;
+	}
+
+	public void clear() {
+		for (int i = 0; i < STAGE_COUNT; i++) {
+			count[i] = 0;
+			totalNanos[i] = 0;
+			maxNanos[i] = 0;
+			lateCount[i] = 0;
+		}
+		decoderWaitNanos = 0;
+		bufferDurationNanos = 0;
+		engineUnderrunCount = 0;
+		starvationCount = 0;
+		queuedBuffers = 0;
+		minQueuedBuffers = 0;
+		bufferCount = 0;
+		lastTransitionLatencyMS = -1;
+		lastTransitionGapMS = -1;
+		enabled = false;
+	}
+
+	public long getAverageNanos(int stage) {
+		return ((count[stage] <= 0) ? 0 : (totalNanos[stage] / count[stage]));
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder(256);
+		sb.append("buffer ").append(bufferDurationNanos / 1000).append("us");
+		for (int i = 0; i < STAGE_COUNT; i++) {
+			sb.append(" | ").append(STAGE_NAMES[i])
+				.append(' ').append(count[i])
+				.append(" avg ").append(getAverageNanos(i) / 1000)
+				.append("us max ").append(maxNanos[i] / 1000)
+				.append("us late ").append(lateCount[i]);
+		}
+		sb.append(" | decoder wait ").append(decoderWaitNanos / 1000000)
+			.append("ms | starvation ").append(starvationCount)
+			.append(" | engine underrun ").append(engineUnderrunCount);
+		if (bufferCount > 0)
+			sb.append(" | queue ").append(queuedBuffers).append('/').append(bufferCount).append(" min ").append(minQueuedBuffers);
+		if (lastTransitionLatencyMS >= 0)
+			sb.append(" | last transition ").append(lastTransitionLatencyMS).append("ms gap ").append(lastTransitionGapMS).append("ms");
+		return sb.toString();
+	}
+
+	//Runs on a SECONDARY thread
+	@Override
+	public void handleTimer(Timer timer, Object param) {
+		final String line;
+		synchronized (logSync) {
+			if (logTimer != timer)
+				return;
+			MediaContext.getStats(this);
+			line = SystemClock.elapsedRealtime() + " " + toString() + "\n";
+		}
+		appendToLog(line);
+	}
+
+	//Runs on a SECONDARY thread
+	private static void appendToLog(String line) {
+		FileOutputStream fs = null;
+		try {
+			final byte[] bytes = line.getBytes("UTF-8");
+			//keep the file from growing forever (only the most recent data matters)
+			final boolean truncate = (logFileLength + bytes.length) > MAX_LOG_FILE_LENGTH;
+			fs = Player.theApplication.openFileOutput(LOG_FILE_NAME, truncate ? 0 : Context.MODE_APPEND);
+			fs.write(bytes);
+			logFileLength = (truncate ? 0 : logFileLength) + bytes.length;
+		} catch (Throwable ex) {
+			ex.printStackTrace();
+		} finally {
+			try {
+				if (fs != null)
+					fs.close();
+			} catch (Throwable ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	//enables the counters and appends a snapshot of them to a private log file
+	//every intervalMS milliseconds (intervalMS <= 0 stops logging, but leaves the
+	//counters enabled)
+	public static void startLogging(int intervalMS) {
+		synchronized (logSync) {
+			if (logTimer != null) {
+				logTimer.release();
+				logTimer = null;
+			}
+			if (intervalMS <= 0)
+				return;
+			MediaContext.enableStats(true);
+			if (logStats == null)
+				logStats = new PipelineStats();
+			logFileLength = (int)Player.theApplication.getFileStreamPath(LOG_FILE_NAME).length();
+			logTimer = new Timer(logStats, "Pipeline Stats Timer", false, false, true);
+			logTimer.start(intervalMS);
+		}
+	}
+
+	public static void stopLogging() {
+		startLogging(0);
+	}
+
+	public static boolean isLogging() {
+		synchronized (logSync) {
+			return (logTimer != null);
+		}
+	}
+}
@@ -316,6 +316,21 @@ public final class PluginManager implements FPlay {
 		return SimpleVisualizerJni.commonProcess(waveform, opt);
 	}
 
+	@Override
+	public int visualizerGetBins(byte[] bins, int binsType) {
+		return SimpleVisualizerJni.commonGetBins(bins, binsType);
+	}
+
+	@Override
+	public int visualizerGetPeakLevel() {
+		return SimpleVisualizerJni.commonGetPeakLevel();
+	}
+
+	@Override
+	public int visualizerGetVUMeter() {
+		return SimpleVisualizerJni.commonGetVUMeter();
+	}
+
 	@Override
 	public void previous() {
 		Player.previous();
@@ -83,7 +83,8 @@ public final class BgListView extends ListView implements ListView.OnScrollListe
 	private BaseList<? extends BaseItem> adapter;
 	private boolean notified, attached, measured, sized, ignoreTouchMode, ignorePadding, tracking, touching;
 	private int backgroundColor, leftPadding, topPadding, rightPadding, bottomPadding, scrollBarType, scrollBarWidth, scrollBarThumbTop, scrollBarThumbHeight,
-		scrollBarTop, scrollBarLeft, scrollBarBottom, viewWidth, viewHeight, contentsHeight, itemHeight, itemCount, scrollBarThumbOffset, scrollState, dividerHeight;
+		scrollBarTop, scrollBarLeft, scrollBarBottom, viewWidth, viewHeight, contentsHeight, itemHeight, itemCount, scrollBarThumbOffset, scrollState, dividerHeight,
+		lastFirstVisibleItem, lastVisibleItemCount, scrollDirection;
 	private String[] sections;
 	private int[] sectionPositions;
 	public boolean skipUpDownTranslation;
@@ -954,6 +955,13 @@ public final class BgListView extends ListView implements ListView.OnScrollListe
 	public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
 		if (scrollListener != null)
 			scrollListener.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+		if (adapter != null && (firstVisibleItem != lastFirstVisibleItem || visibleItemCount != lastVisibleItemCount)) {
+			if (firstVisibleItem != lastFirstVisibleItem)
+				scrollDirection = ((firstVisibleItem > lastFirstVisibleItem) ? 1 : -1);
+			lastFirstVisibleItem = firstVisibleItem;
+			lastVisibleItemCount = visibleItemCount;
+			adapter.visibleRangeChanged(firstVisibleItem, visibleItemCount, scrollDirection);
+		}
 		if (tracking)
 			return;
 		switch (scrollBarType) {
@@ -297,7 +297,7 @@ public final class FileView extends LinearLayout implements View.OnClickListener
 				newAlbumArt = null;
 				if (UI.albumArt && albumArtFetcher != null) {
 					if ((file.albumId != null && file.albumId != 0L) || (file.albumId == null && file.artistIdForAlbumArt != 0)) {
-						newAlbumArt = albumArtFetcher.getAlbumArt(file.albumId, usableHeight, requestId, this);
+						newAlbumArt = albumArtFetcher.getAlbumArt(file.albumId, usableHeight, requestId, position, this);
 						pendingAlbumArtRequest = (newAlbumArt == null);
 					}
 				}
@@ -314,7 +314,7 @@ public final class FileView extends LinearLayout implements View.OnClickListener
 				icon = UI.ICON_ALBUMART;
 				newAlbumArt = null;
 				if (UI.albumArt && albumArtFetcher != null && file.albumId != null && file.albumId != 0L) {
-					newAlbumArt = albumArtFetcher.getAlbumArt(file.albumId, usableHeight, requestId, this);
+					newAlbumArt = albumArtFetcher.getAlbumArt(file.albumId, usableHeight, requestId, position, this);
 					pendingAlbumArtRequest = (newAlbumArt == null);
 				}
 				albumArt = newAlbumArt;
@@ -214,7 +214,7 @@ public final class SongView extends View implements View.OnClickListener, View.O
 				}
 				if (song.validAlbumArt && (song.albumId == null || song.albumId != 0L)) {
 					requestId = albumArtFetcher.getNextRequestId();
-					albumArt = albumArtFetcher.getAlbumArt(song.albumId, albumArtHeight, requestId, this);
+					albumArt = albumArtFetcher.getAlbumArt(song.albumId, albumArtHeight, requestId, position, this);
 					if (!(pendingAlbumArtRequest = (albumArt == null)))
 						bitmapLeftPadding = leftMargin + ((albumArtHeight - albumArt.width) >> 1);
 				}
@@ -0,0 +1,222 @@
+//
+// FPlayAndroid is distributed under the FreeBSD License
+//
+// Copyright (c) 2013-2014, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// The views and conclusions contained in the software and documentation are those
+// of the authors and should not be interpreted as representing official policies,
+// either expressed or implied, of the FreeBSD Project.
+//
+// https://github.com/carlosrafaelgn/FPlayAndroid
+//
+package br.com.carlosrafaelgn.fplay.util;
+
+import android.graphics.Bitmap;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//Second tier for BitmapLruCache: keeps already scaled RGB_565 bitmaps on disk, as raw pixels,
+//so they can be loaded back without decoding (and scaling) the original images again.
+//Entries are keyed by album id + size, and the least recently used ones are deleted once the
+//total size of the files goes past maxSize (entries are ordered by their last modification
+//time when the cache is loaded, so the order is approximately kept between sessions).
+//
+//This class is thread safe, but its methods perform I/O and must not be called from the main thread
+public final class BitmapDiskCache {
+	private static final int MAGIC = 0x46504141; //FPAA
+	private static final int HEADER_SIZE = 16;
+
+	private final File dir;
+	private final long maxSize;
+	private final LinkedHashMap<String, Long> entries;
+	private final byte[] header;
+	private ByteBuffer pixels;
+	private long size;
+	private boolean loaded;
+
+	public BitmapDiskCache(File dir, long maxSize) {
+		this.dir = dir;
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap<>(64, 0.75f, true);
+		this.header = new byte[HEADER_SIZE];
+	}
+
+	private static String keyFor(long albumId, int desiredSize) {
+		return albumId + "_" + desiredSize;
+	}
+
+	private void loadIfNecessary() {
+		if (loaded)
+			return;
+		loaded = true;
+		if (!dir.isDirectory() && !dir.mkdirs())
+			return;
+		final File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				final long la = a.lastModified(), lb = b.lastModified();
+				return ((la < lb) ? -1 : ((la > lb) ? 1 : 0));
+			}
+		});
+		for (File file : files) {
+			final String name = file.getName();
+			if (name.endsWith(".tmp")) {
+				//leftover from an interrupted put()
+				//noinspection ResultOfMethodCallIgnored
+				file.delete();
+				continue;
+			}
+			final long length = file.length();
+			entries.put(name, length);
+			size += length;
+		}
+		trimToSize();
+	}
+
+	private void trimToSize() {
+		final Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+		while (size > maxSize && iterator.hasNext()) {
+			final Map.Entry<String, Long> entry = iterator.next();
+			//noinspection ResultOfMethodCallIgnored
+			(new File(dir, entry.getKey())).delete();
+			size -= entry.getValue();
+			iterator.remove();
+		}
+	}
+
+	private ByteBuffer pixelsFor(int byteCount) {
+		if (pixels == null || pixels.capacity() < byteCount)
+			pixels = ByteBuffer.allocate(byteCount);
+		pixels.clear();
+		pixels.limit(byteCount);
+		return pixels;
+	}
+
+	public synchronized Bitmap get(long albumId, int desiredSize) {
+		loadIfNecessary();
+		final String key = keyFor(albumId, desiredSize);
+		if (entries.get(key) == null)
+			return null;
+		FileInputStream fs = null;
+		Bitmap bitmap = null;
+		try {
+			fs = new FileInputStream(new File(dir, key));
+			if (fs.read(header, 0, HEADER_SIZE) != HEADER_SIZE || Serializer.deserializeInt(header, 0) != MAGIC)
+				throw new IOException();
+			final int width = Serializer.deserializeInt(header, 4);
+			final int height = Serializer.deserializeInt(header, 8);
+			final int byteCount = Serializer.deserializeInt(header, 12);
+			if (width <= 0 || height <= 0 || width > desiredSize || height > desiredSize || byteCount != (width * height * 2))
+				throw new IOException();
+			final ByteBuffer buffer = pixelsFor(byteCount);
+			final byte[] array = buffer.array();
+			int offset = 0;
+			while (offset < byteCount) {
+				final int r = fs.read(array, offset, byteCount - offset);
+				if (r < 0)
+					throw new IOException();
+				offset += r;
+			}
+			bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+			bitmap.copyPixelsFromBuffer(buffer);
+			return bitmap;
+		} catch (Throwable ex) {
+			if (bitmap != null)
+				bitmap.recycle();
+			//corrupted or deleted by the system (this is stored in the cache dir, after all)
+			remove(key);
+			return null;
+		} finally {
+			try {
+				if (fs != null)
+					fs.close();
+			} catch (Throwable ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	public synchronized void put(long albumId, int desiredSize, Bitmap bitmap) {
+		if (bitmap.getConfig() != Bitmap.Config.RGB_565)
+			return;
+		loadIfNecessary();
+		final String key = keyFor(albumId, desiredSize);
+		final int width = bitmap.getWidth(), height = bitmap.getHeight(), byteCount = width * height * 2;
+		if (bitmap.getRowBytes() != (width * 2) || (HEADER_SIZE + byteCount) > maxSize)
+			return;
+		final File tmp = new File(dir, key + ".tmp");
+		FileOutputStream fs = null;
+		try {
+			final ByteBuffer buffer = pixelsFor(byteCount);
+			bitmap.copyPixelsToBuffer(buffer);
+			Serializer.serializeInt(header, 0, MAGIC);
+			Serializer.serializeInt(header, 4, width);
+			Serializer.serializeInt(header, 8, height);
+			Serializer.serializeInt(header, 12, byteCount);
+			fs = new FileOutputStream(tmp);
+			fs.write(header, 0, HEADER_SIZE);
+			fs.write(buffer.array(), 0, byteCount);
+			fs.close();
+			fs = null;
+			remove(key);
+			if (!tmp.renameTo(new File(dir, key)))
+				throw new IOException();
+			entries.put(key, (long)(HEADER_SIZE + byteCount));
+			size += HEADER_SIZE + byteCount;
+			trimToSize();
+		} catch (Throwable ex) {
+			ex.printStackTrace();
+			//noinspection ResultOfMethodCallIgnored
+			tmp.delete();
+		} finally {
+			try {
+				if (fs != null)
+					fs.close();
+			} catch (Throwable ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	private void remove(String key) {
+		final Long length = entries.remove(key);
+		if (length != null) {
+			size -= length;
+			//noinspection ResultOfMethodCallIgnored
+			(new File(dir, key)).delete();
+		}
+	}
+}
@@ -6,53 +6,193 @@ import android.os.Build;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
+//The data is read in windows of bufferSize bytes. While the decoder consumes the current
+//window, a background thread reads the following one (as long as the access is sequential),
+//so the decoder does not have to wait for the storage at every window boundary.
+//All reads are positional (FileChannel.read(dst, position)), so both threads can share the file.
 @TargetApi(Build.VERSION_CODES.M)
-public final class BufferedMediaDataSource extends MediaDataSource {
+@SuppressWarnings("NonAtomicOperationOnVolatileField")
+public final class BufferedMediaDataSource extends MediaDataSource implements Runnable {
+	private static final class Window {
+		public final byte[] data;
+		public final ByteBuffer byteBuffer;
+		public long start, end;
+
+		public Window(int size) {
+			data = new byte[size];
+			byteBuffer = ByteBuffer.wrap(data);
+		}
+
+		public boolean contains(long position) {
+			return (position >= start && position < end);
+		}
+	}
+
 	private final RandomAccessFile file;
-	private final byte[] buffer;
+	private final FileChannel channel;
+	private final Object sync;
 	private final long fileLength;
-	private long fileStartOffset, fileEndOffset;
+	private final int bufferSize;
+	private Window current, next;
+	private boolean alive, nextLoading;
+	private long lastReadEnd, pendingNextStart;
+	private volatile int hitCount, missCount, stallCount;
 
 	public BufferedMediaDataSource(String path, long length, int bufferSize) throws IOException {
 		file = new RandomAccessFile(path, "r");
-		buffer = new byte[bufferSize];
+		channel = file.getChannel();
+		sync = new Object();
 		fileLength = length;
+		this.bufferSize = bufferSize;
+		current = new Window(bufferSize);
+		next = new Window(bufferSize);
+		alive = true;
+		lastReadEnd = -1;
+		pendingNextStart = -1;
+		final Thread thread = new Thread(this, "Media Data Source Read-Ahead Thread");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	//Runs on a SECONDARY thread (any thread)
+	private int readFully(Window window, long position) throws IOException {
+		final ByteBuffer byteBuffer = window.byteBuffer;
+		byteBuffer.clear();
+		while (byteBuffer.hasRemaining()) {
+			final int len = channel.read(byteBuffer, position + byteBuffer.position());
+			if (len < 0)
+				break;
+		}
+		return byteBuffer.position();
+	}
+
+	//Runs on a SECONDARY thread
+	@Override
+	public void run() {
+		for (; ; ) {
+			final Window window;
+			final long start;
+			synchronized (sync) {
+				while (alive && pendingNextStart < 0) {
+					try {
+						sync.wait();
+					} catch (InterruptedException ex) {
+						//just ignore...
+					}
+				}
+				if (!alive)
+					break;
+				window = next;
+				start = pendingNextStart;
+				pendingNextStart = -1;
+				nextLoading = true;
+				//readAt() uses start to decide whether it is worth waiting for this window
+				window.start = start;
+				window.end = start;
+			}
+			int total;
+			try {
+				total = readFully(window, start);
+			} catch (Throwable ex) {
+				//the file has probably been closed
+				total = 0;
+			}
+			synchronized (sync) {
+				window.end = start + total;
+				nextLoading = false;
+				sync.notifyAll();
+			}
+		}
+	}
+
+	//Must be called inside sync
+	private void scheduleReadAhead() {
+		final long start = current.end;
+		if (start >= fileLength || (!nextLoading && next.start == start && next.end > start))
+			return;
+		pendingNextStart = start;
+		sync.notifyAll();
 	}
 
 	@Override
 	public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
-		synchronized (this.buffer) {
-			if (size > this.buffer.length) {
-				file.seek(position);
-				return file.read(buffer, offset, size);
+		if (size > bufferSize) {
+			missCount++;
+			final int total = channel.read(ByteBuffer.wrap(buffer, offset, size), position);
+			synchronized (sync) {
+				lastReadEnd = position + Math.max(0, total);
 			}
+			return total;
+		}
+		synchronized (sync) {
+			final boolean sequential = (position == lastReadEnd);
 			int readSoFar = 0;
-			if (position >= fileStartOffset && position < fileEndOffset) {
-				if ((position + size) <= fileEndOffset) {
-					System.arraycopy(this.buffer, (int)(position - fileStartOffset), buffer, offset, size);
-					return size;
-				} else {
-					readSoFar = (int)(fileEndOffset - position);
-					System.arraycopy(this.buffer, (int)(position - fileStartOffset), buffer, offset, readSoFar);
-					position += readSoFar;
+			while (readSoFar < size) {
+				if (!current.contains(position)) {
+					//wait for the window being read in the background, if it is the one we need
+					if (nextLoading && position >= next.start && position < (next.start + bufferSize)) {
+						stallCount++;
+						while (nextLoading) {
+							try {
+								sync.wait();
+							} catch (InterruptedException ex) {
+								//just ignore...
+							}
+						}
+					}
+					if (!nextLoading && next.contains(position)) {
+						hitCount++;
+						final Window w = current;
+						current = next;
+						next = w;
+						//the old window is now free to receive the following data
+						next.start = 0;
+						next.end = 0;
+					} else {
+						missCount++;
+						//both windows could be in use by now: if the background thread is
+						//reading into next, current is still ours to overwrite
+						final int total = readFully(current, position);
+						current.start = position;
+						current.end = position + total;
+						if (total <= 0)
+							break;
+					}
+				} else if (readSoFar == 0) {
+					hitCount++;
 				}
+				final int len = Math.min(size - readSoFar, (int)(current.end - position));
+				System.arraycopy(current.data, (int)(position - current.start), buffer, offset + readSoFar, len);
+				readSoFar += len;
+				position += len;
 			}
-			fileStartOffset = position;
-			if (position != fileEndOffset)
-				file.seek(position);
-			int total = file.read(this.buffer, 0, this.buffer.length);
-			if (total < 0) {
-				fileEndOffset = position;
-				return ((readSoFar > 0) ? readSoFar : -1);
-			}
-			fileEndOffset = fileStartOffset + total;
-			total = Math.min(size - readSoFar, (int)(fileEndOffset - position));
-			System.arraycopy(this.buffer, 0, buffer, offset + readSoFar, total);
-			return (readSoFar + total);
+			lastReadEnd = position;
+			//only read ahead when the decoder is going through the file sequentially
+			//(right after a seek, it is better not to waste time with data nobody wants)
+			if (sequential)
+				scheduleReadAhead();
+			return ((readSoFar > 0) ? readSoFar : -1);
 		}
 	}
 
+	//reads served straight from a window
+	public int getHitCount() {
+		return hitCount;
+	}
+
+	//reads that had to wait for the storage
+	public int getMissCount() {
+		return missCount;
+	}
+
+	//reads that had to wait for the background thread to finish a window
+	public int getStallCount() {
+		return stallCount;
+	}
+
 	@Override
 	public long getSize() {
 		return fileLength;
@@ -60,6 +200,10 @@ public final class BufferedMediaDataSource extends MediaDataSource {
 
 	@Override
 	public void close() throws IOException {
+		synchronized (sync) {
+			alive = false;
+			sync.notifyAll();
+		}
 		file.close();
 	}
 }
@@ -0,0 +1,81 @@
+package br.com.carlosrafaelgn.fplay.util;
+
+import android.annotation.TargetApi;
+import android.media.MediaDataSource;
+import android.os.Build;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+//The file is mapped into memory one region at a time, so the data comes straight from
+//the page cache (the kernel still performs its own read-ahead when a page fault occurs),
+//and seeking anywhere in the file costs at most one new mapping. Mapping regions, instead
+//of the whole file, keeps long files from exhausting the address space of 32-bit devices.
+@TargetApi(Build.VERSION_CODES.M)
+public final class MappedMediaDataSource extends MediaDataSource {
+	private static final int REGION_SIZE = 32 << 20;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long fileLength;
+	private MappedByteBuffer region;
+	private long regionStart, regionEnd;
+	private boolean mappingFailed;
+
+	public MappedMediaDataSource(String path, long length) throws IOException {
+		file = new RandomAccessFile(path, "r");
+		channel = file.getChannel();
+		fileLength = length;
+	}
+
+	private boolean mapRegion(long position) {
+		//do not keep the old mapping alive while creating the new one
+		region = null;
+		regionStart = position - (position % REGION_SIZE);
+		regionEnd = Math.min(fileLength, regionStart + REGION_SIZE);
+		try {
+			region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionEnd - regionStart);
+			return true;
+		} catch (Throwable ex) {
+			//not enough address space (or the file system does not support mapping):
+			//from now on, just read the file as usual
+			mappingFailed = true;
+			regionStart = 0;
+			regionEnd = 0;
+			return false;
+		}
+	}
+
+	@Override
+	public synchronized int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+		if (position >= fileLength)
+			return -1;
+		if (mappingFailed)
+			return channel.read(ByteBuffer.wrap(buffer, offset, size), position);
+		int readSoFar = 0;
+		while (readSoFar < size && position < fileLength) {
+			if ((position < regionStart || position >= regionEnd) && !mapRegion(position))
+				return ((readSoFar > 0) ? readSoFar : channel.read(ByteBuffer.wrap(buffer, offset, size), position));
+			final int len = (int)Math.min(size - readSoFar, regionEnd - position);
+			region.position((int)(position - regionStart));
+			region.get(buffer, offset + readSoFar, len);
+			readSoFar += len;
+			position += len;
+		}
+		return readSoFar;
+	}
+
+	@Override
+	public long getSize() {
+		return fileLength;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		region = null;
+		file.close();
+	}
+}
@@ -52,6 +52,10 @@ public class OggPrimitiveBufferedInputStream extends PrimitiveBufferedInputStrea
 		super(in, size, totalLength);
 	}
 
+	public OggPrimitiveBufferedInputStream(InputStream in, byte[] buffer, int totalLength) {
+		super(in, buffer, totalLength);
+	}
+
 	@SuppressWarnings("ResultOfMethodCallIgnored")
 	private int readPageLength() throws IOException {
 		// Capture pattern (32 bits)
@@ -46,6 +46,13 @@ public class PrimitiveBufferedInputStream extends BufferedInputStream {
 		this.totalLength = totalLength;
 	}
 
+	//buffer is owned by the caller, and can be reused after this stream has been closed
+	public PrimitiveBufferedInputStream(InputStream in, byte[] buffer, int totalLength) {
+		super(in, 1);
+		this.buf = buffer;
+		this.totalLength = totalLength;
+	}
+
 	@Override
 	public synchronized long skip(long n) throws IOException {
 		long actuallySkipped = super.skip(n);
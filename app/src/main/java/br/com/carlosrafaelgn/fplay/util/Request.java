@@ -35,8 +35,10 @@ package br.com.carlosrafaelgn.fplay.util;
 import android.support.annotation.NonNull;
 
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
 
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
@@ -53,6 +55,11 @@ public final class Request implements Runnable {
 		void onRequestFinished(int status, String reply, Throwable ex);
 	}
 
+	public interface JsonStreamReader {
+		//Runs on the thread that called getJsonStream()
+		void readJson(JsonReader reader) throws Throwable;
+	}
+
 	public static class CloseToken {
 		private final Object token = new Object();
 		private boolean closed;
@@ -242,6 +249,53 @@ public final class Request implements Runnable {
 		return result;
 	}
 
+	//Unlike getJson(), which buffers the entire response before parsing it, this method
+	//hands the response to reader while it is still arriving, so the memory used by the
+	//transfer itself does not depend on the size of the response. Closing closeToken while
+	//reader is reading makes it fail with an exception (which is returned, as usual).
+	//Returns the status code, or a Throwable.
+	public static Object getJsonStream(String url, @NonNull JsonStreamReader reader, CloseToken closeToken) {
+		InputStream inputStream = null;
+		HttpURLConnection urlConnection = null;
+		try {
+			urlConnection = createJsonConnection("GET", url, false);
+			if (closeToken != null && !closeToken.setUrlConnection(urlConnection))
+				return -1;
+			final int status = urlConnection.getResponseCode();
+			if (status >= 200 && status <= 299 && status != 204) {
+				inputStream = urlConnection.getInputStream();
+				//JsonReader takes care of the BOM, if any
+				reader.readJson(new JsonReader(new InputStreamReader(inputStream, "UTF-8")));
+			} else {
+				//We must use urlConnection.getErrorStream() in order to process the data
+				//sent by the server, in the presence of errors
+				try {
+					inputStream = ((status >= 200 && status <= 299) ? urlConnection.getInputStream() : urlConnection.getErrorStream());
+				} catch (Throwable ex) {
+					//just ignore
+				}
+			}
+			return status;
+		} catch (Throwable ex) {
+			return ex;
+		} finally {
+			if (closeToken != null)
+				closeToken.clearUrlConnection();
+			try {
+				if (urlConnection != null)
+					urlConnection.disconnect();
+			} catch (Throwable ex) {
+				//just ignore
+			}
+			try {
+				if (inputStream != null)
+					inputStream.close();
+			} catch (Throwable ex) {
+				//just ignore
+			}
+		}
+	}
+
 	private static Object send(String url, String method, byte[] body, int bodyLength, boolean bodyIsJson, boolean returnRawInputStream, CloseToken closeToken) {
 		InputStream inputStream = null;
 		RawByteArrayOutputStream outputStream = null;
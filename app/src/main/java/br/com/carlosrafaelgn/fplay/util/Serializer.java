@@ -35,6 +35,7 @@ package br.com.carlosrafaelgn.fplay.util;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 @SuppressWarnings("unused")
 public final class Serializer {
@@ -156,4 +157,16 @@ public final class Serializer {
 		len = is.read(tmp, 0, len);
 		return new String(tmp, 0, len);
 	}
+
+	//buffer must be in little endian order, and is read from its current position
+	public static String deserializeString(ByteBuffer buffer) {
+		final int len = buffer.getInt();
+		if (len < 0)
+			return null;
+		if (len == 0)
+			return "";
+		final byte[] tmp = new byte[len];
+		buffer.get(tmp, 0, len);
+		return new String(tmp, 0, len);
+	}
 }
@@ -35,6 +35,8 @@ package br.com.carlosrafaelgn.fplay.util;
 import android.os.Message;
 import android.os.SystemClock;
 
+import java.util.ArrayList;
+
 import br.com.carlosrafaelgn.fplay.activity.MainHandler;
 
 @SuppressWarnings("NonAtomicOperationOnVolatileField")
@@ -45,169 +47,194 @@ public final class Timer implements MainHandler.Callback {
 	
 	private static final int MSG_ONESHOT = 0x0200;
 	private static final int MSG_INTERVAL = 0x0201;
-	private final Object sync;
 	private final String name;
 	private final boolean oneShot, handledOnMain, compensatingForDelays;
 	private volatile TimerHandler timerHandler;
 	private volatile int interval, version;
-	private volatile TimerThread thread;
 	private volatile boolean alive, paused;
 	private volatile Object param;
 	private long nextTime;
-	
-	private class TimerThread extends Thread {
-		private final int myVersion;
-		
-		public TimerThread(int myVersion, String name) {
-			super((name == null) ? "Timer Thread" : name);
-			this.myVersion = myVersion;
+	private int scheduledVersion;
+	private volatile int firedCount, maxLateness;
+	private volatile long totalLateness;
+
+	//All timers not handled on the main thread share this single thread, which sleeps until
+	//the next timer is due (there is no polling, so an idle app has no wakeups at all)
+	private static final class Scheduler extends Thread {
+		//sorted by nextTime (there are only a handful of timers, so a sorted list will do)
+		private final ArrayList<Timer> timers;
+
+		public Scheduler() {
+			super("Timer Thread");
+			setDaemon(true);
+			timers = new ArrayList<>(8);
+		}
+
+		//Must be called inside scheduler's lock
+		public void schedule(Timer timer, long time) {
+			timers.remove(timer);
+			timer.nextTime = time;
+			timer.scheduledVersion = timer.version;
+			int i = timers.size();
+			while (i > 0 && timers.get(i - 1).nextTime > time)
+				i--;
+			timers.add(i, timer);
+			//wake up the thread, because this timer could be due before the one it was waiting for
+			notify();
+		}
+
+		//Must be called inside scheduler's lock
+		public void cancel(Timer timer) {
+			//there is no need to wake up the thread, as it will just find out later there is nothing to do
+			timers.remove(timer);
 		}
-		
+
 		@Override
 		public void run() {
-			long lastTime = SystemClock.uptimeMillis();
-			while (version == myVersion) {
-				if (paused) {
-					synchronized (sync) {
+			for (; ; ) {
+				final Timer timer;
+				final int timerVersion;
+				final long scheduledTime;
+				synchronized (this) {
+					if (timers.isEmpty()) {
 						try {
-							sync.wait();
+							wait();
 						} catch (InterruptedException ex) {
 							ex.printStackTrace();
 						}
+						continue;
 					}
-					if (version != myVersion)
-						break;
-				}
-				if (compensatingForDelays) {
-					final long now = SystemClock.uptimeMillis();
-					final int actualInterval = interval - ((int)now - (int)lastTime);
-					lastTime = now;
-					if (actualInterval > 0) {
-						synchronized (sync) {
-							try {
-								sync.wait(actualInterval);
-							} catch (InterruptedException ex) {
-								ex.printStackTrace();
-							}
-						}
-					} else {
-						synchronized (sync) {
-							try {
-								sync.wait(1); //just not to hog the CPU!
-							} catch (InterruptedException ex) {
-								ex.printStackTrace();
-							}
-						}
-					}
-				} else {
-					synchronized (sync) {
+					final Timer first = timers.get(0);
+					final long delay = first.nextTime - SystemClock.uptimeMillis();
+					if (delay > 0) {
 						try {
-							sync.wait(interval);
+							wait(delay);
 						} catch (InterruptedException ex) {
 							ex.printStackTrace();
 						}
+						continue;
 					}
+					timers.remove(0);
+					timer = first;
+					timerVersion = first.scheduledVersion;
+					scheduledTime = first.nextTime;
 				}
-				if (paused)
+				if (timer.version != timerVersion || timer.paused)
 					continue;
+				final long now = SystemClock.uptimeMillis();
+				timer.accountLateness((int)(now - scheduledTime));
+				boolean ok = true;
 				try {
-					if (version == myVersion) {
-						if (timerHandler != null)
-							timerHandler.handleTimer(Timer.this, param);
-					}
+					final TimerHandler timerHandler = timer.timerHandler;
+					if (timerHandler != null)
+						timerHandler.handleTimer(timer, timer.param);
 				} catch (Throwable ex) {
 					ex.printStackTrace();
-					break;
+					ok = false;
 				}
-				if (oneShot)
-					break;
-			}
-			if (version == myVersion) {
-				synchronized (sync) {
-					if (version == myVersion) {
-						thread = null;
-						alive = false;
+				synchronized (this) {
+					if (timer.version != timerVersion)
+						continue;
+					if (ok && !timer.oneShot) {
+						if (!timer.paused)
+							schedule(timer, timer.computeNextTime(scheduledTime));
+					} else {
+						timer.alive = false;
 					}
 				}
 			}
 		}
 	}
 
+	private static Scheduler scheduler;
+
+	private static synchronized Scheduler getScheduler() {
+		if (scheduler == null) {
+			scheduler = new Scheduler();
+			scheduler.start();
+		}
+		return scheduler;
+	}
+
 	public Timer(TimerHandler timerHandler, String name, boolean oneShot, boolean handledOnMain, boolean compensatingForDelays) {
-		this.sync = new Object();
 		this.timerHandler = timerHandler;
 		this.name = name;
 		this.oneShot = oneShot;
 		this.handledOnMain = handledOnMain;
 		this.compensatingForDelays = compensatingForDelays;
 	}
-	
-	public void start(int interval) {
-		if (handledOnMain) {
-			version++;
-			this.interval = interval;
-			param = null;
-			alive = true;
-			thread = null;
-			if (oneShot) {
-				MainHandler.sendMessageAtTime(this, MSG_ONESHOT, version, 0, SystemClock.uptimeMillis() + interval);
-			} else {
-				if (compensatingForDelays)
-					nextTime = SystemClock.uptimeMillis() + interval;
-				MainHandler.sendMessageAtTime(this, MSG_INTERVAL, version, 0, SystemClock.uptimeMillis() + interval);
-			}
-		} else {
-			synchronized (sync) {
-				version++;
-				this.interval = interval;
-				param = null;
-				alive = true;
-				thread = new TimerThread(version, name);
-				thread.start();
-			}
-		}
+
+	private long computeNextTime(long scheduledTime) {
+		final long now = SystemClock.uptimeMillis();
+		if (!compensatingForDelays)
+			return now + interval;
+		//keep the original cadence, skipping the periods we have already lost
+		//(instead of firing several times in a row to catch up)
+		long next = scheduledTime + interval;
+		if (next < now)
+			next = now + interval - ((now - scheduledTime) % interval);
+		return next;
 	}
-	
-	public void start(int interval, Object param) {
+
+	private void accountLateness(int lateness) {
+		if (lateness < 0)
+			lateness = 0;
+		firedCount++;
+		totalLateness += lateness;
+		if (maxLateness < lateness)
+			maxLateness = lateness;
+	}
+
+	private void startInternal(int interval, Object param) {
+		final long now = SystemClock.uptimeMillis();
 		if (handledOnMain) {
 			version++;
 			this.interval = interval;
 			this.param = param;
 			alive = true;
 			paused = false;
-			thread = null;
-			if (oneShot) {
-				MainHandler.sendMessageAtTime(this, MSG_ONESHOT, version, 0, SystemClock.uptimeMillis() + interval);
-			} else {
-				if (compensatingForDelays)
-					nextTime = SystemClock.uptimeMillis() + interval;
-				MainHandler.sendMessageAtTime(this, MSG_INTERVAL, version, 0, SystemClock.uptimeMillis() + interval);
-			}
+			nextTime = now + interval;
+			MainHandler.sendMessageAtTime(this, oneShot ? MSG_ONESHOT : MSG_INTERVAL, version, 0, nextTime);
 		} else {
-			synchronized (sync) {
+			final Scheduler scheduler = getScheduler();
+			synchronized (scheduler) {
 				version++;
-				if (paused && thread != null)
-					sync.notifyAll();
 				this.interval = interval;
 				this.param = param;
 				alive = true;
 				paused = false;
-				thread = new TimerThread(version, name);
-				thread.start();
+				scheduler.schedule(this, now + interval);
 			}
 		}
 	}
+
+	public void start(int interval) {
+		startInternal(interval, null);
+	}
+	
+	public void start(int interval, Object param) {
+		startInternal(interval, param);
+	}
 	
 	public void pause() {
-		if (alive && !handledOnMain)
-			paused = true;
+		if (alive && !handledOnMain) {
+			final Scheduler scheduler = getScheduler();
+			synchronized (scheduler) {
+				paused = true;
+				scheduler.cancel(this);
+			}
+		}
 	}
 	
 	public void resume() {
 		if (alive && !handledOnMain && paused) {
-			paused = false;
-			synchronized (sync) {
-				sync.notifyAll();
+			final Scheduler scheduler = getScheduler();
+			synchronized (scheduler) {
+				if (!alive || !paused)
+					return;
+				paused = false;
+				//the handler used to be called right after resuming
+				scheduler.schedule(this, SystemClock.uptimeMillis());
 			}
 		}
 	}
@@ -219,12 +246,10 @@ public final class Timer implements MainHandler.Callback {
 				version++;
 				MainHandler.removeMessages(this, oneShot ? MSG_ONESHOT : MSG_INTERVAL);
 			} else {
-				synchronized (sync) {
+				final Scheduler scheduler = getScheduler();
+				synchronized (scheduler) {
 					version++;
-					if (thread != null) {
-						sync.notifyAll();
-						thread = null;
-					}
+					scheduler.cancel(this);
 				}
 			}
 			alive = false;
@@ -240,18 +265,14 @@ public final class Timer implements MainHandler.Callback {
 	@Override
 	public boolean handleMessage(Message msg) {
 		if (msg.arg1 == version) {
+			accountLateness((int)(SystemClock.uptimeMillis() - nextTime));
 			switch (msg.what) {
 			case MSG_INTERVAL:
 				if (timerHandler != null)
 					timerHandler.handleTimer(this, param);
-				if (alive) {
-					if (compensatingForDelays) {
-						final long now = SystemClock.uptimeMillis(), next = nextTime + interval;
-						nextTime = Math.max(next, now);
-						MainHandler.sendMessageAtTime(this, MSG_INTERVAL, version, 0, nextTime);
-					} else {
-						MainHandler.sendMessageAtTime(this, MSG_INTERVAL, version, 0, SystemClock.uptimeMillis() + interval);
-					}
+				if (alive && msg.arg1 == version) {
+					nextTime = computeNextTime(nextTime);
+					MainHandler.sendMessageAtTime(this, MSG_INTERVAL, version, 0, nextTime);
 				}
 				break;
 			case MSG_ONESHOT:
@@ -268,4 +289,24 @@ public final class Timer implements MainHandler.Callback {
 	public boolean isAlive() {
 		return alive;
 	}
+
+	public String getName() {
+		return name;
+	}
+
+	//how many times the handler has been called so far
+	public int getFiredCount() {
+		return firedCount;
+	}
+
+	//the longest delay (in ms) between the time the handler should have been called and the time it was actually called
+	public int getMaxLateness() {
+		return maxLateness;
+	}
+
+	//the average delay (in ms) between the time the handler should have been called and the time it was actually called
+	public int getAverageLateness() {
+		final int firedCount = this.firedCount;
+		return ((firedCount <= 0) ? 0 : (int)(totalLateness / firedCount));
+	}
 }
@@ -64,6 +64,10 @@ public final class SimpleVisualizerJni extends SurfaceView implements SurfaceHol
 	public static native void commonSetColorIndex(int colorIndex);
 	public static native void commonUpdateMultiplier(boolean isVoice, boolean hq);
 	public static native int commonProcess(byte[] waveform, int opt);
+	public static native int commonGetBins(byte[] bins, int binsType);
+	public static native int commonGetPeakLevel();
+	public static native int commonGetVUMeter();
+	public static native long commonGetFftStats();
 
 	private static native void setLerp(boolean lerp);
 	private static native void init(int bgColor);
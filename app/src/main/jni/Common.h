@@ -61,6 +61,15 @@ static uint32_t commonColorIndex, commonColorIndexApplied, commonTime, commonTim
 uint32_t beatCounter, beatState, beatPeakOrValley, beatThreshold, beatDeltaMillis, beatSilenceDeltaMillis, beatSpeedBPM;
 float beatFilteredInput;
 
+//Shared analysis
+//the visualizer on the screen and the wireless visualizer (or the same visualizer, when it
+//receives the same waveform twice in a row) would transform the very same waveform more than
+//once per frame, so the results of the last analysis are kept, along with a copy of the
+//waveform they came from, and only a different waveform causes a new FFT
+static uint8_t commonAnalyzedWaveform[CAPTURE_SIZE] __attribute__((aligned(16)));
+static int32_t commonAnalyzedOpt, commonAnalyzedSquareAccum;
+static uint32_t commonPeakLevel, commonFftCount, commonFftReusedCount;
+
 uint32_t commonUptimeDeltaMillis(uint32_t* lastTime) {
 	struct timespec t;
 	t.tv_sec = 0;
@@ -96,6 +105,38 @@ void commonSRand() {
 	srand((uint32_t)t.tv_nsec);
 }
 
+//returns the sum of the squares of all samples (the FFT itself is stored in _fftI)
+int32_t commonAnalyze(uint8_t* waveform, int32_t opt) {
+	//the sum of the squares is computed along with the FFT almost for free
+	opt = DATA_VUMETER | (opt & DATA_FFT);
+	if ((commonAnalyzedOpt & opt) == opt && !memcmp(waveform, commonAnalyzedWaveform, CAPTURE_SIZE)) {
+		commonFftReusedCount++;
+		return commonAnalyzedSquareAccum;
+	}
+
+	uint8_t* const fftI = _fftI;
+	commonAnalyzedSquareAccum = doFft(waveform, fftI, opt);
+	if ((opt & DATA_FFT)) {
+		//*** we are not drawing/analyzing the last bin (Nyquist) ;) ***
+		fftI[1] = 0;
+		commonFftCount++;
+	}
+
+	uint32_t peak = 0;
+	for (int32_t i = 0; i < CAPTURE_SIZE; i++) {
+		const int32_t x = (int32_t)waveform[i] - 128;
+		const uint32_t a = (uint32_t)((x < 0) ? -x : x);
+		if (peak < a)
+			peak = a;
+	}
+	//peak goes from 0 to 128 (inclusive)
+	commonPeakLevel = ((peak >= 128) ? 255 : (peak << 1));
+
+	memcpy(commonAnalyzedWaveform, waveform, CAPTURE_SIZE);
+	commonAnalyzedOpt = opt;
+	return commonAnalyzedSquareAccum;
+}
+
 void JNICALL commonSetSpeed(JNIEnv* env, jclass clazz, int32_t speed) {
 	switch (speed) {
 	case 1:
@@ -137,6 +178,7 @@ void JNICALL commonUpdateMultiplier(JNIEnv* env, jclass clazz, jboolean isVoice,
 	beatSilenceDeltaMillis = 0;
 	beatSpeedBPM = 0;
 	beatFilteredInput = 0;
+	commonAnalyzedOpt = 0;
 	if (isVoice) {
 		for (int32_t i = 0; i < QUARTER_FFT_SIZE; i++) {
 			fft[i] = 0;
@@ -173,6 +215,179 @@ void JNICALL commonUpdateMultiplier(JNIEnv* env, jclass clazz, jboolean isVoice,
 	}
 }
 
+//writes 4, 8, 16, 32, 64, 128 or 256 bins into bins (binsType must be one of the
+//BLUETOOTH_BINS_xxx constants) and returns how many bins have been written
+int32_t commonReduceBins(uint8_t* bins, int32_t binsType) {
+	const uint8_t* const processedData = _processedData;
+	int32_t i, len = 0, last;
+	uint8_t avg;
+	uint8_t b;
+	//processedData stores the first 256 bins, out of the 512 captured by visualizer.getFft
+	//which represents frequencies from DC to SampleRate / 4 (roughly from 0Hz to 11025Hz for a SR of 44100Hz)
+	//
+	//the mapping algorithms used in BLUETOOTH_BINS_4, BLUETOOTH_BINS_8, BLUETOOTH_BINS_16, BLUETOOTH_BINS_32,
+	//BLUETOOTH_BINS_64 and in BLUETOOTH_BINS_128 were created empirically ;)
+	switch (binsType) {
+	case BLUETOOTH_BINS_4:
+		avg = MAX(processedData[0], processedData[1]);
+		avg = MAX(avg, processedData[2]);
+		avg = MAX(avg, processedData[3]);
+		bins[len++] = avg;
+		i = 4;
+		avg = processedData[i++];
+		for (; i < 36; i++)
+			avg = MAX(avg, processedData[i]);
+		bins[len++] = avg;
+		avg = processedData[i++];
+		for (; i < 100; i++)
+			avg = MAX(avg, processedData[i]);
+		bins[len++] = avg;
+		avg = processedData[i++];
+		for (; i < 228; i++)
+			avg = MAX(avg, processedData[i]);
+		bins[len++] = avg;
+		break;
+	case BLUETOOTH_BINS_8:
+		avg = MAX(processedData[0], processedData[1]);
+		bins[len++] = avg;
+		avg = MAX(processedData[2], processedData[3]);
+		bins[len++] = avg;
+		i = 4;
+		avg = processedData[i++];
+		for (; i < 20; i++)
+			avg = MAX(avg, processedData[i]);
+		bins[len++] = avg;
+		avg = processedData[i++];
+		for (; i < 36; i++)
+			avg = MAX(avg, processedData[i]);
+		bins[len++] = avg;
+		avg = processedData[i++];
+		for (; i < 68; i++)
+			avg = MAX(avg, processedData[i]);
+		bins[len++] = avg;
+		avg = processedData[i++];
+		for (; i < 100; i++)
+			avg = MAX(avg, processedData[i]);
+		bins[len++] = avg;
+		avg = processedData[i++];
+		for (; i < 164; i++)
+			avg = MAX(avg, processedData[i]);
+		bins[len++] = avg;
+		avg = processedData[i++];
+		for (; i < 228; i++)
+			avg = MAX(avg, processedData[i]);
+		bins[len++] = avg;
+		break;
+	case BLUETOOTH_BINS_16:
+		avg = MAX(processedData[0], processedData[1]);
+		bins[len++] = avg;
+		avg = MAX(processedData[2], processedData[3]);
+		bins[len++] = avg;
+		for (i = 4; i < 20; i += 4) {
+			avg = MAX(processedData[i], processedData[i + 1]);
+			avg = MAX(avg, processedData[i + 2]);
+			avg = MAX(avg, processedData[i + 3]);
+			bins[len++] = avg;
+		}
+		for (last = 28; last <= 36; last += 8) {
+			avg = processedData[i++];
+			for (; i < last; i++)
+				avg = MAX(avg, processedData[i]);
+			bins[len++] = avg;
+		}
+		for (last = 52; last <= 100; last += 16) {
+			avg = processedData[i++];
+			for (; i < last; i++)
+				avg = MAX(avg, processedData[i]);
+			bins[len++] = avg;
+		}
+		for (last = 132; last <= 228; last += 32) {
+			avg = processedData[i++];
+			for (; i < last; i++)
+				avg = MAX(avg, processedData[i]);
+			bins[len++] = avg;
+		}
+		break;
+	case BLUETOOTH_BINS_32:
+		b = processedData[0];
+		bins[len++] = b;
+		b = processedData[1];
+		bins[len++] = b;
+		b = processedData[2];
+		bins[len++] = b;
+		b = processedData[3];
+		bins[len++] = b;
+		for (i = 4; i < 20; i += 2) {
+			avg = MAX(processedData[i], processedData[i + 1]);
+			bins[len++] = avg;
+		}
+		for (; i < 36; i += 4) {
+			avg = MAX(processedData[i], processedData[i + 1]);
+			avg = MAX(avg, processedData[i + 2]);
+			avg = MAX(avg, processedData[i + 3]);
+			bins[len++] = avg;
+		}
+		for (last = 44; last <= 100; last += 8) {
+			avg = processedData[i++];
+			for (; i < last; i++)
+				avg = MAX(avg, processedData[i]);
+			bins[len++] = avg;
+		}
+		for (last = 116; last <= 228; last += 16) {
+			avg = processedData[i++];
+			for (; i < last; i++)
+				avg = MAX(avg, processedData[i]);
+			bins[len++] = avg;
+		}
+		break;
+	case BLUETOOTH_BINS_64:
+		for (i = 0; i < 20; i++) {
+			b = processedData[i];
+			bins[len++] = b;
+		}
+		for (; i < 36; i += 2) {
+			avg = MAX(processedData[i], processedData[i + 1]);
+			bins[len++] = avg;
+		}
+		for (; i < 132; i += 4) {
+			avg = MAX(processedData[i], processedData[i + 1]);
+			avg = MAX(avg, processedData[i + 2]);
+			avg = MAX(avg, processedData[i + 3]);
+			bins[len++] = avg;
+		}
+		for (last = 140; last <= 228; last += 8) {
+			avg = processedData[i++];
+			for (; i < last; i++)
+				avg = MAX(avg, processedData[i]);
+			bins[len++] = avg;
+		}
+		break;
+	case BLUETOOTH_BINS_128:
+		for (i = 0; i < 36; i++) {
+			b = processedData[i];
+			bins[len++] = b;
+		}
+		for (; i < 184; i += 2) {
+			avg = MAX(processedData[i], processedData[i + 1]);
+			bins[len++] = avg;
+		}
+		for (; i < 252; i += 4) {
+			avg = MAX(processedData[i], processedData[i + 1]);
+			avg = MAX(avg, processedData[i + 2]);
+			avg = MAX(avg, processedData[i + 3]);
+			bins[len++] = avg;
+		}
+		break;
+	case BLUETOOTH_BINS_256:
+		for (i = 0; i < 256; i++) {
+			b = processedData[i];
+			bins[len++] = b;
+		}
+		break;
+	}
+	return len;
+}
+
 int32_t JNICALL commonProcess(JNIEnv* env, jclass clazz, jbyteArray jwaveform, int32_t opt) {
 	const uint32_t deltaMillis = commonUptimeDeltaMillis(&commonLastTime);
 	beatDeltaMillis += deltaMillis;
@@ -188,29 +403,14 @@ int32_t JNICALL commonProcess(JNIEnv* env, jclass clazz, jbyteArray jwaveform, i
 	//       Rdc Rnyq R1 I1 R2 I2       R(n-1)/2  I(n-1)/2
 	uint8_t* waveform;
 	if (!(opt & IGNORE_INPUT) || (opt & BLUETOOTH_PROCESSING)) {
-		uint8_t* const fftI = _fftI;
 		waveform = (uint8_t*)env->GetPrimitiveArrayCritical(jwaveform, 0);
 		if (!waveform)
 			return 0;
 
-		if (!(opt & IGNORE_INPUT)) {
-			if ((opt & DATA_VUMETER)) {
-				rootMeanSquare = sqrtf((float)doFft(waveform, fftI, opt) * (1.0f / (float)(CAPTURE_SIZE)));
-				//*** we are not drawing/analyzing the last bin (Nyquist) ;) ***
-				fftI[1] = 0;
-			} else if ((opt & DATA_FFT)) {
-				/*if ((opt & DATA_FFT_HQ)) {
-					for (int32_t i = 0; i < FFT_SIZE; i++)
-						fftData[i] = (float)((int32_t)(((uint8_t*)bfft)[i]) - 128);
-					FFTNR::Forward(fftData);
-					//*** we are not drawing/analyzing the last bin (Nyquist) ;) ***
-					fftData[1] = 0.0f;
-				} else {*/
-					doFft(waveform, fftI, DATA_FFT);
-					//*** we are not drawing/analyzing the last bin (Nyquist) ;) ***
-					fftI[1] = 0;
-				//}
-			}
+		if (!(opt & IGNORE_INPUT) && (opt & (DATA_FFT | DATA_VUMETER))) {
+			const int32_t squareAccum = commonAnalyze(waveform, opt);
+			if ((opt & DATA_VUMETER))
+				rootMeanSquare = sqrtf((float)squareAccum * (1.0f / (float)(CAPTURE_SIZE)));
 		}
 	} else {
 		waveform = 0;
@@ -380,10 +580,14 @@ if (!neonMode) {
 
 
 #define PACK_BIN(BIN) if ((BIN) == 0x01 || (BIN) == 0x1B) { *packet = 0x1B; packet[1] = ((uint8_t)(BIN) ^ 1); packet += 2; len += 2; } else { *packet = (uint8_t)(BIN); packet++; len++; }
+	uint8_t bins[256];
+	const int32_t binCount = commonReduceBins(bins, opt);
+	if (!binCount) {
+		env->ReleasePrimitiveArrayCritical(jwaveform, waveform, JNI_ABORT);
+		return 0;
+	}
 	uint8_t* packet = waveform;
-	int32_t len = 0, last;
-	uint8_t avg;
-	uint8_t b;
+	int32_t len = 0;
 	packet[0] = 1; //SOH - Start of Heading
 	packet[1] = (uint8_t)opt; //payload type
 	//packet[2] and packet[3] are the payload length
@@ -391,171 +595,9 @@ if (!neonMode) {
 	//PACK_BIN(beatCounter);
 	//PACK_BIN(beatSpeedBPM);
 	//PACK_BIN(vuMeter);
-	//processedData stores the first 256 bins, out of the 512 captured by visualizer.getFft
-	//which represents frequencies from DC to SampleRate / 4 (roughly from 0Hz to 11025Hz for a SR of 44100Hz)
-	//
-	//the mapping algorithms used in BLUETOOTH_BINS_4, BLUETOOTH_BINS_8, BLUETOOTH_BINS_16, BLUETOOTH_BINS_32,
-	//BLUETOOTH_BINS_64 and in BLUETOOTH_BINS_128 were created empirically ;)
-	switch (opt) {
-	case BLUETOOTH_BINS_4:
-		avg = MAX(processedData[0], processedData[1]);
-		avg = MAX(avg, processedData[2]);
-		avg = MAX(avg, processedData[3]);
-		PACK_BIN(avg);
-		i = 4;
-		avg = processedData[i++];
-		for (; i < 36; i++)
-			avg = MAX(avg, processedData[i]);
-		PACK_BIN(avg);
-		avg = processedData[i++];
-		for (; i < 100; i++)
-			avg = MAX(avg, processedData[i]);
-		PACK_BIN(avg);
-		avg = processedData[i++];
-		for (; i < 228; i++)
-			avg = MAX(avg, processedData[i]);
-		PACK_BIN(avg);
-		break;
-	case BLUETOOTH_BINS_8:
-		avg = MAX(processedData[0], processedData[1]);
-		PACK_BIN(avg);
-		avg = MAX(processedData[2], processedData[3]);
-		PACK_BIN(avg);
-		i = 4;
-		avg = processedData[i++];
-		for (; i < 20; i++)
-			avg = MAX(avg, processedData[i]);
-		PACK_BIN(avg);
-		avg = processedData[i++];
-		for (; i < 36; i++)
-			avg = MAX(avg, processedData[i]);
-		PACK_BIN(avg);
-		avg = processedData[i++];
-		for (; i < 68; i++)
-			avg = MAX(avg, processedData[i]);
-		PACK_BIN(avg);
-		avg = processedData[i++];
-		for (; i < 100; i++)
-			avg = MAX(avg, processedData[i]);
-		PACK_BIN(avg);
-		avg = processedData[i++];
-		for (; i < 164; i++)
-			avg = MAX(avg, processedData[i]);
-		PACK_BIN(avg);
-		avg = processedData[i++];
-		for (; i < 228; i++)
-			avg = MAX(avg, processedData[i]);
-		PACK_BIN(avg);
-		break;
-	case BLUETOOTH_BINS_16:
-		avg = MAX(processedData[0], processedData[1]);
-		PACK_BIN(avg);
-		avg = MAX(processedData[2], processedData[3]);
-		PACK_BIN(avg);
-		for (i = 4; i < 20; i += 4) {
-			avg = MAX(processedData[i], processedData[i + 1]);
-			avg = MAX(avg, processedData[i + 2]);
-			avg = MAX(avg, processedData[i + 3]);
-			PACK_BIN(avg);
-		}
-		for (last = 28; last <= 36; last += 8) {
-			avg = processedData[i++];
-			for (; i < last; i++)
-				avg = MAX(avg, processedData[i]);
-			PACK_BIN(avg);
-		}
-		for (last = 52; last <= 100; last += 16) {
-			avg = processedData[i++];
-			for (; i < last; i++)
-				avg = MAX(avg, processedData[i]);
-			PACK_BIN(avg);
-		}
-		for (last = 132; last <= 228; last += 32) {
-			avg = processedData[i++];
-			for (; i < last; i++)
-				avg = MAX(avg, processedData[i]);
-			PACK_BIN(avg);
-		}
-		break;
-	case BLUETOOTH_BINS_32:
-		b = processedData[0];
+	for (i = 0; i < binCount; i++) {
+		const uint8_t b = bins[i];
 		PACK_BIN(b);
-		b = processedData[1];
-		PACK_BIN(b);
-		b = processedData[2];
-		PACK_BIN(b);
-		b = processedData[3];
-		PACK_BIN(b);
-		for (i = 4; i < 20; i += 2) {
-			avg = MAX(processedData[i], processedData[i + 1]);
-			PACK_BIN(avg);
-		}
-		for (; i < 36; i += 4) {
-			avg = MAX(processedData[i], processedData[i + 1]);
-			avg = MAX(avg, processedData[i + 2]);
-			avg = MAX(avg, processedData[i + 3]);
-			PACK_BIN(avg);
-		}
-		for (last = 44; last <= 100; last += 8) {
-			avg = processedData[i++];
-			for (; i < last; i++)
-				avg = MAX(avg, processedData[i]);
-			PACK_BIN(avg);
-		}
-		for (last = 116; last <= 228; last += 16) {
-			avg = processedData[i++];
-			for (; i < last; i++)
-				avg = MAX(avg, processedData[i]);
-			PACK_BIN(avg);
-		}
-		break;
-	case BLUETOOTH_BINS_64:
-		for (i = 0; i < 20; i++) {
-			b = processedData[i];
-			PACK_BIN(b);
-		}
-		for (; i < 36; i += 2) {
-			avg = MAX(processedData[i], processedData[i + 1]);
-			PACK_BIN(avg);
-		}
-		for (; i < 132; i += 4) {
-			avg = MAX(processedData[i], processedData[i + 1]);
-			avg = MAX(avg, processedData[i + 2]);
-			avg = MAX(avg, processedData[i + 3]);
-			PACK_BIN(avg);
-		}
-		for (last = 140; last <= 228; last += 8) {
-			avg = processedData[i++];
-			for (; i < last; i++)
-				avg = MAX(avg, processedData[i]);
-			PACK_BIN(avg);
-		}
-		break;
-	case BLUETOOTH_BINS_128:
-		for (i = 0; i < 36; i++) {
-			b = processedData[i];
-			PACK_BIN(b);
-		}
-		for (; i < 184; i += 2) {
-			avg = MAX(processedData[i], processedData[i + 1]);
-			PACK_BIN(avg);
-		}
-		for (; i < 252; i += 4) {
-			avg = MAX(processedData[i], processedData[i + 1]);
-			avg = MAX(avg, processedData[i + 2]);
-			avg = MAX(avg, processedData[i + 3]);
-			PACK_BIN(avg);
-		}
-		break;
-	case BLUETOOTH_BINS_256:
-		for (i = 0; i < 256; i++) {
-			b = processedData[i];
-			PACK_BIN(b);
-		}
-		break;
-	default:
-		env->ReleasePrimitiveArrayCritical(jwaveform, waveform, JNI_ABORT);
-		return 0;
 	}
 #undef PACK_BIN
 	//fill in the payload length
@@ -565,3 +607,25 @@ if (!neonMode) {
 	env->ReleasePrimitiveArrayCritical(jwaveform, waveform, 0);
 	return len + 5;
 }
+
+int32_t JNICALL commonGetBins(JNIEnv* env, jclass clazz, jbyteArray jbins, int32_t binsType) {
+	uint8_t bins[256];
+	const int32_t binCount = commonReduceBins(bins, binsType);
+	if (!binCount || !jbins || env->GetArrayLength(jbins) < binCount)
+		return 0;
+	env->SetByteArrayRegion(jbins, 0, binCount, (const jbyte*)bins);
+	return binCount;
+}
+
+int32_t JNICALL commonGetPeakLevel(JNIEnv* env, jclass clazz) {
+	return (int32_t)commonPeakLevel;
+}
+
+int32_t JNICALL commonGetVUMeter(JNIEnv* env, jclass clazz) {
+	return (int32_t)(vuMeter * 255.0f);
+}
+
+int64_t JNICALL commonGetFftStats(JNIEnv* env, jclass clazz) {
+	//low 32 bits = FFT's actually computed, high 32 bits = FFT's reused
+	return (int64_t)(((uint64_t)commonFftReusedCount << 32) | (uint64_t)commonFftCount);
+}
@@ -133,10 +133,9 @@ void JNICALL process(JNIEnv* env, jclass clazz, jbyteArray jwaveform, jobject su
 			return;
 		}
 
+		//the FFT is only computed again if this waveform has not been analyzed yet
+		commonAnalyze(waveform, DATA_FFT);
 		fftI = _fftI;
-		doFft(waveform, fftI, DATA_FFT);
-		//*** we are not drawing/analyzing the last bin (Nyquist) ;) ***
-		fftI[1] = 0;
 
 		env->ReleasePrimitiveArrayCritical(jwaveform, waveform, JNI_ABORT);
 	} else {
@@ -370,10 +369,9 @@ void JNICALL processVoice(JNIEnv* env, jclass clazz, jbyteArray jwaveform, jobje
 			return;
 		}
 
+		//the FFT is only computed again if this waveform has not been analyzed yet
+		commonAnalyze(waveform, DATA_FFT);
 		fftI = _fftI;
-		doFft(waveform, fftI, DATA_FFT);
-		//*** we are not drawing/analyzing the last bin (Nyquist) ;) ***
-		fftI[1] = 0;
 
 		env->ReleasePrimitiveArrayCritical(jwaveform, waveform, JNI_ABORT);
 	} else {
@@ -495,6 +493,10 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM* vm, void* reserved) {
 		{"commonSetColorIndex", "(I)V", (void*)commonSetColorIndex},
 		{"commonUpdateMultiplier", "(ZZ)V", (void*)commonUpdateMultiplier},
 		{"commonProcess", "([BI)I", (void*)commonProcess},
+		{"commonGetBins", "([BI)I", (void*)commonGetBins},
+		{"commonGetPeakLevel", "()I", (void*)commonGetPeakLevel},
+		{"commonGetVUMeter", "()I", (void*)commonGetVUMeter},
+		{"commonGetFftStats", "()J", (void*)commonGetFftStats},
 
 		{"setLerp", "(Z)V", (void*)setLerp},
 		{"init", "(I)V", (void*)init},
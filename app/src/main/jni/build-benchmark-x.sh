@@ -0,0 +1,3 @@
+#builds and runs the DSP benchmark (x/benchmark/DspBenchmark.cpp) on an x86 Linux host
+JAVA_INCLUDE="${JAVA_HOME:-$(dirname $(dirname $(readlink -f $(which javac))))}/include"
+g++ -O2 -msse4.1 -I"$JAVA_INCLUDE" -I"$JAVA_INCLUDE/linux" -o /tmp/fplay-dsp-benchmark x/benchmark/DspBenchmark.cpp && /tmp/fplay-dsp-benchmark
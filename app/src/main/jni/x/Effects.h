@@ -39,10 +39,35 @@
 #define GAIN_REDUCTION_PER_SECOND_DB -40.0 //-40.0dB/s
 #define GAIN_RECOVERY_PER_SECOND_DB 0.25 //+0.25dB/s
 
+//time constant used to move from the current equalizer coefficients to the new ones,
+//so dragging a slider does not produce clicks/zipper noise
+#define EQUALIZER_SMOOTHING_TIME_MS 30.0
+#define EQUALIZER_SMOOTHING_THRESHOLD 0.0001f
+#define EQUALIZER_PARAMS_DIRTY 4
+
+//a complete set of equalizer parameters, computed by whoever changes a band level or the
+//bass boost strength (usually the main thread), and handed over to the thread processing
+//the audio through a triple buffer (the audio thread never waits for the other threads,
+//and it never computes coefficients in the common case)
+struct EqualizerParams {
+	uint32_t configVersion, effectsEnabled;
+	int32_t equalizerActuallyUsedGainInMillibels[BAND_COUNT];
+	float equalizerLastBandGain[4];
+	EqualizerCoefs equalizerCoefs[BAND_COUNT - 2];
+};
+
 static uint32_t bassBoostStrength, virtualizerStrength;
 static int32_t equalizerGainInMillibels[BAND_COUNT];
 static EFFECTPROC effectProc;
+//when not null, the effects can take float samples straight from the resampler (see processEffectsFloat())
+static EFFECTPROC effectFloatProc;
 static float* effectsFloatSamplesOriginal;
+//equalizerParamsBack belongs to the writers (guarded by equalizerParamsLock),
+//equalizerParamsFront belongs to the audio thread, and equalizerParamsMiddle is the
+//one being exchanged between them (with EQUALIZER_PARAMS_DIRTY set when it is new)
+static EqualizerParams equalizerParams[3], equalizerTargetParams;
+static uint32_t equalizerParamsBack, equalizerParamsMiddle, equalizerParamsFront, equalizerParamsLock, equalizerConfigVersion, equalizerSmoothing;
+static float equalizerSmoothingPerFrame;
 
 uint32_t effectsEnabled, equalizerMaxBandCount, effectsGainEnabled;
 int32_t effectsFramesBeforeRecoveringGain,
@@ -54,6 +79,9 @@ float effectsGainRecoveryOne[4] __attribute__((aligned(16))) = { 1.0f, 1.0f, 0.0
 	effectsGainRecoveryPerFrame[4] __attribute__((aligned(16))),
 	effectsGainClip[4] __attribute__((aligned(16))),
 	equalizerLastBandGain[4] __attribute__((aligned(16)));
+//state of the generator used to dither the final quantization (one per channel and per
+//uniform value, since TPDF dither is the sum of two independent uniform values)
+uint32_t effectsDitherState[4] __attribute__((aligned(16))) = { 0x12345678, 0x9ABCDEF1, 0x2468ACE1, 0x13579BDF };
 EqualizerCoefs equalizerCoefs[BAND_COUNT - 2] __attribute__((aligned(16)));
 EqualizerState equalizerStates[BAND_COUNT - 2] __attribute__((aligned(16)));
 float *effectsFloatSamples;
@@ -62,6 +90,7 @@ float *effectsFloatSamples;
 static const uint32_t effectsAbsSample[4] __attribute__((aligned(16))) = { 0x7FFFFFFF, 0x7FFFFFFF, 0, 0 };
 #else
 extern void processEffectsNeon(int16_t* buffer, uint32_t sizeInFrames);
+extern void processEffectsFloatNeon(int16_t* buffer, uint32_t sizeInFrames);
 #endif
 
 #include "Filter.h"
@@ -98,23 +127,35 @@ uint32_t JNICALL isAutomaticEffectsGainEnabled(JNIEnv* env, jclass clazz) {
 	return effectsGainEnabled;
 }
 
-void updateEqualizerGains(int32_t bandToReset) {
-	if (!(effectsEnabled & (EQUALIZER_ENABLED | BASSBOOST_ENABLED)))
+void computeEqualizerParams(EqualizerParams* params, const int32_t* equalizerGainInMillibels, uint32_t bassBoostStrength, uint32_t effectsEnabled) {
+	int32_t* const equalizerActuallyUsedGainInMillibels = params->equalizerActuallyUsedGainInMillibels;
+
+	params->effectsEnabled = (effectsEnabled & (EQUALIZER_ENABLED | BASSBOOST_ENABLED));
+	params->equalizerLastBandGain[0] = 1.0f;
+	params->equalizerLastBandGain[1] = 1.0f;
+	params->equalizerLastBandGain[2] = 0.0f;
+	params->equalizerLastBandGain[3] = 0.0f;
+	memset(equalizerActuallyUsedGainInMillibels, 0, BAND_COUNT * sizeof(int32_t));
+	//computeFilter() does not touch the bands above equalizerMaxBandCount
+	memset(params->equalizerCoefs, 0, (BAND_COUNT - 2) * sizeof(EqualizerCoefs));
+
+	if (!(effectsEnabled & (EQUALIZER_ENABLED | BASSBOOST_ENABLED))) {
+		for (uint32_t i = 1; i < equalizerMaxBandCount; i++)
+			computeFilter(i, equalizerActuallyUsedGainInMillibels, params->equalizerLastBandGain, params->equalizerCoefs);
 		return;
+	}
 
 	if (!(effectsEnabled & EQUALIZER_ENABLED)) {
 		//only the bass boost is enabled (set all gains to 0, except for band 2 (0 - 125 Hz))
 		//band 0 = pre
-		equalizerActuallyUsedGainInMillibels[0] = 0;
-		for (int32_t i = 1; i < equalizerMaxBandCount; i++) {
+		for (uint32_t i = 1; i < equalizerMaxBandCount; i++) {
 			equalizerActuallyUsedGainInMillibels[i] = ((i == 2) ? bassBoostStrength : 0);
-			computeFilter(i, equalizerActuallyUsedGainInMillibels, equalizerLastBandGain, equalizerCoefs);
+			computeFilter(i, equalizerActuallyUsedGainInMillibels, params->equalizerLastBandGain, params->equalizerCoefs);
 		}
 	} else {
 		const int32_t lastBand = equalizerMaxBandCount - 1;
 		int32_t leftover = 0;
 		//band 0 = pre
-		equalizerActuallyUsedGainInMillibels[0] = 0;
 		for (int32_t i = lastBand - 1; i >= 1; i--) {
 			//when enabled, add the bass boost to band 2 (0 - 125 Hz)
 			equalizerActuallyUsedGainInMillibels[i] = leftover + ((i == 2 && (effectsEnabled & BASSBOOST_ENABLED)) ?
@@ -131,22 +172,97 @@ void updateEqualizerGains(int32_t bandToReset) {
 				leftover = 0;
 			}
 
-			computeFilter(i, equalizerActuallyUsedGainInMillibels, equalizerLastBandGain, equalizerCoefs);
+			computeFilter(i, equalizerActuallyUsedGainInMillibels, params->equalizerLastBandGain, params->equalizerCoefs);
 		}
 
 		//pre amp (band 0) is accounted for in the last band
 		equalizerActuallyUsedGainInMillibels[lastBand] = equalizerGainInMillibels[lastBand] + equalizerGainInMillibels[0];
-		computeFilter(lastBand, equalizerActuallyUsedGainInMillibels, equalizerLastBandGain, equalizerCoefs);
+		computeFilter(lastBand, equalizerActuallyUsedGainInMillibels, params->equalizerLastBandGain, params->equalizerCoefs);
+	}
+}
+
+//Runs on any thread
+void publishEqualizerParams() {
+	//only the writers compete for this lock (the audio thread never touches it)
+	while (__atomic_exchange_n(&equalizerParamsLock, 1, __ATOMIC_ACQUIRE))
+		sched_yield();
+
+	EqualizerParams* const params = equalizerParams + equalizerParamsBack;
+	//if the sample rate changes while we are computing the coefficients, the audio thread
+	//will notice the version mismatch and will recompute them by itself
+	params->configVersion = __atomic_load_n(&equalizerConfigVersion, __ATOMIC_ACQUIRE);
+	computeEqualizerParams(params, equalizerGainInMillibels, bassBoostStrength, effectsEnabled);
+
+	equalizerParamsBack = __atomic_exchange_n(&equalizerParamsMiddle, equalizerParamsBack | EQUALIZER_PARAMS_DIRTY, __ATOMIC_ACQ_REL) & 3;
+
+	__atomic_store_n(&equalizerParamsLock, 0, __ATOMIC_RELEASE);
+}
+
+//Runs on the audio thread
+void setEqualizerParamsAsCurrent(const EqualizerParams* params) {
+	//no smoothing at all (used when the sample rate changes, or when the equalizer is
+	//being turned on, because there is nothing to smooth from)
+	memcpy(&equalizerTargetParams, params, sizeof(EqualizerParams));
+	memcpy(equalizerActuallyUsedGainInMillibels, params->equalizerActuallyUsedGainInMillibels, BAND_COUNT * sizeof(int32_t));
+	memcpy(equalizerLastBandGain, params->equalizerLastBandGain, 4 * sizeof(float));
+	memcpy(equalizerCoefs, params->equalizerCoefs, (BAND_COUNT - 2) * sizeof(EqualizerCoefs));
+	equalizerSmoothing = 0;
+}
+
+//Runs on the audio thread
+void setEqualizerParamsAsTarget(const EqualizerParams* params) {
+	memcpy(&equalizerTargetParams, params, sizeof(EqualizerParams));
+	for (int32_t i = 1; i < BAND_COUNT; i++) {
+		if (!params->equalizerActuallyUsedGainInMillibels[i])
+			continue;
+		if (!equalizerActuallyUsedGainInMillibels[i] && i < (BAND_COUNT - 1)) {
+			//this band was being skipped, so its state is stale (its coefficients are
+			//already the identity, so starting from a clean state is enough)
+			memset(equalizerStates + (i - 1), 0, sizeof(EqualizerState));
+		}
+		//a band must keep being processed until its coefficients reach the target
+		//(bands going to 0 are only marked as 0 after the smoothing is over)
+		equalizerActuallyUsedGainInMillibels[i] = params->equalizerActuallyUsedGainInMillibels[i];
+	}
+	equalizerSmoothing = 1;
+}
+
+//Runs on the audio thread, once before processing each buffer
+void updateEqualizerParams(uint32_t sizeInFrames) {
+	if ((__atomic_load_n(&equalizerParamsMiddle, __ATOMIC_ACQUIRE) & EQUALIZER_PARAMS_DIRTY)) {
+		equalizerParamsFront = __atomic_exchange_n(&equalizerParamsMiddle, equalizerParamsFront, __ATOMIC_ACQ_REL) & 3;
+		EqualizerParams* const params = equalizerParams + equalizerParamsFront;
+		if (params->configVersion != equalizerConfigVersion || params->effectsEnabled != (effectsEnabled & (EQUALIZER_ENABLED | BASSBOOST_ENABLED))) {
+			//these coefficients were computed for another sample rate or another set of
+			//effects (very unlikely, but possible)
+			params->configVersion = equalizerConfigVersion;
+			computeEqualizerParams(params, equalizerGainInMillibels, bassBoostStrength, effectsEnabled);
+		}
+		setEqualizerParamsAsTarget(params);
+	}
+
+	if (!equalizerSmoothing)
+		return;
+
+	//move the coefficients towards the target by a fraction that depends on how long this
+	//buffer is (the transition takes the same time no matter how large the buffers are)
+	const float k = 1.0f - expf(-(float)sizeInFrames * equalizerSmoothingPerFrame);
+	float* const current = (float*)equalizerCoefs;
+	const float* const target = (const float*)equalizerTargetParams.equalizerCoefs;
+	float maxDelta = 0.0f;
+	for (int32_t i = ((BAND_COUNT - 2) * (sizeof(EqualizerCoefs) / sizeof(float))) - 1; i >= 0; i--) {
+		const float delta = target[i] - current[i];
+		current[i] += delta * k;
+		const float absDelta = fabsf(delta);
+		if (maxDelta < absDelta)
+			maxDelta = absDelta;
 	}
+	const float lastBandGainDelta = equalizerTargetParams.equalizerLastBandGain[0] - equalizerLastBandGain[0];
+	equalizerLastBandGain[0] += lastBandGainDelta * k;
+	equalizerLastBandGain[1] = equalizerLastBandGain[0];
 
-	//Apparently, resetting only a few bands puts the entire equalizer in an
-	//unstable state some times... :/
-	//if (bandToReset < 1) //reset all bands
-		memset(equalizerStates, 0, (BAND_COUNT - 2) * sizeof(EqualizerState));
-	//else if (bandToReset == 1) //reset only the first band
-	//	memset(equalizerStates, 0, sizeof(EqualizerState));
-	//else //reset the given band + its previous one
-	//	memset(equalizerStates + (bandToReset - 2), 0, 2 * sizeof(EqualizerState));
+	if (maxDelta < EQUALIZER_SMOOTHING_THRESHOLD && fabsf(lastBandGainDelta) < EQUALIZER_SMOOTHING_THRESHOLD)
+		setEqualizerParamsAsCurrent(&equalizerTargetParams);
 }
 
 void resetEqualizer() {
@@ -175,7 +291,15 @@ void equalizerConfigChanged() {
 	effectsGainRecoveryPerFrame[0] = (float)pow(10.0, GAIN_RECOVERY_PER_SECOND_DB / (double)(dstSampleRate * 20));
 	effectsGainRecoveryPerFrame[1] = effectsGainRecoveryPerFrame[0];
 
-	updateEqualizerGains(-1);
+	equalizerSmoothingPerFrame = (float)(1000.0 / (EQUALIZER_SMOOTHING_TIME_MS * (double)dstSampleRate));
+
+	//any coefficients computed before this point are no longer valid
+	__atomic_store_n(&equalizerConfigVersion, equalizerConfigVersion + 1, __ATOMIC_RELEASE);
+	EqualizerParams params;
+	params.configVersion = equalizerConfigVersion;
+	computeEqualizerParams(&params, equalizerGainInMillibels, bassBoostStrength, effectsEnabled);
+	setEqualizerParamsAsCurrent(&params);
+
 	resetAutomaticEffectsGain();
 	resetEqualizer();
 }
@@ -224,6 +348,15 @@ void initializeEffects() {
 	memset(equalizerGainInMillibels, 0, BAND_COUNT * sizeof(int32_t));
 	memset(equalizerActuallyUsedGainInMillibels, 0, BAND_COUNT * sizeof(int32_t));
 	memset(equalizerCoefs, 0, (BAND_COUNT - 2) * sizeof(EqualizerCoefs));
+	memset(equalizerParams, 0, 3 * sizeof(EqualizerParams));
+	memset(&equalizerTargetParams, 0, sizeof(EqualizerParams));
+	equalizerParamsBack = 0;
+	equalizerParamsMiddle = 1;
+	equalizerParamsFront = 2;
+	equalizerParamsLock = 0;
+	equalizerConfigVersion = 0;
+	equalizerSmoothing = 0;
+	equalizerSmoothingPerFrame = 1.0f;
 
 	resetAutomaticEffectsGain();
 	resetEqualizer();
@@ -244,33 +377,14 @@ void processNull(int16_t* buffer, uint32_t sizeInFrames) {
 	//nothing to be done :)
 }
 
-void processEffects(int16_t* buffer, uint32_t sizeInFrames) {
-    //a few buggy devices change the audio sink so fast and so repeatedly,
-    //that this case indeed happens... :(
-	if (!effectsFloatSamples)
-		return;
-
-	if (effectsMinimumAmountOfFramesToReduce <= 0)
-		effectsFramesBeforeRecoveringGain -= sizeInFrames;
-	else
-		effectsMinimumAmountOfFramesToReduce -= sizeInFrames;
-
-	if (!(effectsEnabled & (EQUALIZER_ENABLED | BASSBOOST_ENABLED)) || !equalizerActuallyUsedGainInMillibels[BAND_COUNT - 1]) {
-		for (int32_t i = ((sizeInFrames << 1) - 1); i >= 0; i--)
-			effectsFloatSamples[i] = (float)buffer[i];
-	}
-
+//runs the equalizer (which also does the bass boost), the virtualizer and the automatic gain
+//over effectsFloatSamples, and performs the final (and only) quantization into buffer
+static void processEffectsFilterAndQuantize(int16_t* buffer, uint32_t sizeInFrames) {
 	if ((effectsEnabled & (EQUALIZER_ENABLED | BASSBOOST_ENABLED))) {
-		if (equalizerActuallyUsedGainInMillibels[equalizerMaxBandCount - 1]) {
-			const float lastBandGain = equalizerLastBandGain[0];
-			for (int32_t i = ((sizeInFrames << 1) - 1); i >= 0; i--)
-				effectsFloatSamples[i] = (float)buffer[i] * lastBandGain;
-		}
-
 		//apply each filter in all samples before moving on to the next filter (band 0 = pre)
 		for (int32_t band = equalizerMaxBandCount - 2; band >= 1; band--) {
 			//if this band has no gain at all, we can skip it completely (there is no need to worry about
-			//equalizerStates[band - 1] because when any gain is changed, all states are zeroed out in updateEqualizerGains())
+			//equalizerStates[band - 1] because it is zeroed out in setEqualizerParamsAsTarget() when the band is used again)
 			if (!equalizerActuallyUsedGainInMillibels[band])
 				continue;
 
@@ -318,6 +432,7 @@ void processEffects(int16_t* buffer, uint32_t sizeInFrames) {
 	float gainClip = effectsGainClip[0];
 	float maxAbsSample = 0.0f;
 	float* floatSamples = effectsFloatSamples;
+	uint32_t ditherL0 = effectsDitherState[0], ditherR0 = effectsDitherState[1], ditherL1 = effectsDitherState[2], ditherR1 = effectsDitherState[3];
 
 	while ((sizeInFrames--)) {
 		float inL = floatSamples[0] * gainClip;
@@ -336,18 +451,30 @@ void processEffects(int16_t* buffer, uint32_t sizeInFrames) {
 		const uint32_t tmpAbsL = *((uint32_t*)&inL) & 0x7FFFFFFF;
 		if (maxAbsSample < *((float*)&tmpAbsL))
 			maxAbsSample = *((float*)&tmpAbsL);
-		const uint32_t tmpAbsR = *((uint32_t*)&inL) & 0x7FFFFFFF;;
+		const uint32_t tmpAbsR = *((uint32_t*)&inR) & 0x7FFFFFFF;
 		if (maxAbsSample < *((float*)&tmpAbsR))
 			maxAbsSample = *((float*)&tmpAbsR);
 
-		const int32_t iL = (int32_t)inL;
-		const int32_t iR = (int32_t)inR;
+		//TPDF dither (from -1 to 1 LSB) followed by rounding, instead of just truncating the samples
+		ditherL0 = (ditherL0 * 1664525) + 1013904223;
+		ditherR0 = (ditherR0 * 1664525) + 1013904223;
+		ditherL1 = (ditherL1 * 1664525) + 1013904223;
+		ditherR1 = (ditherR1 * 1664525) + 1013904223;
+		inL += ((float)(int32_t)ditherL0 + (float)(int32_t)ditherL1) * (1.0f / 4294967296.0f);
+		inR += ((float)(int32_t)ditherR0 + (float)(int32_t)ditherR1) * (1.0f / 4294967296.0f);
+		const int32_t iL = (int32_t)(inL + ((inL >= 0.0f) ? 0.5f : -0.5f));
+		const int32_t iR = (int32_t)(inR + ((inR >= 0.0f) ? 0.5f : -0.5f));
 		buffer[0] = (iL >= 32767 ? 32767 : (iL <= -32768 ? -32768 : (int16_t)iL));
 		buffer[1] = (iR >= 32767 ? 32767 : (iR <= -32768 ? -32768 : (int16_t)iR));
 
 		buffer += 2;
 	}
 
+	effectsDitherState[0] = ditherL0;
+	effectsDitherState[1] = ditherR0;
+	effectsDitherState[2] = ditherL1;
+	effectsDitherState[3] = ditherR1;
+
 	if (!effectsGainEnabled) {
 		effectsFramesBeforeRecoveringGain = 0x7FFFFFFF;
 		effectsMinimumAmountOfFramesToReduce = 0;
@@ -364,6 +491,71 @@ void processEffects(int16_t* buffer, uint32_t sizeInFrames) {
 	}
 }
 
+void processEffects(int16_t* buffer, uint32_t sizeInFrames) {
+    //a few buggy devices change the audio sink so fast and so repeatedly,
+    //that this case indeed happens... :(
+	if (!effectsFloatSamples)
+		return;
+
+	updateEqualizerParams(sizeInFrames);
+
+	if (effectsMinimumAmountOfFramesToReduce <= 0)
+		effectsFramesBeforeRecoveringGain -= sizeInFrames;
+	else
+		effectsMinimumAmountOfFramesToReduce -= sizeInFrames;
+
+	if (!(effectsEnabled & (EQUALIZER_ENABLED | BASSBOOST_ENABLED)) || !equalizerActuallyUsedGainInMillibels[BAND_COUNT - 1]) {
+		for (int32_t i = ((sizeInFrames << 1) - 1); i >= 0; i--)
+			effectsFloatSamples[i] = (float)buffer[i];
+	}
+
+	if ((effectsEnabled & (EQUALIZER_ENABLED | BASSBOOST_ENABLED))) {
+		if (equalizerActuallyUsedGainInMillibels[equalizerMaxBandCount - 1]) {
+			const float lastBandGain = equalizerLastBandGain[0];
+			for (int32_t i = ((sizeInFrames << 1) - 1); i >= 0; i--)
+				effectsFloatSamples[i] = (float)buffer[i] * lastBandGain;
+		}
+	}
+
+	processEffectsFilterAndQuantize(buffer, sizeInFrames);
+}
+
+void processEffectsFloat(int16_t* buffer, uint32_t sizeInFrames) {
+	//the samples have already been written to effectsFloatSamples by the resampler,
+	//without being quantized to 16 bits first
+	if (!effectsFloatSamples)
+		return;
+
+	updateEqualizerParams(sizeInFrames);
+
+	if (effectsMinimumAmountOfFramesToReduce <= 0)
+		effectsFramesBeforeRecoveringGain -= sizeInFrames;
+	else
+		effectsMinimumAmountOfFramesToReduce -= sizeInFrames;
+
+	if ((effectsEnabled & (EQUALIZER_ENABLED | BASSBOOST_ENABLED)) && equalizerActuallyUsedGainInMillibels[equalizerMaxBandCount - 1]) {
+		const float lastBandGain = equalizerLastBandGain[0];
+		for (int32_t i = ((sizeInFrames << 1) - 1); i >= 0; i--)
+			effectsFloatSamples[i] *= lastBandGain;
+	}
+
+	processEffectsFilterAndQuantize(buffer, sizeInFrames);
+}
+
+//Runs on the audio thread (or on any thread, if there is no audio thread)
+void equalizerEnabledChanged(uint32_t oldEffects) {
+	if (!(oldEffects & (EQUALIZER_ENABLED | BASSBOOST_ENABLED))) {
+		//the filters were not running, so start from a flat response and smoothly
+		//move towards the new one
+		EqualizerParams params;
+		params.configVersion = equalizerConfigVersion;
+		computeEqualizerParams(&params, equalizerGainInMillibels, bassBoostStrength, 0);
+		setEqualizerParamsAsCurrent(&params);
+		resetEqualizer();
+	}
+	publishEqualizerParams();
+}
+
 void JNICALL enableEqualizer(JNIEnv* env, jclass clazz, uint32_t enabled) {
 	const uint32_t oldEffects = effectsEnabled;
 	if (enabled)
@@ -374,7 +566,7 @@ void JNICALL enableEqualizer(JNIEnv* env, jclass clazz, uint32_t enabled) {
 	if (!oldEffects && effectsEnabled)
 		resetAutomaticEffectsGain();
 
-	updateEqualizerGains(-1);
+	equalizerEnabledChanged(oldEffects);
 	updateEffectProc();
 }
 
@@ -389,7 +581,7 @@ void JNICALL setEqualizerBandLevel(JNIEnv* env, jclass clazz, uint32_t band, int
 	equalizerGainInMillibels[band] = ((level <= -DB_RANGE) ? -DB_RANGE : ((level >= DB_RANGE) ? DB_RANGE : level));
 
 	if ((effectsEnabled & EQUALIZER_ENABLED))
-		updateEqualizerGains(band);
+		publishEqualizerParams();
 }
 
 void JNICALL setEqualizerBandLevels(JNIEnv* env, jclass clazz, jshortArray jlevels) {
@@ -403,7 +595,7 @@ void JNICALL setEqualizerBandLevels(JNIEnv* env, jclass clazz, jshortArray jleve
 	env->ReleasePrimitiveArrayCritical(jlevels, levels, JNI_ABORT);
 
 	if ((effectsEnabled & EQUALIZER_ENABLED))
-		updateEqualizerGains(-1);
+		publishEqualizerParams();
 }
 
 void JNICALL getEqualizerFrequencyResponse(JNIEnv* env, jclass clazz, int32_t bassBoostStrength, jshortArray jlevels, int32_t frequencyCount, jdoubleArray jfrequencies, jdoubleArray jgains) {
@@ -411,9 +603,8 @@ void JNICALL getEqualizerFrequencyResponse(JNIEnv* env, jclass clazz, int32_t ba
 	if (!levels)
 		return;
 
-	int32_t equalizerGainInMillibels[BAND_COUNT], equalizerActuallyUsedGainInMillibels[BAND_COUNT];
-	float equalizerLastBandGain[4];
-	EqualizerCoefs equalizerCoefs[BAND_COUNT - 2];
+	int32_t equalizerGainInMillibels[BAND_COUNT];
+	EqualizerParams params;
 
 	bassBoostStrength = ((bassBoostStrength <= 0) ? 0 : ((bassBoostStrength >= 1000) ? 1000 : bassBoostStrength));
 
@@ -422,32 +613,9 @@ void JNICALL getEqualizerFrequencyResponse(JNIEnv* env, jclass clazz, int32_t ba
 
 	env->ReleasePrimitiveArrayCritical(jlevels, levels, JNI_ABORT);
 
+	//the response is always computed as if the equalizer were enabled
+	computeEqualizerParams(&params, equalizerGainInMillibels, bassBoostStrength, EQUALIZER_ENABLED | (effectsEnabled & BASSBOOST_ENABLED));
 	const int32_t lastBand = equalizerMaxBandCount - 1;
-	int32_t leftover = 0;
-	//band 0 = pre
-	equalizerActuallyUsedGainInMillibels[0] = 0;
-	for (int32_t i = lastBand - 1; i >= 1; i--) {
-		//when enabled, add the bass boost to band 2 (0 - 125 Hz)
-		equalizerActuallyUsedGainInMillibels[i] = leftover + ((i == 2 && (effectsEnabled & BASSBOOST_ENABLED)) ?
-													(bassBoostStrength + equalizerGainInMillibels[i] - equalizerGainInMillibels[i + 1]) :
-													(equalizerGainInMillibels[i] - equalizerGainInMillibels[i + 1]));
-
-		if (equalizerActuallyUsedGainInMillibels[i] < -DB_MAX_DELTA) {
-			leftover = equalizerActuallyUsedGainInMillibels[i] + DB_MAX_DELTA;
-			equalizerActuallyUsedGainInMillibels[i] = -DB_MAX_DELTA;
-		} else if (equalizerActuallyUsedGainInMillibels[i] > DB_MAX_DELTA) {
-			leftover = equalizerActuallyUsedGainInMillibels[i] - DB_MAX_DELTA;
-			equalizerActuallyUsedGainInMillibels[i] = DB_MAX_DELTA;
-		} else {
-			leftover = 0;
-		}
-
-		computeFilter(i, equalizerActuallyUsedGainInMillibels, equalizerLastBandGain, equalizerCoefs);
-	}
-
-	//pre amp (band 0) is accounted for in the last band
-	equalizerActuallyUsedGainInMillibels[lastBand] = equalizerGainInMillibels[lastBand] + equalizerGainInMillibels[0];
-	computeFilter(lastBand, equalizerActuallyUsedGainInMillibels, equalizerLastBandGain, equalizerCoefs);
 
 	double* const frequencies = (double*)env->GetPrimitiveArrayCritical(jfrequencies, 0);
 	double* const gains = (double*)env->GetPrimitiveArrayCritical(jgains, 0);
@@ -459,7 +627,7 @@ void JNICALL getEqualizerFrequencyResponse(JNIEnv* env, jclass clazz, int32_t ba
 		return;
 	}
 
-	const double initialGain = (double)equalizerLastBandGain[0];
+	const double initialGain = (double)params.equalizerLastBandGain[0];
 	for (int32_t f = frequencyCount - 1; f >= 0; f--)
 		gains[f] = initialGain;
 
@@ -474,7 +642,7 @@ void JNICALL getEqualizerFrequencyResponse(JNIEnv* env, jclass clazz, int32_t ba
 		const double sin2w0 = sin(2.0 * w0);
 
 		for (int32_t band = 1; band < lastBand; band++) {
-			const EqualizerCoefs* const equalizerCoef = &(equalizerCoefs[band - 1]);
+			const EqualizerCoefs* const equalizerCoef = &(params.equalizerCoefs[band - 1]);
 			const double b0 = equalizerCoef->b0L;
 			const double b1 = equalizerCoef->b1L;
 			const double b2 = equalizerCoef->b2L;
@@ -506,7 +674,7 @@ void JNICALL enableBassBoost(JNIEnv* env, jclass clazz, uint32_t enabled) {
 	if (!oldEffects && effectsEnabled)
 		resetAutomaticEffectsGain();
 
-	updateEqualizerGains(2);
+	equalizerEnabledChanged(oldEffects);
 	updateEffectProc();
 }
 
@@ -518,7 +686,7 @@ void JNICALL setBassBoostStrength(JNIEnv* env, jclass clazz, int32_t strength) {
 	bassBoostStrength = ((strength <= 0) ? 0 : ((strength >= 1000) ? 1000 : strength));
 
 	if ((effectsEnabled & BASSBOOST_ENABLED))
-		updateEqualizerGains(2);
+		publishEqualizerParams();
 }
 
 int32_t JNICALL getBassBoostRoundedStrength(JNIEnv* env, jclass clazz) {
@@ -564,8 +732,10 @@ void updateEffectProc() {
 	if ((effectsEnabled & (EQUALIZER_ENABLED | BASSBOOST_ENABLED | VIRTUALIZER_ENABLED))) {
 #ifdef FPLAY_X86
 		effectProc = processEffects;
+		effectFloatProc = processEffectsFloat;
 #else
 		effectProc = (neonMode ? processEffectsNeon : processEffects);
+		effectFloatProc = (neonMode ? processEffectsFloatNeon : processEffectsFloat);
 #endif
 		if (!effectsFloatSamplesOriginal) {
 			//MAXIMUM_BUFFER_SIZE_IN_FRAMES_FOR_PROCESSING * 2, because audioTrack allows up to MAXIMUM_BUFFER_SIZE_IN_FRAMES_FOR_PROCESSING * 2 frames
@@ -578,6 +748,7 @@ void updateEffectProc() {
 		}
 	} else {
 		effectProc = processNull;
+		effectFloatProc = 0;
 		if (effectsFloatSamplesOriginal) {
 			delete effectsFloatSamplesOriginal;
 			effectsFloatSamplesOriginal = 0;
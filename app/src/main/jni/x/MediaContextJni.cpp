@@ -37,6 +37,7 @@
 #include <stdlib.h>
 #include <byteswap.h>
 #include <time.h>
+#include <sched.h>
 
 #include "../Constants.h"
 
@@ -135,6 +136,7 @@ void swapShorts(int16_t* srcBuffer, uint32_t sizeInShorts, int16_t* dstBuffer) {
 }
 
 #include "Visualizer.h"
+#include "Stats.h"
 #include "Effects.h"
 #include "Resampler.h"
 #include "MediaCodec.h"
@@ -212,20 +214,40 @@ int64_t JNICALL audioTrackProcessEffects(JNIEnv* env, jclass clazz, jbyteArray j
 		actualSrcBuffer = (int16_t*)((uint8_t*)srcBuffer + offsetInBytes);
 	}
 
+	const int64_t statsWriteStart = statsBegin();
+	int64_t statsTime = statsWriteStart;
+
 	WriteRet ret;
 	ret.srcFramesUsed = 0;
-	ret.dstFramesUsed = resampleProc(actualSrcBuffer, sizeInFrames, dstBuffer, MAXIMUM_BUFFER_SIZE_IN_FRAMES_FOR_PROCESSING << 1, ret.srcFramesUsed);
+	if (effectFloatProc && effectsFloatSamples) {
+		//the resampler writes straight to the effects' buffer, and the samples are
+		//quantized to 16 bits only once, at the very end of the chain
+		ret.dstFramesUsed = resampleFloatProc(actualSrcBuffer, sizeInFrames, effectsFloatSamples, MAXIMUM_BUFFER_SIZE_IN_FRAMES_FOR_PROCESSING << 1, ret.srcFramesUsed);
+		statsTime = statsEnd(STATS_STAGE_RESAMPLE, statsTime, ret.dstFramesUsed);
 
-	if (!jsrcBuffer)
-		env->ReleasePrimitiveArrayCritical(jsrcArray, srcBuffer, JNI_ABORT);
+		if (!jsrcBuffer)
+			env->ReleasePrimitiveArrayCritical(jsrcArray, srcBuffer, JNI_ABORT);
 
-	advanceVisualizer(dstBuffer, ret.dstFramesUsed);
+		effectFloatProc(dstBuffer, ret.dstFramesUsed);
+	} else {
+		ret.dstFramesUsed = resampleProc(actualSrcBuffer, sizeInFrames, dstBuffer, MAXIMUM_BUFFER_SIZE_IN_FRAMES_FOR_PROCESSING << 1, ret.srcFramesUsed);
+		statsTime = statsEnd(STATS_STAGE_RESAMPLE, statsTime, ret.dstFramesUsed);
 
-	effectProc(dstBuffer, ret.dstFramesUsed);
+		if (!jsrcBuffer)
+			env->ReleasePrimitiveArrayCritical(jsrcArray, srcBuffer, JNI_ABORT);
+
+		effectProc(dstBuffer, ret.dstFramesUsed);
+	}
+	statsTime = statsEnd(STATS_STAGE_EFFECTS, statsTime, ret.dstFramesUsed);
+
+	advanceVisualizer(dstBuffer, ret.dstFramesUsed);
+	statsEnd(STATS_STAGE_VISUALIZER, statsTime, ret.dstFramesUsed);
 
 	if (!jdstBuffer)
 		env->ReleasePrimitiveArrayCritical(jdstArray, dstBuffer, 0);
 
+	statsEnd(STATS_STAGE_WRITE, statsWriteStart, ret.dstFramesUsed);
+
 	return ret.val;
 }
 
@@ -237,13 +259,28 @@ int64_t JNICALL audioTrackProcessNativeEffects(JNIEnv* env, jclass clazz, uint64
 	if (!dstBuffer)
 		return -SL_RESULT_MEMORY_FAILURE;
 
+	const int64_t statsWriteStart = statsBegin();
+	int64_t statsTime = statsWriteStart;
+
 	WriteRet ret;
 	ret.srcFramesUsed = 0;
-	ret.dstFramesUsed = resampleProc((int16_t*)(((MediaCodec*)nativeObj)->buffer + offsetInBytes), sizeInFrames, dstBuffer, MAXIMUM_BUFFER_SIZE_IN_FRAMES_FOR_PROCESSING << 1, ret.srcFramesUsed);
+	if (effectFloatProc && effectsFloatSamples) {
+		ret.dstFramesUsed = resampleFloatProc((int16_t*)(((MediaCodec*)nativeObj)->buffer + offsetInBytes), sizeInFrames, effectsFloatSamples, MAXIMUM_BUFFER_SIZE_IN_FRAMES_FOR_PROCESSING << 1, ret.srcFramesUsed);
+		statsTime = statsEnd(STATS_STAGE_RESAMPLE, statsTime, ret.dstFramesUsed);
+
+		effectFloatProc(dstBuffer, ret.dstFramesUsed);
+	} else {
+		ret.dstFramesUsed = resampleProc((int16_t*)(((MediaCodec*)nativeObj)->buffer + offsetInBytes), sizeInFrames, dstBuffer, MAXIMUM_BUFFER_SIZE_IN_FRAMES_FOR_PROCESSING << 1, ret.srcFramesUsed);
+		statsTime = statsEnd(STATS_STAGE_RESAMPLE, statsTime, ret.dstFramesUsed);
+
+		effectProc(dstBuffer, ret.dstFramesUsed);
+	}
+	statsTime = statsEnd(STATS_STAGE_EFFECTS, statsTime, ret.dstFramesUsed);
 
 	advanceVisualizer(dstBuffer, ret.dstFramesUsed);
+	statsEnd(STATS_STAGE_VISUALIZER, statsTime, ret.dstFramesUsed);
 
-	effectProc(dstBuffer, ret.dstFramesUsed);
+	statsEnd(STATS_STAGE_WRITE, statsWriteStart, ret.dstFramesUsed);
 
 	return ret.val;
 }
@@ -304,11 +341,16 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM* vm, void* reserved) {
 	initializeMediaCodec();
 	initializeResampler();
 	initializeVisualizer();
+	initializeStats();
 	tmpSwapBufferForAudioTrack = 0;
 
 	JNINativeMethod methodTable[] = {
 		{"getProcessorFeatures", "()I", (void*)getProcessorFeatures},
 		{"updateSrcParams", "(III)V", (void*)updateSrcParams},
+		{"enableHighQualityResampling", "(I)V", (void*)enableHighQualityResampling},
+		{"statsEnable", "(I)V", (void*)statsEnable},
+		{"statsResetAll", "()V", (void*)statsResetAll},
+		{"statsGet", "([J)V", (void*)statsGet},
 		{"getCurrentAutomaticEffectsGainInMB", "()I", (void*)getCurrentAutomaticEffectsGainInMB},
 		{"enableAutomaticEffectsGain", "(I)V", (void*)enableAutomaticEffectsGain},
 		{"isAutomaticEffectsGainEnabled", "()I", (void*)isAutomaticEffectsGainEnabled},
@@ -350,7 +392,8 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM* vm, void* reserved) {
 		{"visualizerStart", "(II)I", (void*)visualizerStart},
 		{"visualizerStop", "()V", (void*)visualizerStop},
 		{"visualizerZeroOut", "()V", (void*)visualizerZeroOut},
-		{"visualizerGetWaveform", "([BI)V", (void*)visualizerGetWaveform}
+		{"visualizerGetWaveform", "([BI)V", (void*)visualizerGetWaveform},
+		{"visualizerGetWaveformAt", "([BJII)I", (void*)visualizerGetWaveformAt}
 	};
 	JNIEnv* env;
 	if (vm->GetEnv((void**)&env, JNI_VERSION_1_6) != JNI_OK)
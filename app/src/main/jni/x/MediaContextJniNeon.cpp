@@ -49,54 +49,19 @@ extern float effectsGainRecoveryOne[] __attribute__((aligned(16))),
 extern EqualizerCoefs equalizerCoefs[] __attribute__((aligned(16)));
 extern EqualizerState equalizerStates[] __attribute__((aligned(16)));
 extern float *effectsFloatSamples;
+extern uint32_t effectsDitherState[] __attribute__((aligned(16)));
+extern void updateEqualizerParams(uint32_t sizeInFrames);
 
 //http://infocenter.arm.com/help/index.jsp?topic=/com.arm.doc.dui0491h/CIHJBEFE.html
 
-void processEffectsNeon(int16_t* buffer, uint32_t sizeInFrames) {
-	//a few buggy devices change the audio sink so fast and so repeatedly,
-    //that this case indeed happens... :(
-	if (!effectsFloatSamples)
-		return;
-
-	if (effectsMinimumAmountOfFramesToReduce <= 0)
-		effectsFramesBeforeRecoveringGain -= sizeInFrames;
-	else
-		effectsMinimumAmountOfFramesToReduce -= sizeInFrames;
-
-	if (!(effectsEnabled & (EQUALIZER_ENABLED | BASSBOOST_ENABLED)) || !equalizerActuallyUsedGainInMillibels[BAND_COUNT - 1]) {
-		const uint32_t sizeInShortsEven = (sizeInFrames & ~1) << 1; //each frame has 2 shorts!
-		for (int32_t i = 0; i < sizeInShortsEven; i += 4) { //this loop processes 4 shorts (or 2 stereo frames - L R L R) at a time
-			const int16x4_t bufferLRLRs16 = vld1_s16(buffer + i);
-			const int32x4_t bufferLRLRs32 = vmovl_s16(bufferLRLRs16);
-			vst1q_f32(effectsFloatSamples + i, vcvtq_f32_s32(bufferLRLRs32));
-		}
-		if ((sizeInFrames & 1)) {
-			//last frame (there was an odd number of frames)
-			effectsFloatSamples[(sizeInFrames << 1) - 2] = (float)buffer[(sizeInFrames << 1) - 2];
-			effectsFloatSamples[(sizeInFrames << 1) - 1] = (float)buffer[(sizeInFrames << 1) - 1];
-		}
-	}
-
+//runs the equalizer (which also does the bass boost), the virtualizer and the automatic gain
+//over effectsFloatSamples, and performs the final (and only) quantization into buffer
+static void processEffectsFilterAndQuantizeNeon(int16_t* buffer, uint32_t sizeInFrames) {
 	if ((effectsEnabled & (EQUALIZER_ENABLED | BASSBOOST_ENABLED))) {
-		if (equalizerActuallyUsedGainInMillibels[BAND_COUNT - 1]) {
-			const float32x4_t lastBandGain = vdupq_n_f32(equalizerLastBandGain[0]);
-			const uint32_t sizeInShortsEven = (sizeInFrames & ~1) << 1; //each frame has 2 shorts!
-			for (int32_t i = 0; i < sizeInShortsEven; i += 4) { //this loop processes 4 shorts (or 2 stereo frames - L R L R) at a time
-				const int16x4_t bufferLRLRs16 = vld1_s16(buffer + i);
-				const int32x4_t bufferLRLRs32 = vmovl_s16(bufferLRLRs16);
-				vst1q_f32(effectsFloatSamples + i, vmulq_f32(vcvtq_f32_s32(bufferLRLRs32), lastBandGain));
-			}
-			if ((sizeInFrames & 1)) {
-				//last frame (there was an odd number of frames)
-				effectsFloatSamples[(sizeInFrames << 1) - 2] = (float)buffer[(sizeInFrames << 1) - 2] * equalizerLastBandGain[0];
-				effectsFloatSamples[(sizeInFrames << 1) - 1] = (float)buffer[(sizeInFrames << 1) - 1] * equalizerLastBandGain[0];
-			}
-		}
-
 		//apply each filter in all samples before moving on to the next filter (band 0 = pre)
 		for (int32_t band = equalizerMaxBandCount - 2; band >= 1; band--) {
 			//if this band has no gain at all, we can skip it completely (there is no need to worry about
-			//equalizerStates[band - 1] because when any gain is changed, all states are zeroed out in updateGains())
+			//equalizerStates[band - 1] because it is zeroed out in setEqualizerParamsAsTarget() when the band is used again)
 			if (!equalizerActuallyUsedGainInMillibels[band])
 				continue;
 
@@ -145,6 +110,12 @@ void processEffectsNeon(int16_t* buffer, uint32_t sizeInFrames) {
 	const float32x2_t one = vld1_f32(effectsGainRecoveryOne);
 	const float32x2_t gainClipMul = vld1_f32((effectsMinimumAmountOfFramesToReduce > 0) ? effectsGainReductionPerFrame : ((effectsFramesBeforeRecoveringGain <= 0) ? effectsGainRecoveryPerFrame : effectsGainRecoveryOne));		
 	float* floatSamples = effectsFloatSamples;
+	uint32x4_t dither = vld1q_u32(effectsDitherState);
+	const uint32x4_t ditherMul = vdupq_n_u32(1664525);
+	const uint32x4_t ditherAdd = vdupq_n_u32(1013904223);
+	const float32x4_t ditherScale = vdupq_n_f32(1.0f / 4294967296.0f);
+	const uint32x2_t signMask = vdup_n_u32(0x80000000);
+	const uint32x2_t half = vdup_n_u32(0x3F000000); //0.5f
 
 	while ((sizeInFrames--)) {
 		const float32x2_t inLR = vmul_f32(vld1_f32(floatSamples), gainClip);
@@ -158,9 +129,14 @@ void processEffectsNeon(int16_t* buffer, uint32_t sizeInFrames) {
 
 		maxAbsSample = vmax_f32(maxAbsSample, vabs_f32(inLR));
 
-		//const int32_t iL = (int32_t)inL;
-		//const int32_t iR = (int32_t)inR;
-		const int32x2_t iLR = vcvt_s32_f32(inLR);
+		//TPDF dither (from -1 to 1 LSB) followed by rounding, instead of just truncating the samples
+		//{ L0, R0, L1, R1 } = ({ L0, R0, L1, R1 } * 1664525) + 1013904223
+		dither = vmlaq_u32(ditherAdd, dither, ditherMul);
+		const float32x4_t ditherF = vmulq_f32(vcvtq_f32_s32(vreinterpretq_s32_u32(dither)), ditherScale);
+		const float32x2_t inLRDithered = vadd_f32(inLR, vadd_f32(vget_low_f32(ditherF), vget_high_f32(ditherF)));
+		//round half away from zero: add 0.5 with the same sign as the sample, then truncate
+		const float32x2_t halfLR = vreinterpret_f32_u32(vorr_u32(vand_u32(vreinterpret_u32_f32(inLRDithered), signMask), half));
+		const int32x2_t iLR = vcvt_s32_f32(vadd_f32(inLRDithered, halfLR));
 
 		//buffer[0] = (iL >= 32767 ? 32767 : (iL <= -32768 ? -32768 : (int16_t)iL));
 		//buffer[1] = (iR >= 32767 ? 32767 : (iR <= -32768 ? -32768 : (int16_t)iR));
@@ -170,6 +146,8 @@ void processEffectsNeon(int16_t* buffer, uint32_t sizeInFrames) {
 		buffer += 2;
 	}
 
+	vst1q_u32(effectsDitherState, dither);
+
 	if (!effectsGainEnabled) {
 		effectsFramesBeforeRecoveringGain = 0x7FFFFFFF;
 		effectsMinimumAmountOfFramesToReduce = 0;
@@ -187,6 +165,81 @@ void processEffectsNeon(int16_t* buffer, uint32_t sizeInFrames) {
 	}
 }
 
+void processEffectsNeon(int16_t* buffer, uint32_t sizeInFrames) {
+	//a few buggy devices change the audio sink so fast and so repeatedly,
+    //that this case indeed happens... :(
+	if (!effectsFloatSamples)
+		return;
+
+	updateEqualizerParams(sizeInFrames);
+
+	if (effectsMinimumAmountOfFramesToReduce <= 0)
+		effectsFramesBeforeRecoveringGain -= sizeInFrames;
+	else
+		effectsMinimumAmountOfFramesToReduce -= sizeInFrames;
+
+	if (!(effectsEnabled & (EQUALIZER_ENABLED | BASSBOOST_ENABLED)) || !equalizerActuallyUsedGainInMillibels[BAND_COUNT - 1]) {
+		const uint32_t sizeInShortsEven = (sizeInFrames & ~1) << 1; //each frame has 2 shorts!
+		for (int32_t i = 0; i < sizeInShortsEven; i += 4) { //this loop processes 4 shorts (or 2 stereo frames - L R L R) at a time
+			const int16x4_t bufferLRLRs16 = vld1_s16(buffer + i);
+			const int32x4_t bufferLRLRs32 = vmovl_s16(bufferLRLRs16);
+			vst1q_f32(effectsFloatSamples + i, vcvtq_f32_s32(bufferLRLRs32));
+		}
+		if ((sizeInFrames & 1)) {
+			//last frame (there was an odd number of frames)
+			effectsFloatSamples[(sizeInFrames << 1) - 2] = (float)buffer[(sizeInFrames << 1) - 2];
+			effectsFloatSamples[(sizeInFrames << 1) - 1] = (float)buffer[(sizeInFrames << 1) - 1];
+		}
+	}
+
+	if ((effectsEnabled & (EQUALIZER_ENABLED | BASSBOOST_ENABLED))) {
+		if (equalizerActuallyUsedGainInMillibels[BAND_COUNT - 1]) {
+			const float32x4_t lastBandGain = vdupq_n_f32(equalizerLastBandGain[0]);
+			const uint32_t sizeInShortsEven = (sizeInFrames & ~1) << 1; //each frame has 2 shorts!
+			for (int32_t i = 0; i < sizeInShortsEven; i += 4) { //this loop processes 4 shorts (or 2 stereo frames - L R L R) at a time
+				const int16x4_t bufferLRLRs16 = vld1_s16(buffer + i);
+				const int32x4_t bufferLRLRs32 = vmovl_s16(bufferLRLRs16);
+				vst1q_f32(effectsFloatSamples + i, vmulq_f32(vcvtq_f32_s32(bufferLRLRs32), lastBandGain));
+			}
+			if ((sizeInFrames & 1)) {
+				//last frame (there was an odd number of frames)
+				effectsFloatSamples[(sizeInFrames << 1) - 2] = (float)buffer[(sizeInFrames << 1) - 2] * equalizerLastBandGain[0];
+				effectsFloatSamples[(sizeInFrames << 1) - 1] = (float)buffer[(sizeInFrames << 1) - 1] * equalizerLastBandGain[0];
+			}
+		}
+	}
+
+	processEffectsFilterAndQuantizeNeon(buffer, sizeInFrames);
+}
+
+void processEffectsFloatNeon(int16_t* buffer, uint32_t sizeInFrames) {
+	//the samples have already been written to effectsFloatSamples by the resampler,
+	//without being quantized to 16 bits first
+	if (!effectsFloatSamples)
+		return;
+
+	updateEqualizerParams(sizeInFrames);
+
+	if (effectsMinimumAmountOfFramesToReduce <= 0)
+		effectsFramesBeforeRecoveringGain -= sizeInFrames;
+	else
+		effectsMinimumAmountOfFramesToReduce -= sizeInFrames;
+
+	if ((effectsEnabled & (EQUALIZER_ENABLED | BASSBOOST_ENABLED)) && equalizerActuallyUsedGainInMillibels[BAND_COUNT - 1]) {
+		const float32x4_t lastBandGain = vdupq_n_f32(equalizerLastBandGain[0]);
+		const uint32_t sizeInFloatsEven = (sizeInFrames & ~1) << 1; //each frame has 2 floats!
+		for (int32_t i = 0; i < sizeInFloatsEven; i += 4) //this loop processes 4 floats (or 2 stereo frames - L R L R) at a time
+			vst1q_f32(effectsFloatSamples + i, vmulq_f32(vld1q_f32(effectsFloatSamples + i), lastBandGain));
+		if ((sizeInFrames & 1)) {
+			//last frame (there was an odd number of frames)
+			effectsFloatSamples[(sizeInFrames << 1) - 2] *= equalizerLastBandGain[0];
+			effectsFloatSamples[(sizeInFrames << 1) - 1] *= equalizerLastBandGain[0];
+		}
+	}
+
+	processEffectsFilterAndQuantizeNeon(buffer, sizeInFrames);
+}
+
 extern uint32_t resamplePendingAdvances, resampleCoeffLen, resampleCoeffIdx, resampleAdvanceIdx;
 //extern float *resampleCoeff;
 extern int32_t *resampleCoeffINT;
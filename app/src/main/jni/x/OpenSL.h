@@ -59,6 +59,7 @@ void resetOpenSL() {
 	resetVisualizer();
 	currentlyCommittedFrames = 0;
 	headPositionInFrames = 0;
+	visualizerPublishHeadPosition(0);
 	bufferWriteIndex = 0;
 	bufferReadIndex = 0;
 	writtenBufferCount = 0;
@@ -95,6 +96,7 @@ void openSLBufferCallback(SLAndroidSimpleBufferQueueItf bq, void *context) {
 	if (bq == bqPlayerBufferQueue && (void*)contextVersion == context) {
 		//this is an always incrementing counter
 		headPositionInFrames += singleBufferSizeInFrames;
+		visualizerPublishHeadPosition(headPositionInFrames);
 
 		if ((++bufferReadIndex) >= bufferCount)
 			bufferReadIndex = 0;
@@ -102,6 +104,17 @@ void openSLBufferCallback(SLAndroidSimpleBufferQueueItf bq, void *context) {
 	}
 }
 
+void openSLUpdateQueueStats() {
+	if (!statsEnabled)
+		return;
+	//buffers still waiting to be played, right before a new one is enqueued
+	//(if there was none, the sink ran out of data before we could produce the next buffer)
+	const uint32_t queuedBuffers = writtenBufferCount - playedBufferCount;
+	if (!queuedBuffers && writtenBufferCount)
+		statsUnderrunCount++;
+	statsQueue(queuedBuffers);
+}
+
 void JNICALL openSLRelease(JNIEnv* env, jclass clazz) {
 	contextVersion++;
 
@@ -201,6 +214,7 @@ int32_t JNICALL openSLCreate(JNIEnv* env, jclass clazz, uint32_t dstSampleRate,
 
 	if (::bufferCount != bufferCount || ::singleBufferSizeInFrames != singleBufferSizeInFrames) {
 		::bufferCount = bufferCount;
+		statsBufferCount = bufferCount;
 		::singleBufferSizeInFrames = singleBufferSizeInFrames;
 		singleBufferSizeInBytes = singleBufferSizeInFrames << 2;
 		bufferSizeInFrames = bufferCount * singleBufferSizeInFrames;
@@ -344,6 +358,9 @@ int64_t JNICALL openSLWriteNative(JNIEnv* env, jclass clazz, uint64_t nativeObj,
 	//we always output stereo audio, regardless of the input config
 	int16_t* const dstBuffer = (int16_t*)(fullBuffer + (bufferWriteIndex * singleBufferSizeInBytes));
 
+	const int64_t statsWriteStart = statsBegin();
+	int64_t statsTime = statsWriteStart;
+
 	WriteRet ret;
 	ret.srcFramesUsed = 0;
 
@@ -352,6 +369,7 @@ int64_t JNICALL openSLWriteNative(JNIEnv* env, jclass clazz, uint64_t nativeObj,
 	if (nativeObj) {
 		//dstBuffer must always be filled with stereo frames
 		ret.dstFramesUsed = resampleProc((int16_t*)(((MediaCodec*)nativeObj)->buffer + offsetInBytes), sizeInFrames, (int16_t*)((uint8_t*)dstBuffer + (currentlyCommittedFrames << 2)), singleBufferSizeInFrames - currentlyCommittedFrames, ret.srcFramesUsed);
+		statsTime = statsEnd(STATS_STAGE_RESAMPLE, statsTime, ret.dstFramesUsed);
 
 		currentlyCommittedFrames += ret.dstFramesUsed;
 
@@ -373,14 +391,19 @@ int64_t JNICALL openSLWriteNative(JNIEnv* env, jclass clazz, uint64_t nativeObj,
 
 	currentlyCommittedFrames = 0;
 
-	advanceVisualizer(dstBuffer, singleBufferSizeInFrames);
-
 	//we must not process too many samples at once, because the AGC algorithm expects at most ~1k samples
 	int16_t* procBuffer = dstBuffer;
 	for (uint32_t i = 0; i < processingBufferCount; i++, procBuffer += (processingBufferSizeInFrames << 1))
 		effectProc(procBuffer, processingBufferSizeInFrames);
 	if (finalProcessingBufferSizeInFrames)
 		effectProc(procBuffer, finalProcessingBufferSizeInFrames);
+	statsTime = statsEnd(STATS_STAGE_EFFECTS, statsTime, singleBufferSizeInFrames);
+
+	//the visualizer shows what is actually going to be heard (after the effects)
+	advanceVisualizer(dstBuffer, singleBufferSizeInFrames);
+	statsEnd(STATS_STAGE_VISUALIZER, statsTime, singleBufferSizeInFrames);
+
+	openSLUpdateQueueStats();
 
 	if ((++bufferWriteIndex) >= bufferCount)
 		bufferWriteIndex = 0;
@@ -390,6 +413,8 @@ int64_t JNICALL openSLWriteNative(JNIEnv* env, jclass clazz, uint64_t nativeObj,
 	if (result != SL_RESULT_SUCCESS)
 		return -(abs((int32_t)result));
 
+	statsEnd(STATS_STAGE_WRITE, statsWriteStart, singleBufferSizeInFrames);
+
 	return ret.val;
 }
 
@@ -408,6 +433,9 @@ int64_t JNICALL openSLWrite(JNIEnv* env, jclass clazz, jbyteArray jarray, jobjec
 	//we always output stereo audio, regardless of the input config
 	int16_t* const dstBuffer = (int16_t*)(fullBuffer + (bufferWriteIndex * singleBufferSizeInBytes));
 
+	const int64_t statsWriteStart = statsBegin();
+	int64_t statsTime = statsWriteStart;
+
 	WriteRet ret;
 	ret.srcFramesUsed = 0;
 
@@ -441,6 +469,8 @@ int64_t JNICALL openSLWrite(JNIEnv* env, jclass clazz, jbyteArray jarray, jobjec
 		env->ReleasePrimitiveArrayCritical(jarray, srcBuffer, JNI_ABORT);
 	}
 
+	statsTime = statsEnd(STATS_STAGE_RESAMPLE, statsTime, ret.dstFramesUsed);
+
 	currentlyCommittedFrames += ret.dstFramesUsed;
 
 	//if the buffer is not full enough, do not commit the buffer
@@ -453,14 +483,19 @@ int64_t JNICALL openSLWrite(JNIEnv* env, jclass clazz, jbyteArray jarray, jobjec
 
 	currentlyCommittedFrames = 0;
 
-	advanceVisualizer(dstBuffer, singleBufferSizeInFrames);
-
 	//we must not process too many samples at once, because the AGC algorithm expects at most ~1k samples
 	int16_t* procBuffer = dstBuffer;
 	for (uint32_t i = 0; i < processingBufferCount; i++, procBuffer += (processingBufferSizeInFrames << 1))
 		effectProc(procBuffer, processingBufferSizeInFrames);
 	if (finalProcessingBufferSizeInFrames)
 		effectProc(procBuffer, finalProcessingBufferSizeInFrames);
+	statsTime = statsEnd(STATS_STAGE_EFFECTS, statsTime, singleBufferSizeInFrames);
+
+	//the visualizer shows what is actually going to be heard (after the effects)
+	advanceVisualizer(dstBuffer, singleBufferSizeInFrames);
+	statsEnd(STATS_STAGE_VISUALIZER, statsTime, singleBufferSizeInFrames);
+
+	openSLUpdateQueueStats();
 
 	if ((++bufferWriteIndex) >= bufferCount)
 		bufferWriteIndex = 0;
@@ -470,5 +505,7 @@ int64_t JNICALL openSLWrite(JNIEnv* env, jclass clazz, jbyteArray jarray, jobjec
 	if (result != SL_RESULT_SUCCESS)
 		return -(abs((int32_t)result));
 
+	statsEnd(STATS_STAGE_WRITE, statsWriteStart, singleBufferSizeInFrames);
+
 	return ret.val;
 }
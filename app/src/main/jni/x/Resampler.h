@@ -32,6 +32,9 @@
 //
 
 typedef uint32_t (*RESAMPLEPROC)(int16_t* srcBuffer, uint32_t srcSizeInFrames, int16_t* dstBuffer, uint32_t dstSizeInFrames, uint32_t& srcFramesUsed);
+//same as RESAMPLEPROC, but the output is left as floats (stereo, not clipped, in the same
+//scale as int16_t) so the effects can take them without an intermediate 16-bit quantization
+typedef uint32_t (*RESAMPLEFLOATPROC)(int16_t* srcBuffer, uint32_t srcSizeInFrames, float* dstBuffer, uint32_t dstSizeInFrames, uint32_t& srcFramesUsed);
 
 #ifdef FPLAY_ARM
 //extern uint32_t resampleLagrangeNeon(int16_t* srcBuffer, uint32_t srcSizeInFrames, int16_t* dstBuffer, uint32_t dstSizeInFrames, uint32_t& srcFramesUsed);
@@ -51,11 +54,21 @@ uint32_t *resampleAdvance;
 #ifdef FPLAY_X86
 float resampleY[20] __attribute__((aligned(16)));
 static float *resampleCoeffOriginal;
+//the float versions share the state (and the coefficients) with the regular versions,
+//so it is possible to switch between them at any time
+#define resampleYFloat resampleY
+#define resampleCoeffFloat resampleCoeff
 #else
 int32_t resampleYINT[20] __attribute__((aligned(16)));
 static int32_t *resampleCoeffOriginalINT;
+//the float versions share the state with the regular versions, so it is possible to switch
+//between them at any time (on ARM, the samples in resampleYINT are not scaled, only the
+//coefficients are, therefore a float copy of the coefficients is created in resampleComputeCoeffsINT())
+#define resampleYFloat resampleYINT
+static float *resampleCoeffFloat;
 #endif
 static RESAMPLEPROC resampleProc;
+static RESAMPLEFLOATPROC resampleFloatProc;
 
 uint32_t resampleNull(int16_t* srcBuffer, uint32_t srcSizeInFrames, int16_t* dstBuffer, uint32_t dstSizeInFrames, uint32_t& srcFramesUsed) {
 	//nothing to be done but copying from source to destination
@@ -444,6 +457,242 @@ uint32_t resampleLagrangeMonoINT(int16_t* srcBuffer, uint32_t srcSizeInFrames, i
 }
 #endif
 
+uint32_t resampleNullFloat(int16_t* srcBuffer, uint32_t srcSizeInFrames, float* dstBuffer, uint32_t dstSizeInFrames, uint32_t& srcFramesUsed) {
+	if (srcSizeInFrames > dstSizeInFrames)
+		srcSizeInFrames = dstSizeInFrames;
+	const uint32_t sizeInShorts = srcSizeInFrames << 1;
+	for (uint32_t i = 0; i < sizeInShorts; i++)
+		dstBuffer[i] = (float)srcBuffer[i];
+	srcFramesUsed = srcSizeInFrames;
+	return srcSizeInFrames;
+}
+
+uint32_t resampleNullMonoFloat(int16_t* srcBuffer, uint32_t srcSizeInFrames, float* dstBuffer, uint32_t dstSizeInFrames, uint32_t& srcFramesUsed) {
+	if (srcSizeInFrames > dstSizeInFrames)
+		srcSizeInFrames = dstSizeInFrames;
+	else
+		dstSizeInFrames = srcSizeInFrames;
+	while (dstSizeInFrames--) {
+		const float f = (float)*srcBuffer++;
+		*dstBuffer++ = f;
+		*dstBuffer++ = f;
+	}
+	srcFramesUsed = srcSizeInFrames;
+	return srcSizeInFrames;
+}
+
+//these are exactly like resampleLagrange()/resampleLagrangeINT() and resampleLagrangeMono()/resampleLagrangeMonoINT(),
+//but they neither round nor clip the output (the effects will do that later, only once)
+#ifdef FPLAY_X86
+uint32_t resampleLagrangeFloat(int16_t* srcBuffer, uint32_t srcSizeInFrames, float* dstBuffer, uint32_t dstSizeInFrames, uint32_t& srcFramesUsed) {
+	uint32_t usedSrc = 0, usedDst = 0;
+
+	while (resamplePendingAdvances) {
+		resamplePendingAdvances--;
+
+		for (int32_t i = 0; i < 9; i++)
+			((uint64_t*)resampleY)[i] = ((uint64_t*)resampleY)[i + 1];
+		resampleY[18] = (float)srcBuffer[0];
+		resampleY[19] = (float)srcBuffer[1];
+
+		usedSrc++;
+		srcBuffer += 2;
+
+		if (usedSrc >= srcSizeInFrames) {
+			srcFramesUsed = usedSrc;
+			return usedDst;
+		}
+	}
+
+	__m128 y0_y1 = _mm_load_ps(resampleY);
+	__m128 y2_y3 = _mm_load_ps(resampleY + 4);
+	__m128 y4_y5 = _mm_load_ps(resampleY + 8);
+	__m128 y6_y7 = _mm_load_ps(resampleY + 12);
+	__m128 y8_y9 = _mm_load_ps(resampleY + 16);
+
+	while (usedDst < dstSizeInFrames) {
+		const float* const coeff = resampleCoeff + resampleCoeffIdx;
+		__m128 outLR = _mm_mul_ps(_mm_load_ps(coeff), y0_y1);
+		outLR = _mm_add_ps(outLR, _mm_mul_ps(_mm_load_ps(coeff + 4), y2_y3));
+		outLR = _mm_add_ps(outLR, _mm_mul_ps(_mm_load_ps(coeff + 8), y4_y5));
+		outLR = _mm_add_ps(outLR, _mm_mul_ps(_mm_load_ps(coeff + 12), y6_y7));
+		outLR = _mm_add_ps(outLR, _mm_mul_ps(_mm_load_ps(coeff + 16), y8_y9));
+		__m128 outLRhi;
+		outLR = _mm_add_ps(outLR, _mm_movehl_ps(outLRhi, outLR));
+		_mm_storel_pi((__m64*)dstBuffer, outLR);
+		dstBuffer += 2;
+		usedDst++;
+
+		resampleCoeffIdx += 20;
+		resampleAdvanceIdx++;
+		if (resampleCoeffIdx >= resampleCoeffLen) {
+			resampleCoeffIdx = 0;
+			resampleAdvanceIdx = 0;
+		}
+		resamplePendingAdvances = resampleAdvance[resampleAdvanceIdx];
+
+		while (resamplePendingAdvances) {
+			resamplePendingAdvances--;
+
+			effectsTemp[0] = (int32_t)srcBuffer[0];
+			effectsTemp[1] = (int32_t)srcBuffer[1];
+			y0_y1 = _mm_shuffle_ps(y0_y1, y2_y3, 78); //78 = 0100 1110 (from hi to lo: b1 b0 a3 a2)
+			y2_y3 = _mm_shuffle_ps(y2_y3, y4_y5, 78);
+			y4_y5 = _mm_shuffle_ps(y4_y5, y6_y7, 78);
+			y6_y7 = _mm_shuffle_ps(y6_y7, y8_y9, 78);
+			__m128 inLR;
+			inLR = _mm_cvtpi32_ps(inLR, *((__m64*)effectsTemp));
+			y8_y9 = _mm_shuffle_ps(y8_y9, inLR, 78);
+
+			usedSrc++;
+			srcBuffer += 2;
+
+			if (usedSrc >= srcSizeInFrames) {
+				_mm_store_ps(resampleY, y0_y1);
+				_mm_store_ps(resampleY + 4, y2_y3);
+				_mm_store_ps(resampleY + 8, y4_y5);
+				_mm_store_ps(resampleY + 12, y6_y7);
+				_mm_store_ps(resampleY + 16, y8_y9);
+
+				srcFramesUsed = usedSrc;
+				return usedDst;
+			}
+		}
+	}
+
+	_mm_store_ps(resampleY, y0_y1);
+	_mm_store_ps(resampleY + 4, y2_y3);
+	_mm_store_ps(resampleY + 8, y4_y5);
+	_mm_store_ps(resampleY + 12, y6_y7);
+	_mm_store_ps(resampleY + 16, y8_y9);
+
+	srcFramesUsed = usedSrc;
+	return usedDst;
+}
+#else
+uint32_t resampleLagrangeFloat(int16_t* srcBuffer, uint32_t srcSizeInFrames, float* dstBuffer, uint32_t dstSizeInFrames, uint32_t& srcFramesUsed) {
+	uint32_t usedSrc = 0, usedDst = 0;
+
+	while (resamplePendingAdvances) {
+		resamplePendingAdvances--;
+
+		for (int32_t i = 0; i < 18; i += 2) {
+			resampleYFloat[i] = resampleYFloat[i + 2];
+			resampleYFloat[i + 1] = resampleYFloat[i + 3];
+		}
+		resampleYFloat[18] = srcBuffer[0];
+		resampleYFloat[19] = srcBuffer[1];
+
+		usedSrc++;
+		srcBuffer += 2;
+
+		if (usedSrc >= srcSizeInFrames) {
+			srcFramesUsed = usedSrc;
+			return usedDst;
+		}
+	}
+
+	while (usedDst < dstSizeInFrames) {
+		const float* const coeff = resampleCoeffFloat + resampleCoeffIdx;
+		float outL = 0.0f, outR = 0.0f;
+		for (int32_t i = 0; i < 20; i += 2) {
+			outL += (float)resampleYFloat[i] * coeff[i];
+			outR += (float)resampleYFloat[i + 1] * coeff[i + 1];
+		}
+		*dstBuffer++ = outL;
+		*dstBuffer++ = outR;
+		usedDst++;
+
+		resampleCoeffIdx += 20;
+		resampleAdvanceIdx++;
+		if (resampleCoeffIdx >= resampleCoeffLen) {
+			resampleCoeffIdx = 0;
+			resampleAdvanceIdx = 0;
+		}
+		resamplePendingAdvances = resampleAdvance[resampleAdvanceIdx];
+
+		while (resamplePendingAdvances) {
+			resamplePendingAdvances--;
+
+			for (int32_t i = 0; i < 18; i += 2) {
+				resampleYFloat[i] = resampleYFloat[i + 2];
+				resampleYFloat[i + 1] = resampleYFloat[i + 3];
+			}
+			resampleYFloat[18] = srcBuffer[0];
+			resampleYFloat[19] = srcBuffer[1];
+
+			usedSrc++;
+			srcBuffer += 2;
+
+			if (usedSrc >= srcSizeInFrames) {
+				srcFramesUsed = usedSrc;
+				return usedDst;
+			}
+		}
+	}
+
+	srcFramesUsed = usedSrc;
+	return usedDst;
+}
+#endif
+
+uint32_t resampleLagrangeMonoFloat(int16_t* srcBuffer, uint32_t srcSizeInFrames, float* dstBuffer, uint32_t dstSizeInFrames, uint32_t& srcFramesUsed) {
+	uint32_t usedSrc = 0, usedDst = 0;
+
+	while (resamplePendingAdvances) {
+		resamplePendingAdvances--;
+
+		for (int32_t i = 0; i < 9; i++)
+			resampleYFloat[i] = resampleYFloat[i + 1];
+		resampleYFloat[9] = srcBuffer[0];
+
+		usedSrc++;
+		srcBuffer++;
+
+		if (usedSrc >= srcSizeInFrames) {
+			srcFramesUsed = usedSrc;
+			return usedDst;
+		}
+	}
+
+	while (usedDst < dstSizeInFrames) {
+		const float* const coeff = resampleCoeffFloat + resampleCoeffIdx;
+		float out = 0.0f;
+		for (int32_t i = 0; i < 10; i++)
+			out += (float)resampleYFloat[i] * coeff[i << 1];
+		*dstBuffer++ = out;
+		*dstBuffer++ = out;
+		usedDst++;
+
+		resampleCoeffIdx += 20;
+		resampleAdvanceIdx++;
+		if (resampleCoeffIdx >= resampleCoeffLen) {
+			resampleCoeffIdx = 0;
+			resampleAdvanceIdx = 0;
+		}
+		resamplePendingAdvances = resampleAdvance[resampleAdvanceIdx];
+
+		while (resamplePendingAdvances) {
+			resamplePendingAdvances--;
+
+			for (int32_t i = 0; i < 9; i++)
+				resampleYFloat[i] = resampleYFloat[i + 1];
+			resampleYFloat[9] = srcBuffer[0];
+
+			usedSrc++;
+			srcBuffer++;
+
+			if (usedSrc >= srcSizeInFrames) {
+				srcFramesUsed = usedSrc;
+				return usedDst;
+			}
+		}
+	}
+
+	srcFramesUsed = usedSrc;
+	return usedDst;
+}
+
 #ifdef FPLAY_X86
 void resampleComputeCoeffs() {
 	static const uint32_t resampleFirstPrimes[8] = { 2, 3, 5, 7, 11, 13, 17, 19 };
@@ -620,9 +869,300 @@ void resampleComputeCoeffsINT() {
 
 		coeff += 20;
 	}
+
+	//the float versions use the same (already quantized) coefficients, so both versions produce the same output
+	if (resampleCoeffFloat)
+		delete resampleCoeffFloat;
+	resampleCoeffFloat = new float[resampleCoeffLen];
+	for (uint32_t i = 0; i < resampleCoeffLen; i++)
+		resampleCoeffFloat[i] = (float)resampleCoeffINT[i] * (1.0f / 1073741824.0f);
 }
 #endif
 
+//------------------------------------------------------------------------
+//polyphase windowed-sinc resampler
+//
+//the Lagrange polynomials above do not filter anything, which is fine for
+//upsampling, but makes downsampling alias (that's why it was only used to go
+//from 48000 Hz to 44100 Hz)
+//
+//here, each output frame is computed by a FIR low-pass filter (a sinc windowed
+//by a Kaiser window), whose coefficients depend only on the fractional position
+//of that output frame between two input frames. as the ratio between the sample
+//rates is a ratio between two integers (factSrc / factDst), there are only factDst
+//different fractional positions (phases), so all filters are computed only once,
+//and stored in a table (one table per ratio, kept in a small cache, so switching
+//between songs at 44100 Hz and songs at 48000 Hz does not recompute anything)
+//
+//the cost per output frame is fixed: RESAMPLE_POLYPHASE_TAPS multiply-adds per
+//channel when upsampling, and RESAMPLE_POLYPHASE_TAPS * factSrc / factDst when
+//downsampling (the cutoff frequency must be lowered, so the filter gets longer)
+//
+//the table is built by resetResampler(), which runs on the audio thread, and each
+//coefficient requires a Bessel function evaluation, so the tables are limited to
+//RESAMPLE_POLYPHASE_MAX_COEFFS coefficients (all common ratios fit, such as
+//44100 Hz <-> 48000 Hz or 22050 Hz -> 48000 Hz), and ratios with more phases than
+//that fall back to the Lagrange resampler
+//------------------------------------------------------------------------
+#define RESAMPLE_POLYPHASE_TAPS 80 //must be a multiple of 4
+#define RESAMPLE_POLYPHASE_MAX_TAPS 256 //ratios below 1/4 will use a shorter (worse) filter
+#define RESAMPLE_POLYPHASE_KAISER_BETA 8.0 //~80 dB of attenuation in the stop band
+#define RESAMPLE_POLYPHASE_CACHE_SIZE 4
+#define RESAMPLE_POLYPHASE_MAX_COEFFS (32 * 1024) //factDst * taps
+
+struct ResamplePolyphaseTable {
+	uint32_t factSrc, factDst, taps;
+	float* coeffOriginal;
+	float* coeff; //factDst rows of taps coefficients each
+	uint32_t* advance;
+};
+
+static ResamplePolyphaseTable resamplePolyphaseCache[RESAMPLE_POLYPHASE_CACHE_SIZE];
+static uint32_t resamplePolyphaseCacheNext, resampleHighQuality;
+static const ResamplePolyphaseTable* resamplePolyphaseTable;
+//the history is stored twice, one copy right after the other, so the last taps frames
+//are always contiguous in memory, starting at resamplePolyphaseY + (resamplePolyphaseYIdx << 1)
+static float resamplePolyphaseY[RESAMPLE_POLYPHASE_MAX_TAPS * 2 * 2] __attribute__((aligned(16)));
+static uint32_t resamplePolyphaseYIdx;
+
+static double resampleBesselI0(double x) {
+	//zeroth order modified Bessel function of the first kind (power series)
+	double sum = 1.0, term = 1.0;
+	const double halfX = x * 0.5;
+	for (int32_t k = 1; k < 64; k++) {
+		term *= halfX / (double)k;
+		const double term2 = term * term;
+		sum += term2;
+		if (term2 < (sum * 1e-12))
+			break;
+	}
+	return sum;
+}
+
+static uint32_t resamplePolyphaseTaps(uint32_t factSrc, uint32_t factDst) {
+	//ratio = min(1, dst / src)
+	const double ratio = ((factDst < factSrc) ? ((double)factDst / (double)factSrc) : 1.0);
+	const uint32_t taps = ((uint32_t)ceil((double)RESAMPLE_POLYPHASE_TAPS / ratio) + 3) & ~3;
+	return ((taps > RESAMPLE_POLYPHASE_MAX_TAPS) ? RESAMPLE_POLYPHASE_MAX_TAPS : taps);
+}
+
+static ResamplePolyphaseTable* resamplePolyphaseGetTable(uint32_t factSrc, uint32_t factDst, uint32_t taps) {
+	for (uint32_t i = 0; i < RESAMPLE_POLYPHASE_CACHE_SIZE; i++) {
+		if (resamplePolyphaseCache[i].coeff && resamplePolyphaseCache[i].factSrc == factSrc && resamplePolyphaseCache[i].factDst == factDst)
+			return &(resamplePolyphaseCache[i]);
+	}
+
+	ResamplePolyphaseTable* const table = &(resamplePolyphaseCache[resamplePolyphaseCacheNext]);
+	resamplePolyphaseCacheNext = (resamplePolyphaseCacheNext + 1) & (RESAMPLE_POLYPHASE_CACHE_SIZE - 1);
+	if (table->coeffOriginal)
+		delete table->coeffOriginal;
+	if (table->advance)
+		delete table->advance;
+
+	const double ratio = ((factDst < factSrc) ? ((double)factDst / (double)factSrc) : 1.0);
+	const uint32_t halfTaps = taps >> 1;
+
+	table->factSrc = factSrc;
+	table->factDst = factDst;
+	table->taps = taps;
+	table->coeffOriginal = new float[(factDst * taps) + 4];
+	//align memory on a 16-byte boundary (taps is a multiple of 4, so all rows are aligned)
+	if (((size_t)table->coeffOriginal & 15))
+		table->coeff = (float*)((size_t)table->coeffOriginal + 16 - ((size_t)table->coeffOriginal & 15));
+	else
+		table->coeff = table->coeffOriginal;
+	table->advance = new uint32_t[factDst];
+
+	//the transition band of a Kaiser-windowed filter with N taps is approximately
+	//(A - 7.95) / (14.36 * N) wide (A = attenuation in dB), so the cutoff frequency
+	//is placed half that width below the (new) Nyquist frequency, to attenuate
+	//everything that would alias
+	const double attenuation = (RESAMPLE_POLYPHASE_KAISER_BETA / 0.1102) + 8.7;
+	const double cutoff = (0.5 * ratio) - ((attenuation - 7.95) / (14.36 * (double)taps * 2.0));
+	const double invI0Beta = 1.0 / resampleBesselI0(RESAMPLE_POLYPHASE_KAISER_BETA);
+
+	const double src = (double)factSrc;
+	const double dst = (double)factDst;
+	uint32_t lastPhaseI = 0;
+	float* coeff = table->coeff + taps;
+
+	for (uint32_t i = 1; i <= factDst; i++) {
+		//exactly the same phase/advance logic used by resampleComputeCoeffs()
+		const double phase = ((double)i * src) / dst;
+		const uint32_t phaseI = (uint32_t)phase;
+		if (i == factDst) {
+			coeff = table->coeff;
+			table->advance[0] = phaseI - lastPhaseI;
+		} else {
+			table->advance[i] = phaseI - lastPhaseI;
+		}
+		lastPhaseI = phaseI;
+
+		//the point being computed lies between taps halfTaps - 1 and halfTaps
+		const double phaseFrac = phase - (double)phaseI;
+		double sum = 0.0;
+		for (uint32_t t = 0; t < taps; t++) {
+			const double d = phaseFrac + (double)(halfTaps - 1) - (double)t;
+			const double x = 2.0 * cutoff * d;
+			const double sinc = ((x > -1e-9 && x < 1e-9) ? 1.0 : (sin(M_PI * x) / (M_PI * x)));
+			const double w = d / (double)halfTaps;
+			const double window = ((w <= -1.0 || w >= 1.0) ? 0.0 : (resampleBesselI0(RESAMPLE_POLYPHASE_KAISER_BETA * sqrt(1.0 - (w * w))) * invI0Beta));
+			const double c = 2.0 * cutoff * sinc * window;
+			coeff[t] = (float)c;
+			sum += c;
+		}
+		//unity gain at DC for all phases
+		const float norm = (float)(1.0 / sum);
+		for (uint32_t t = 0; t < taps; t++)
+			coeff[t] *= norm;
+
+		coeff += taps;
+	}
+
+	return table;
+}
+
+//returns 0 when the table for the current ratio would be too large (the table is left untouched)
+static uint32_t resamplePolyphaseComputeCoeffs() {
+	static const uint32_t resampleFirstPrimes[8] = { 2, 3, 5, 7, 11, 13, 17, 19 };
+	uint32_t factSrc = srcSampleRate, factDst = dstSampleRate;
+
+	for (uint32_t i = 0; i < 8; i++) {
+		const uint32_t prime = resampleFirstPrimes[i];
+		while (!(factSrc % prime) && !(factDst % prime)) {
+			factSrc /= prime;
+			factDst /= prime;
+		}
+	}
+
+	const uint32_t taps = resamplePolyphaseTaps(factSrc, factDst);
+	if ((uint64_t)factDst * (uint64_t)taps > (uint64_t)RESAMPLE_POLYPHASE_MAX_COEFFS)
+		return 0;
+
+	resamplePolyphaseTable = resamplePolyphaseGetTable(factSrc, factDst, taps);
+	return 1;
+}
+
+static inline void resamplePolyphasePush(float l, float r) {
+	const uint32_t taps = resamplePolyphaseTable->taps;
+	float* const y = resamplePolyphaseY + (resamplePolyphaseYIdx << 1);
+	y[0] = l;
+	y[1] = r;
+	y[taps << 1] = l;
+	y[(taps << 1) + 1] = r;
+	resamplePolyphaseYIdx++;
+	if (resamplePolyphaseYIdx >= taps)
+		resamplePolyphaseYIdx = 0;
+}
+
+static inline void resamplePolyphaseFilter(const float* coeff, float& outL, float& outR) {
+	const uint32_t taps = resamplePolyphaseTable->taps;
+	const float* y = resamplePolyphaseY + (resamplePolyphaseYIdx << 1);
+#ifdef FPLAY_X86
+	__m128 acc0 = _mm_setzero_ps(), acc1 = _mm_setzero_ps();
+	for (uint32_t t = 0; t < taps; t += 4) {
+		//{ c0, c1, c2, c3 } -> { c0, c0, c1, c1 } and { c2, c2, c3, c3 }, to match { L0, R0, L1, R1 } and { L2, R2, L3, R3 }
+		const __m128 c = _mm_load_ps(coeff + t);
+		acc0 = _mm_add_ps(acc0, _mm_mul_ps(_mm_unpacklo_ps(c, c), _mm_loadu_ps(y)));
+		acc1 = _mm_add_ps(acc1, _mm_mul_ps(_mm_unpackhi_ps(c, c), _mm_loadu_ps(y + 4)));
+		y += 8;
+	}
+	acc0 = _mm_add_ps(acc0, acc1);
+	acc0 = _mm_add_ps(acc0, _mm_movehl_ps(acc1, acc0));
+	_mm_store_ss(&outL, acc0);
+	_mm_store_ss(&outR, _mm_shuffle_ps(acc0, acc0, 1));
+#else
+	float l = 0.0f, r = 0.0f;
+	for (uint32_t t = 0; t < taps; t++) {
+		l += coeff[t] * y[0];
+		r += coeff[t] * y[1];
+		y += 2;
+	}
+	outL = l;
+	outR = r;
+#endif
+}
+
+//mono sources are duplicated into both channels of the history, which costs a bit more,
+//but the output must be stereo anyway
+static inline uint32_t resamplePolyphaseCore(int16_t* srcBuffer, uint32_t srcSizeInFrames, int16_t* dstBuffer, float* dstBufferFloat, uint32_t dstSizeInFrames, uint32_t& srcFramesUsed, const uint32_t srcChannels) {
+	const ResamplePolyphaseTable* const table = resamplePolyphaseTable;
+	const uint32_t taps = table->taps;
+	uint32_t usedSrc = 0, usedDst = 0;
+
+	while (resamplePendingAdvances) {
+		resamplePendingAdvances--;
+
+		resamplePolyphasePush((float)srcBuffer[0], (float)srcBuffer[srcChannels - 1]);
+
+		usedSrc++;
+		srcBuffer += srcChannels;
+
+		if (usedSrc >= srcSizeInFrames) {
+			srcFramesUsed = usedSrc;
+			return usedDst;
+		}
+	}
+
+	while (usedDst < dstSizeInFrames) {
+		float outL, outR;
+		resamplePolyphaseFilter(table->coeff + resampleCoeffIdx, outL, outR);
+		if (dstBufferFloat) {
+			dstBufferFloat[0] = outL;
+			dstBufferFloat[1] = outR;
+			dstBufferFloat += 2;
+		} else {
+			const int32_t iL = (int32_t)(outL + ((outL >= 0.0f) ? 0.5f : -0.5f));
+			const int32_t iR = (int32_t)(outR + ((outR >= 0.0f) ? 0.5f : -0.5f));
+			dstBuffer[0] = (iL >= 32767 ? 32767 : (iL <= -32768 ? -32768 : (int16_t)iL));
+			dstBuffer[1] = (iR >= 32767 ? 32767 : (iR <= -32768 ? -32768 : (int16_t)iR));
+			dstBuffer += 2;
+		}
+		usedDst++;
+
+		resampleCoeffIdx += taps;
+		resampleAdvanceIdx++;
+		if (resampleAdvanceIdx >= table->factDst) {
+			resampleCoeffIdx = 0;
+			resampleAdvanceIdx = 0;
+		}
+		resamplePendingAdvances = table->advance[resampleAdvanceIdx];
+
+		while (resamplePendingAdvances) {
+			resamplePendingAdvances--;
+
+			resamplePolyphasePush((float)srcBuffer[0], (float)srcBuffer[srcChannels - 1]);
+
+			usedSrc++;
+			srcBuffer += srcChannels;
+
+			if (usedSrc >= srcSizeInFrames) {
+				srcFramesUsed = usedSrc;
+				return usedDst;
+			}
+		}
+	}
+
+	srcFramesUsed = usedSrc;
+	return usedDst;
+}
+
+uint32_t resamplePolyphase(int16_t* srcBuffer, uint32_t srcSizeInFrames, int16_t* dstBuffer, uint32_t dstSizeInFrames, uint32_t& srcFramesUsed) {
+	return resamplePolyphaseCore(srcBuffer, srcSizeInFrames, dstBuffer, 0, dstSizeInFrames, srcFramesUsed, 2);
+}
+
+uint32_t resamplePolyphaseMono(int16_t* srcBuffer, uint32_t srcSizeInFrames, int16_t* dstBuffer, uint32_t dstSizeInFrames, uint32_t& srcFramesUsed) {
+	return resamplePolyphaseCore(srcBuffer, srcSizeInFrames, dstBuffer, 0, dstSizeInFrames, srcFramesUsed, 1);
+}
+
+uint32_t resamplePolyphaseFloat(int16_t* srcBuffer, uint32_t srcSizeInFrames, float* dstBuffer, uint32_t dstSizeInFrames, uint32_t& srcFramesUsed) {
+	return resamplePolyphaseCore(srcBuffer, srcSizeInFrames, 0, dstBuffer, dstSizeInFrames, srcFramesUsed, 2);
+}
+
+uint32_t resamplePolyphaseMonoFloat(int16_t* srcBuffer, uint32_t srcSizeInFrames, float* dstBuffer, uint32_t dstSizeInFrames, uint32_t& srcFramesUsed) {
+	return resamplePolyphaseCore(srcBuffer, srcSizeInFrames, 0, dstBuffer, dstSizeInFrames, srcFramesUsed, 1);
+}
+
 void resetResamplerState() {
 	resamplePendingAdvances = 0;
 	resampleCoeffIdx = 0;
@@ -632,32 +1172,45 @@ void resetResamplerState() {
 #else
 	memset(resampleYINT, 0, sizeof(int32_t) * 20);
 #endif
+	resamplePolyphaseYIdx = 0;
+	memset(resamplePolyphaseY, 0, sizeof(float) * RESAMPLE_POLYPHASE_MAX_TAPS * 2 * 2);
 }
 
 void resetResampler() {
 	resetResamplerState();
 
 	if (srcSampleRate != dstSampleRate) {
+		//the polyphase resampler is used when it has been chosen, and also for all downsampling
+		//ratios the Lagrange resampler cannot handle (it is the only one which filters the signal),
+		//unless its table would take too long to be built
+		if ((resampleHighQuality || !((srcSampleRate == 48000 && dstSampleRate == 44100) ||
+			(srcSampleRate >= 8000 && dstSampleRate > srcSampleRate))) &&
+			resamplePolyphaseComputeCoeffs()) {
+			resampleProc = ((srcChannelCount == 2) ? resamplePolyphase : resamplePolyphaseMono);
+			resampleFloatProc = ((srcChannelCount == 2) ? resamplePolyphaseFloat : resamplePolyphaseMonoFloat);
+			return;
+		}
+
 #ifdef FPLAY_X86
 		resampleComputeCoeffs();
 #else
 		resampleComputeCoeffsINT();
 #endif
 
-		//downsampling is only performed from 48000 Hz to 44100 Hz because we are not
-		//applying any filters
-		if ((srcSampleRate == 48000 && dstSampleRate == 44100) ||
-			(srcSampleRate >= 8000 && dstSampleRate > srcSampleRate)) {
+		//we only get here when the Lagrange resampler can handle the ratio (upsampling, or
+		//48000 Hz to 44100 Hz, as it does not apply any filters), or when the polyphase table
+		//would be too large (in which case aliasing is better than playing at the wrong speed)
 #ifdef FPLAY_X86
-			resampleProc = ((srcChannelCount == 2) ? resampleLagrange : resampleLagrangeMono);
+		resampleProc = ((srcChannelCount == 2) ? resampleLagrange : resampleLagrangeMono);
 #else
-			resampleProc = ((srcChannelCount == 2) ? (neonMode ? resampleLagrangeNeonINT : resampleLagrangeINT) : resampleLagrangeMonoINT);
+		resampleProc = ((srcChannelCount == 2) ? (neonMode ? resampleLagrangeNeonINT : resampleLagrangeINT) : resampleLagrangeMonoINT);
 #endif
-			return;
-		}
+		resampleFloatProc = ((srcChannelCount == 2) ? resampleLagrangeFloat : resampleLagrangeMonoFloat);
+		return;
 	}
 
 	resampleProc = ((srcChannelCount == 2) ? resampleNull : resampleNullMono);
+	resampleFloatProc = ((srcChannelCount == 2) ? resampleNullFloat : resampleNullMonoFloat);
 }
 
 void initializeResampler() {
@@ -667,8 +1220,13 @@ void initializeResampler() {
 #else
 	resampleCoeffINT = 0;
 	resampleCoeffOriginalINT = 0;
+	resampleCoeffFloat = 0;
 #endif
 	resampleAdvance = 0;
+	memset(resamplePolyphaseCache, 0, sizeof(ResamplePolyphaseTable) * RESAMPLE_POLYPHASE_CACHE_SIZE);
+	resamplePolyphaseCacheNext = 0;
+	resamplePolyphaseTable = 0;
+	resampleHighQuality = 0;
 	resetResampler();
 }
 
@@ -685,9 +1243,28 @@ void terminateResampler() {
 		delete resampleCoeffOriginalINT;
 		resampleCoeffOriginalINT = 0;
 	}
+	if (resampleCoeffFloat) {
+		delete resampleCoeffFloat;
+		resampleCoeffFloat = 0;
+	}
 #endif
 	if (resampleAdvance) {
 		delete resampleAdvance;
 		resampleAdvance = 0;
 	}
+	for (uint32_t i = 0; i < RESAMPLE_POLYPHASE_CACHE_SIZE; i++) {
+		if (resamplePolyphaseCache[i].coeffOriginal)
+			delete resamplePolyphaseCache[i].coeffOriginal;
+		if (resamplePolyphaseCache[i].advance)
+			delete resamplePolyphaseCache[i].advance;
+	}
+	memset(resamplePolyphaseCache, 0, sizeof(ResamplePolyphaseTable) * RESAMPLE_POLYPHASE_CACHE_SIZE);
+	resamplePolyphaseTable = 0;
+}
+
+void JNICALL enableHighQualityResampling(JNIEnv* env, jclass clazz, uint32_t enabled) {
+	if (resampleHighQuality == enabled)
+		return;
+	resampleHighQuality = enabled;
+	resetResampler();
 }
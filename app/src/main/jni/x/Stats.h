@@ -0,0 +1,123 @@
+//
+// FPlayAndroid is distributed under the FreeBSD License
+//
+// Copyright (c) 2013-2014, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// The views and conclusions contained in the software and documentation are those
+// of the authors and should not be interpreted as representing official policies,
+// either expressed or implied, of the FreeBSD Project.
+//
+// https://github.com/carlosrafaelgn/FPlayAndroid
+//
+
+//lightweight counters for each stage of the audio pipeline, so it is possible to tell
+//which stage missed its deadline when the playback stutters
+//
+//all counters are written by the thread feeding the engine (MediaContext's thread),
+//and they are read by any thread through statsGet() (a torn read here and there is
+//not a problem for diagnostics)
+
+#define STATS_STAGE_RESAMPLE 0
+#define STATS_STAGE_EFFECTS 1
+#define STATS_STAGE_VISUALIZER 2
+#define STATS_STAGE_WRITE 3 //the whole audioTrackProcess*/openSLWrite* call
+#define STATS_STAGE_COUNT 4
+
+//layout of the array filled by statsGet():
+//[stage * 4] = count, [(stage * 4) + 1] = total ns, [(stage * 4) + 2] = max ns,
+//[(stage * 4) + 3] = late count (times the stage alone took longer than the duration
+//of the audio it produced, which means the engine would eventually starve), then:
+#define STATS_UNDERRUN_COUNT (STATS_STAGE_COUNT * 4)
+#define STATS_QUEUED_BUFFERS (STATS_UNDERRUN_COUNT + 1)
+#define STATS_MIN_QUEUED_BUFFERS (STATS_UNDERRUN_COUNT + 2)
+#define STATS_BUFFER_COUNT (STATS_UNDERRUN_COUNT + 3)
+#define STATS_LENGTH (STATS_UNDERRUN_COUNT + 4)
+
+static uint32_t statsEnabled, statsUnderrunCount, statsQueuedBuffers, statsMinQueuedBuffers, statsBufferCount;
+static int64_t statsStages[STATS_STAGE_COUNT * 4];
+
+void statsReset() {
+	memset(statsStages, 0, sizeof(int64_t) * STATS_STAGE_COUNT * 4);
+	statsUnderrunCount = 0;
+	statsQueuedBuffers = 0;
+	statsMinQueuedBuffers = 0xFFFFFFFF;
+}
+
+void initializeStats() {
+	statsEnabled = 0;
+	statsBufferCount = 0;
+	statsReset();
+}
+
+inline int64_t statsBegin() {
+	return (statsEnabled ? uptimeNanos() : 0);
+}
+
+//returns the current time, so it can be used as the beginning of the next stage
+inline int64_t statsEnd(uint32_t stage, int64_t start, uint32_t frames) {
+	if (!start)
+		return 0;
+	const int64_t now = uptimeNanos();
+	const int64_t delta = now - start;
+	int64_t* const s = statsStages + (stage << 2);
+	s[0]++;
+	s[1] += delta;
+	if (s[2] < delta)
+		s[2] = delta;
+	if (dstSampleRate && delta > (((int64_t)frames * 1000000000LL) / (int64_t)dstSampleRate))
+		s[3]++;
+	return now;
+}
+
+inline void statsQueue(uint32_t queuedBuffers) {
+	if (!statsEnabled)
+		return;
+	statsQueuedBuffers = queuedBuffers;
+	if (statsMinQueuedBuffers > queuedBuffers)
+		statsMinQueuedBuffers = queuedBuffers;
+}
+
+void JNICALL statsEnable(JNIEnv* env, jclass clazz, uint32_t enabled) {
+	if (enabled && !statsEnabled)
+		statsReset();
+	statsEnabled = enabled;
+}
+
+void JNICALL statsResetAll(JNIEnv* env, jclass clazz) {
+	statsReset();
+}
+
+void JNICALL statsGet(JNIEnv* env, jclass clazz, jlongArray jstats) {
+	if (!jstats || env->GetArrayLength(jstats) < STATS_LENGTH)
+		return;
+	int64_t* const stats = (int64_t*)env->GetPrimitiveArrayCritical(jstats, 0);
+	if (!stats)
+		return;
+	memcpy(stats, statsStages, sizeof(int64_t) * STATS_STAGE_COUNT * 4);
+	stats[STATS_UNDERRUN_COUNT] = statsUnderrunCount;
+	stats[STATS_QUEUED_BUFFERS] = statsQueuedBuffers;
+	stats[STATS_MIN_QUEUED_BUFFERS] = ((statsMinQueuedBuffers == 0xFFFFFFFF) ? 0 : statsMinQueuedBuffers);
+	stats[STATS_BUFFER_COUNT] = statsBufferCount;
+	env->ReleasePrimitiveArrayCritical(jstats, stats, 0);
+}
@@ -44,6 +44,35 @@ extern void visualizerWriteNeon(const int16_t* srcBuffer, uint32_t bufferSizeInF
 static VISUALIZERPROC visualizerWriteProc;
 #endif
 
+//headPositionInFrames only advances one whole buffer at a time, so the OpenSL callback
+//publishes every new head position, along with the time it was reached, into this small ring
+//(this allows the visualizer to estimate which frame will be heard at any given time)
+//the writer never waits for the readers, and the readers just retry if the slot they were
+//reading has been overwritten in the meantime
+#define VISUALIZER_STAMP_COUNT 4
+struct VisualizerStamp {
+	uint32_t headPositionInFrames;
+	int64_t timeNs;
+};
+static VisualizerStamp visualizerStamps[VISUALIZER_STAMP_COUNT];
+static uint32_t visualizerStampSequence;
+
+int64_t uptimeNanos() {
+	struct timespec t;
+	t.tv_sec = 0;
+	t.tv_nsec = 0;
+	clock_gettime(CLOCK_MONOTONIC, &t);
+	return ((int64_t)t.tv_sec * 1000000000) + (int64_t)t.tv_nsec;
+}
+
+void visualizerPublishHeadPosition(uint32_t headPositionInFrames) {
+	const uint32_t sequence = __atomic_load_n(&visualizerStampSequence, __ATOMIC_RELAXED) + 1;
+	VisualizerStamp* const stamp = visualizerStamps + (sequence & (VISUALIZER_STAMP_COUNT - 1));
+	stamp->headPositionInFrames = headPositionInFrames;
+	stamp->timeNs = uptimeNanos();
+	__atomic_store_n(&visualizerStampSequence, sequence, __ATOMIC_RELEASE);
+}
+
 #define resetVisualizer() visualizerWriteOffsetInFrames = 0
 #define advanceVisualizer(A, B) if (visualizerBuffer) visualizerWriteProc(A, B); visualizerWriteOffsetInFrames += B; while (visualizerWriteOffsetInFrames >= visualizerBufferSizeInFrames) visualizerWriteOffsetInFrames -= visualizerBufferSizeInFrames
 
@@ -163,14 +192,7 @@ void JNICALL visualizerZeroOut(JNIEnv* env, jclass clazz) {
 	}
 }
 
-void JNICALL visualizerGetWaveform(JNIEnv* env, jclass clazz, jbyteArray jwaveform, uint32_t headPositionInFrames) {
-	if (!visualizerBuffer || !visualizerBufferSizeInFrames || !jwaveform)
-		return;
-
-	uint8_t* const waveform = (uint8_t*)env->GetPrimitiveArrayCritical(jwaveform, 0);
-	if (!waveform)
-		return;
-
+static void visualizerCopyWaveform(uint8_t* waveform, uint32_t headPositionInFrames) {
 	headPositionInFrames %= visualizerBufferSizeInFrames;
 
 	//visualizerBuffer must be treated as a circular buffer
@@ -181,8 +203,54 @@ void JNICALL visualizerGetWaveform(JNIEnv* env, jclass clazz, jbyteArray jwavefo
 		memcpy(waveform, visualizerBuffer + headPositionInFrames, frameCountAtTheEnd);
 		memcpy(waveform + frameCountAtTheEnd, visualizerBuffer, 1024 - frameCountAtTheEnd);
 	}
+}
+
+void JNICALL visualizerGetWaveform(JNIEnv* env, jclass clazz, jbyteArray jwaveform, uint32_t headPositionInFrames) {
+	if (!visualizerBuffer || !visualizerBufferSizeInFrames || !jwaveform)
+		return;
+
+	uint8_t* const waveform = (uint8_t*)env->GetPrimitiveArrayCritical(jwaveform, 0);
+	if (!waveform)
+		return;
+
+	visualizerCopyWaveform(waveform, headPositionInFrames);
+
+	env->ReleasePrimitiveArrayCritical(jwaveform, waveform, 0);
+}
+
+//fills jwaveform with the frames that will be heard at deadlineNs (a CLOCK_MONOTONIC time,
+//the same clock used by System.nanoTime() and by Choreographer), extrapolating from the last
+//published head position, and returns the head position actually used
+uint32_t JNICALL visualizerGetWaveformAt(JNIEnv* env, jclass clazz, jbyteArray jwaveform, int64_t deadlineNs, uint32_t sampleRate, uint32_t maxAheadInFrames) {
+	VisualizerStamp stamp;
+	for (;;) {
+		const uint32_t sequence = __atomic_load_n(&visualizerStampSequence, __ATOMIC_ACQUIRE);
+		stamp = visualizerStamps[sequence & (VISUALIZER_STAMP_COUNT - 1)];
+		__atomic_thread_fence(__ATOMIC_ACQUIRE);
+		//the slot is only reused after VISUALIZER_STAMP_COUNT - 1 other publications
+		if ((__atomic_load_n(&visualizerStampSequence, __ATOMIC_RELAXED) - sequence) < (VISUALIZER_STAMP_COUNT - 1))
+			break;
+	}
+
+	uint32_t aheadInFrames = 0;
+	if (deadlineNs > stamp.timeNs && stamp.timeNs) {
+		const int64_t ahead = ((deadlineNs - stamp.timeNs) * (int64_t)sampleRate) / 1000000000;
+		aheadInFrames = ((ahead >= (int64_t)maxAheadInFrames) ? maxAheadInFrames : (uint32_t)ahead);
+	}
+	const uint32_t headPositionInFrames = stamp.headPositionInFrames + aheadInFrames;
+
+	if (!visualizerBuffer || !visualizerBufferSizeInFrames || !jwaveform)
+		return headPositionInFrames;
+
+	uint8_t* const waveform = (uint8_t*)env->GetPrimitiveArrayCritical(jwaveform, 0);
+	if (!waveform)
+		return headPositionInFrames;
+
+	visualizerCopyWaveform(waveform, headPositionInFrames);
 
 	env->ReleasePrimitiveArrayCritical(jwaveform, waveform, 0);
+
+	return headPositionInFrames;
 }
 
 void initializeVisualizer() {
@@ -190,6 +258,8 @@ void initializeVisualizer() {
 	visualizerBufferSizeInFrames = 0;
 	visualizerCreatedBufferSizeInFrames = 0;
 	visualizerBuffer = 0;
+	visualizerStampSequence = 0;
+	memset(visualizerStamps, 0, sizeof(visualizerStamps));
 #ifdef FPLAY_ARM
 	visualizerWriteProc = (neonMode ? visualizerWriteNeon : visualizerWrite);
 #endif
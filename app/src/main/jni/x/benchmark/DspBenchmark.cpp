@@ -0,0 +1,271 @@
+//
+// FPlayAndroid is distributed under the FreeBSD License
+//
+// Copyright (c) 2013-2014, Carlos Rafael Gimenes das Neves
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+// ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+//
+// The views and conclusions contained in the software and documentation are those
+// of the authors and should not be interpreted as representing official policies,
+// either expressed or implied, of the FreeBSD Project.
+//
+// https://github.com/carlosrafaelgn/FPlayAndroid
+//
+
+//standalone benchmark/test for the audio processing chain (resampler + effects), which runs on a
+//plain x86 Linux host (see build-benchmark-x.sh), so the DSP code can be tuned without a device
+//
+//for each stage it reports how long the processing took (ns/frame) and the THD+N of a pure tone
+//processed by that stage, comparing the 16-bit path (resampleProc + effectProc) with the float
+//path (resampleFloatProc + effectFloatProc)
+
+#include <jni.h>
+#include <stdint.h>
+#include <string.h>
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <time.h>
+#include <sched.h>
+
+#include "../../Constants.h"
+
+#if defined(__x86_64__) || defined(_M_X64) || defined(__i386__) || defined(_M_IX86)
+#define FPLAY_X86
+#else
+#error ("This benchmark only runs on x86 hosts!")
+#endif
+
+#include <xmmintrin.h> //SSE
+#include <emmintrin.h> //SSE2
+#include <pmmintrin.h> //SSE3
+#include <tmmintrin.h> //SSSE3
+
+//the same globals MediaContextJni.cpp declares before including the headers below
+static uint32_t srcSampleRate, srcChannelCount;
+uint32_t dstSampleRate;
+
+union int64_3232 {
+	int64_t v;
+	struct {
+		int32_t l;
+		int32_t h;
+	};
+};
+
+#include "../Effects.h"
+#include "../Resampler.h"
+
+#define TONE_FREQUENCY 997.0 //a prime frequency, so the harmonics do not fall on the same bins over and over
+#define TONE_AMPLITUDE 8192.0 //-12 dBFS
+#define TONE_SECONDS 10
+#define SKIPPED_FRAMES 8192 //the filters' transients must not be measured
+#define BLOCK_SIZE_IN_FRAMES 1024
+
+static int64_t nanoTime() {
+	struct timespec t;
+	clock_gettime(CLOCK_MONOTONIC, &t);
+	return ((int64_t)t.tv_sec * 1000000000LL) + (int64_t)t.tv_nsec;
+}
+
+//fits a sinusoid (plus DC) at the known frequency to the left channel, and returns the ratio
+//between what is left after removing that sinusoid and the sinusoid itself, in dB
+static double thdN(const float* samples, uint32_t sizeInFrames, uint32_t sampleRate) {
+	const double w = (2.0 * M_PI * TONE_FREQUENCY) / (double)sampleRate;
+	double ss = 0, sc = 0, s1 = 0, cc = 0, c1 = 0, n = 0, ys = 0, yc = 0, y1 = 0;
+	for (uint32_t i = SKIPPED_FRAMES; i < sizeInFrames; i++) {
+		const double s = sin(w * i), c = cos(w * i), y = (double)samples[i << 1];
+		ss += s * s; sc += s * c; s1 += s; cc += c * c; c1 += c; n += 1;
+		ys += y * s; yc += y * c; y1 += y;
+	}
+	//solve the 3x3 normal equations (Cramer's rule)
+	const double det = ss * (cc * n - c1 * c1) - sc * (sc * n - c1 * s1) + s1 * (sc * c1 - cc * s1);
+	const double a = (ys * (cc * n - c1 * c1) - sc * (yc * n - c1 * y1) + s1 * (yc * c1 - cc * y1)) / det;
+	const double b = (ss * (yc * n - y1 * c1) - ys * (sc * n - c1 * s1) + s1 * (sc * y1 - yc * s1)) / det;
+	const double dc = (ss * (cc * y1 - c1 * yc) - sc * (sc * y1 - c1 * ys) + ys * (sc * c1 - cc * s1)) / det;
+	double signal = 0, residual = 0;
+	for (uint32_t i = SKIPPED_FRAMES; i < sizeInFrames; i++) {
+		const double fit = (a * sin(w * i)) + (b * cos(w * i));
+		const double r = (double)samples[i << 1] - fit - dc;
+		signal += fit * fit;
+		residual += r * r;
+	}
+	return 10.0 * log10(residual / signal);
+}
+
+static void resetChain() {
+	resetResamplerState();
+	resetEqualizer();
+	resetAutomaticEffectsGain();
+}
+
+//the same as resetResampler(), but always picking the Lagrange resampler (even when resetResampler()
+//would not use it), so both resamplers can be compared under all ratios
+static void useLagrange() {
+	resetResamplerState();
+	resampleComputeCoeffs();
+	resampleProc = ((srcChannelCount == 2) ? resampleLagrange : resampleLagrangeMono);
+	resampleFloatProc = ((srcChannelCount == 2) ? resampleLagrangeFloat : resampleLagrangeMonoFloat);
+}
+
+static void usePolyphase() {
+	resampleHighQuality = 1;
+	resetResampler();
+}
+
+//runs the whole input through the chosen stages, returning the amount of frames produced
+static uint32_t run(const int16_t* src, uint32_t srcFrames, float* out, int16_t* tmp, bool useFloat, bool useEffects, int64_t& elapsed) {
+	uint32_t srcPos = 0, dstPos = 0;
+	resetChain();
+	const int64_t start = nanoTime();
+	while (srcPos < srcFrames) {
+		uint32_t n = srcFrames - srcPos, used = 0, produced;
+		if (n > BLOCK_SIZE_IN_FRAMES)
+			n = BLOCK_SIZE_IN_FRAMES;
+		if (useFloat) {
+			produced = resampleFloatProc((int16_t*)src + (srcPos * srcChannelCount), n, effectsFloatSamples, MAXIMUM_BUFFER_SIZE_IN_FRAMES_FOR_PROCESSING << 1, used);
+			if (useEffects) {
+				effectFloatProc(tmp + (dstPos << 1), produced);
+			} else {
+				//the float resampler is measured without any quantization at all
+				memcpy(out + (dstPos << 1), effectsFloatSamples, produced * 2 * sizeof(float));
+			}
+		} else {
+			produced = resampleProc((int16_t*)src + (srcPos * srcChannelCount), n, tmp + (dstPos << 1), MAXIMUM_BUFFER_SIZE_IN_FRAMES_FOR_PROCESSING << 1, used);
+			if (useEffects)
+				effectProc(tmp + (dstPos << 1), produced);
+		}
+		srcPos += used;
+		dstPos += produced;
+	}
+	elapsed = nanoTime() - start;
+	if (!useFloat || useEffects) {
+		for (uint32_t i = 0; i < (dstPos << 1); i++)
+			out[i] = (float)tmp[i];
+	}
+	return dstPos;
+}
+
+static void fillTone(int16_t* src, uint32_t srcFrames, double frequency) {
+	for (uint32_t i = 0; i < srcFrames; i++) {
+		const int16_t v = (int16_t)lrint(TONE_AMPLITUDE * sin((2.0 * M_PI * frequency * i) / (double)srcSampleRate));
+		for (uint32_t c = 0; c < srcChannelCount; c++)
+			src[(i * srcChannelCount) + c] = v;
+	}
+}
+
+//level of whatever comes out of the resampler, relative to the level of the input, in dB
+static double level(const float* samples, uint32_t sizeInFrames) {
+	double sum = 0;
+	for (uint32_t i = SKIPPED_FRAMES; i < sizeInFrames; i++)
+		sum += (double)samples[i << 1] * (double)samples[i << 1];
+	return 10.0 * log10((sum / (double)(sizeInFrames - SKIPPED_FRAMES)) / (TONE_AMPLITUDE * TONE_AMPLITUDE * 0.5));
+}
+
+static void benchmark(uint32_t srcRate, uint32_t channels, uint32_t dstRate) {
+	srcSampleRate = srcRate;
+	srcChannelCount = channels;
+	dstSampleRate = dstRate;
+
+	initializeEffects();
+	equalizerConfigChanged();
+	enableEqualizer(0, 0, 1);
+	//a few boosts and cuts, plus a pre amp, so every part of the equalizer is used
+	setEqualizerBandLevel(0, 0, 0, -300);
+	setEqualizerBandLevel(0, 0, 2, 600);
+	setEqualizerBandLevel(0, 0, 4, -400);
+	setEqualizerBandLevel(0, 0, 6, 300);
+	initializeResampler();
+
+	const uint32_t srcFrames = srcRate * TONE_SECONDS;
+	int16_t* const src = new int16_t[srcFrames * channels];
+	int16_t* const srcAlias = new int16_t[srcFrames * channels];
+	fillTone(src, srcFrames, TONE_FREQUENCY);
+	//when downsampling, this tone lies right in the middle of the band that must be removed
+	//(when upsampling, it is a tone just below the original Nyquist frequency, which must come out intact)
+	fillTone(srcAlias, srcFrames, (srcRate > dstRate) ? ((double)(srcRate + dstRate) * 0.25) : ((double)srcRate * 0.45));
+	const uint32_t maxDstFrames = (uint32_t)(((uint64_t)srcFrames * dstRate) / srcRate) + (MAXIMUM_BUFFER_SIZE_IN_FRAMES_FOR_PROCESSING << 1);
+	float* const out = new float[maxDstFrames << 1];
+	int16_t* const tmp = new int16_t[maxDstFrames << 1];
+
+	printf("%u Hz (%s) -> %u Hz\n", srcRate, ((channels == 2) ? "stereo" : "mono"), dstRate);
+	printf("  %-40s %10s %10s %10s\n", "stage", "ns/frame", "THD+N dB", ((srcRate > dstRate) ? "alias dB" : "HF dB"));
+
+	if (srcRate != dstRate) {
+		//empty the cache first, so this measures how long resetResampler() blocks the audio thread
+		terminateResampler();
+		const int64_t start = nanoTime();
+		usePolyphase();
+		const int64_t elapsed = nanoTime() - start;
+		if (resamplePolyphaseTable)
+			printf("  polyphase table: %u phases x %u taps, built in %.0f us\n", resamplePolyphaseTable->factDst, resamplePolyphaseTable->taps, (double)elapsed / 1000.0);
+		else
+			printf("  polyphase table: too large, the Lagrange resampler is used instead\n");
+	}
+
+	static const char* const names[4] = { "resampler (16-bit)", "resampler (float)", "resampler + effects (16-bit)", "resampler + effects (float)" };
+	for (int32_t resampler = ((srcRate == dstRate) ? 1 : 0); resampler < ((srcRate == dstRate || resamplePolyphaseTable) ? 2 : 1); resampler++) {
+		if (resampler)
+			usePolyphase();
+		else
+			useLagrange();
+		for (int32_t i = 0; i < 4; i++) {
+			int64_t elapsed, best = 0x7FFFFFFFFFFFFFFFLL;
+			uint32_t frames = 0;
+			//take the best of a few runs, to reduce the noise caused by the host
+			for (int32_t r = 0; r < 5; r++) {
+				frames = run(src, srcFrames, out, tmp, (i & 1), (i >= 2), elapsed);
+				if (best > elapsed)
+					best = elapsed;
+			}
+			const double thd = thdN(out, frames, dstRate);
+			char name[64];
+			snprintf(name, sizeof(name), "%s %s", ((srcRate == dstRate) ? "null" : (resampler ? "polyphase" : "Lagrange")), names[i]);
+			if (i == 1) {
+				frames = run(srcAlias, srcFrames, out, tmp, true, false, elapsed);
+				printf("  %-40s %10.2f %10.2f %10.2f\n", name, (double)best / (double)frames, thd, level(out, frames));
+			} else {
+				printf("  %-40s %10.2f %10.2f\n", name, (double)best / (double)frames, thd);
+			}
+		}
+	}
+	printf("\n");
+
+	delete src;
+	delete srcAlias;
+	delete out;
+	delete tmp;
+	terminateResampler();
+	terminateEffects();
+}
+
+int main(int argc, char** argv) {
+	benchmark(44100, 2, 48000);
+	benchmark(48000, 2, 44100);
+	benchmark(88200, 2, 48000);
+	benchmark(96000, 2, 48000);
+	benchmark(22050, 2, 48000);
+	benchmark(11025, 2, 48000);
+	benchmark(44100, 1, 48000);
+	benchmark(48000, 2, 48000);
+	return 0;
+}
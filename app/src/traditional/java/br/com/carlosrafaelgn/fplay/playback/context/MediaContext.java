@@ -78,4 +78,25 @@ public final class MediaContext {
 
 	public static void _enableResampling(boolean enabled) {
 	}
+
+	public static boolean isHighQualityResamplingEnabled() {
+		return false;
+	}
+
+	public static void _enableHighQualityResampling(boolean enabled) {
+	}
+
+	public static boolean isStatsEnabled() {
+		return false;
+	}
+
+	public static void enableStats(boolean enabled) {
+	}
+
+	public static void resetStats() {
+	}
+
+	public static void getStats(PipelineStats stats) {
+		stats.clear();
+	}
 }
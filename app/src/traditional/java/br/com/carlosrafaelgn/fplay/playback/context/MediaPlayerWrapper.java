@@ -51,6 +51,7 @@ import br.com.carlosrafaelgn.fplay.list.Song;
 import br.com.carlosrafaelgn.fplay.playback.HttpStreamReceiver;
 import br.com.carlosrafaelgn.fplay.playback.Player;
 import br.com.carlosrafaelgn.fplay.util.BufferedMediaDataSource;
+import br.com.carlosrafaelgn.fplay.util.MappedMediaDataSource;
 
 final class MediaPlayerWrapper extends MediaPlayerBase implements MediaPlayer.OnCompletionListener, MediaPlayer.OnErrorListener, MediaPlayer.OnInfoListener, MediaPlayer.OnPreparedListener, MediaPlayer.OnSeekCompleteListener, Handler.Callback {
 	private final MediaPlayer player;
@@ -132,6 +133,8 @@ final class MediaPlayerWrapper extends MediaPlayerBase implements MediaPlayer.On
 				final int filePrefetchSize = Player.filePrefetchSize;
 				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && filePrefetchSize > 0) {
 					player.setDataSource(new BufferedMediaDataSource(path, file.length(), filePrefetchSize));
+				} else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && filePrefetchSize == Player.FILE_PREFETCH_SIZE_MAPPED) {
+					player.setDataSource(new MappedMediaDataSource(path, file.length()));
 				} else {
 					try {
 						fileDescriptor = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
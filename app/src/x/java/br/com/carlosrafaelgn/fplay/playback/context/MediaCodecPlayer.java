@@ -53,6 +53,7 @@ import br.com.carlosrafaelgn.fplay.playback.HttpStreamExtractor;
 import br.com.carlosrafaelgn.fplay.playback.HttpStreamReceiver;
 import br.com.carlosrafaelgn.fplay.playback.Player;
 import br.com.carlosrafaelgn.fplay.util.BufferedMediaDataSource;
+import br.com.carlosrafaelgn.fplay.util.MappedMediaDataSource;
 
 final class MediaCodecPlayer extends MediaPlayerBase implements Handler.Callback {
 	private static final int STATE_IDLE = 0;
@@ -636,6 +637,8 @@ final class MediaCodecPlayer extends MediaPlayerBase implements Handler.Callback
 				mediaExtractor = new MediaExtractor();
 				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && filePrefetchSize > 0) {
 					mediaExtractor.setDataSource(new BufferedMediaDataSource(path, file.length(), filePrefetchSize));
+				} else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && filePrefetchSize == Player.FILE_PREFETCH_SIZE_MAPPED) {
+					mediaExtractor.setDataSource(new MappedMediaDataSource(path, file.length()));
 				} else {
 					fileDescriptor = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
 					mediaExtractor.setDataSource(fileDescriptor.getFileDescriptor(), 0, fileDescriptor.getStatSize());
@@ -906,8 +909,8 @@ final class MediaCodecPlayer extends MediaPlayerBase implements Handler.Callback
 		if (next == this)
 			throw new IllegalArgumentException("this == next");
 		final MediaCodecPlayer nextPlayer = (MediaCodecPlayer)next;
-		if (nextPlayer != null && (nextPlayer.state != STATE_PREPARED || nextPlayer.durationInMS < 10000))
-			throw new IllegalArgumentException("next is not prepared or its durationInMS is < 10000");
+		if (nextPlayer != null && nextPlayer.state != STATE_PREPARED)
+			throw new IllegalArgumentException("next is not prepared");
 		MediaContext.setNextPlayer(this, nextPlayer);
 	}
 
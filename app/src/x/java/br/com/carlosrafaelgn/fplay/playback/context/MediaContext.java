@@ -61,12 +61,8 @@ public final class MediaContext implements Runnable, Handler.Callback {
 	private static final int MSG_BUFFERINGSTART = 0x0103;
 	private static final int MSG_BUFFERINGEND = 0x0104;
 	private static final int MSG_EQUALIZER_ENABLE = 0x0105;
-	private static final int MSG_EQUALIZER_BAND_LEVEL = 0x0106;
-	private static final int MSG_EQUALIZER_BAND_LEVELS = 0x0107;
 	private static final int MSG_BASSBOOST_ENABLE = 0x0108;
-	private static final int MSG_BASSBOOST_STRENGTH = 0x0109;
 	private static final int MSG_VIRTUALIZER_ENABLE = 0x010A;
-	private static final int MSG_VIRTUALIZER_STRENGTH = 0x010B;
 
 	private static final int ACTION_NONE = 0x0000;
 	private static final int ACTION_PLAY = 0x0001;
@@ -83,6 +79,8 @@ public final class MediaContext implements Runnable, Handler.Callback {
 	private static final int ACTION_STOP_VISUALIZER = 0x000C;
 	private static final int ACTION_ENABLE_RESAMPLING = 0x000D;
 	private static final int ACTION_DISABLE_RESAMPLING = 0x000E;
+	private static final int ACTION_ENABLE_HIGH_QUALITY_RESAMPLING = 0x000F;
+	private static final int ACTION_DISABLE_HIGH_QUALITY_RESAMPLING = 0x0010;
 	private static final int ACTION_INITIALIZE = 0xFFFF;
 
 	private static final int MAXIMUM_BUFFER_SIZE_IN_FRAMES_FOR_PROCESSING = 1152;
@@ -92,6 +90,13 @@ public final class MediaContext implements Runnable, Handler.Callback {
 	private static final int SL_MILLIBEL_MIN = -32768;
 	private static final int AUDIO_TRACK_OUT_OF_MEMORY = 1000; //this error code is not used by OpenSL ES
 
+	//must be kept in sync with Stats.h
+	private static final int NATIVE_STATS_UNDERRUN_COUNT = 16;
+	private static final int NATIVE_STATS_QUEUED_BUFFERS = 17;
+	private static final int NATIVE_STATS_MIN_QUEUED_BUFFERS = 18;
+	private static final int NATIVE_STATS_BUFFER_COUNT = 19;
+	private static final int NATIVE_STATS_LENGTH = 20;
+
 	private static final class ErrorStructure {
 		public MediaCodecPlayer player;
 		public Throwable exception;
@@ -104,8 +109,12 @@ public final class MediaContext implements Runnable, Handler.Callback {
 
 	private static final Object threadNotification = new Object();
 	private static final Object engineSync = new Object();
-	private static volatile boolean alive, waitToReceiveAction, requestSucceeded, initializationError, resamplingEnabled;
-	private static volatile int requestedAction, requestedSeekMS;
+	private static volatile boolean alive, waitToReceiveAction, requestSucceeded, initializationError, resamplingEnabled, highQualityResamplingEnabled;
+	private static volatile int requestedAction, requestedSeekMS, lastTransitionLatencyMS = -1, lastTransitionGapMS = -1;
+	//the stats are only written by MediaContext's thread (and read by anyone)
+	private static volatile boolean statsEnabled;
+	private static volatile int statsStarvationCount;
+	private static volatile long statsDecodeCount, statsDecodeTotalNanos, statsDecodeMaxNanos, statsDecodeLateCount, statsDecoderWaitNanos;
 	private static Message effectsMessage;
 	private static int bufferConfig, nativeSampleRate, srcChannelCount, srcSampleRate;
 	private static float gain = 1.0f;
@@ -126,6 +135,11 @@ public final class MediaContext implements Runnable, Handler.Callback {
 	private static native int getProcessorFeatures();
 
 	private static native void updateSrcParams(int srcSampleRate, int srcChannelCount, int resetFiltersAndWritePosition);
+	private static native void enableHighQualityResampling(int enabled);
+
+	private static native void statsEnable(int enabled);
+	private static native void statsResetAll();
+	private static native void statsGet(long[] stats);
 
 	public static native int getCurrentAutomaticEffectsGainInMB();
 	private static native void enableAutomaticEffectsGain(int enabled);
@@ -176,6 +190,7 @@ public final class MediaContext implements Runnable, Handler.Callback {
 	private static native void visualizerStop();
 	private static native void visualizerZeroOut();
 	private static native void visualizerGetWaveform(byte[] waveform, int headPositionInFrames);
+	private static native int visualizerGetWaveformAt(byte[] waveform, long deadlineNanos, int sampleRate, int maxAheadInFrames);
 
 	private static abstract class Engine {
 		static int getFramesPerBuffer(int dstSampleRate) {
@@ -217,7 +232,7 @@ public final class MediaContext implements Runnable, Handler.Callback {
 		public abstract int getSingleBufferSizeInFrames();
 		public abstract int getHeadPositionInFrames();
 		public abstract int getFillThresholdInFrames();
-		public abstract void getVisualizerWaveform(byte[] waveform);
+		public abstract int getVisualizerWaveform(byte[] waveform, long deadlineNanos);
 		public abstract int commitFinalFrames(int emptyFrames);
 		public abstract int write(MediaCodecPlayer.OutputBuffer buffer, int emptyFrames);
 	}
@@ -242,7 +257,11 @@ public final class MediaContext implements Runnable, Handler.Callback {
 		private byte[] tempDstArray;
 		private ByteBuffer tempDstBuffer;
 		private boolean okToQuitIfFull;
-		private int pendingOffsetInBytes, pendingDstFrames, singleBufferSizeInFrames, currentDstSampleRate;
+		private int pendingOffsetInBytes, pendingDstFrames, singleBufferSizeInFrames, currentDstSampleRate, visualizerHeadPositionInFrames;
+		//underruns of the AudioTracks already released, and the count of the current one
+		//when the stats were last reset (AudioTrack's count cannot be reset)
+		private int releasedUnderrunCount, underrunCountBase;
+		private long visualizerHeadTimeNanos;
 
 		@Override
 		public int initialize() {
@@ -378,6 +397,8 @@ public final class MediaContext implements Runnable, Handler.Callback {
 			pendingOffsetInBytes = 0;
 			pendingDstFrames = 0;
 			if (audioTrack != null) {
+				releasedUnderrunCount += getCurrentUnderrunCount() - underrunCountBase;
+				underrunCountBase = 0;
 				audioTrack.release();
 				audioTrack = null;
 				System.gc();
@@ -408,6 +429,20 @@ public final class MediaContext implements Runnable, Handler.Callback {
 			return currentDstSampleRate;
 		}
 
+		@TargetApi(Build.VERSION_CODES.N)
+		private int getCurrentUnderrunCount() {
+			return ((audioTrack != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) ? audioTrack.getUnderrunCount() : 0);
+		}
+
+		public int getUnderrunCount() {
+			return releasedUnderrunCount + getCurrentUnderrunCount() - underrunCountBase;
+		}
+
+		public void resetUnderrunCount() {
+			releasedUnderrunCount = 0;
+			underrunCountBase = getCurrentUnderrunCount();
+		}
+
 		@Override
 		public int getActualBufferSizeInFrames() {
 			return (audioTrack != null ? audioTrack.getActualBufferSizeInFrames() : 0);
@@ -430,11 +465,25 @@ public final class MediaContext implements Runnable, Handler.Callback {
 		}
 
 		@Override
-		public void getVisualizerWaveform(byte[] waveform) {
-			if (audioTrack == null)
+		public int getVisualizerWaveform(byte[] waveform, long deadlineNanos) {
+			if (audioTrack == null) {
 				Arrays.fill(waveform, (byte)0x80);
-			else
-				visualizerGetWaveform(waveform, audioTrack.getPlaybackHeadPosition());
+				return 0;
+			}
+			//just like OpenSL's head position, AudioTrack's one advances in steps, so we keep
+			//track of when it last changed, and extrapolate from there up to deadlineNanos
+			final int headPositionInFrames = audioTrack.getPlaybackHeadPosition();
+			if (visualizerHeadPositionInFrames != headPositionInFrames) {
+				visualizerHeadPositionInFrames = headPositionInFrames;
+				visualizerHeadTimeNanos = System.nanoTime();
+			}
+			long aheadInFrames = ((deadlineNanos - visualizerHeadTimeNanos) * currentDstSampleRate) / 1000000000L;
+			if (aheadInFrames < 0)
+				aheadInFrames = 0;
+			else if (aheadInFrames > singleBufferSizeInFrames)
+				aheadInFrames = singleBufferSizeInFrames;
+			visualizerGetWaveform(waveform, headPositionInFrames + (int)aheadInFrames);
+			return (headPositionInFrames + (int)aheadInFrames);
 		}
 
 		@Override
@@ -675,8 +724,8 @@ public final class MediaContext implements Runnable, Handler.Callback {
 		}
 
 		@Override
-		public void getVisualizerWaveform(byte[] waveform) {
-			visualizerGetWaveform(waveform, openSLGetHeadPositionInFrames());
+		public int getVisualizerWaveform(byte[] waveform, long deadlineNanos) {
+			return visualizerGetWaveformAt(waveform, deadlineNanos, currentDstSampleRate, singleBufferSizeInFrames);
 		}
 
 		@Override
@@ -735,6 +784,10 @@ public final class MediaContext implements Runnable, Handler.Callback {
 		if (nativeSampleRate <= 0 || srcSampleRate == nativeSampleRate || !resamplingEnabled)
 			return srcSampleRate; //no conversion (simply use srcSampleRate as dstSampleRate)
 
+		//the polyphase resampler filters the signal, so it can downsample from any sample rate
+		if (highQualityResamplingEnabled && srcSampleRate >= 8000)
+			return nativeSampleRate;
+
 		//downsampling is only performed from 48000 Hz to 44100 Hz because we are not
 		//applying any filters
 		if ((srcSampleRate == 48000 && nativeSampleRate == 44100) ||
@@ -766,6 +819,21 @@ public final class MediaContext implements Runnable, Handler.Callback {
 		throw new IllegalStateException("The engine returned " + result);
 	}
 
+	//Runs on a SECONDARY thread
+	private static void statsDecodeEnd(long start) {
+		if (start == 0)
+			return;
+		final long delta = System.nanoTime() - start;
+		statsDecodeCount++;
+		statsDecodeTotalNanos += delta;
+		if (statsDecodeMaxNanos < delta)
+			statsDecodeMaxNanos = delta;
+		//the decoder is late when a single call takes longer than an entire engine buffer
+		final int dstSampleRate = engine.getCurrentDstSampleRate();
+		if (dstSampleRate > 0 && delta > ((long)engine.getSingleBufferSizeInFrames() * 1000000000L) / (long)dstSampleRate)
+			statsDecodeLateCount++;
+	}
+
 	private static void processEffectsAction() {
 		if (effectsMessage == null)
 			return;
@@ -774,24 +842,12 @@ public final class MediaContext implements Runnable, Handler.Callback {
 		case MSG_EQUALIZER_ENABLE:
 			enableEqualizer(effectsMessage.arg1);
 			break;
-		case MSG_EQUALIZER_BAND_LEVEL:
-			setEqualizerBandLevel(effectsMessage.arg1, effectsMessage.arg2);
-			break;
-		case MSG_EQUALIZER_BAND_LEVELS:
-			setEqualizerBandLevels((short[])effectsMessage.obj);
-			break;
 		case MSG_BASSBOOST_ENABLE:
 			enableBassBoost(effectsMessage.arg1);
 			break;
-		case MSG_BASSBOOST_STRENGTH:
-			setBassBoostStrength(effectsMessage.arg1);
-			break;
 		case MSG_VIRTUALIZER_ENABLE:
 			enableVirtualizer(effectsMessage.arg1);
 			break;
-		case MSG_VIRTUALIZER_STRENGTH:
-			setVirtualizerStrength(effectsMessage.arg1);
-			break;
 		}
 
 		effectsMessage.obj = null;
@@ -818,7 +874,7 @@ public final class MediaContext implements Runnable, Handler.Callback {
 		MediaCodecPlayer currentPlayer = null, nextPlayer = null, sourcePlayer = null;
 		outputBuffer.index = -1;
 		int dstSampleRate = 0, lastHeadPositionInFrames = 0, bufferSizeInFrames = 0, fillThresholdInFrames = 0;
-		long framesWritten = 0, framesPlayed = 0, nextFramesWritten = 0;
+		long framesWritten = 0, framesPlayed = 0, nextFramesWritten = 0, transitionStartTime = 0, transitionCushionFrames = 0;
 		boolean bufferConfigChanged = false;
 
 		updateNativeSampleRate();
@@ -1056,6 +1112,14 @@ public final class MediaContext implements Runnable, Handler.Callback {
 							case ACTION_DISABLE_RESAMPLING:
 								resamplingEnabled = false;
 								break;
+							case ACTION_ENABLE_HIGH_QUALITY_RESAMPLING:
+								highQualityResamplingEnabled = true;
+								enableHighQualityResampling(1);
+								break;
+							case ACTION_DISABLE_HIGH_QUALITY_RESAMPLING:
+								highQualityResamplingEnabled = false;
+								enableHighQualityResampling(0);
+								break;
 							}
 						} catch (Throwable ex) {
 							synchronized (engineSync) {
@@ -1157,7 +1221,12 @@ public final class MediaContext implements Runnable, Handler.Callback {
 				currentPlayer.setCurrentPositionInFrames(framesPlayed);
 
 				if (outputBuffer.index < 0) {
+					final long statsTime = (statsEnabled ? System.nanoTime() : 0);
 					sourcePlayer.nextOutputBuffer(outputBuffer);
+					//when there is no output, filling the input below is part of this same decode
+					//(either way, each iteration counts as a single decode)
+					if (outputBuffer.index >= 0 || outputBuffer.index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED)
+						statsDecodeEnd(statsTime);
 					if (outputBuffer.index < 0) {
 						if (outputBuffer.index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
 							if (dstSampleRate != sourcePlayer.getDstSampleRate()) {
@@ -1214,6 +1283,7 @@ public final class MediaContext implements Runnable, Handler.Callback {
 						} else {
 							//fill the input only when there is no more output available
 							sourcePlayer.fillInputBuffers();
+							statsDecodeEnd(statsTime);
 						}
 
 						boolean sleepNow = true;
@@ -1243,6 +1313,7 @@ public final class MediaContext implements Runnable, Handler.Callback {
 						}
 
 						if (sleepNow) {
+							final long statsWaitTime = (statsEnabled ? System.nanoTime() : 0);
 							try {
 								synchronized (threadNotification) {
 									//sleep only for a very brief period, do not use the standard sleep time!
@@ -1252,6 +1323,8 @@ public final class MediaContext implements Runnable, Handler.Callback {
 							} catch (Throwable ex) {
 								//just ignore
 							}
+							if (statsWaitTime != 0)
+								statsDecoderWaitNanos += System.nanoTime() - statsWaitTime;
 						}
 					}
 				}
@@ -1295,10 +1368,21 @@ public final class MediaContext implements Runnable, Handler.Callback {
 						continue;
 					} else {
 						amountOfTimesNoFramesWereWritten = 0;
-						if (sourcePlayer == currentPlayer)
+						if (sourcePlayer == currentPlayer) {
 							framesWritten += framesWrittenThisTime;
-						else
+						} else {
+							if (nextFramesWritten == 0 && transitionStartTime != 0) {
+								//the first frames of nextPlayer have just been written: if it took longer to
+								//produce them than the time it took to play what was left of currentPlayer,
+								//there was a gap between the songs
+								final int latencyMS = (int)(SystemClock.uptimeMillis() - transitionStartTime);
+								final int cushionMS = (int)((transitionCushionFrames * 1000L) / (long)dstSampleRate);
+								lastTransitionLatencyMS = latencyMS;
+								lastTransitionGapMS = ((latencyMS > cushionMS) ? (latencyMS - cushionMS) : 0);
+								transitionStartTime = 0;
+							}
 							nextFramesWritten += framesWrittenThisTime;
+						}
 						if (playPending) {
 							framesWrittenBeforePlaying += framesWrittenThisTime;
 							if (framesWrittenBeforePlaying >= fillThresholdInFrames) {
@@ -1318,6 +1402,8 @@ public final class MediaContext implements Runnable, Handler.Callback {
 						if (nextPlayer != null) {
 							sourcePlayer = nextPlayer;
 							updateNativeSrc(sourcePlayer);
+							transitionStartTime = SystemClock.uptimeMillis();
+							transitionCushionFrames = framesWritten - framesPlayed;
 						}
 					}
 				}
@@ -1353,6 +1439,8 @@ public final class MediaContext implements Runnable, Handler.Callback {
 						updateNativeSrc(sourcePlayer);
 					} else if (framesWritten != 0) {
 						//underrun!!!
+						if (statsEnabled)
+							statsStarvationCount++;
 						checkEngineResult(engine.pause());
 						playPending = true;
 						amountOfTimesNoFramesWereWritten = 0;
@@ -1678,18 +1766,15 @@ public final class MediaContext implements Runnable, Handler.Callback {
 			sendEffectsMessage(Message.obtain(handler, MSG_EQUALIZER_ENABLE, enabled, 0));
 	}
 
+	//the levels and strengths do not go through MediaContext's thread: the native side
+	//computes the new coefficients right here, and hands them over to the audio thread
+	//without locking (only enabling/disabling effects needs to wait for the audio thread)
 	static void _setEqualizerBandLevel(int band, int level) {
-		if (!alive)
-			setEqualizerBandLevel(band, level);
-		else
-			sendEffectsMessage(Message.obtain(handler, MSG_EQUALIZER_BAND_LEVEL, band, level));
+		setEqualizerBandLevel(band, level);
 	}
 
 	static void _setEqualizerBandLevels(short[] levels) {
-		if (!alive)
-			setEqualizerBandLevels(levels);
-		else
-			sendEffectsMessage(Message.obtain(handler, MSG_EQUALIZER_BAND_LEVELS, levels));
+		setEqualizerBandLevels(levels);
 	}
 
 	static void _getEqualizerFrequencyResponse(int bassBoostStrength, short[] levels, double[] frequencies, double[] gains) {
@@ -1704,10 +1789,7 @@ public final class MediaContext implements Runnable, Handler.Callback {
 	}
 
 	static void _setBassBoostStrength(int strength) {
-		if (!alive)
-			setBassBoostStrength(strength);
-		else
-			sendEffectsMessage(Message.obtain(handler, MSG_BASSBOOST_STRENGTH, strength, 0));
+		setBassBoostStrength(strength);
 	}
 
 	static void _enableVirtualizer(int enabled) {
@@ -1718,10 +1800,7 @@ public final class MediaContext implements Runnable, Handler.Callback {
 	}
 
 	static void _setVirtualizerStrength(int strength) {
-		if (!alive)
-			setVirtualizerStrength(strength);
-		else
-			sendEffectsMessage(Message.obtain(handler, MSG_VIRTUALIZER_STRENGTH, strength, 0));
+		setVirtualizerStrength(strength);
 	}
 
 	static boolean startVisualizer() {
@@ -1768,12 +1847,14 @@ public final class MediaContext implements Runnable, Handler.Callback {
 		}
 	}
 
-	static void getVisualizerWaveform(byte[] waveform) {
+	//returns the head position (in frames) the waveform was taken from, so the caller can
+	//tell whether it has just received the same waveform twice
+	static int getVisualizerWaveform(byte[] waveform, long deadlineNanos) {
 		synchronized (engineSync) {
 			if (alive && engine != null)
-				engine.getVisualizerWaveform(waveform);
-			else
-				Arrays.fill(waveform, (byte)0x80);
+				return engine.getVisualizerWaveform(waveform, deadlineNanos);
+			Arrays.fill(waveform, (byte)0x80);
+			return 0;
 		}
 	}
 
@@ -1872,4 +1953,91 @@ public final class MediaContext implements Runnable, Handler.Callback {
 			}
 		}
 	}
+
+	public static boolean isHighQualityResamplingEnabled() {
+		return highQualityResamplingEnabled;
+	}
+
+	public static void _enableHighQualityResampling(boolean enabled) {
+		if (!alive) {
+			highQualityResamplingEnabled = enabled;
+			enableHighQualityResampling(enabled ? 1 : 0);
+			return;
+		}
+
+		waitToReceiveAction = true;
+		synchronized (threadNotification) {
+			requestedAction = (enabled ? ACTION_ENABLE_HIGH_QUALITY_RESAMPLING : ACTION_DISABLE_HIGH_QUALITY_RESAMPLING);
+			threadNotification.notifyAll();
+			if (requestedAction == ACTION_ENABLE_HIGH_QUALITY_RESAMPLING || requestedAction == ACTION_DISABLE_HIGH_QUALITY_RESAMPLING) {
+				try {
+					threadNotification.wait(PLAYER_TIMEOUT);
+				} catch (Throwable ex) {
+					//just ignore
+				}
+			}
+		}
+	}
+
+	public static boolean isStatsEnabled() {
+		return statsEnabled;
+	}
+
+	//the counters are cheap, but they are not free, so they are disabled by default
+	public static void enableStats(boolean enabled) {
+		if (statsEnabled == enabled)
+			return;
+		if (enabled)
+			resetStats();
+		statsEnable(enabled ? 1 : 0);
+		statsEnabled = enabled;
+	}
+
+	public static void resetStats() {
+		statsResetAll();
+		statsStarvationCount = 0;
+		statsDecodeCount = 0;
+		statsDecodeTotalNanos = 0;
+		statsDecodeMaxNanos = 0;
+		statsDecodeLateCount = 0;
+		statsDecoderWaitNanos = 0;
+		synchronized (engineSync) {
+			if (engine instanceof AudioTrackEngine)
+				((AudioTrackEngine)engine).resetUnderrunCount();
+		}
+	}
+
+	public static void getStats(PipelineStats stats) {
+		final long[] nativeStats = new long[NATIVE_STATS_LENGTH];
+		statsGet(nativeStats);
+		//the native stages come right after STAGE_DECODE, 4 values each
+		for (int i = PipelineStats.STAGE_RESAMPLE, n = 0; i < PipelineStats.STAGE_COUNT; i++, n += 4) {
+			stats.count[i] = nativeStats[n];
+			stats.totalNanos[i] = nativeStats[n + 1];
+			stats.maxNanos[i] = nativeStats[n + 2];
+			stats.lateCount[i] = nativeStats[n + 3];
+		}
+		stats.count[PipelineStats.STAGE_DECODE] = statsDecodeCount;
+		stats.totalNanos[PipelineStats.STAGE_DECODE] = statsDecodeTotalNanos;
+		stats.maxNanos[PipelineStats.STAGE_DECODE] = statsDecodeMaxNanos;
+		stats.lateCount[PipelineStats.STAGE_DECODE] = statsDecodeLateCount;
+		stats.decoderWaitNanos = statsDecoderWaitNanos;
+		stats.starvationCount = statsStarvationCount;
+		stats.lastTransitionLatencyMS = lastTransitionLatencyMS;
+		stats.lastTransitionGapMS = lastTransitionGapMS;
+		stats.queuedBuffers = (int)nativeStats[NATIVE_STATS_QUEUED_BUFFERS];
+		stats.minQueuedBuffers = (int)nativeStats[NATIVE_STATS_MIN_QUEUED_BUFFERS];
+		stats.bufferCount = (int)nativeStats[NATIVE_STATS_BUFFER_COUNT];
+		stats.enabled = statsEnabled;
+		synchronized (engineSync) {
+			if (engine == null) {
+				stats.bufferDurationNanos = 0;
+				stats.engineUnderrunCount = 0;
+			} else {
+				final int dstSampleRate = engine.getCurrentDstSampleRate();
+				stats.bufferDurationNanos = ((dstSampleRate <= 0) ? 0 : (((long)engine.getSingleBufferSizeInFrames() * 1000000000L) / (long)dstSampleRate));
+				stats.engineUnderrunCount = ((engine instanceof AudioTrackEngine) ? ((AudioTrackEngine)engine).getUnderrunCount() : (int)nativeStats[NATIVE_STATS_UNDERRUN_COUNT]);
+			}
+		}
+	}
 }
@@ -32,17 +32,57 @@
 //
 package br.com.carlosrafaelgn.fplay.playback.context;
 
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
 import br.com.carlosrafaelgn.fplay.activity.MainHandler;
 import br.com.carlosrafaelgn.fplay.playback.Player;
 import br.com.carlosrafaelgn.fplay.plugin.Visualizer;
-import br.com.carlosrafaelgn.fplay.util.Timer;
 
-public final class VisualizerService implements br.com.carlosrafaelgn.fplay.plugin.VisualizerService, Runnable, Timer.TimerHandler {
+//Frames are produced in sync with the display (through Choreographer), instead of being
+//produced by a free running timer. At every vsync the waveform is taken from the position
+//that will be heard when the frame is presented, not from the position being heard right now.
+@SuppressWarnings("NonAtomicOperationOnVolatileField")
+public final class VisualizerService implements br.com.carlosrafaelgn.fplay.plugin.VisualizerService, Runnable, Handler.Callback, Choreographer.FrameCallback {
+	private static final int MSG_RESUME = 0x0600;
+	//there is no need to produce more than 60 frames per second, even on 90/120 Hz displays
+	private static final long MINIMUM_FRAME_INTERVAL_NANOS = 15000000L;
+	private static final long DEFAULT_FRAME_INTERVAL_NANOS = 16666667L;
+
+	private final class VisualizerThread extends Thread {
+		public VisualizerThread() {
+			super("Visualizer Thread");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			Looper.prepare();
+			synchronized (VisualizerService.this) {
+				looper = Looper.myLooper();
+				handler = new Handler(looper, VisualizerService.this);
+				choreographer = Choreographer.getInstance();
+			}
+			choreographer.postFrameCallback(VisualizerService.this);
+			framePending = true;
+			Looper.loop();
+		}
+	}
+
 	private Visualizer visualizer;
 	private Observer observer;
-	private volatile boolean alive, reset, created, playing, failed, visualizerReady;
+	private volatile boolean alive, reset, created, playing, failed, visualizerReady, paused;
 	private byte[] waveform;
-	private Timer timer;
+	private Looper looper;
+	private Handler handler;
+	private Choreographer choreographer;
+	private boolean framePending;
+	private long lastVsyncNanos, lastFrameNanos, frameIntervalNanos;
+	private int lastHeadPositionInFrames;
+	private volatile int frameCount, droppedFrameCount, duplicatedFrameCount;
 
 	public VisualizerService(Visualizer visualizer, Observer observer) {
 		this.visualizer = visualizer;
@@ -51,8 +91,17 @@ public final class VisualizerService implements br.com.carlosrafaelgn.fplay.plug
 		reset = true;
 		playing = Player.localPlaying;
 		waveform = new byte[Visualizer.CAPTURE_SIZE];
-		timer = new Timer(this, "Visualizer Thread", false, false, true);
-		timer.start(16);
+		frameIntervalNanos = DEFAULT_FRAME_INTERVAL_NANOS;
+		lastHeadPositionInFrames = -1;
+		new VisualizerThread().start();
+	}
+
+	private void sendResumeMessage() {
+		synchronized (this) {
+			//if there is no handler yet, the thread will post the first frame callback by itself
+			if (handler != null)
+				handler.sendEmptyMessageAtTime(MSG_RESUME, SystemClock.uptimeMillis());
+		}
 	}
 
 	@Override
@@ -62,14 +111,14 @@ public final class VisualizerService implements br.com.carlosrafaelgn.fplay.plug
 
 	@Override
 	public void pause() {
-		if (timer != null)
-			timer.pause();
+		//no more frame callbacks will be posted after the next frame
+		paused = true;
 	}
 
 	@Override
 	public void resume() {
-		if (timer != null)
-			timer.resume();
+		paused = false;
+		sendResumeMessage();
 	}
 
 	@Override
@@ -77,21 +126,37 @@ public final class VisualizerService implements br.com.carlosrafaelgn.fplay.plug
 		//unlike the traditional visualizer, there is no need to reset this visualizer
 		//(we only need to zero it out)
 		reset = true;
-		if (timer != null)
-			timer.resume();
+		paused = false;
+		sendResumeMessage();
 	}
 
 	@Override
 	public void destroy() {
-		if (timer != null) {
-			alive = false;
+		if (alive) {
 			if (visualizer != null)
 				visualizer.cancelLoading();
-			timer.resume();
-			timer = null;
+			//the final cleanup takes place during the next frame
+			alive = false;
+			sendResumeMessage();
 		}
 	}
 
+	//how many frames have been delivered to the visualizer
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	//how many vsyncs have been missed because a frame took too long to be processed
+	public int getDroppedFrameCount() {
+		return droppedFrameCount;
+	}
+
+	//how many frames have received the same waveform as the previous frame, while playing
+	public int getDuplicatedFrameCount() {
+		return duplicatedFrameCount;
+	}
+
+	//Runs on the MAIN thread
 	@Override
 	public void run() {
 		if (failed) {
@@ -104,13 +169,43 @@ public final class VisualizerService implements br.com.carlosrafaelgn.fplay.plug
 			observer = null;
 		}
 		waveform = null;
-		timer = null;
 		visualizer = null;
 	}
 
+	//Runs on a SECONDARY thread
 	@Override
-	public void handleTimer(Timer timer, Object param) {
+	public boolean handleMessage(Message msg) {
+		if (msg.what == MSG_RESUME && !framePending) {
+			//the time elapsed while paused must not be taken as dropped frames
+			lastVsyncNanos = 0;
+			framePending = true;
+			choreographer.postFrameCallback(this);
+		}
+		return true;
+	}
+
+	//Runs on a SECONDARY thread
+	@Override
+	public void doFrame(long frameTimeNanos) {
+		framePending = false;
 		if (alive) {
+			if (lastVsyncNanos != 0) {
+				final long delta = frameTimeNanos - lastVsyncNanos;
+				if (delta < (frameIntervalNanos + (frameIntervalNanos >> 1))) {
+					//follow the actual refresh rate of the display
+					frameIntervalNanos = ((frameIntervalNanos * 7) + delta) >> 3;
+				} else {
+					droppedFrameCount += (int)((delta + (frameIntervalNanos >> 1)) / frameIntervalNanos) - 1;
+				}
+			}
+			lastVsyncNanos = frameTimeNanos;
+			if (paused)
+				return;
+			framePending = true;
+			choreographer.postFrameCallback(this);
+			if ((frameTimeNanos - lastFrameNanos) < MINIMUM_FRAME_INTERVAL_NANOS)
+				return;
+			lastFrameNanos = frameTimeNanos;
 			if (reset) {
 				reset = false;
 				if (created) {
@@ -127,14 +222,27 @@ public final class VisualizerService implements br.com.carlosrafaelgn.fplay.plug
 					}
 				}
 			}
-			if (visualizer != null) {
-				if (playing)
-					MediaContext.getVisualizerWaveform(waveform);
+			if (visualizer != null && alive) {
+				if (playing) {
+					//this frame will only be presented at the next vsync
+					final int headPositionInFrames = MediaContext.getVisualizerWaveform(waveform, frameTimeNanos + frameIntervalNanos);
+					if (headPositionInFrames == lastHeadPositionInFrames)
+						duplicatedFrameCount++;
+					lastHeadPositionInFrames = headPositionInFrames;
+				}
+				frameCount++;
 				visualizer.processFrame(playing, waveform);
 			}
 		}
 		if (!alive) {
-			timer.release();
+			if (framePending) {
+				framePending = false;
+				choreographer.removeFrameCallback(this);
+			}
+			synchronized (this) {
+				handler = null;
+			}
+			looper.quit();
 			if (visualizer != null)
 				visualizer.release();
 			MediaContext.stopVisualizer();
@@ -33,16 +33,18 @@
 package br.com.carlosrafaelgn.fplay.plugin.httptransmitter;
 
 import android.content.Context;
-import android.os.SystemClock;
 
 import org.nanohttpd.webserver.FileSystemWebServer;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 import br.com.carlosrafaelgn.fplay.plugin.FPlay;
 import br.com.carlosrafaelgn.fplay.plugin.FPlayPlugin;
@@ -56,122 +58,194 @@ public final class Plugin implements FPlayPlugin, FileSystemWebServer.FileHandle
 	private static final int PLUGIN_MSG_GET_ENCODED_ADDRESS = 0x0004;
 	private static final int PLUGIN_MSG_REFRESH_LIST = 0x0005;
 
-	private static long indexLength, faviconLength, favicon192Length, favicon512Length, manifestLength,
-		browserconfigLength, styleLength, loadingLength, iconsLength;
+	//the assets never change while the plugin is loaded, so they are read (and compressed) only once
+	private static final HashMap<String, FileSystemWebServer.CachedContent> assetCache = new HashMap<>();
+
+	//at most MAX_TRANSITION_COUNT changes (and MAX_TRANSITION_LENGTH bytes worth of operations)
+	//are kept, so that clients can catch up on the list without downloading it all over again
+	private static final int MAX_TRANSITION_COUNT = 64;
+	private static final int MAX_TRANSITION_LENGTH = 256 * 1024;
+	//past this point it is cheaper to simply download the entire list
+	private static final int MAX_OPERATION_COUNT = 512;
+
+	//the operations that turn the list with version fromVersion into the following one
+	//(operations is null when there were so many changes that it was not worth storing them)
+	private static final class Transition {
+		final int fromVersion;
+		final byte[] operations;
+
+		Transition(int fromVersion, byte[] operations) {
+			this.fromVersion = fromVersion;
+			this.operations = operations;
+		}
+	}
 
-	private static final class Playlist {
+	private final class Playlist {
 		final int listVersion;
-		final byte[] listJson, listVersionBytes;
+		final byte[] listVersionBytes;
 		final SongInfo[] list;
-		final String tag;
+		final HashMap<Long, SongInfo> songsById;
+		final Transition[] transitions;
+		final FileSystemWebServer.CachedContent versionContent;
+		private FileSystemWebServer.CachedContent listContent;
+		private final HashMap<Integer, FileSystemWebServer.CachedContent> deltaContents;
 
-		Playlist(int listVersion, byte[] listJson, SongInfo[] list, String tag) {
+		Playlist(int listVersion, SongInfo[] list, Transition[] transitions) {
 			this.listVersion = listVersion;
-			this.listJson = listJson;
 			this.listVersionBytes = Integer.toString(listVersion).getBytes();
 			this.list = list;
-			this.tag = tag;
+			this.songsById = new HashMap<>(list.length << 1);
+			for (SongInfo info : list)
+				songsById.put(info.id, info);
+			this.transitions = transitions;
+			this.versionContent = new FileSystemWebServer.CachedContent(listVersionBytes);
+			this.deltaContents = new HashMap<>();
+		}
+
+		//the entire list is only created if someone actually asks for it (and only once per version)
+		synchronized FileSystemWebServer.CachedContent listContent() {
+			if (listContent == null) {
+				final StringBuilder builder = new StringBuilder(128 * 1024);
+				builder.append("{\"version\":");
+				builder.append(listVersion);
+				builder.append(",\"list\":[");
+				for (int i = 0; i < list.length; i++) {
+					if (i != 0)
+						builder.append(',');
+					appendSongJson(builder, list[i]);
+				}
+				builder.append("]}");
+				listContent = new FileSystemWebServer.CachedContent(builder.toString().getBytes());
+			}
+			return listContent;
+		}
+
+		//returns the operations that turn the list with version fromVersion into this one, or
+		//the entire list, if fromVersion is too old (or unknown); all clients that were left
+		//behind at the same version share the same delta
+		synchronized FileSystemWebServer.CachedContent deltaContent(int fromVersion) {
+			FileSystemWebServer.CachedContent content = deltaContents.get(fromVersion);
+			if (content == null) {
+				final byte[] delta = delta(fromVersion);
+				//only known versions are kept (there are at most MAX_TRANSITION_COUNT + 1 of them)
+				if (delta == null)
+					return listContent();
+				content = new FileSystemWebServer.CachedContent(delta);
+				deltaContents.put(fromVersion, content);
+			}
+			return content;
+		}
+
+		//returns null if fromVersion is too old (or unknown)
+		private byte[] delta(int fromVersion) {
+			int first = transitions.length;
+			if (fromVersion != listVersion) {
+				first = -1;
+				for (int i = transitions.length - 1; i >= 0 && transitions[i].operations != null; i--) {
+					if (transitions[i].fromVersion == fromVersion) {
+						first = i;
+						break;
+					}
+				}
+				if (first < 0)
+					return null;
+			}
+			final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(1024);
+			final byte[] header = ("{\"version\":" + listVersion + ",\"operations\":[").getBytes();
+			outputStream.write(header, 0, header.length);
+			for (int i = first; i < transitions.length; i++) {
+				final byte[] operations = transitions[i].operations;
+				if (operations.length == 0)
+					continue;
+				if (outputStream.size() > header.length)
+					outputStream.write(',');
+				outputStream.write(operations, 0, operations.length);
+			}
+			outputStream.write(']');
+			outputStream.write('}');
+			return outputStream.toByteArray();
 		}
 	}
 
-	private final class FileHandler implements FileSystemWebServer.FileHandler {
+	private final class FileHandler implements FileSystemWebServer.CachedFileHandler {
 		private final File file;
-		private final byte[] contents;
-		private final String tag, asset;
-		private final long assetLength;
+		private final FileSystemWebServer.CachedContent content;
+		private long songId;
 
 		FileHandler(String uri, Playlist playlist) {
-			tag = playlist.tag;
 			switch (uri) {
 			case "/":
 				file = null;
-				contents = null;
-				asset = "binary/index.dat";
-				if (indexLength <= 0)
-					indexLength = computeAssetLength(asset);
-				assetLength = indexLength;
+				content = cachedAsset("binary/index.dat");
 				break;
 			case "/favicon.ico":
 				file = null;
-				contents = null;
-				asset = "binary/favicon.dat";
-				if (faviconLength <= 0)
-					faviconLength = computeAssetLength(asset);
-				assetLength = faviconLength;
+				content = cachedAsset("binary/favicon.dat");
 				break;
 			case "/favicon.png":
 				file = null;
-				contents = null;
-				asset = "binary/favicon192.dat";
-				if (favicon192Length <= 0)
-					favicon192Length = computeAssetLength(asset);
-				assetLength = favicon192Length;
+				content = cachedAsset("binary/favicon192.dat");
 				break;
 			case "/favicon512.png":
 				file = null;
-				contents = null;
-				asset = "binary/favicon512.dat";
-				if (favicon512Length <= 0)
-					favicon512Length = computeAssetLength(asset);
-				assetLength = favicon512Length;
+				content = cachedAsset("binary/favicon512.dat");
 				break;
 			case "/manifest.json":
 				file = null;
-				contents = null;
-				asset = "binary/manifest.dat";
-				if (manifestLength <= 0)
-					manifestLength = computeAssetLength(asset);
-				assetLength = manifestLength;
+				content = cachedAsset("binary/manifest.dat");
 				break;
 			case "/browserconfig.xml":
 				file = null;
-				contents = null;
-				asset = "binary/browserconfig.dat";
-				if (browserconfigLength <= 0)
-					browserconfigLength = computeAssetLength(asset);
-				assetLength = browserconfigLength;
+				content = cachedAsset("binary/browserconfig.dat");
 				break;
 			case "/style.css":
 				file = null;
-				contents = null;
-				asset = "binary/style.dat";
-				if (styleLength <= 0)
-					styleLength = computeAssetLength(asset);
-				assetLength = styleLength;
+				content = cachedAsset("binary/style.dat");
 				break;
 			case "/loading-grey-t.gif":
 				file = null;
-				contents = null;
-				asset = "binary/loading-grey-t.dat";
-				if (loadingLength <= 0)
-					loadingLength = computeAssetLength(asset);
-				assetLength = loadingLength;
+				content = cachedAsset("binary/loading-grey-t.dat");
 				break;
 			case "/icons.ttf":
 				file = null;
-				contents = null;
-				asset = "#fonts/icons.ttf";
-				if (iconsLength <= 0)
-					iconsLength = computeAssetLength(asset);
-				assetLength = iconsLength;
+				content = cachedAsset("#fonts/icons.ttf");
 				break;
 			case "/list.json":
 				file = null;
-				contents = playlist.listJson;
-				asset = null;
-				assetLength = 0;
+				content = playlist.listContent();
 				break;
 			case "/version.json":
 				file = null;
-				contents = playlist.listVersionBytes;
-				asset = null;
-				assetLength = 0;
+				content = playlist.versionContent;
 				break;
 			default:
-				contents = null;
-				asset = null;
-				assetLength = 0;
-				if (uri.length() < 4) {
+				if (uri.startsWith("/delta/") && uri.endsWith(".json")) {
+					//"/delta/<version the client has>.json"
+					file = null;
+					int fromVersion;
+					try {
+						fromVersion = Integer.parseInt(uri.substring(7, uri.length() - 5));
+					} catch (Throwable ex) {
+						fromVersion = -1;
+					}
+					content = playlist.deltaContent(fromVersion);
+					break;
+				}
+				content = null;
+				if (uri.startsWith("/s/")) {
+					//"/s/<song id>.<extension>": unlike "/<version>/<index>.<extension>", the address of
+					//a song remains valid until the song is removed from the list
+					final int dot = uri.lastIndexOf('.');
+					long id;
+					try {
+						id = Long.parseLong(uri.substring(3, (dot > 3) ? dot : uri.length()));
+					} catch (Throwable ex) {
+						id = -1;
+					}
+					final SongInfo info = playlist.songsById.get(id);
+					file = ((info == null || info.isHttp) ? null : new File(info.path));
+					songId = id;
+				} else if (uri.length() < 4) {
 					file = null;
 				} else {
 					final int slash = uri.indexOf('/'), slash2 = uri.lastIndexOf('/'), dot = uri.lastIndexOf('.');
@@ -193,6 +267,8 @@ public final class Plugin implements FPlayPlugin, FileSystemWebServer.FileHandle
 						file = ((!ok || version != playlist.listVersion || index < 0 || index >= playlist.list.length || (info = playlist.list[index]) == null || info.isHttp) ?
 							null :
 							new File(info.path));
+						if (file != null)
+							songId = playlist.list[index].id;
 					}
 				}
 				break;
@@ -201,22 +277,29 @@ public final class Plugin implements FPlayPlugin, FileSystemWebServer.FileHandle
 
 		@Override
 		public boolean exists() {
-			return (file != null || contents != null || asset != null);
+			return (file != null || content != null);
 		}
 
 		@Override
 		public String etag() {
-			return tag;
+			//a song's tag does not depend on the list version, so browsers keep using their
+			//cached copy even after the list changes (ids are never reused by FPlay)
+			return (content != null ? content.etag : (file != null ? (Long.toHexString(songId) + "-" + Long.toHexString(file.length()) + "-" + Long.toHexString(file.lastModified())) : null));
 		}
 
 		@Override
 		public long length() {
-			return (file != null ? file.length() : (contents != null ? contents.length : assetLength));
+			return (content != null ? content.contents.length : (file != null ? file.length() : 0));
 		}
 
 		@Override
 		public InputStream createInputStream() throws IOException {
-			return (asset != null ? loadAsset(asset) : (file != null ? new FileInputStream(file) : (contents != null ? new ByteArrayInputStream(contents) : null)));
+			return (content != null ? new ByteArrayInputStream(content.contents) : (file != null ? new FileInputStream(file) : null));
+		}
+
+		@Override
+		public FileSystemWebServer.CachedContent cachedContent() {
+			return content;
 		}
 	}
 
@@ -224,7 +307,7 @@ public final class Plugin implements FPlayPlugin, FileSystemWebServer.FileHandle
 	private FPlay fplay;
 	private Observer observer;
 	private FileSystemWebServer webServer;
-	private String localAddress, encodedLocalAddress, baseTag;
+	private String localAddress, encodedLocalAddress;
 	private volatile Playlist playlist;
 
 	@Override
@@ -260,7 +343,6 @@ public final class Plugin implements FPlayPlugin, FileSystemWebServer.FileHandle
 		observer = null;
 		localAddress = null;
 		encodedLocalAddress = null;
-		baseTag = null;
 		playlist = null;
 	}
 
@@ -289,8 +371,6 @@ public final class Plugin implements FPlayPlugin, FileSystemWebServer.FileHandle
 			if (webServer != null)
 				return 0;
 
-			baseTag = Long.toString(System.currentTimeMillis()) + Long.toString(SystemClock.elapsedRealtime());
-
 			try {
 				final int addr = fplay.getWiFiIpAddress();
 				final String addrStr = fplay.getWiFiIpAddressStr();
@@ -328,16 +408,22 @@ public final class Plugin implements FPlayPlugin, FileSystemWebServer.FileHandle
 		return 0;
 	}
 
-	private long computeAssetLength(String fileName) {
+	private byte[] loadAsset(String fileName) {
 		InputStream inputStream = null;
+		ByteArrayOutputStream outputStream = null;
 		try {
 			if (fileName.charAt(0) == '#')
 				inputStream = ((Context)fplay.getApplicationContext()).getAssets().open(fileName.substring(1));
 			else
 				inputStream = pluginContext.getAssets().open(fileName);
-			return (long)inputStream.available();
+			outputStream = new ByteArrayOutputStream(32 * 1024);
+			final byte[] tmp = new byte[4096];
+			int total;
+			while ((total = inputStream.read(tmp)) > 0)
+				outputStream.write(tmp, 0, total);
+			return outputStream.toByteArray();
 		} catch (Throwable ex) {
-			return 0;
+			return null;
 		} finally {
 			if (inputStream != null) {
 				try {
@@ -346,99 +432,247 @@ public final class Plugin implements FPlayPlugin, FileSystemWebServer.FileHandle
 					//just ignore...
 				}
 			}
+			if (outputStream != null) {
+				try {
+					outputStream.close();
+				} catch (Throwable ex) {
+					//just ignore...
+				}
+			}
 		}
 	}
 
-	private InputStream loadAsset(String fileName) {
-		try {
-			if (fileName.charAt(0) == '#')
-				return ((Context)fplay.getApplicationContext()).getAssets().open(fileName.substring(1));
-			else
-				return pluginContext.getAssets().open(fileName);
-		} catch (Throwable ex) {
-			return null;
+	private FileSystemWebServer.CachedContent cachedAsset(String fileName) {
+		synchronized (assetCache) {
+			FileSystemWebServer.CachedContent content = assetCache.get(fileName);
+			if (content == null) {
+				final byte[] contents = loadAsset(fileName);
+				if (contents == null)
+					return null;
+				content = new FileSystemWebServer.CachedContent(contents);
+				assetCache.put(fileName, content);
+			}
+			return content;
 		}
 	}
 
-	//private byte[] loadAsset(String fileName) {
-	//	InputStream inputStream = null;
-	//	ByteArrayOutputStream outputStream = null;
-	//	try {
-	//		inputStream = pluginContext.getAssets().open(fileName);
-	//		outputStream = new ByteArrayOutputStream(32 * 1024);
-	//		final byte[] tmp = new byte[1024];
-	//		int total;
-	//		while ((total = inputStream.read(tmp)) > 0)
-	//			outputStream.write(tmp, 0, total);
-	//		return outputStream.toByteArray();
-	//	} catch (Throwable ex) {
-	//		return null;
-	//	} finally {
-	//		if (inputStream != null) {
-	//			try {
-	//				inputStream.close();
-	//			} catch (Throwable ex) {
-	//				//just ignore...
-	//			}
-	//		}
-	//		if (outputStream != null) {
-	//			try {
-	//				outputStream.close();
-	//			} catch (Throwable ex) {
-	//				//just ignore...
-	//			}
-	//		}
-	//	}
-	//}
+	private void appendSongJson(StringBuilder builder, SongInfo info) {
+		builder.append("{\"id\":");
+		builder.append(info.id);
+		builder.append(",\"path\":\"http://");
+		builder.append(localAddress);
+		builder.append("/s/");
+		builder.append(info.id);
+		final int ext = info.path.lastIndexOf('.');
+		if (ext >= 0 && ext > info.path.lastIndexOf('/'))
+			fplay.adjustJsonString(builder, info.path.substring(ext));
+		builder.append("\",\"title\":\"");
+		fplay.adjustJsonString(builder, info.title);
+		builder.append("\",\"artist\":\"");
+		fplay.adjustJsonString(builder, info.artist);
+		builder.append("\",\"album\":\"");
+		fplay.adjustJsonString(builder, info.album);
+		builder.append("\",\"track\":");
+		builder.append(info.track);
+		builder.append(",\"lengthMS\":");
+		builder.append(info.lengthMS);
+		builder.append(",\"year\":");
+		builder.append(info.year);
+		builder.append(",\"length\":\"");
+		fplay.adjustJsonString(builder, info.length);
+		builder.append("\",\"isHttp\":true}");
+	}
+
+	private static boolean equals(String a, String b) {
+		return ((a == null) ? (b == null) : a.equals(b));
+	}
+
+	private static boolean sameContents(SongInfo a, SongInfo b) {
+		return (equals(a.path, b.path) && equals(a.title, b.title) && equals(a.artist, b.artist) && equals(a.album, b.album) && equals(a.length, b.length) &&
+			a.track == b.track && a.lengthMS == b.lengthMS && a.year == b.year);
+	}
+
+	//Creates the operations that turn oldList into newList, which are applied in order:
+	//["r",index,count] removes count songs starting at index
+	//["m",from,to] removes the song at from, and then inserts it back at to
+	//["i",index,song0,song1...] inserts the given songs starting at index
+	//["u",index,song] replaces the song at index
+	//Songs are identified by their ids (which never change, and are never reused). Returns
+	//null if there are so many operations that the entire list should be downloaded instead.
+	private byte[] computeOperations(Playlist oldPlaylist, SongInfo[] newList) {
+		final SongInfo[] oldList = oldPlaylist.list;
+		final HashMap<Long, Integer> newPositions = new HashMap<>(newList.length << 1);
+		for (int i = 0; i < newList.length; i++)
+			newPositions.put(newList[i].id, i);
+
+		final StringBuilder builder = new StringBuilder(1024);
+		int operationCount = 0;
+
+		//removals (from the end, so that the indices remain valid), leaving only the survivors
+		int survivorCount = 0;
+		final int[] survivors = new int[oldList.length];
+		for (int i = oldList.length - 1; i >= 0; ) {
+			if (newPositions.containsKey(oldList[i].id)) {
+				survivorCount++;
+				i--;
+				continue;
+			}
+			final int end = i;
+			while (i >= 0 && !newPositions.containsKey(oldList[i].id))
+				i--;
+			if (++operationCount > MAX_OPERATION_COUNT)
+				return null;
+			if (builder.length() > 0)
+				builder.append(',');
+			builder.append("[\"r\",");
+			builder.append(i + 1);
+			builder.append(',');
+			builder.append(end - i);
+			builder.append(']');
+		}
+		for (int i = 0, j = 0; i < oldList.length; i++) {
+			final Integer position = newPositions.get(oldList[i].id);
+			if (position != null)
+				survivors[j++] = position;
+		}
+
+		//the survivors in the longest increasing subsequence stay where they are, all the
+		//others (the ones that actually moved) are first sent to the end of the list...
+		final int[] tails = new int[survivorCount], previous = new int[survivorCount];
+		int length = 0;
+		for (int i = 0; i < survivorCount; i++) {
+			int lo = 0, hi = length;
+			while (lo < hi) {
+				final int mid = (lo + hi) >>> 1;
+				if (survivors[tails[mid]] < survivors[i])
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			previous[i] = ((lo > 0) ? tails[lo - 1] : -1);
+			tails[lo] = i;
+			if (lo == length)
+				length++;
+		}
+		final boolean[] stable = new boolean[survivorCount];
+		for (int i = ((length > 0) ? tails[length - 1] : -1); i >= 0; i = previous[i])
+			stable[i] = true;
+		operationCount += (survivorCount - length) << 1;
+		if (operationCount > MAX_OPERATION_COUNT)
+			return null;
+		final ArrayList<Integer> working = new ArrayList<>(newList.length);
+		for (int i = 0; i < survivorCount; i++)
+			working.add(survivors[i]);
+		for (int i = survivorCount - 1; i >= 0; i--) {
+			if (stable[i])
+				continue;
+			if (builder.length() > 0)
+				builder.append(',');
+			builder.append("[\"m\",");
+			builder.append(i);
+			builder.append(',');
+			builder.append(working.size() - 1);
+			builder.append(']');
+			working.add(working.remove(i));
+		}
+
+		//...and then everything is put in its final place
+		for (int j = 0; j < newList.length; j++) {
+			if (j < working.size() && working.get(j) == j)
+				continue;
+			if (builder.length() > MAX_TRANSITION_LENGTH)
+				return null;
+			if (builder.length() > 0)
+				builder.append(',');
+			if (!oldPlaylist.songsById.containsKey(newList[j].id)) {
+				if (++operationCount > MAX_OPERATION_COUNT)
+					return null;
+				builder.append("[\"i\",");
+				builder.append(j);
+				final int start = j;
+				do {
+					builder.append(',');
+					appendSongJson(builder, newList[j]);
+					working.add(j, j);
+					j++;
+				} while (j < newList.length && !oldPlaylist.songsById.containsKey(newList[j].id));
+				j--;
+				builder.append(']');
+				if (builder.length() > MAX_TRANSITION_LENGTH)
+					return null;
+			} else {
+				//this is one of the songs that have been sent to the end
+				final int from = working.indexOf(j);
+				builder.append("[\"m\",");
+				builder.append(from);
+				builder.append(',');
+				builder.append(j);
+				builder.append(']');
+				working.add(j, working.remove(from));
+			}
+		}
+
+		//finally, the songs whose information has changed
+		for (int j = 0; j < newList.length; j++) {
+			final SongInfo oldInfo = oldPlaylist.songsById.get(newList[j].id);
+			if (oldInfo == null || sameContents(oldInfo, newList[j]))
+				continue;
+			if (++operationCount > MAX_OPERATION_COUNT || builder.length() > MAX_TRANSITION_LENGTH)
+				return null;
+			if (builder.length() > 0)
+				builder.append(',');
+			builder.append("[\"u\",");
+			builder.append(j);
+			builder.append(',');
+			appendSongJson(builder, newList[j]);
+			builder.append(']');
+		}
+
+		return builder.toString().getBytes();
+	}
 
 	private void refreshList(boolean force) {
 		if (fplay == null)
 			return;
 
-		if (!force && playlist != null && playlist.listVersion == fplay.getPlaylistVersion())
+		final Playlist oldPlaylist = playlist;
+		if (!force && oldPlaylist != null && oldPlaylist.listVersion == fplay.getPlaylistVersion())
 			return;
 
-		final StringBuilder builder = new StringBuilder(128 * 1024);
 		final int version = fplay.getPlaylistVersion();
 		final int count = fplay.getPlaylistCount();
 		final SongInfo[] list = new SongInfo[count];
-		builder.append("{\"list\":[");
 		for (int i = 0; i < count; i++) {
-			if (i != 0)
-				builder.append(',');
-
 			final SongInfo info = new SongInfo();
 			list[i] = info;
 			fplay.getPlaylistSongInfo(i, info);
+		}
 
-			builder.append("{\"path\":\"http://");
-			builder.append(localAddress);
-			builder.append('/');
-			builder.append(version);
-			builder.append('/');
-			builder.append(i);
-			final int ext = info.path.lastIndexOf('.');
-			if (ext >= 0)
-				fplay.adjustJsonString(builder, info.path.substring(ext));
-			builder.append("\",\"title\":\"");
-			fplay.adjustJsonString(builder, info.title);
-			builder.append("\",\"artist\":\"");
-			fplay.adjustJsonString(builder, info.artist);
-			builder.append("\",\"album\":\"");
-			fplay.adjustJsonString(builder, info.album);
-			builder.append("\",\"track\":");
-			builder.append(info.track);
-			builder.append(",\"lengthMS\":");
-			builder.append(info.lengthMS);
-			builder.append(",\"year\":");
-			builder.append(info.year);
-			builder.append(",\"length\":\"");
-			fplay.adjustJsonString(builder, info.length);
-			builder.append("\",\"isHttp\":true}");
+		//instead of creating the entire list.json every time the list changes, only the
+		//changes are created here (list.json is created later, if someone asks for it)
+		Transition[] transitions = new Transition[0];
+		if (oldPlaylist != null && oldPlaylist.listVersion == version) {
+			//a forced refresh of the same version must not invalidate the deltas clients still need
+			transitions = oldPlaylist.transitions;
+		} else if (oldPlaylist != null) {
+			final Transition[] oldTransitions = oldPlaylist.transitions;
+			final Transition transition = new Transition(oldPlaylist.listVersion, computeOperations(oldPlaylist, list));
+			int first = oldTransitions.length + 1 - MAX_TRANSITION_COUNT, total = ((transition.operations == null) ? 0 : transition.operations.length);
+			if (first < 0 || transition.operations == null)
+				first = ((transition.operations == null) ? oldTransitions.length : 0);
+			for (int i = oldTransitions.length - 1; i >= first; i--) {
+				if (oldTransitions[i].operations == null || (total += oldTransitions[i].operations.length) > MAX_TRANSITION_LENGTH) {
+					//nothing before a reset (or too old) is of any use
+					first = i + 1;
+					break;
+				}
+			}
+			transitions = new Transition[oldTransitions.length - first + 1];
+			System.arraycopy(oldTransitions, first, transitions, 0, transitions.length - 1);
+			transitions[transitions.length - 1] = transition;
 		}
-		builder.append("]}");
 
-		playlist = new Playlist(version, builder.toString().getBytes(), list, baseTag + version);
+		playlist = new Playlist(version, list, transitions);
 
 		System.gc();
 	}
@@ -73,6 +73,11 @@ public class ClientHandler implements Runnable {
             HTTPSession session = new HTTPSession(httpd, tempFileManager, this.inputStream, outputStream, this.acceptSocket.getInetAddress());
             while (!this.acceptSocket.isClosed()) {
                 session.execute();
+                // keep the connection alive only while no one else is waiting
+                // for this thread (the client will simply open a new one)
+                if (httpd.asyncRunner.hasPendingConnections()) {
+                    break;
+                }
             }
         } catch (Exception e) {
             // When the socket is closed by the client,
@@ -36,6 +36,12 @@ package org.nanohttpd.protocols.http.threading;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.nanohttpd.protocols.http.ClientHandler;
 
@@ -43,27 +49,102 @@ import org.nanohttpd.protocols.http.ClientHandler;
  * Default threading strategy for NanoHTTPD.
  * <p/>
  * <p>
- * By default, the server spawns a new Thread for every incoming request. These
- * are set to <i>daemon</i> status, and named according to the request number.
- * The name is useful when profiling the application.
+ * The server keeps a bounded pool of reusable <i>daemon</i> threads. A
+ * connection (including all the requests sent over it while it is kept alive)
+ * is served by one of them. When all threads are busy, new connections wait in
+ * a bounded queue, and when the queue is also full, they are closed right away.
+ * Idle threads die after a while, so an idle server holds no threads at all.
  * </p>
  */
 public class DefaultAsyncRunner implements IAsyncRunner {
 
+    public static final int DEFAULT_MAX_THREADS = 16;
+
+    public static final int DEFAULT_MAX_QUEUED = 32;
+
+    private static final long IDLE_THREAD_TIMEOUT_MS = 30000;
+
     protected long requestCount;
 
     private final List<ClientHandler> running = Collections.synchronizedList(new ArrayList<ClientHandler>());
 
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    private final AtomicInteger rejectedCount = new AtomicInteger();
+
+    public DefaultAsyncRunner() {
+        this(DEFAULT_MAX_THREADS, DEFAULT_MAX_QUEUED);
+    }
+
+    public DefaultAsyncRunner(int maxThreads, int maxQueued) {
+        // core == max, because ThreadPoolExecutor only creates threads beyond
+        // the core size when the queue is full
+        this.executor = new ThreadPoolExecutor(maxThreads, maxThreads, IDLE_THREAD_TIMEOUT_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(maxQueued), new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return createThread(r);
+            }
+        }, new RejectedExecutionHandler() {
+
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                // too many connections: refuse this one
+                DefaultAsyncRunner.this.rejectedCount.incrementAndGet();
+                ClientHandler clientHandler = (ClientHandler) r;
+                clientHandler.close();
+                closed(clientHandler);
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
     /**
-     * @return a list with currently running clients.
+     * @return a list with currently running clients (including the queued ones).
      */
     public List<ClientHandler> getRunning() {
         return running;
     }
 
+    /**
+     * @return the number of connections currently being served.
+     */
+    public int getActiveCount() {
+        return this.executor.getActiveCount();
+    }
+
+    /**
+     * @return the number of connections waiting for a free thread.
+     */
+    public int getQueuedCount() {
+        return this.executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of connections refused because the queue was full.
+     */
+    public int getRejectedCount() {
+        return this.rejectedCount.get();
+    }
+
+    /**
+     * @return the number of connections accepted so far.
+     */
+    public synchronized long getRequestCount() {
+        return this.requestCount;
+    }
+
+    @Override
+    public boolean hasPendingConnections() {
+        return !this.executor.getQueue().isEmpty();
+    }
+
     @Override
     public void closeAll() {
-        // copy of the list for concurrency
+        // copy of the list for concurrency (queued clients are closed as well,
+        // so they finish as soon as they reach a thread)
         for (ClientHandler clientHandler : new ArrayList<ClientHandler>(this.running)) {
             clientHandler.close();
         }
@@ -76,15 +157,17 @@ public class DefaultAsyncRunner implements IAsyncRunner {
 
     @Override
     public void exec(ClientHandler clientHandler) {
-        ++this.requestCount;
+        synchronized (this) {
+            ++this.requestCount;
+        }
         this.running.add(clientHandler);
-        createThread(clientHandler).start();
+        this.executor.execute(clientHandler);
     }
 
-    protected Thread createThread(ClientHandler clientHandler) {
-        Thread t = new Thread(clientHandler);
+    protected Thread createThread(Runnable runnable) {
+        Thread t = new Thread(runnable);
         t.setDaemon(true);
-        t.setName("NanoHttpd Request Processor (#" + this.requestCount + ")");
+        t.setName("NanoHttpd Request Processor (#" + this.threadCount.incrementAndGet() + ")");
         return t;
     }
 }
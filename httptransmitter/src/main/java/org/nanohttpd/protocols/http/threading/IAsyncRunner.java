@@ -45,4 +45,10 @@ public interface IAsyncRunner {
     void closed(ClientHandler clientHandler);
 
     void exec(ClientHandler code);
+
+    /**
+     * @return true if there are connections waiting for a thread, in which
+     *         case idle keep-alive connections should give up their threads.
+     */
+    boolean hasPendingConnections();
 }
@@ -35,12 +35,16 @@ package org.nanohttpd.webserver;
 
 // This is a modified version suited for my needs :)
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
 
 import org.nanohttpd.protocols.http.IHTTPSession;
 import org.nanohttpd.protocols.http.NanoHTTPD;
@@ -57,6 +61,46 @@ public final class FileSystemWebServer extends NanoHTTPD {
 		InputStream createInputStream() throws IOException;
 	}
 
+	// Handlers whose contents live in memory, and never change for a given
+	// handler, can hand them over already compressed (cachedContent() may
+	// return null, in which case the file is served as usual)
+	public interface CachedFileHandler extends FileHandler {
+		CachedContent cachedContent();
+	}
+
+	// Contents meant to be created once and served many times: the gzipped
+	// body and the strong ETags (one per representation) are computed only
+	// once, here, so serving it costs no CPU other than copying bytes
+	public static final class CachedContent {
+		public final byte[] contents, gzippedContents;
+		public final String etag, gzippedEtag;
+
+		public CachedContent(byte[] contents) {
+			this.contents = contents;
+			final CRC32 crc32 = new CRC32();
+			crc32.update(contents, 0, contents.length);
+			final String tag = Long.toHexString(crc32.getValue()) + Integer.toHexString(contents.length);
+			etag = "\"" + tag + "\"";
+			byte[] gzipped = null;
+			// tiny or already compressed contents are not worth it
+			if (contents.length >= 256) {
+				try {
+					final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(contents.length >> 1);
+					final GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream);
+					gzipOutputStream.write(contents, 0, contents.length);
+					gzipOutputStream.finish();
+					gzipOutputStream.close();
+					if (outputStream.size() < (contents.length - (contents.length >> 3)))
+						gzipped = outputStream.toByteArray();
+				} catch (Throwable ex) {
+					// Just ignore...
+				}
+			}
+			gzippedContents = gzipped;
+			gzippedEtag = ((gzipped == null) ? etag : ("\"" + tag + "-gz\""));
+		}
+	}
+
 	public interface FileHandlerFactory {
 		FileHandler createIfCanHandle(String uri);
 	}
@@ -209,7 +253,11 @@ public final class FileSystemWebServer extends NanoHTTPD {
 				return getNotFoundResponse();
 
 			String mimeTypeForFile = getMimeTypeForFile(uri);
-			r = serveFile(headers, fileHandler, mimeTypeForFile);
+			final CachedContent cachedContent;
+			if (fileHandler instanceof CachedFileHandler && (cachedContent = ((CachedFileHandler)fileHandler).cachedContent()) != null && headers.get("range") == null)
+				r = serveCachedContent(headers, cachedContent, mimeTypeForFile);
+			else
+				r = serveFile(headers, fileHandler, mimeTypeForFile);
 			if (r == null)
 				r = getNotFoundResponse();
 		}
@@ -223,6 +271,37 @@ public final class FileSystemWebServer extends NanoHTTPD {
 		return r;
 	}
 
+	private static Response serveCachedContent(Map<String, String> header, CachedContent cachedContent, String mime) {
+		final String acceptEncoding = header.get("accept-encoding");
+		final boolean gzip = (cachedContent.gzippedContents != null && acceptEncoding != null && acceptEncoding.contains("gzip"));
+		final String etag = (gzip ? cachedContent.gzippedEtag : cachedContent.etag);
+
+		final Response res;
+		final String ifNoneMatch = header.get("if-none-match");
+		if (ifNoneMatch != null && ("*".equals(ifNoneMatch) || ifNoneMatch.contains(etag))) {
+			// Not even the contents are touched
+			res = newFixedLengthResponse(Status.NOT_MODIFIED, mime, "");
+		} else {
+			final byte[] body = (gzip ? cachedContent.gzippedContents : cachedContent.contents);
+			res = Response.newFixedLengthResponse(Status.OK, mime, new ByteArrayInputStream(body), body.length);
+			res.addHeader("Content-Length", Integer.toString(body.length));
+			// Ranges are served from the uncompressed contents, by serveFile()
+			if (gzip)
+				res.addHeader("Content-Encoding", "gzip");
+			else
+				res.addHeader("Accept-Ranges", "bytes");
+		}
+		// The body has already been compressed (or it is not worth compressing)
+		res.setUseGzip(false);
+		res.addHeader("ETag", etag);
+		if (cachedContent.gzippedContents != null)
+			res.addHeader("Vary", "Accept-Encoding");
+		// Browsers may keep the contents, as long as they ask before using them
+		res.addHeader("Cache-Control", "no-cache");
+
+		return res;
+	}
+
 	private static Response serveFile(Map<String, String> header, FileHandler fileHandler, String mime) {
 		Response res;
 		InputStream inputStreamToCloseOnError = null;
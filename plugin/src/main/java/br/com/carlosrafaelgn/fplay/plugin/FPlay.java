@@ -74,6 +74,10 @@ public interface FPlay {
 	void visualizerSetColorIndex(int colorIndex);
 	void visualizerUpdateMultiplier(boolean isVoice, boolean hq);
 	int visualizerProcess(byte[] waveform, int opt);
+	//binsType goes from 0x20 (4 bins) to 0x26 (256 bins), and bins must have room for all of them
+	int visualizerGetBins(byte[] bins, int binsType);
+	int visualizerGetPeakLevel();
+	int visualizerGetVUMeter();
 
 	void previous();
 	void pause();